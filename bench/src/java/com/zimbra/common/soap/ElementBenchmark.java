@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * XML and JSON serialization of an {@link Element} shaped like a SearchResponse with {@code hits} messages.
+ * With {@code encode} set each hit is replaced by its {@link Element#encodeInPlace encoded} form as soon as it is
+ * built, as the Search handler does; the {@code build} benchmarks cover building plus marshaling, and
+ * {@code -prof gc} shows the allocation of each approach.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElementBenchmark {
+
+    @Param({"10", "500"})
+    public int hits;
+
+    @Param({"false", "true"})
+    public boolean encode;
+
+    private Element xml;
+    private Element json;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        xml = newSearchResponse(new Element.XMLElement(MailConstants.SEARCH_RESPONSE));
+        json = newSearchResponse(new Element.JSONElement(MailConstants.SEARCH_RESPONSE));
+    }
+
+    private Element newSearchResponse(Element response) {
+        response.addAttribute(MailConstants.A_SORTBY, "dateDesc").addAttribute(MailConstants.A_QUERY_MORE, true)
+                .addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        for (int i = 0; i < hits; i++) {
+            Element m = response.addNonUniqueElement(MailConstants.E_MSG);
+            m.addAttribute(MailConstants.A_ID, 1000 + i).addAttribute(MailConstants.A_CONV_ID, -(1000 + i))
+                    .addAttribute(MailConstants.A_FOLDER, "2").addAttribute(MailConstants.A_FLAGS, "uf")
+                    .addAttribute(MailConstants.A_SIZE, 4096 + i).addAttribute(MailConstants.A_DATE, 1466000000000L + i);
+            m.addNonUniqueElement(MailConstants.E_EMAIL).addAttribute(MailConstants.A_ADDRESS, "jdean@example.com")
+                    .addAttribute(MailConstants.A_DISPLAY, "Jimmy").addAttribute(MailConstants.A_ADDRESS_TYPE, "f");
+            m.addNonUniqueElement(MailConstants.E_EMAIL).addAttribute(MailConstants.A_ADDRESS, "bob@example.com")
+                    .addAttribute(MailConstants.A_DISPLAY, "Bob").addAttribute(MailConstants.A_ADDRESS_TYPE, "t");
+            m.addAttribute(MailConstants.E_SUBJECT, "Re: quarterly report & \"numbers\" <draft " + i + ">",
+                    Element.Disposition.CONTENT);
+            m.addAttribute(MailConstants.E_FRAG, "Here are the numbers you asked for, see the attached file",
+                    Element.Disposition.CONTENT);
+            if (encode) {
+                m.encodeInPlace();
+            }
+        }
+        return response;
+    }
+
+    @Benchmark
+    public String toXML() {
+        return xml.toString();
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return json.toString();
+    }
+
+    @Benchmark
+    public StringBuilder marshalXML() throws Exception {
+        StringBuilder sb = new StringBuilder(hits * 512);
+        xml.marshal(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public StringBuilder marshalJSON() throws Exception {
+        StringBuilder sb = new StringBuilder(hits * 512);
+        json.marshal(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public StringBuilder buildXML() throws Exception {
+        StringBuilder sb = new StringBuilder(hits * 512);
+        newSearchResponse(new Element.XMLElement(MailConstants.SEARCH_RESPONSE)).marshal(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public StringBuilder buildJSON() throws Exception {
+        StringBuilder sb = new StringBuilder(hits * 512);
+        newSearchResponse(new Element.JSONElement(MailConstants.SEARCH_RESPONSE)).marshal(sb);
+        return sb;
+    }
+
+}
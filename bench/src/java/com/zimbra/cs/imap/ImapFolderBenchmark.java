@@ -0,0 +1,105 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.BenchmarkUtil;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Sequence number and UID mapping in a selected {@link ImapFolder} of {@code size} messages. Every tenth message has
+ * an IMAP UID that differs from its item ID, as after a move, so that the item ID lookup has to fall back to the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImapFolderBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private ImapFolder i4folder;
+    private String uidRange;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Account acct = BenchmarkUtil.initServer();
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        for (int i = 1; i <= size; i++) {
+            int uid = i * 2;
+            int id = i % 10 == 0 ? uid + 1 : uid;
+            i4folder.cache(new ImapMessage(id, MailItem.Type.MESSAGE, uid, Flag.BITMASK_UNREAD, null), false);
+        }
+        uidRange = (size / 2) + ":" + (size / 2 + 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public ImapMessage getBySequence() {
+        return i4folder.getBySequence(ThreadLocalRandom.current().nextInt(size) + 1);
+    }
+
+    @Benchmark
+    public ImapMessage getByImapId() {
+        return i4folder.getByImapId((ThreadLocalRandom.current().nextInt(size) + 1) * 2);
+    }
+
+    @Benchmark
+    public ImapMessage getById() {
+        int i = ThreadLocalRandom.current().nextInt(size) + 1;
+        return i4folder.getById(i % 10 == 0 ? i * 2 + 1 : i * 2);
+    }
+
+    @Benchmark
+    public Set<ImapMessage> getSubsequenceByUid() throws Exception {
+        return i4folder.getSubsequence(null, uidRange, true);
+    }
+
+    @Benchmark
+    public Set<ImapMessage> getSubsequenceAll() throws Exception {
+        return i4folder.getSubsequence(null, "1:*", false);
+    }
+
+}
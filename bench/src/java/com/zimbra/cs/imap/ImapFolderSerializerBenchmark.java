@@ -0,0 +1,114 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.BenchmarkUtil;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Paging an {@link ImapFolder} of {@code size} messages out to and back in from the IMAP session cache, comparing
+ * {@link ImapFolderSerializer} with the Java serialization it replaced.  Every tenth message is flagged and every
+ * third carries a tag.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImapFolderSerializerBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private ImapFolder i4folder;
+    private byte[] compact;
+    private byte[] java;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Account acct = BenchmarkUtil.initServer();
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.getTagset().cache(new ImapFlagCache.ImapFlag("work", "work", 64, 0, true, true, true));
+        String[] tags = new String[] { "work" };
+        for (int i = 1; i <= size; i++) {
+            int flags = i % 10 == 0 ? Flag.BITMASK_FLAGGED : Flag.BITMASK_UNREAD;
+            i4folder.cache(new ImapMessage(i * 2, MailItem.Type.MESSAGE, i * 2, flags, i % 3 == 0 ? tags : null), false);
+        }
+        compact = writeCompact();
+        java = writeJava();
+        ZimbraLog.perf.info("%d messages: compact %d bytes, java %d bytes", size, compact.length, java.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public byte[] writeCompact() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ImapFolderSerializer.write(i4folder, bout);
+        return bout.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeJava() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(i4folder);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    @Benchmark
+    public ImapFolder readCompact() throws Exception {
+        return ImapFolderSerializer.read(new ByteArrayInputStream(compact));
+    }
+
+    @Benchmark
+    public ImapFolder readJava() throws Exception {
+        ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(java));
+        return (ImapFolder) oin.readObject();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.BenchmarkUtil;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Serialization of the FLAGS of an {@link ImapMessage}, as done for every message of a FETCH FLAGS response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImapMessageBenchmark {
+
+    private ImapFolder i4folder;
+    private ImapMessage unread;
+    private ImapMessage flagged;
+    private ImapMessage tagged;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Account acct = BenchmarkUtil.initServer();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        mbox.createTag(null, "work", (byte) 0);
+        mbox.createTag(null, "urgent", (byte) 0);
+
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        unread = new ImapMessage(1, MailItem.Type.MESSAGE, 1, Flag.BITMASK_UNREAD, null);
+        flagged = new ImapMessage(2, MailItem.Type.MESSAGE, 2,
+                Flag.BITMASK_FLAGGED | Flag.BITMASK_REPLIED | Flag.BITMASK_FORWARDED, null);
+        tagged = new ImapMessage(3, MailItem.Type.MESSAGE, 3, Flag.BITMASK_FLAGGED, new String[] { "work", "urgent" });
+        i4folder.cache(unread, false);
+        i4folder.cache(flagged, true);
+        i4folder.cache(tagged, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public String noFlags() {
+        return unread.getFlags(i4folder);
+    }
+
+    @Benchmark
+    public String systemFlags() {
+        return flagged.getFlags(i4folder);
+    }
+
+    @Benchmark
+    public String tags() {
+        return tagged.getFlags(i4folder);
+    }
+
+}
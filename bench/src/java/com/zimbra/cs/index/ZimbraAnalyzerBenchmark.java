@@ -0,0 +1,87 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * {@link ZimbraAnalyzer} tokenization of the fields that dominate indexing time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZimbraAnalyzerBenchmark {
+
+    @Param({LuceneFields.L_CONTENT, LuceneFields.L_H_FROM, LuceneFields.L_FILENAME, LuceneFields.L_CONTACT_DATA})
+    public String field;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MailboxTestUtil.initServer();
+        if (LuceneFields.L_H_FROM.equals(field)) {
+            text = "Jimmy Dean <jimmy.dean@sub.example.com>, \"Evans, Bob\" <bob@example.com>";
+        } else if (LuceneFields.L_FILENAME.equals(field)) {
+            text = "Quarterly-Report_2016.final (2).pdf";
+        } else if (LuceneFields.L_CONTACT_DATA.equals(field)) {
+            text = "Jimmy Dean jimmy.dean@sub.example.com +1 (650) 555-1234 Example Inc.";
+        } else {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                sb.append("The quick brown fox jumped over the lazy dog's back 1,234.56 times; ");
+                sb.append("see http://www.example.com/path?q=").append(i).append(" or mail fox@example.com. ");
+            }
+            text = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public void tokenize(Blackhole bh) throws Exception {
+        TokenStream stream = ZimbraAnalyzer.getInstance().tokenStream(field, new StringReader(text));
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        stream.reset();
+        while (stream.incrementToken()) {
+            bh.consume(term);
+        }
+        stream.end();
+        stream.close();
+    }
+
+}
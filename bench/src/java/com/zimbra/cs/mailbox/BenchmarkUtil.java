@@ -0,0 +1,55 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Sets up the unit test server for benchmarks: mock provisioning, in-memory HSQLDB and {@code MockStoreManager}, with
+ * an empty mailbox for {@code test@zimbra.com}.
+ */
+public final class BenchmarkUtil {
+
+    private BenchmarkUtil() {
+    }
+
+    /**
+     * Initializes the server and clears all data left by a previous trial.
+     *
+     * @return the account whose mailbox the benchmark should use
+     */
+    public static Account initServer() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        Account acct = prov.getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        if (acct == null) {
+            acct = prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        }
+        return acct;
+    }
+
+    public static Mailbox getMailbox() throws Exception {
+        Account acct = initServer();
+        return MailboxManager.getInstance().getMailboxByAccount(acct);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * {@link Mailbox#addMessage} against the in-memory HSQLDB {@code DbPool} and {@code MockStoreManager} used by the unit
+ * tests, so that the result reflects the mailbox code path rather than disk or MySQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxBenchmark {
+
+    private Mailbox mbox;
+    private DeliveryOptions dopt;
+    private byte[] raw;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mbox = BenchmarkUtil.getMailbox();
+        dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("The quick brown fox jumps over the lazy dog ").append(i).append("\r\n");
+        }
+        raw = ("From: Jimmy Dean <jdean@example.com>\r\n" +
+                "To: Bob Evans <bob@example.com>\r\n" +
+                "Subject: benchmark\r\n" +
+                "Content-Type: text/plain\r\n\r\n" + body).getBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public Message addMessage() throws Exception {
+        return mbox.addMessage(null, new ParsedMessage(raw, false), dopt, null);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * {@link MessageCache} under contention: concurrent cache hits, and hits while another thread keeps adding and
+ * purging entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCacheBenchmark {
+
+    private static final int MESSAGES = 500;
+
+    private Message[] messages;
+    private MimeMessage churn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Mailbox mbox = BenchmarkUtil.getMailbox();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = mbox.addMessage(null, MailboxTestUtil.generateMessage("message " + i), dopt, null);
+            MessageCache.getMimeMessage(messages[i], false);
+        }
+        churn = new MimeMessage(JMSession.getSession());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public MimeMessage hit() throws Exception {
+        return MessageCache.getMimeMessage(messages[ThreadLocalRandom.current().nextInt(MESSAGES)], false);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public MimeMessage mixedHit() throws Exception {
+        return MessageCache.getMimeMessage(messages[ThreadLocalRandom.current().nextInt(MESSAGES)], false);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedChurn() {
+        String digest = "churn-" + ThreadLocalRandom.current().nextInt(MESSAGES);
+        MessageCache.cacheMessage(digest, churn, churn);
+        MessageCache.purge(digest);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.util.BEncoding;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedContact;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Decoding the metadata column of a message, folder or contact, as written by the item itself: the full decode that
+ * {@link Metadata} used to do up front, indexing the encoded form, and the item's own {@code decodeMetadata()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+
+    @Param({"message", "folder", "contact"})
+    public String type;
+
+    private MailItem item;
+    private String encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Mailbox mbox = BenchmarkUtil.getMailbox();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession());
+        mm.setHeader("From", "Jimmy Dean <jdean@example.com>");
+        mm.setHeader("To", "Bob Evans <bob@example.com>, Carol Ames <carol@example.com>");
+        mm.setHeader("Cc", "Dave Smith <dave@example.com>");
+        mm.setHeader("Subject", "quarterly numbers");
+        mm.setHeader("Message-ID", "<bench@example.com>");
+        mm.setText("The numbers are in, and they look better than expected for the second quarter in a row.");
+        Message msg = mbox.addMessage(null, new ParsedMessage(mm, false), dopt, null);
+
+        if ("message".equals(type)) {
+            item = msg;
+        } else if ("folder".equals(type)) {
+            item = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        } else {
+            Map<String, Object> fields = new HashMap<String, Object>();
+            fields.put(ContactConstants.A_firstName, "Jimmy");
+            fields.put(ContactConstants.A_lastName, "Dean");
+            fields.put(ContactConstants.A_email, "jdean@example.com");
+            fields.put(ContactConstants.A_company, "Example Sausage Co.");
+            fields.put(ContactConstants.A_workPhone, "+1 555 0100");
+            fields.put(ContactConstants.A_workStreet, "1 Main Street");
+            fields.put(ContactConstants.A_workCity, "Springfield");
+            item = mbox.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+        }
+        encoded = item.encodeMetadata().toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Benchmark
+    public Object decodeAll() throws Exception {
+        return BEncoding.decode(encoded);
+    }
+
+    @Benchmark
+    public Metadata index() throws Exception {
+        return new Metadata(encoded);
+    }
+
+    @Benchmark
+    public MailItem decodeItem() throws Exception {
+        item.decodeMetadata(encoded);
+        return item;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.account.ZAttrProvisioning.MailThreadingAlgorithm;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * {@link Threader#lookupConversation()} for a reply, in a mailbox holding {@code conversations} threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreaderBenchmark {
+
+    @Param({"references", "subject", "subjrefs", "strict"})
+    public String algorithm;
+
+    @Param({"100", "1000"})
+    public int conversations;
+
+    private Mailbox mbox;
+    private ParsedMessage reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Account acct = BenchmarkUtil.initServer();
+        acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.fromString(algorithm));
+        mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < conversations; i++) {
+            MimeMessage mm = newMessage("thread " + i, "<root-" + i + "@example.com>");
+            mbox.addMessage(null, new ParsedMessage(mm, false), dopt, null);
+            mm = newMessage("Re: thread " + i, "<reply-" + i + "@example.com>");
+            mm.setHeader("In-Reply-To", "<root-" + i + "@example.com>");
+            mm.setHeader("References", "<root-" + i + "@example.com>");
+            mbox.addMessage(null, new ParsedMessage(mm, false), dopt, null);
+        }
+
+        int target = conversations / 2;
+        MimeMessage mm = newMessage("Re: thread " + target, "<bench@example.com>");
+        mm.setHeader("In-Reply-To", "<reply-" + target + "@example.com>");
+        mm.setHeader("References", "<root-" + target + "@example.com> <reply-" + target + "@example.com>");
+        reply = new ParsedMessage(mm, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static MimeMessage newMessage(String subject, String messageId) throws Exception {
+        MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession());
+        mm.setHeader("From", "Jimmy Dean <jdean@example.com>");
+        mm.setHeader("To", "Bob Evans <bob@example.com>");
+        mm.setHeader("Subject", subject);
+        mm.setHeader("Message-ID", messageId);
+        mm.setText("nothing to see here");
+        return mm;
+    }
+
+    @Benchmark
+    public List<Conversation> lookupConversation() throws Exception {
+        mbox.beginTransaction("ThreaderBenchmark", null);
+        try {
+            return new Threader(mbox, reply).lookupConversation();
+        } finally {
+            mbox.endTransaction(false);
+        }
+    }
+
+}
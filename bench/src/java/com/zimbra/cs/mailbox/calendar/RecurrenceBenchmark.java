@@ -0,0 +1,130 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ParsedDuration;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.common.calendar.ZCalendar.ICalTok;
+import com.zimbra.cs.mailbox.CalendarItem.Instance;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.Recurrence.CancellationRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.ExceptionRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.IRecurrence;
+import com.zimbra.cs.mailbox.calendar.Recurrence.RecurrenceRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.SimpleRepeatingRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.SingleDates;
+
+/**
+ * Expanding a year of a recurring series with an EXDATE and two exceptions: the list expansion, the lazy
+ * {@link Recurrence#instanceIterator} drained to the end, and the iterator stopped after the first instance.
+ * Run with {@code -prof gc} to compare allocation.  The series is rebuilt per call because
+ * {@code SimpleRepeatingRule} caches its list expansion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecurrenceBenchmark {
+
+    private static final ICalTimeZone PACIFIC = new ICalTimeZone(
+            "America/Los_Angeles",
+            -28800000, "16010101T020000", "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=11;BYDAY=1SU", "PST",
+            -25200000, "16010101T020000", "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=3;BYDAY=2SU", "PDT");
+    private static final TimeZoneMap TZMAP = new TimeZoneMap(PACIFIC);
+
+    @Param({"FREQ=DAILY", "FREQ=WEEKLY;BYDAY=MO,WE,FR", "FREQ=MONTHLY;BYDAY=1MO"})
+    public String rule;
+
+    private long start;
+    private long end;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MailboxTestUtil.initServer();
+        Calendar cal = new GregorianCalendar(PACIFIC);
+        cal.clear();
+        cal.set(2009, Calendar.JANUARY, 1, 0, 0, 0);
+        start = cal.getTimeInMillis();
+        cal.add(Calendar.YEAR, 1);
+        end = cal.getTimeInMillis();
+    }
+
+    private static ParsedDateTime dt(String local) throws Exception {
+        return ParsedDateTime.parse("TZID=\"" + PACIFIC.getID() + "\":" + local, TZMAP);
+    }
+
+    private IRecurrence series() throws Exception {
+        ParsedDuration duration = ParsedDuration.parse("PT1H");
+        List<IRecurrence> addRules = new ArrayList<IRecurrence>();
+        List<IRecurrence> subRules = new ArrayList<IRecurrence>();
+        addRules.add(new SimpleRepeatingRule(dt("20090105T120000"), duration, new ZRecur(rule, TZMAP), null));
+        RdateExdate exdate = new RdateExdate(ICalTok.EXDATE, PACIFIC);
+        exdate.addValue(dt("20090209T120000"));
+        subRules.add(new SingleDates(exdate, duration));
+        RecurrenceRule recurrence = new RecurrenceRule(dt("20090105T120000"), duration, null, addRules, subRules);
+        recurrence.addException(new ExceptionRule(new RecurId(dt("20090216T120000"), RecurId.RANGE_NONE),
+                dt("20090216T130000"), ParsedDuration.parse("PT2H"), null));
+        recurrence.addException(new CancellationRule(new RecurId(dt("20090119T120000"), RecurId.RANGE_NONE)));
+        return recurrence;
+    }
+
+    @Benchmark
+    public List<Instance> list() throws Exception {
+        return Recurrence.expandInstances(series(), 1, start, end);
+    }
+
+    @Benchmark
+    public int iterate() throws Exception {
+        int count = 0;
+        for (Iterator<Instance> iter = Recurrence.instanceIterator(series(), 1, start, end); iter.hasNext(); ) {
+            iter.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Instance first() throws Exception {
+        Iterator<Instance> iter = Recurrence.instanceIterator(series(), 1, start, Long.MAX_VALUE);
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+}
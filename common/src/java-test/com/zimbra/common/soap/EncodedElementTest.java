@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.localconfig.LocalConfigTestUtil;
+import com.zimbra.common.soap.Element.EncodedElement;
+
+public class EncodedElementTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        if (Strings.isNullOrEmpty(System.getProperty("zimbra.config"))) {
+            System.setProperty("zimbra.config", "../store/src/java-test/localconfig-test.xml");
+        }
+    }
+
+    @After
+    public void reset() {
+        LocalConfigTestUtil.resetLC(LC.soap_response_encode_in_place);
+    }
+
+    private static Element searchResponse(Element response) {
+        response.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        for (int i = 0; i < 3; i++) {
+            Element m = response.addNonUniqueElement(MailConstants.E_MSG);
+            m.addAttribute(MailConstants.A_ID, 1000 + i).addAttribute(MailConstants.A_FLAGS, "uf");
+            m.addNonUniqueElement(MailConstants.E_EMAIL).addAttribute(MailConstants.A_ADDRESS, "bob@example.com");
+            m.addAttribute(MailConstants.E_SUBJECT, "quarterly \"numbers\" & <draft " + i + ">",
+                    Element.Disposition.CONTENT);
+        }
+        response.addUniqueElement(MailConstants.E_INFO).addAttribute("x", "y");
+        return response;
+    }
+
+    private void encodeHits(Element response) {
+        String before = response.toString();
+        for (Element m : response.listElements(MailConstants.E_MSG)) {
+            Assert.assertTrue(m.encodeInPlace() instanceof EncodedElement);
+        }
+        Assert.assertEquals(before, response.toString());
+        Assert.assertEquals(before, response.clone().toString());
+
+        List<Element> hits = response.listElements(MailConstants.E_MSG);
+        Assert.assertEquals(3, hits.size());
+        Element first = hits.get(0);
+        Assert.assertTrue(first instanceof EncodedElement);
+        Assert.assertSame(response, first.getParent());
+        Assert.assertEquals(MailConstants.NAMESPACE_STR, first.getQName().getNamespaceURI());
+        Assert.assertEquals("1000", first.getAttribute(MailConstants.A_ID, null));
+        Assert.assertEquals("quarterly \"numbers\" & <draft 0>", first.getAttribute(MailConstants.E_SUBJECT, null));
+        Element email = first.getOptionalElement(MailConstants.E_EMAIL);
+        Assert.assertEquals("bob@example.com", email.getAttribute(MailConstants.A_ADDRESS, null));
+        Assert.assertEquals(MailConstants.NAMESPACE_STR, email.getQName().getNamespaceURI());
+        try {
+            first.addAttribute(MailConstants.A_ID, 1);
+            Assert.fail("encoded element should be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void xml() throws Exception {
+        encodeHits(searchResponse(new Element.XMLElement(MailConstants.SEARCH_RESPONSE)));
+    }
+
+    @Test
+    public void json() throws Exception {
+        encodeHits(searchResponse(new Element.JSONElement(MailConstants.SEARCH_RESPONSE)));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        LocalConfigTestUtil.setLC(LC.soap_response_encode_in_place, "false");
+        Element response = searchResponse(new Element.XMLElement(MailConstants.SEARCH_RESPONSE));
+        Element m = response.getElement(MailConstants.E_MSG);
+        Assert.assertSame(m, m.encodeInPlace());
+    }
+
+    @Test
+    public void detached() throws Exception {
+        Element m = new Element.JSONElement(MailConstants.E_MSG).addAttribute(MailConstants.A_ID, 1);
+        Assert.assertSame(m, m.encodeInPlace());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(20, histogram.getCount());
+        Assert.assertEquals(10, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(19, histogram.getValueAtPercentile(95));
+        Assert.assertEquals(20, histogram.getValueAtPercentile(100));
+        Assert.assertEquals(20, histogram.getMax());
+        Assert.assertEquals(10.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram(1L << 40, 4);
+        int last = -1;
+        for (long v = 0; v < 100000; v++) {
+            int index = histogram.indexOf(v);
+            Assert.assertTrue("index went backwards at " + v, index >= last);
+            Assert.assertTrue(histogram.highestEquivalentValue(index) >= v);
+            if (index != last && v > 0) {
+                Assert.assertEquals(v - 1, histogram.highestEquivalentValue(last));
+            }
+            last = index;
+        }
+    }
+
+    @Test
+    public void relativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        for (double p : new double[] { 50, 95, 99, 99.9 }) {
+            long expected = (long) (100000 * p / 100);
+            long actual = histogram.getValueAtPercentile(p);
+            Assert.assertTrue(p + ": " + actual, actual >= expected);
+            Assert.assertTrue(p + ": " + actual, actual <= expected + expected / 16);
+        }
+    }
+
+    @Test
+    public void overflow() {
+        LatencyHistogram histogram = new LatencyHistogram(1000, 4);
+        histogram.record(5);
+        histogram.record(50000);
+        Assert.assertEquals(50000, histogram.getMax());
+        Assert.assertEquals(50000, histogram.getValueAtPercentile(100));
+        Assert.assertEquals(5, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i % 100);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40000, histogram.getCount());
+        Assert.assertEquals(99, histogram.getMax());
+        Assert.assertEquals(99, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void appendSummary() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(120);
+        StringBuilder buf = new StringBuilder();
+        histogram.appendSummary(buf, "zimbra_soap_latency_ms", "command", "Get\"Msg");
+        Assert.assertEquals(
+                "zimbra_soap_latency_ms{command=\"Get\\\"Msg\",quantile=\"0.5\"} 3\n" +
+                "zimbra_soap_latency_ms{command=\"Get\\\"Msg\",quantile=\"0.95\"} 120\n" +
+                "zimbra_soap_latency_ms{command=\"Get\\\"Msg\",quantile=\"0.99\"} 120\n" +
+                "zimbra_soap_latency_ms{command=\"Get\\\"Msg\",quantile=\"0.999\"} 120\n" +
+                "zimbra_soap_latency_ms_sum{command=\"Get\\\"Msg\"} 123\n" +
+                "zimbra_soap_latency_ms_count{command=\"Get\\\"Msg\"} 2\n", buf.toString());
+
+        buf.setLength(0);
+        LatencyHistogram.appendLong(buf, 0);
+        buf.append(' ');
+        LatencyHistogram.appendLong(buf, 1234567890123L);
+        Assert.assertEquals("0 1234567890123", buf.toString());
+    }
+
+    @Test
+    public void reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
@@ -151,9 +151,13 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    public static final KnownKey zimbra_blob_mmap_cache_max_bytes = KnownKey.newKey(0);
+    public static final KnownKey zimbra_blob_mmap_max_file_size = KnownKey.newKey(16 * 1024 * 1024);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
+    public static final KnownKey zimbra_mailbox_manager_cache_heap_percent = KnownKey.newKey(25);
+    public static final KnownKey zimbra_mailbox_manager_cache_evict_batch = KnownKey.newKey(16);
 
     @Supported
     public static final KnownKey zimbra_mailbox_active_cache = KnownKey.newKey(500);
@@ -167,6 +171,15 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
+    public static final KnownKey zimbra_message_cache_segments = KnownKey.newKey(16);
+    public static final KnownKey zimbra_message_cache_max_bytes = KnownKey.newKey(256 * 1024 * 1024);
+    public static final KnownKey zimbra_threader_hash_cache_size = KnownKey.newKey(100);
+    public static final KnownKey zimbra_threader_hash_filter_size = KnownKey.newKey(10000);
+
+    public static final KnownKey redolog_group_commit = KnownKey.newKey(true);
+    public static final KnownKey redolog_group_commit_buffers = KnownKey.newKey(4);
+    public static final KnownKey redolog_group_commit_buffer_kb = KnownKey.newKey(1024);
+
     @Reloadable
     public static final KnownKey zimbra_mailbox_lock_max_waiting_threads = KnownKey.newKey(15);
 
@@ -175,6 +188,9 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_lock_optimistic_read = KnownKey.newKey(true);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
@@ -205,6 +221,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_max_transaction_items = KnownKey.newKey(100);
 
+    public static final KnownKey zimbra_index_max_transaction_latency_ms = KnownKey.newKey(2000);
+    public static final KnownKey zimbra_index_extract_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_index_queue_size = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_preanalyze_max_chars = KnownKey.newKey(256 * 1024);
+
     public static final KnownKey zimbra_index_lucene_io_impl = KnownKey.newKey("nio");
 
     @Supported
@@ -300,6 +321,8 @@ public final class LC {
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
+    @Reloadable
+    public static final KnownKey soap_response_encode_in_place = KnownKey.newKey(true);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
 
@@ -474,6 +497,11 @@ public final class LC {
     @Supported
     public static final KnownKey ldap_cache_zimlet_maxage = KnownKey.newKey(15);
 
+    public static final KnownKey ldap_cache_concurrent = KnownKey.newKey(true);
+    public static final KnownKey ldap_cache_stale_maxage = KnownKey.newKey(5);
+    public static final KnownKey ldap_cache_refresh_threads = KnownKey.newKey(2);
+    public static final KnownKey ldap_cache_refresh_queue_size = KnownKey.newKey(1000);
+
     public static final KnownKey ldap_cache_custom_dynamic_group_membership_maxage_ms =
             KnownKey.newKey(10 * Constants.MILLIS_PER_MINUTE);
 
@@ -655,12 +683,16 @@ public final class LC {
     @Supported
     public static final KnownKey calendar_cache_lru_size = KnownKey.newKey(1000);
 
+    // off-heap memory for the calendar summary cache LRU; folders are aged out past either bound
+    public static final KnownKey calendar_cache_lru_max_bytes = KnownKey.newKey(64L * 1024 * 1024);
+
     @Supported
     public static final KnownKey calendar_cache_range_month_from = KnownKey.newKey(0);
 
     @Supported
     public static final KnownKey calendar_cache_range_months = KnownKey.newKey(3);
     public static final KnownKey calendar_cache_max_stale_items = KnownKey.newKey(10);
+    public static final KnownKey calendar_freebusy_cache_size = KnownKey.newKey(1000);
     public static final KnownKey calendar_exchange_form_auth_url = KnownKey.newKey("/exchweb/bin/auth/owaauth.dll");
     public static final KnownKey calendar_item_get_max_retries = KnownKey.newKey(100);
 
@@ -696,6 +728,7 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_compress_deflate_level = KnownKey.newKey(6);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -793,6 +826,9 @@ public final class LC {
     public static final KnownKey zimbra_class_jsieve_comparators_octet = KnownKey.newKey("com.zimbra.cs.filter.ZimbraOctet");
     public static final KnownKey zimbra_class_two_factor_auth_factory = KnownKey.newKey("com.zimbra.cs.account.auth.twofactor.TwoFactorAuth$DefaultFactory");
 
+    // number of distinct compiled Sieve scripts shared across accounts
+    public static final KnownKey filter_script_cache_size = KnownKey.newKey(5000);
+
     // ZCS-8181 if below flag is false, do not update zimbraAppSpecificPassword attr
     //          with last authentication time during authentication of app specific password.
     public static final KnownKey zimbra_two_factor_apppasswd_update_authtime = KnownKey.newKey(true);
@@ -1057,6 +1093,13 @@ public final class LC {
 
 
     public static final KnownKey jdbc_results_streaming_enabled = KnownKey.newKey(true);
+    public static final KnownKey zimbra_db_statement_cache_size = KnownKey.newKey(50);
+    public static final KnownKey zimbra_db_sql_template_limit = KnownKey.newKey(500);
+    public static final KnownKey zimbra_db_replica_url = KnownKey.newKey("");
+    public static final KnownKey zimbra_db_replica_pool_size = KnownKey.newKey(50);
+    public static final KnownKey zimbra_db_replica_max_lag = KnownKey.newKey(5);
+    public static final KnownKey zimbra_db_replica_lag_check_interval = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_db_replica_write_window = KnownKey.newKey(10000);
 
     public static final KnownKey freebusy_queue_directory = KnownKey.newKey("${zimbra_home}/fbqueue/");
     public static final KnownKey freebusy_exchange_cn1 = KnownKey.newKey(null);
@@ -1068,6 +1111,7 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(0);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
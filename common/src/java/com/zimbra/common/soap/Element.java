@@ -37,9 +37,11 @@ import org.dom4j.QName;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.common.util.ZimbraServletOutputStream;
 
 /**
  * @since Mar 16, 2005
@@ -235,6 +237,27 @@ public abstract class Element implements Cloneable {
         }
         child.mParent = null;
     }
+
+    /** Puts <tt>replacement</tt> in the position <tt>child</tt> occupies among this element's children. */
+    protected void replace(Element child, Element replacement) throws ContainerException {
+        throw new ContainerException("cannot replace children of <" + getName() + ">");
+    }
+
+    /** Serializes this subtree and swaps it in its parent for a read-only {@link EncodedElement} in the same
+     *  position, so that a large response holds compact UTF-8 rather than a tree of maps until it is written
+     *  out.  Only call this once nothing more will be added to the subtree.  Returns the replacement, or this
+     *  element unchanged if it has no parent or <tt>soap_response_encode_in_place</tt> is off. */
+    public Element encodeInPlace() throws ContainerException {
+        if (mParent == null || !(this instanceof XMLElement || this instanceof JSONElement) ||
+                !LC.soap_response_encode_in_place.booleanValue()) {
+            return this;
+        }
+        // marshal while still attached so namespace declarations are decided against the real ancestors
+        EncodedElement encoded = new EncodedElement(this, toUTF8());
+        mParent.replace(this, encoded);
+        return encoded;
+    }
+
     public Element detach() throws ContainerException {
         setNamespace(mPrefix, getNamespaceURI(mPrefix));
         if (mParent != null) {
@@ -944,7 +967,7 @@ public abstract class Element implements Cloneable {
             } else if (elt.mParent != null) {
                 throw new ContainerException("element already has a parent");
             }
-            assert(elt instanceof JSONElement);
+            assert(elt instanceof JSONElement || (elt instanceof EncodedElement && ((EncodedElement) elt).json));
             String name = elt.getName();
             Object obj = mAttributes.get(name);
             if (obj instanceof Element) {
@@ -1070,6 +1093,20 @@ public abstract class Element implements Cloneable {
             }
         }
 
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void replace(Element child, Element replacement) throws ContainerException {
+            super.detach(child);
+            Object obj = mAttributes.get(child.getName());
+            if (obj == child) {
+                mAttributes.put(child.getName(), replacement);
+            } else if (obj instanceof List<?>) {
+                List<Object> children = (List<Object>) obj;
+                children.set(children.indexOf(child), replacement);
+            }
+            replacement.mParent = this;
+        }
+
         @Override
         public Element getOptionalElement(String name) {
             Object obj = mAttributes.get(name);
@@ -1482,8 +1519,8 @@ public abstract class Element implements Cloneable {
                         out.append(value.toString());
                     } else if (value instanceof JSONElement) {
                         ((JSONElement) value).marshal(out, indent, safe);
-                    } else if (value instanceof FileBackedElement) {
-                        ((FileBackedElement) value).marshal(out);
+                    } else if (value instanceof FileBackedElement || value instanceof EncodedElement) {
+                        ((Element) value).marshal(out);
                     } else if (value instanceof Element) {
                         out.append('"').append(StringUtil.jsEncode(value)).append('"');
                     } else if (!(value instanceof List<?>)) {
@@ -1499,6 +1536,8 @@ public abstract class Element implements Cloneable {
                                 Object child = lit.next();
                                 if (child instanceof JSONElement) {
                                     ((JSONElement) child).marshal(out, lindent, safe);
+                                } else if (child instanceof EncodedElement) {
+                                    ((EncodedElement) child).marshal(out);
                                 } else if (child instanceof JSONKeyValuePair) {
                                     out.append(child.toString());
                                 } else {
@@ -1655,7 +1694,8 @@ public abstract class Element implements Cloneable {
                         "cannot add children to element containing text - <" +
                         this.getName() + ">, trying to add <" + elt.getName() + ">");
             }
-            assert(elt instanceof XMLElement || elt instanceof FileBackedElement);
+            assert(elt instanceof XMLElement || elt instanceof FileBackedElement ||
+                    (elt instanceof EncodedElement && !((EncodedElement) elt).json));
             if (mChildren == null) {
                 mChildren = new ArrayList<Element>();
             }
@@ -1731,6 +1771,13 @@ public abstract class Element implements Cloneable {
             return name;
         }
 
+        @Override
+        protected void replace(Element child, Element replacement) throws ContainerException {
+            super.detach(child);
+            mChildren.set(mChildren.indexOf(child), replacement);
+            replacement.mParent = this;
+        }
+
         @Override
         protected void detach(Element elt) throws ContainerException {
             super.detach(elt);
@@ -1994,7 +2041,7 @@ public abstract class Element implements Cloneable {
                     for (Element child : mChildren) {
                         if (child instanceof XMLElement) {
                             ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
-                        } else if (child instanceof FileBackedElement) {
+                        } else if (child instanceof FileBackedElement || child instanceof EncodedElement) {
                             child.marshal(out);
                         } else {
                             out.append(xmlEncode(child.toString(), false));
@@ -2176,6 +2223,174 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * Read-only {@link Element} holding the UTF-8 serialization of a finished subtree; see {@link #encodeInPlace}.
+     * Marshaling copies the bytes straight to a {@link ZimbraServletOutputStream}.  The accessors re-parse the
+     * bytes on first use, so code that reads a response back still sees the original tree, but nothing can be
+     * added to it.  Pretty-printing the parent writes the subtree compactly and without masking passwords.
+     */
+    public static final class EncodedElement extends Element {
+        private final byte[] encoded;
+        private final boolean json;
+        private Element expanded;
+
+        EncodedElement(Element elt, byte[] utf8) {
+            mName = elt.mName;
+            mPrefix = elt.mPrefix;
+            if (elt.mNamespaces != null) {
+                mNamespaces = new HashMap<String, String>(elt.mNamespaces);
+            }
+            mAttributes = Collections.emptyMap();
+            encoded = utf8;
+            json = elt instanceof JSONElement;
+        }
+
+        private EncodedElement(EncodedElement other) {
+            mName = other.mName;
+            mPrefix = other.mPrefix;
+            if (other.mNamespaces != null) {
+                mNamespaces = new HashMap<String, String>(other.mNamespaces);
+            }
+            mAttributes = Collections.emptyMap();
+            encoded = other.encoded;
+            json = other.json;
+        }
+
+        private Element expand() {
+            if (expanded == null) {
+                String text = new String(encoded, Charsets.UTF_8);
+                try {
+                    expanded = json ? parseJSON(text, getQName(), JSONElement.mFactory) : parseXML(text);
+                } catch (SoapParseException e) {
+                    throw new ContainerException("cannot re-parse encoded <" + mName + ">: " + e.getMessage());
+                } catch (XmlParseException e) {
+                    throw new ContainerException("cannot re-parse encoded <" + mName + ">: " + e.getMessage());
+                }
+                // the encoding omits namespaces inherited from the ancestors
+                expanded.setNamespace(mPrefix, getNamespaceURI(mPrefix));
+            }
+            return expanded;
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public ElementFactory getFactory() {
+            return json ? JSONElement.mFactory : XMLElement.mFactory;
+        }
+
+        @Override
+        public Element addNonUniqueElement(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(QName qname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addNonUniqueElement(Element elt) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element setText(String content) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element addAttribute(String key, String value, Disposition disp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public KeyValuePair addKeyValuePair(String key, String value, String eltname, String attrname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Element encodeInPlace() {
+            return this;
+        }
+
+        @Override
+        public Element clone() {
+            return new EncodedElement(this);
+        }
+
+        @Override
+        public Element getOptionalElement(String name) {
+            return expand().getOptionalElement(name);
+        }
+
+        @Override
+        public Set<Attribute> listAttributes() {
+            return expand().listAttributes();
+        }
+
+        @Override
+        public List<Element> listElements(String name) {
+            return expand().listElements(name);
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return expand().hasChildren();
+        }
+
+        @Override
+        public List<KeyValuePair> listKeyValuePairs(String eltname, String attrname) {
+            return expand().listKeyValuePairs(eltname, attrname);
+        }
+
+        @Override
+        public String getText() {
+            return expand().getText();
+        }
+
+        @Override
+        String getRawText() {
+            return expand().getRawText();
+        }
+
+        @Override
+        public String getAttribute(String key, String defaultValue) {
+            return expand().getAttribute(key, defaultValue);
+        }
+
+        @Override
+        public String prettyPrint() {
+            return expand().prettyPrint();
+        }
+
+        @Override
+        public String prettyPrint(boolean safe) {
+            return expand().prettyPrint(safe);
+        }
+
+        @Override
+        public byte[] toUTF8() {
+            return encoded.clone();
+        }
+
+        @Override
+        public String toString() {
+            return new String(encoded, Charsets.UTF_8);
+        }
+
+        @Override
+        public void marshal(Appendable out) throws IOException {
+            if (out instanceof ZimbraServletOutputStream) {
+                ((ZimbraServletOutputStream) out).write(encoded);
+            } else {
+                out.append(toString());
+            }
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
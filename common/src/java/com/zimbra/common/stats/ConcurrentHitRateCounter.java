@@ -0,0 +1,66 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit rate counter for hot caches.  Like {@link HitRateCounter}, {@link #getAverage}
+ * returns the hit rate since the previous call rather than a cumulative value, but
+ * neither recording nor reading takes a lock, and recording threads don't contend
+ * on a single counter.
+ */
+public class ConcurrentHitRateCounter {
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final AtomicLong mLastHits = new AtomicLong();
+    private final AtomicLong mLastMisses = new AtomicLong();
+
+    public void hit() {
+        mHits.increment();
+    }
+
+    public void miss() {
+        mMisses.increment();
+    }
+
+    public long getHitCount() {
+        return mHits.sum();
+    }
+
+    public long getMissCount() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Returns the hit rate as a value between 0 and 100 for the lookups recorded since
+     * the last call, or <tt>0</tt> if there were none.
+     */
+    public double getAverage() {
+        long hits = mHits.sum();
+        long misses = mMisses.sum();
+        long deltaHits = hits - mLastHits.getAndSet(hits);
+        long deltaMisses = misses - mLastMisses.getAndSet(misses);
+        long deltaCount = deltaHits + deltaMisses;
+        if (deltaCount <= 0) {
+            return 0.0;
+        }
+        return Math.max(0.0, Math.min(100.0, 100.0 * deltaHits / deltaCount));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * Values below <tt>2 * 2^subBucketBits</tt> are counted exactly; above that each power-of-two
+ * range is split into <tt>2^subBucketBits</tt> linear sub-buckets, so a percentile is reported
+ * with a relative error of at most <tt>1 / 2^subBucketBits</tt>.  Values above the highest
+ * trackable value are counted in the last bucket, but still update the maximum.
+ * <p>
+ * The histogram is unit-agnostic; callers record values in whatever unit they report in.
+ * {@link #reset} is not atomic with respect to concurrent {@link #record} calls, in the same
+ * way as {@link Counter#reset}.
+ */
+public class LatencyHistogram {
+
+    public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = 60L * 60L * 1000L;
+    public static final int DEFAULT_SUB_BUCKET_BITS = 4;
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final long highestTrackableValue;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_HIGHEST_TRACKABLE_VALUE, DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    public LatencyHistogram(long highestTrackableValue, int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 16) {
+            throw new IllegalArgumentException("subBucketBits must be between 1 and 16: " + subBucketBits);
+        }
+        if (highestTrackableValue < 1) {
+            throw new IllegalArgumentException("highestTrackableValue must be positive: " + highestTrackableValue);
+        }
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.buckets = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    int indexOf(long value) {
+        if (value < 2 * subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return shift * subBucketCount + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value that is counted in the bucket with the given index.
+     */
+    long highestEquivalentValue(int index) {
+        if (index < 2 * subBucketCount) {
+            return index;
+        }
+        int shift = index / subBucketCount - 1;
+        long mantissa = index - shift * subBucketCount;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        buckets.incrementAndGet(indexOf(Math.min(value, highestTrackableValue)));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n;
+    }
+
+    /**
+     * Returns the highest value equivalent to the given percentile, capped at the largest
+     * recorded value.  Returns <tt>0</tt> if nothing has been recorded.
+     *
+     * @param percentile a value between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        long maxValue = max.get();
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                // the last bucket also holds values above the highest trackable value
+                return i == buckets.length() - 1 ? maxValue : Math.min(highestEquivalentValue(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    private static final String[] QUANTILE_LABELS = new String[] { "0.5", "0.95", "0.99", "0.999" };
+    private static final double[] QUANTILE_PERCENTILES = new double[] { 50.0, 95.0, 99.0, 99.9 };
+
+    /**
+     * Appends the p50, p95, p99 and p999 values, the sum and the count in the Prometheus
+     * text format, e.g. <tt>metric{label="value",quantile="0.99"} 12</tt>.  Nothing is
+     * allocated, so this can be called from a scrape endpoint without creating garbage.
+     */
+    public void appendSummary(Appendable out, String metric, String labelName, String labelValue)
+    throws IOException {
+        for (int i = 0; i < QUANTILE_LABELS.length; i++) {
+            appendName(out, metric, null, labelName, labelValue);
+            out.append(",quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ");
+            appendLong(out, getValueAtPercentile(QUANTILE_PERCENTILES[i]));
+            out.append('\n');
+        }
+        appendName(out, metric, "_sum", labelName, labelValue);
+        out.append("} ");
+        appendLong(out, getTotal());
+        out.append('\n');
+        appendName(out, metric, "_count", labelName, labelValue);
+        out.append("} ");
+        appendLong(out, getCount());
+        out.append('\n');
+    }
+
+    private static void appendName(Appendable out, String metric, String suffix, String labelName,
+            String labelValue) throws IOException {
+        out.append(metric);
+        if (suffix != null) {
+            out.append(suffix);
+        }
+        out.append('{').append(labelName).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    static void appendLong(Appendable out, long value) throws IOException {
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p95=%d p99=%d p999=%d max=%d", getCount(), getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(95), getValueAtPercentile(99),
+                getValueAtPercentile(99.9), getMax());
+    }
+}
@@ -102,6 +102,14 @@ public class ZimbraServletOutputStream implements Appendable {
     private void write(String str) throws IOException {
         mOut.write(str.getBytes("utf-8"));
     }
+
+    /**
+     * Writes data that is already UTF-8 encoded, after any buffered characters.
+     */
+    public void write(byte[] utf8) throws IOException {
+        flush();
+        mOut.write(utf8);
+    }
     
     public void flush() throws IOException {
         if (mBuffer.length() > 0) {
@@ -0,0 +1,147 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class ConcurrentAccountCacheTest {
+
+    private static Provisioning prov;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+        prov = Provisioning.getInstance();
+    }
+
+    private static Account account(String name, String id, String... aliases) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, id);
+        attrs.put(Provisioning.A_zimbraMailAlias, aliases);
+        return new Account(name, id, attrs, null, prov);
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        ConcurrentAccountCache cache = new ConcurrentAccountCache(100, 0);
+        Account acct = account("user1@example.com", "11111111-1111-1111-1111-111111111111", "alias1@example.com");
+        cache.put(acct);
+
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+        Assert.assertSame(acct, cache.getByName("USER1@example.com"));
+        Assert.assertSame(acct, cache.getByName("alias1@example.com"));
+        Assert.assertNull(cache.getByName("user2@example.com"));
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertEquals(75.0, cache.getHitRate(), 0.01);
+        Assert.assertEquals(0.0, cache.getHitRate(), 0.01);
+
+        cache.remove(acct);
+        Assert.assertNull(cache.getById(acct.getId()));
+        Assert.assertNull(cache.getByName("alias1@example.com"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void staleWithoutRefresher() throws Exception {
+        ConcurrentAccountCache cache = new ConcurrentAccountCache(100, 1);
+        Account acct = account("user1@example.com", "11111111-1111-1111-1111-111111111111");
+        cache.put(acct);
+        Thread.sleep(5);
+        Assert.assertNull(cache.getByName(acct.getName()));
+        Assert.assertNull(cache.getById(acct.getId()));
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        final Account fresh = account("user1@example.com", "11111111-1111-1111-1111-111111111111");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        final int[] calls = new int[1];
+        ConcurrentAccountCache cache = new ConcurrentAccountCache(100, 1, 60000, new IEntryRefresher<Account>() {
+            @Override
+            public Account refresh(Account entry) throws ServiceException {
+                synchronized (calls) {
+                    calls[0]++;
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                refreshed.countDown();
+                return fresh;
+            }
+        });
+        Account stale = account("user1@example.com", "11111111-1111-1111-1111-111111111111");
+        cache.put(stale);
+        Thread.sleep(5);
+
+        // The stale copy keeps being served, and only one refresh is started.
+        Assert.assertSame(stale, cache.getById(stale.getId()));
+        Assert.assertSame(stale, cache.getByName(stale.getName()));
+        release.countDown();
+        Assert.assertTrue(refreshed.await(10, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.getById(fresh.getId()) != fresh && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertSame(fresh, cache.getByName(fresh.getName()));
+        synchronized (calls) {
+            Assert.assertTrue(calls[0] >= 1);
+        }
+    }
+
+    @Test
+    public void expiredPastStaleTTL() throws Exception {
+        ConcurrentAccountCache cache = new ConcurrentAccountCache(100, 1, 1, new IEntryRefresher<Account>() {
+            @Override
+            public Account refresh(Account entry) throws ServiceException {
+                Assert.fail("expired entries should not be refreshed");
+                return null;
+            }
+        });
+        Account acct = account("user1@example.com", "11111111-1111-1111-1111-111111111111");
+        cache.put(acct);
+        Thread.sleep(10);
+        Assert.assertNull(cache.getById(acct.getId()));
+        Assert.assertNull(cache.getByName(acct.getName()));
+    }
+
+    @Test
+    public void namedEntryCache() throws Exception {
+        ConcurrentNamedEntryCache<Account> cache = new ConcurrentNamedEntryCache<Account>(100, 0);
+        Account acct = account("user1@example.com", "11111111-1111-1111-1111-111111111111");
+        cache.put(acct);
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+        Assert.assertSame(acct, cache.getByName("User1@Example.com"));
+        cache.remove(acct.getName(), acct.getId());
+        Assert.assertNull(cache.getById(acct.getId()));
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.stats.SqlTemplateTracker;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link DbPool}.
+ */
+public final class DbPoolTest {
+
+    private static final String SELECT_MAILBOXES = "SELECT id FROM mailbox WHERE id >= ?";
+
+    private DbConnection connection;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.setInstance(new MockProvisioning());
+        LC.zimbra_class_database.setDefault(HSQLDB.class.getName());
+        DbPool.startup();
+        HSQLDB.createDatabase();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        HSQLDB.clearDatabase();
+        connection = DbPool.getConnection();
+        DbMailbox.createMailbox(connection, 100, "0", "test0", 0);
+        DbMailbox.createMailbox(connection, 101, "1", "test1", 0);
+        DbMailbox.createMailbox(connection, 102, "2", "test2", 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+    }
+
+    private int countMailboxes(String sql, Integer maxRows) throws Exception {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        try {
+            if (maxRows != null) {
+                stmt.setMaxRows(maxRows);
+            }
+            stmt.setInt(1, 100);
+            ResultSet rs = stmt.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                count++;
+            }
+            return count;
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    @Test
+    public void statementCache() throws Exception {
+        String sql = "SELECT id FROM mailbox WHERE id >= ? ORDER BY id DESC";
+        Assert.assertEquals(1, countMailboxes(sql, 1));
+
+        long prepares = ZimbraPerf.COUNTER_DB_STMT_CACHE.getCount();
+        long reused = ZimbraPerf.COUNTER_DB_STMT_CACHE.getTotal();
+        // the cached statement must not keep the previous caller's row limit
+        Assert.assertEquals(3, countMailboxes(sql, null));
+        Assert.assertEquals(1, ZimbraPerf.COUNTER_DB_STMT_CACHE.getCount() - prepares);
+        Assert.assertEquals("statement reused", 100, ZimbraPerf.COUNTER_DB_STMT_CACHE.getTotal() - reused);
+    }
+
+    @Test
+    public void templateStats() throws Exception {
+        SqlTemplateTracker.Template template = ZimbraPerf.SQL_TEMPLATE_TRACKER.getTemplate(SELECT_MAILBOXES);
+        long count = template.getLatencies().getCount();
+        long rows = template.getRows();
+
+        countMailboxes(SELECT_MAILBOXES, null);
+        countMailboxes(SELECT_MAILBOXES, 2);
+
+        Assert.assertEquals(2, template.getLatencies().getCount() - count);
+        Assert.assertEquals(5, template.getRows() - rows);
+
+        template = ZimbraPerf.SQL_TEMPLATE_TRACKER.getTemplate("DELETE FROM mailbox WHERE id IN (?)");
+        rows = template.getRows();
+        PreparedStatement stmt = connection.prepareStatement("DELETE FROM mailbox WHERE id IN (?, ?)");
+        try {
+            stmt.setInt(1, 100);
+            stmt.setInt(2, 101);
+            Assert.assertEquals(2, stmt.executeUpdate());
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+        Assert.assertEquals("IN lists of any length share a template", 2, template.getRows() - rows);
+    }
+
+    @Test
+    public void templates() throws Exception {
+        SqlTemplateTracker tracker = new SqlTemplateTracker(2);
+        Assert.assertEquals("SELECT id FROM mboxgroup*.mail_item WHERE id IN (?...) AND name = ? AND size > ?",
+                tracker.getTemplate("SELECT id FROM mboxgroup12.mail_item\n  WHERE id IN (?, ?,?) AND name = 'a''b' AND size > 10").getSql());
+        Assert.assertEquals("INSERT INTO mboxgroup*.tag (id, name) VALUES (?...), ...",
+                tracker.getTemplate("INSERT INTO mboxgroup3.tag (id, name) VALUES (?, ?), (?, ?), (?, ?)").getSql());
+        Assert.assertSame(tracker.getTemplate("SELECT id FROM mboxgroup1.mail_item WHERE id IN (?) AND name = ? AND size > ?"),
+                tracker.getTemplate("SELECT id FROM mboxgroup2.mail_item WHERE id IN (?, ?) AND name = ? AND size > 5"));
+        Assert.assertEquals("past the limit", SqlTemplateTracker.OTHER, tracker.getTemplate("SELECT 1").getSql());
+    }
+
+    private static boolean readsFromReplica(Mailbox mbox) throws Exception {
+        DbConnection conn = DbPool.getReadConnection(mbox);
+        try {
+            return conn.isReplica();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void replicaReads() throws Exception {
+        connection.commit();  // release the locks on the mailbox rows from setUp()
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        // a second pool on the same in-memory database stands in for the replica
+        String replicaUrl = Db.getInstance().getPoolConfig().mConnectionUrl;
+        LC.zimbra_db_replica_url.setDefault(replicaUrl);
+        LC.zimbra_db_replica_max_lag.setDefault(0);
+        LC.zimbra_db_replica_lag_check_interval.setDefault(0);
+        LC.zimbra_db_replica_write_window.setDefault(0);
+        try {
+            Assert.assertFalse("mailbox was just created", readsFromReplica(mbox));
+            Thread.sleep(DbPool.getReplicaWriteWindow() + 100);
+            Assert.assertTrue("idle mailbox", readsFromReplica(mbox));
+
+            long reads = ZimbraPerf.COUNTER_DB_REPLICA_READ.getTotal();
+            Assert.assertFalse(mbox.listItemIds(null, MailItem.Type.FOLDER, Mailbox.ID_FOLDER_USER_ROOT).isEmpty());
+            Assert.assertEquals("stale read transaction used the replica", 100,
+                    ZimbraPerf.COUNTER_DB_REPLICA_READ.getTotal() - reads);
+
+            DbPool.closeReplicaPool();
+            LC.zimbra_db_replica_url.setDefault("jdbc:hsqldb:hsql://127.0.0.1:1/none");
+            Assert.assertFalse("unreachable replica", readsFromReplica(mbox));
+            DbPool.closeReplicaPool();
+            LC.zimbra_db_replica_url.setDefault(replicaUrl);
+            Assert.assertTrue(readsFromReplica(mbox));
+
+            mbox.createFolder(null, "replica", Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions());
+            Assert.assertFalse("mailbox was just written", readsFromReplica(mbox));
+        } finally {
+            LC.zimbra_db_replica_url.setDefault("");
+            LC.zimbra_db_replica_max_lag.setDefault(5);
+            LC.zimbra_db_replica_lag_check_interval.setDefault(1000);
+            LC.zimbra_db_replica_write_window.setDefault(10000);
+            DbPool.closeReplicaPool();
+            MailboxTestUtil.clearData();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.zimbra.common.account.Key;
 import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.MockProvisioning;
@@ -121,4 +122,71 @@ public final class RuleManagerTest {
         Assert.assertEquals(requireLine, RuleManager.getRuleByName(script, "filter2").getFirst());
         Assert.assertEquals(rule2, RuleManager.getRuleByName(script, "filter2").getSecond());
     }
+
+    @Test
+    public void sharedCompiledScript() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account account = prov.getAccount(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Account other = prov.get(Key.AccountBy.name, "shared@zimbra.com");
+        if (other == null) {
+            other = prov.createAccount("shared@zimbra.com", "secret", new HashMap<String, Object>());
+        }
+        String script = "require [\"tag\"];\n" +
+                "# first\n" +
+                "if header :contains \"Subject\" \"one\" {\n" +
+                "  tag \"one\";\n" +
+                "}\n" +
+                "# second\n" +
+                "if header :contains \"Subject\" \"two\" {\n" +
+                "  tag \"two\";\n" +
+                "}\n";
+
+        RuleManager.clearCachedRules(account);
+        RuleManager.clearCachedRules(other);
+        account.setAdminSieveScriptBefore(script);
+        other.setAdminSieveScriptBefore(script);
+        String key = RuleManager.getAdminScriptCacheKey(RuleManager.FilterType.INCOMING,
+                RuleManager.AdminFilterType.BEFORE);
+        Assert.assertSame(RuleManager.getRulesNode(account, key), RuleManager.getRulesNode(other, key));
+
+        CompiledRules rules = CompiledRules.compile(script);
+        Assert.assertEquals("first", rules.getRuleName(3));
+        Assert.assertEquals("second", rules.getRuleName(8));
+        Assert.assertEquals("line 1", rules.getRuleName(1));
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        List<ItemId> ids = RuleManager.applyRulesToIncomingMessage(new OperationContext(mbox), mbox, new ParsedMessage(
+                "From: test@zimbra.com\nSubject: one two".getBytes(), false),
+                0, account.getName(), new DeliveryContext(), Mailbox.ID_FOLDER_INBOX, true);
+        Assert.assertEquals(1, ids.size());
+        Message msg = mbox.getMessageById(null, ids.get(0).getId());
+        Assert.assertArrayEquals(new String[] { "one", "two" }, msg.getTags());
+        account.unsetAdminSieveScriptBefore();
+        other.unsetAdminSieveScriptBefore();
+    }
+
+    @Test
+    public void bodyPastMemoizedLength() throws Exception {
+        Account account = Provisioning.getInstance().getAccount(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+
+        // text/plain parts too large to keep in memory are still searched in full
+        StringBuilder raw = new StringBuilder("From: test@zimbra.com\nSubject: large\nContent-Type: text/plain\n\n");
+        raw.append("early\n");
+        String line = "abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxy\n";
+        while (raw.length() < 2 * 1024 * 1024) {
+            raw.append(line);
+        }
+        raw.append("late\n");
+
+        RuleManager.clearCachedRules(account);
+        account.setMailSieveScript("if body :contains \"early\" { tag \"early\"; }\n" +
+                "if body :contains \"late\" { tag \"late\"; }");
+        List<ItemId> ids = RuleManager.applyRulesToIncomingMessage(new OperationContext(mbox), mbox,
+                new ParsedMessage(raw.toString().getBytes(), false),
+                0, account.getName(), new DeliveryContext(), Mailbox.ID_FOLDER_INBOX, true);
+        Assert.assertEquals(1, ids.size());
+        Message msg = mbox.getMessageById(null, ids.get(0).getId());
+        Assert.assertArrayEquals(new String[] { "early", "late" }, msg.getTags());
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public final class ImapFolderSerializerTest {
+    private static final String LOCAL_USER = "serializertest@zimbra.com";
+    private Account acct = null;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "2f6e8c1d-5a0b-4c3e-9d7f-1b2a3c4d5e6f");
+        acct = Provisioning.getInstance().createAccount(LOCAL_USER, "secret", attrs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private ImapFolder newFolder(int count) throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.getTagset().cache(new ImapFlag("work", "work", 64, 0, true, true, true));
+        i4folder.getTagset().cache(new ImapFlag("hot stuff", "hotstuff:FLAG1", 65, 0, true, true, true));
+        for (int i = 1; i <= count; i++) {
+            String[] tags = i % 7 == 0 ? new String[] { "work", "hot stuff" } : i % 3 == 0 ? new String[] { "work" } : null;
+            int flags = i % 5 == 0 ? Flag.BITMASK_FLAGGED : Flag.BITMASK_UNREAD;
+            i4folder.cache(new ImapMessage(1000 + i * 2, MailItem.Type.MESSAGE, 300 + i * 2, flags, tags), i > count - 3);
+        }
+        if (count > 10) {
+            i4folder.getBySequence(10, true).setExpunged(true);
+        }
+        return i4folder;
+    }
+
+    private static byte[] serialize(ImapFolder i4folder) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ImapFolderSerializer.write(i4folder, bout);
+        return bout.toByteArray();
+    }
+
+    private static void assertFolderEquals(ImapFolder expected, ImapFolder actual) {
+        ItemIdentifier ident = expected.getItemIdentifier();
+        Assert.assertEquals(ident.accountId, actual.getItemIdentifier().accountId);
+        Assert.assertEquals(ident.id, actual.getItemIdentifier().id);
+        Assert.assertEquals(ident.subPartId, actual.getItemIdentifier().subPartId);
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.getQuery(), actual.getQuery());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+
+        Iterator<ImapFlag> it = actual.getTagset().iterator();
+        for (ImapFlag i4flag : expected.getTagset()) {
+            ImapFlag restored = it.next();
+            Assert.assertEquals(i4flag.mName, restored.mName);
+            Assert.assertEquals(i4flag.mImapName, restored.mImapName);
+            Assert.assertEquals(i4flag.mId, restored.mId);
+            Assert.assertEquals(i4flag.mBitmask, restored.mBitmask);
+            Assert.assertEquals(i4flag.mPositive, restored.mPositive);
+            Assert.assertEquals(i4flag.mPermanent, restored.mPermanent);
+            Assert.assertEquals(i4flag.mListed, restored.mListed);
+        }
+        Assert.assertFalse(it.hasNext());
+
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage i4msg = expected.getBySequence(seq, true);
+            ImapMessage restored = actual.getBySequence(seq, true);
+            Assert.assertEquals(i4msg.sequence, restored.sequence);
+            Assert.assertEquals(i4msg.msgId, restored.msgId);
+            Assert.assertEquals(i4msg.imapUid, restored.imapUid);
+            Assert.assertEquals(i4msg.flags, restored.flags);
+            Assert.assertEquals(i4msg.sflags, restored.sflags);
+            Assert.assertArrayEquals(i4msg.tags, restored.tags);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder i4folder = newFolder(500);
+        ImapFolder restored = ImapFolderSerializer.read(new ByteArrayInputStream(serialize(i4folder)));
+        assertFolderEquals(i4folder, restored);
+        Assert.assertEquals(1000 + 20 * 2, restored.getBySequence(20).msgId);
+        Assert.assertNull(restored.getBySequence(10));
+    }
+
+    @Test
+    public void emptyFolder() throws Exception {
+        ImapFolder i4folder = newFolder(0);
+        assertFolderEquals(i4folder, ImapFolderSerializer.read(new ByteArrayInputStream(serialize(i4folder))));
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws Exception {
+        ImapFolder i4folder = newFolder(500);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(i4folder);
+        oout.close();
+        byte[] compact = serialize(i4folder);
+        Assert.assertTrue(compact.length + " vs " + bout.size(), compact.length * 4 < bout.size());
+    }
+
+    @Test
+    public void legacyFormat() throws Exception {
+        ImapFolder i4folder = newFolder(50);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(i4folder);
+        oout.close();
+        assertFolderEquals(i4folder, ImapFolderSerializer.read(new ByteArrayInputStream(bout.toByteArray())));
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        byte[] data = serialize(newFolder(50));
+        data[3] = 99;
+        try {
+            ImapFolderSerializer.read(new ByteArrayInputStream(data));
+            Assert.fail("unknown version accepted");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.zimbra.cs.imap;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -12,6 +13,8 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +64,100 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    private ImapFolder newFolder(int... uids) throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("inbox", creds), (byte) 0, null);
+        for (int uid : uids) {
+            i4folder.cache(new ImapMessage(uid, Type.MESSAGE, uid, Flag.BITMASK_UNREAD, null), false);
+        }
+        return i4folder;
+    }
+
+    @Test
+    public void collapseExpunged() throws Exception {
+        ImapFolder i4folder = newFolder(11, 12, 13, 14, 15);
+        i4folder.markMessageExpunged(i4folder.getBySequence(2));
+        i4folder.markMessageExpunged(i4folder.getBySequence(4));
+        Assert.assertEquals(Arrays.asList(2, 3), i4folder.collapseExpunged(false));
+        Assert.assertEquals(3, i4folder.getSize());
+        for (int seq = 1; seq <= 3; seq++) {
+            Assert.assertEquals(seq, i4folder.getBySequence(seq).sequence);
+        }
+        Assert.assertEquals(3, i4folder.getByImapId(15).sequence);
+        Assert.assertNull(i4folder.getByImapId(14));
+        Assert.assertEquals(13, i4folder.getById(13).imapUid);
+
+        i4folder.markMessageExpunged(i4folder.getBySequence(1));
+        Assert.assertEquals(Arrays.asList(11), i4folder.collapseExpunged(true));
+        Assert.assertEquals(2, i4folder.getSize());
+    }
+
+    @Test
+    public void getByIdAfterMove() throws Exception {
+        ImapFolder i4folder = newFolder(11, 12, 13);
+        // an item moved back into the folder keeps its id but gets a new UID
+        i4folder.cache(new ImapMessage(5, Type.MESSAGE, 20, 0, null), false);
+        Assert.assertEquals(20, i4folder.getById(5).imapUid);
+        i4folder.markMessageExpunged(i4folder.getById(11));
+        i4folder.collapseExpunged(false);
+        Assert.assertEquals(3, i4folder.getById(5).sequence);
+        Assert.assertNull(i4folder.getById(11));
+        Assert.assertNull(i4folder.getById(99));
+
+        i4folder.markMessageExpunged(i4folder.getById(5));
+        Assert.assertNull(i4folder.getById(5));
+    }
+
+    @Test
+    public void traverseDropsDuplicates() throws Exception {
+        ImapFolder i4folder = newFolder();
+        i4folder.restoreMessage(new ImapMessage(1, Type.MESSAGE, 11, 0, null));
+        i4folder.restoreMessage(new ImapMessage(2, Type.MESSAGE, 11, 0, null));
+        i4folder.restoreMessage(new ImapMessage(3, Type.MESSAGE, 12, 0, null));
+        final int[] visited = new int[1];
+        i4folder.traverse(new com.google.common.base.Function<ImapMessage, Void>() {
+            @Override
+            public Void apply(ImapMessage i4msg) {
+                visited[0]++;
+                return null;
+            }
+        });
+        Assert.assertEquals(2, visited[0]);
+        Assert.assertEquals(2, i4folder.getSize());
+        Assert.assertEquals(12, i4folder.getBySequence(2).imapUid);
+    }
+
+    @Test
+    public void flaggedMessages() throws Exception {
+        ImapFolder i4folder = newFolder(11, 12, 13);
+        ImapFlag flagged = i4folder.getFlagByName("\\Flagged");
+        Assert.assertTrue(i4folder.getFlaggedMessages(flagged).isEmpty());
+
+        ImapMessage i4msg = i4folder.getBySequence(2);
+        i4msg.setPermanentFlags(Flag.BITMASK_FLAGGED, null, 1, i4folder);
+        Set<ImapMessage> matches = i4folder.getFlaggedMessages(flagged);
+        Assert.assertEquals(1, matches.size());
+        Assert.assertSame(i4msg, matches.iterator().next());
+    }
+
+    @Test
+    public void internTags() throws Exception {
+        ImapFolder i4folder = newFolder();
+        i4folder.getTagset().cache(new ImapFlag("work", "work", 64, 0, true, true, true));
+        i4folder.cache(new ImapMessage(11, Type.MESSAGE, 11, 0, new String[] { "work" }), false);
+        i4folder.cache(new ImapMessage(12, Type.MESSAGE, 12, 0, new String[] { "work" }), false);
+        Assert.assertSame(i4folder.getBySequence(1).tags, i4folder.getBySequence(2).tags);
+    }
+
+    @Test
+    public void subsequences() throws Exception {
+        ImapFolder i4folder = newFolder(11, 12, 13, 14, 15);
+        Assert.assertEquals(4, i4folder.getSubsequence(null, "5,1:2,3", false).size());
+        Assert.assertEquals(3, i4folder.getSubsequence(null, "13:*", true).size());
+        Assert.assertEquals("3:4,7", i4folder.cropSubsequence("1:4,7,9:12", false, 3, 8));
+        Set<ImapMessage> i4set = i4folder.getSubsequence(null, "2,4", false);
+        Assert.assertEquals("1,3,5", i4folder.invertSubsequence("1:5", false, i4set));
+        Assert.assertEquals(14, i4folder.getSequenceMatchDataLowWater(null, "1:3", "11:13"));
+    }
+}
@@ -46,6 +46,10 @@ class MockImapHandler extends ImapHandler {
         return false;
     }
 
+    @Override
+    protected void startCompression(String tag, int level) throws IOException {
+    }
+
     @Override
     protected InetSocketAddress getLocalAddress() {
         return new InetSocketAddress("localhost", 0);
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link IndexDocument}.
+ */
+public final class IndexDocumentTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Test
+    public void preAnalyze() throws Exception {
+        String content = "Hello World, see the attached report from test@zimbra.com";
+        String filename = "quarterly-report.final.pdf";
+        IndexDocument doc = new IndexDocument();
+        doc.addContent(content);
+        doc.addFilename(filename);
+        doc.addPartName("1");
+        Assert.assertTrue(doc.preAnalyze(ZimbraAnalyzer.getInstance(), 1024));
+
+        Document luceneDoc = doc.toDocument();
+        Fieldable field = luceneDoc.getFieldable(LuceneFields.L_CONTENT);
+        Assert.assertNotNull(field.tokenStreamValue());
+        List<String> expected = tokens(LuceneFields.L_CONTENT, content);
+        Assert.assertEquals(expected, ZimbraAnalyzerTest.toTokens(field.tokenStreamValue()));
+        // cached tokens can be replayed
+        Assert.assertEquals(expected, ZimbraAnalyzerTest.toTokens(field.tokenStreamValue()));
+
+        field = luceneDoc.getFieldable(LuceneFields.L_FILENAME);
+        Assert.assertNotNull(field.tokenStreamValue());
+        Assert.assertTrue(field.isStored());
+        Assert.assertEquals(filename, field.stringValue());
+        Assert.assertEquals(tokens(LuceneFields.L_FILENAME, filename),
+                ZimbraAnalyzerTest.toTokens(field.tokenStreamValue()));
+
+        // not tokenized
+        Assert.assertNull(luceneDoc.getFieldable(LuceneFields.L_PARTNAME).tokenStreamValue());
+    }
+
+    @Test
+    public void largeDocumentNotCached() throws Exception {
+        String content = Strings.repeat("word ", 300);
+        IndexDocument doc = new IndexDocument();
+        doc.addContent(content);
+        doc.addFilename("report.pdf");
+        Assert.assertFalse(doc.preAnalyze(ZimbraAnalyzer.getInstance(), 1024));
+
+        // nothing is cached, so the writer analyzes the fields as before
+        Document luceneDoc = doc.toDocument();
+        Fieldable field = luceneDoc.getFieldable(LuceneFields.L_CONTENT);
+        Assert.assertNull(field.tokenStreamValue());
+        Assert.assertEquals(content, field.stringValue());
+        Assert.assertNull(luceneDoc.getFieldable(LuceneFields.L_FILENAME).tokenStreamValue());
+
+        // fields backed by a reader have an unknown size, so they aren't cached either
+        doc = new IndexDocument();
+        doc.toDocument().add(new Field(LuceneFields.L_CONTENT, new StringReader("hello world")));
+        Assert.assertFalse(doc.preAnalyze(ZimbraAnalyzer.getInstance(), 1024));
+        Assert.assertNull(doc.toDocument().getFieldable(LuceneFields.L_CONTENT).tokenStreamValue());
+    }
+
+    private static List<String> tokens(String field, String text) throws Exception {
+        return ZimbraAnalyzerTest.toTokens(ZimbraAnalyzer.getInstance().tokenStream(field, new StringReader(text)));
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+    private static final int RECIPIENTS = 8;
+    private static final String MESSAGE = "From: sender@example.com\r\nTo: list@zimbra.com\r\n" +
+            "Subject: parallel delivery\r\nMessage-ID: <parallel@example.com>\r\n\r\nhello\r\n";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        // must be set before ZimbraLmtpBackend creates its delivery executor
+        LC.zimbra_lmtp_delivery_threads.setDefault(4);
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            prov.createAccount("user" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Test
+    public void deliverToMultipleMailboxes() throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", null, null));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<user" + i + "@zimbra.com>", null, null));
+        }
+        env.addLocalRecipient(new LmtpAddress("<nobody@zimbra.com>", null, null));
+        // the same mailbox twice is delivered once thanks to the dedupe cache
+        env.addLocalRecipient(new LmtpAddress("<user1@zimbra.com>", null, null));
+
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(MESSAGE.getBytes()),
+                MESSAGE.length());
+
+        for (LmtpAddress recipient : env.getLocalRecipients()) {
+            if (recipient.getEmailAddress().startsWith("nobody")) {
+                Assert.assertEquals(LmtpReply.PERMANENT_FAILURE, recipient.getDeliveryStatus());
+            } else {
+                Assert.assertEquals(recipient.getEmailAddress(), LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+            }
+        }
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Account account = Provisioning.getInstance().getAccountByName("user" + i + "@zimbra.com");
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+            Assert.assertEquals("user" + i, 1, mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX)
+                    .getIds(MailItem.Type.MESSAGE).size());
+        }
+    }
+
+    @Test
+    public void deliverWithDifferentCharsets() throws Exception {
+        // unencoded 8-bit subject, so each recipient decodes it with their own default charset
+        String[] charsets = { "iso-8859-1", "utf-8" };
+        byte[] raw = ("From: sender@example.com\r\nTo: list@zimbra.com\r\nSubject: Re: caf\u00e9 \u00fcber\r\n" +
+                "Message-ID: <charsets@example.com>\r\n\r\nhello\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        String[] expected = new String[charsets.length];
+        for (int c = 0; c < charsets.length; c++) {
+            expected[c] = new ParsedMessage(raw, false).setDefaultCharset(charsets[c]).getSubject();
+        }
+        Assert.assertFalse(expected[0].equals(expected[1]));
+
+        Provisioning prov = Provisioning.getInstance();
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", null, null));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraPrefMailDefaultCharset, charsets[i % charsets.length]);
+            prov.modifyAttrs(prov.getAccountByName("user" + i + "@zimbra.com"), attrs);
+            env.addLocalRecipient(new LmtpAddress("<user" + i + "@zimbra.com>", null, null));
+        }
+
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(raw), raw.length);
+
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Account account = prov.getAccountByName("user" + i + "@zimbra.com");
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+            List<Integer> ids = mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE);
+            Assert.assertEquals("user" + i, 1, ids.size());
+            Message msg = mbox.getMessageById(null, ids.get(0));
+            String subject = expected[i % charsets.length];
+            Assert.assertEquals("user" + i, subject, msg.getSubject());
+            Assert.assertEquals("user" + i, ParsedMessage.normalize(subject), msg.getSortSubject());
+        }
+    }
+}
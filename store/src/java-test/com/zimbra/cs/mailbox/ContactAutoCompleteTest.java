@@ -17,8 +17,11 @@
 
 package com.zimbra.cs.mailbox;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.mail.internet.InternetAddress;
@@ -297,4 +300,46 @@ public final class ContactAutoCompleteTest {
         ContactAutoComplete autocomplete = new ContactAutoComplete(mbox.getAccount(), new OperationContext(mbox));
         Assert.assertEquals(0, autocomplete.query("noex", null, 10).entries.size());
      }
+
+    @Test
+    public void rankingTable() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        String accountId = mbox.getAccountId();
+        ContactRankings.increment(accountId, Collections.singleton(new InternetAddress("alice@zimbra.com", "Alice Smith")));
+        ContactRankings.increment(accountId, Collections.singleton(new InternetAddress("alice@zimbra.com")));
+        ContactRankings.increment(accountId, Collections.singleton(new InternetAddress("bob@zimbra.com", "Bob Alison")));
+        ContactRankings.increment(accountId, Collections.singleton(new InternetAddress("carol@zimbra.com")));
+
+        ContactRankings rankings = ContactRankings.getInstance(accountId);
+        Assert.assertSame(rankings, ContactRankings.getInstance(accountId));
+        Assert.assertEquals(2, rankings.query("Alice@zimbra.com"));
+        Assert.assertEquals("[alice@zimbra.com, bob@zimbra.com]", emails(rankings.search("Ali")));
+        Assert.assertEquals("[alice@zimbra.com]", emails(rankings.search("smi")));
+        Assert.assertEquals("[]", emails(rankings.search("zimbra")));
+
+        // reloaded from the packed copy in the database
+        rankings = new ContactRankings(accountId);
+        Assert.assertEquals(2, rankings.query("alice@zimbra.com"));
+        Assert.assertEquals("[bob@zimbra.com]", emails(rankings.search("alison")));
+
+        ContactRankings.remove(accountId, "alice@zimbra.com");
+        Assert.assertEquals(0, ContactRankings.getInstance(accountId).query("alice@zimbra.com"));
+        Assert.assertEquals(0, new ContactRankings(accountId).query("alice@zimbra.com"));
+
+        // tables saved before the packed format still load
+        Metadata legacy = new Metadata();
+        legacy.put("dave@zimbra.com", new Metadata().put("r", 3).put("t", System.currentTimeMillis()).put("n", "Dave Jones"));
+        mbox.setConfig(null, "CONTACT_RANKINGS", legacy);
+        rankings = new ContactRankings(accountId);
+        Assert.assertEquals(3, rankings.query("dave@zimbra.com"));
+        Assert.assertEquals("[dave@zimbra.com]", emails(rankings.search("jon")));
+    }
+
+    private static String emails(Collection<ContactEntry> entries) {
+        List<String> emails = new ArrayList<String>();
+        for (ContactEntry entry : entries) {
+            emails.add(entry.mEmail);
+        }
+        return emails.toString();
+    }
 }
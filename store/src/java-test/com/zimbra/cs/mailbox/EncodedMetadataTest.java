@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.BEncoding;
+
+/**
+ * Unit test for {@link EncodedMetadata}, comparing lazily decoded {@link Metadata} with {@link BEncoding#decode}.
+ */
+public final class EncodedMetadataTest {
+
+    @Test
+    public void random() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            Map<Object, Object> expected = randomMap(random, 0);
+            String encoded = BEncoding.encode(expected);
+            Assert.assertNotNull(encoded, EncodedMetadata.index(encoded, null));
+            Map<Object, Object> decoded = BEncoding.decode(encoded);
+            verify(decoded, new Metadata(encoded));
+            decoded.put(Metadata.FN_MD_VERSION, (long) Metadata.LEGACY_METADATA_VERSION);
+            Assert.assertEquals(decoded, BEncoding.decode(new Metadata(encoded).toString()));
+        }
+    }
+
+    @Test
+    public void sample() throws Exception {
+        String encoded = "d1:ai1e4:aclmd1:gld1:ei0e1:g36:474b7021-cef6-469d-b5fb-54c96117efd11:ri1e1:ti1eee2:gei0e" +
+                "2:iei0ee5:mdveri4e4:mseqi628e2:szi7596456e4:unxti744e1:vi10e2:vti5ee";
+        Metadata meta = new Metadata(encoded);
+        Assert.assertEquals(628L, meta.getLong("mseq"));
+        Assert.assertEquals(7596456L, meta.getLong("sz"));
+        Assert.assertFalse(meta.containsKey(Metadata.FN_MD_VERSION));
+        Assert.assertEquals(7, meta.size());
+        Metadata acl = meta.getMap("aclm");
+        Assert.assertEquals(3, acl.size());
+        Metadata grant = acl.getList("g").getMap(0);
+        Assert.assertEquals("474b7021-cef6-469d-b5fb-54c96117efd1", grant.get("g"));
+        Assert.assertEquals(1L, grant.getLong("r"));
+    }
+
+    @Test
+    public void unsortedKeys() throws Exception {
+        Metadata meta = new Metadata("d1:bi2e1:a1:x1:bi3ee");
+        Assert.assertEquals(2, meta.size());
+        Assert.assertEquals("x", meta.get("a"));
+        // the last duplicate wins, as it does when decoding into a map
+        Assert.assertEquals(3L, meta.getLong("b"));
+        Assert.assertEquals(BEncoding.decode("d1:bi2e1:a1:x1:bi3ee"), meta.map());
+    }
+
+    @Test
+    public void fallback() throws Exception {
+        Assert.assertNull(EncodedMetadata.index("d1:ai+5ee", null));
+        Assert.assertNull(EncodedMetadata.index("d1:ai5e", null));
+        Assert.assertNull(EncodedMetadata.index("di1e1:ae", null));
+        Assert.assertNull(EncodedMetadata.index("d1:ai5eejunk", null));
+        Metadata meta = new Metadata("d1:ai+5ee");
+        Assert.assertEquals(5L, meta.getLong("a"));
+        Assert.assertNull(EncodedMetadata.index("d1:ai9223372036854775808ee", null));
+        Assert.assertEquals(Long.MIN_VALUE, new Metadata("d1:ai-9223372036854775808ee").getLong("a"));
+        // truncated data is left to the legacy decoders, which end up with an empty map
+        Assert.assertTrue(new Metadata("d1:ai5").isEmpty());
+    }
+
+    @Test
+    public void modify() throws Exception {
+        Metadata meta = new Metadata("d1:ai1e1:bd1:ci2eee");
+        Metadata nested = meta.getMap("b");
+        meta.put("a", 5).remove("b");
+        Assert.assertEquals(5L, meta.getLong("a"));
+        Assert.assertFalse(meta.containsKey("b"));
+        Assert.assertEquals(2L, nested.getLong("c"));
+        Assert.assertEquals("d1:ai5e1:vi10ee", meta.toString());
+    }
+
+    private static void verify(Map<Object, Object> expected, Metadata actual) throws ServiceException {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+            String key = (String) entry.getKey();
+            Object value = entry.getValue();
+            Assert.assertTrue(key, actual.containsKey(key));
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<Object, Object> map = (Map<Object, Object>) value;
+                verify(map, actual.getMap(key));
+            } else if (value instanceof List) {
+                Assert.assertEquals(value, actual.getList(key).list);
+            } else {
+                Assert.assertEquals(value.toString(), actual.get(key));
+            }
+        }
+        Assert.assertFalse(actual.containsKey("missing"));
+        Assert.assertNull(actual.get("missing", null));
+        Assert.assertEquals(expected, actual.map());
+    }
+
+    private static Map<Object, Object> randomMap(Random random, int depth) {
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        int size = random.nextInt(depth == 0 ? 12 : 5);
+        for (int i = 0; i < size; i++) {
+            String key = randomString(random);
+            if (!key.equals(Metadata.FN_MD_VERSION)) {
+                map.put(key, randomValue(random, depth + 1));
+            }
+        }
+        return map;
+    }
+
+    private static Object randomValue(Random random, int depth) {
+        switch (random.nextInt(depth < 3 ? 5 : 3)) {
+            case 0:
+                return randomString(random);
+            case 1:
+                return random.nextLong() >> random.nextInt(64);
+            case 2:
+                return (long) random.nextInt(1000);
+            case 3:
+                return randomMap(random, depth);
+            default:
+                List<Object> list = new ArrayList<Object>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    list.add(randomValue(random, depth + 1));
+                }
+                return list;
+        }
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            sb.append((char) (random.nextBoolean() ? 'a' + random.nextInt(26) : random.nextInt(0x3000)));
+        }
+        return sb.toString();
+    }
+
+}
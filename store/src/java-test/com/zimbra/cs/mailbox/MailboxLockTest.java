@@ -21,7 +21,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -687,4 +689,150 @@ public class MailboxLockTest {
             t.join();
         }
     }
+
+    @Test
+    public void optimisticRead() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long stamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue("stamp issued while unlocked", stamp != 0L);
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        // readers don't invalidate the stamp
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        // writers do, and no stamp is issued while the write lock is held
+        mbox.lock.lock(true);
+        try {
+            Assert.assertEquals(0L, mbox.lock.tryOptimisticRead());
+        } finally {
+            mbox.lock.release();
+        }
+        Assert.assertFalse(mbox.lock.validate(stamp));
+        Assert.assertTrue(mbox.lock.validate(mbox.lock.tryOptimisticRead()));
+    }
+
+    @Test
+    public void optimisticFolderLookup() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX); // make sure caches are loaded
+        long before = mbox.lock.getWaitTimes().getCount();
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, inbox.getId());
+        Assert.assertEquals("cached folder lookup should not take the lock", before,
+                mbox.lock.getWaitTimes().getCount());
+    }
+
+    @Test
+    public void optimisticLookupDuringMaintenance() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX); // make sure caches are loaded
+        MailboxMaintenance maintenance = MailboxManager.getInstance().beginMaintenance(mbox.getAccountId(), mbox.getId());
+        try {
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            Thread reader = new Thread("MailboxLockTest-reader") {
+                @Override
+                public void run() {
+                    try {
+                        mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            reader.join();
+            Assert.assertTrue("cached lookup must not bypass maintenance", failure.get() instanceof ServiceException);
+            Assert.assertEquals(MailServiceException.MAINTENANCE, ((ServiceException) failure.get()).getCode());
+
+            // the thread that owns the maintenance still gets through
+            Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX).getId());
+        } finally {
+            MailboxManager.getInstance().endMaintenance(maintenance, true, false);
+        }
+    }
+
+    @Test
+    public void optimisticLookupWithConcurrentWriter() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final Folder folder = mbox.createFolder(null, "renamed-0", new Folder.FolderOptions());
+
+        // while a writer holds the lock, the lookup falls back to waiting for it instead of reading mid-write
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch unlock = new CountDownLatch(1);
+        Thread writer = new Thread("MailboxLockTest-writer") {
+            @Override
+            public void run() {
+                mbox.lock.lock(true);
+                try {
+                    locked.countDown();
+                    unlock.await();
+                } catch (InterruptedException e) {
+                } finally {
+                    mbox.lock.release();
+                }
+            }
+        };
+        final AtomicReference<Folder> found = new AtomicReference<Folder>();
+        Thread reader = new Thread("MailboxLockTest-reader") {
+            @Override
+            public void run() {
+                try {
+                    found.set(mbox.getFolderById(null, folder.getId()));
+                } catch (ServiceException e) {
+                    ZimbraLog.mailbox.error("lookup failed", e);
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        reader.start();
+        reader.join(200);
+        Assert.assertTrue("reader should wait for the writer", reader.isAlive());
+        unlock.countDown();
+        reader.join();
+        writer.join();
+        Assert.assertEquals(folder.getId(), found.get().getId());
+
+        // lookups racing a stream of renames only ever see a folder, never an exception or a torn cache
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread renamer = new Thread("MailboxLockTest-renamer") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i <= 50; i++) {
+                        mbox.rename(null, folder.getId(), MailItem.Type.FOLDER, "renamed-" + i, Mailbox.ID_FOLDER_USER_ROOT);
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        renamer.start();
+        while (!done.get()) {
+            Folder f = mbox.getFolderById(null, folder.getId());
+            Assert.assertEquals(folder.getId(), f.getId());
+            Assert.assertTrue(f.getName(), f.getName().startsWith("renamed-"));
+        }
+        renamer.join();
+        Assert.assertNull(failure.get());
+        Assert.assertEquals("renamed-50", mbox.getFolderById(null, folder.getId()).getName());
+    }
+
+    @Test
+    public void lockTimeHistograms() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.lock.getWaitTimes().reset();
+        mbox.lock.getHoldTimes().reset();
+        mbox.lock.lock(true);
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        mbox.lock.release();
+        Assert.assertEquals("nested acquisition counted once", 1, mbox.lock.getWaitTimes().getCount());
+        Assert.assertEquals(1, mbox.lock.getHoldTimes().getCount());
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedContact;
+
+public class MailboxManagerTest {
+
+    private Mailbox mbox1;
+    private Mailbox mbox2;
+    private Mailbox mbox3;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 1; i <= 3; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            prov.createAccount("test" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        MailboxManager mgr = MailboxManager.getInstance();
+        mbox1 = mgr.getMailboxByAccount(prov.getAccountByName("test1@zimbra.com"));
+        mbox2 = mgr.getMailboxByAccount(prov.getAccountByName("test2@zimbra.com"));
+        mbox3 = mgr.getMailboxByAccount(prov.getAccountByName("test3@zimbra.com"));
+    }
+
+    @Test
+    public void countLimit() throws Exception {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(2, Long.MAX_VALUE, 16);
+        map.put(mbox1.getId(), mbox1);
+        map.put(mbox2.getId(), mbox2);
+        map.get(mbox2.getId());
+        map.put(mbox3.getId(), mbox3);
+
+        Assert.assertEquals(2, map.mHardMap.size());
+        Assert.assertFalse(map.mHardMap.containsKey(mbox1.getId()));
+        Assert.assertTrue(map.mSoftMap.containsKey(mbox1.getId()));
+
+        // still referenced, so the same instance comes back
+        Assert.assertSame(mbox1, map.get(mbox1.getId()));
+        Assert.assertTrue(map.mHardMap.containsKey(mbox1.getId()));
+        Assert.assertFalse(map.mSoftMap.containsKey(mbox1.getId()));
+    }
+
+    @Test
+    public void purgeItemCacheFirst() throws Exception {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_email, "test@zimbra.com");
+        Contact contact = mbox1.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+        mbox1.getContactById(null, contact.getId());
+        Assert.assertTrue(mbox1.getItemCacheSize() > 0);
+        long size1 = mbox1.getEstimatedSize();
+        mbox1.purgeItemCache();
+        long budget = mbox1.getEstimatedSize() + mbox2.getEstimatedSize() + mbox3.getEstimatedSize();
+        mbox1.getContactById(null, contact.getId());
+        Assert.assertEquals(size1, mbox1.getEstimatedSize());
+
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(0, budget, 1);
+        map.put(mbox2.getId(), mbox2);
+        map.put(mbox3.getId(), mbox3);
+        map.put(mbox1.getId(), mbox1);
+
+        // the item cache is dropped, but every mailbox stays cached
+        Assert.assertEquals(0, mbox1.getItemCacheSize());
+        Assert.assertEquals(3, map.mHardMap.size());
+        Assert.assertEquals(budget, map.getEstimatedBytes());
+    }
+
+    @Test
+    public void runningTotal() throws Exception {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(0, Long.MAX_VALUE, 16);
+        mbox1.purgeItemCache();
+        long size1 = mbox1.getEstimatedSize();
+        long size2 = mbox2.getEstimatedSize();
+        map.put(mbox1.getId(), mbox1);
+        map.put(mbox2.getId(), mbox2);
+        Assert.assertEquals(size1 + size2, map.getEstimatedBytes());
+
+        // growth is picked up the next time the mailbox is looked up
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_email, "test@zimbra.com");
+        Contact contact = mbox1.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+        mbox1.getContactById(null, contact.getId());
+        long grown1 = mbox1.getEstimatedSize();
+        Assert.assertTrue(grown1 > size1);
+        Assert.assertEquals(size1 + size2, map.getEstimatedBytes());
+        map.get(mbox1.getId());
+        Assert.assertEquals(grown1 + size2, map.getEstimatedBytes());
+
+        // removal takes off what was charged, even if the mailbox has changed size since
+        mbox2.getContactById(null, mbox2.createContact(null, new ParsedContact(fields),
+                Mailbox.ID_FOLDER_CONTACTS, null).getId());
+        map.remove(mbox1.getId());
+        Assert.assertEquals(size2, map.getEstimatedBytes());
+        map.remove(mbox2.getId());
+        Assert.assertEquals(0, map.getEstimatedBytes());
+    }
+
+    @Test
+    public void itemCacheCharges() throws Exception {
+        mbox1.purgeItemCache();
+        long base = mbox1.getEstimatedSize();
+
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_email, "test@zimbra.com");
+        int contactId = mbox1.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null).getId();
+        mbox1.getContactById(null, contactId);
+        long cached = mbox1.getEstimatedSize();
+        Assert.assertTrue(cached > base);
+
+        // the cached item grows in place; whatever it was charged comes off when it leaves the cache
+        for (int i = 0; i < 20; i++) {
+            fields.put("custom" + i, "a fairly long value to make the metadata grow " + i);
+        }
+        mbox1.modifyContact(null, contactId, new ParsedContact(fields));
+        mbox1.getContactById(null, contactId);
+        mbox1.delete(null, contactId, MailItem.Type.CONTACT);
+        Assert.assertEquals(base, mbox1.getEstimatedSize());
+    }
+
+    @Test
+    public void demoteOverBudget() throws Exception {
+        long budget = mbox1.getEstimatedSize() + mbox2.getEstimatedSize();
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(0, budget, 16);
+        map.put(mbox1.getId(), mbox1);
+        map.put(mbox2.getId(), mbox2);
+        map.get(mbox1.getId());
+        map.get(mbox1.getId());
+        map.put(mbox3.getId(), mbox3);
+
+        // mbox2 is the least frequently used of the candidates
+        Assert.assertEquals(2, map.mHardMap.size());
+        Assert.assertTrue(map.mSoftMap.containsKey(mbox2.getId()));
+        Assert.assertEquals(3, map.size());
+    }
+
+    @Test
+    public void sessionsPinMailbox() throws Exception {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(1, Long.MAX_VALUE, 16);
+        map.put(mbox1.getId(), mbox1);
+        map.put(mbox2.getId(), mbox2);
+        Assert.assertEquals(1, map.mHardMap.size());
+        Assert.assertTrue(map.mHardMap.containsKey(mbox2.getId()));
+        Assert.assertSame(mbox1, map.get(mbox1.getId()));
+    }
+}
@@ -44,6 +44,7 @@ import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.Db;
 import com.zimbra.cs.index.BrowseTerm;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.mime.ParsedContact;
@@ -360,6 +361,44 @@ public final class MailboxTest {
         mbox.recover(null, new int[] { msgId }, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
     }
 
+    @Test
+    public void getItemByIdInChunks() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("test@zimbra.com");
+        acct.setDumpsterEnabled(true);
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+
+        int[] ids = new int[Db.getINClauseBatchSize() + 10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mbox.addMessage(null, MailboxTestUtil.generateMessage("chunk " + i), STANDARD_DELIVERY_OPTIONS,
+                    null).getId();
+        }
+        mbox.purge(MailItem.Type.UNKNOWN);
+
+        MailItem[] items = mbox.getItemById(null, ids, MailItem.Type.MESSAGE);
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(ids[i], items[i].getId());
+        }
+
+        mbox.purge(MailItem.Type.UNKNOWN);
+        items = mbox.getItemById(null, new int[] { -ids[0], ids[1], Mailbox.ID_AUTO_INCREMENT }, MailItem.Type.UNKNOWN);
+        Assert.assertTrue(items[0] instanceof VirtualConversation);
+        Assert.assertEquals(ids[1], items[1].getId());
+        Assert.assertNull(items[2]);
+
+        mbox.delete(null, new int[] { ids[0], ids[1] }, MailItem.Type.MESSAGE, null);
+        items = mbox.getItemById(null, new int[] { ids[1], Mailbox.ID_AUTO_INCREMENT, ids[0] }, MailItem.Type.MESSAGE,
+                true);
+        Assert.assertEquals(ids[1], items[0].getId());
+        Assert.assertNull(items[1]);
+        Assert.assertEquals(ids[0], items[2].getId());
+        try {
+            mbox.getItemById(null, new int[] { ids[0], ids[2] }, MailItem.Type.MESSAGE, true);
+            Assert.fail();
+        } catch (MailServiceException.NoSuchItemException expected) {
+        }
+    }
+
     @Test
     public void deleteMailbox() throws Exception {
         MockStoreManager sm = (MockStoreManager) StoreManager.getInstance();
@@ -0,0 +1,145 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.util.JMSession;
+
+public class MessageCacheTest {
+
+    private static long maxBytes;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        maxBytes = LC.zimbra_message_cache_max_bytes.longValue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_message_cache_max_bytes.setDefault(maxBytes);
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(2000);
+        MessageCache.loadSettings();
+        for (int i = 0; i < 200; i++) {
+            MessageCache.purge("digest-" + i);
+        }
+    }
+
+    private static MimeMessage newMessage() {
+        return new MimeMessage(JMSession.getSession());
+    }
+
+    @Test
+    public void cacheAndPurge() throws Exception {
+        MimeMessage mm = newMessage();
+        MessageCache.cacheMessage("digest-0", mm, mm);
+        Assert.assertTrue(MessageCache.contains("digest-0"));
+        Assert.assertTrue(MessageCache.getDataSize() > 0);
+
+        MessageCache.purge("digest-0");
+        Assert.assertFalse(MessageCache.contains("digest-0"));
+        Assert.assertEquals(0, MessageCache.getSize());
+        Assert.assertEquals(0, MessageCache.getDataSize());
+    }
+
+    @Test
+    public void evictByEntryCount() throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(16);
+        MessageCache.loadSettings();
+        MessageCache.getSegmentStats(); // reset counters
+
+        for (int i = 0; i < 200; i++) {
+            MimeMessage mm = newMessage();
+            MessageCache.cacheMessage("digest-" + i, mm, mm);
+        }
+        int size = MessageCache.getSize();
+        Assert.assertTrue("cache size " + size + " exceeds limit", size <= 16);
+
+        long evictions = 0;
+        for (MessageCache.SegmentStats seg : MessageCache.getSegmentStats()) {
+            evictions += seg.evictions;
+        }
+        Assert.assertEquals(200 - size, evictions);
+        // the most recently cached digest always survives in its segment
+        Assert.assertTrue(MessageCache.contains("digest-199"));
+    }
+
+    @Test
+    public void evictByBytes() throws Exception {
+        MimeMessage first = newMessage();
+        long before = MessageCache.getDataSize();
+        MessageCache.cacheMessage("digest-0", first, first);
+        long footprint = MessageCache.getDataSize() - before;
+        Assert.assertTrue(footprint > 0);
+        MessageCache.purge("digest-0");
+
+        // room for 3 entries per segment, and no entry count limit to speak of
+        int segments = LC.zimbra_message_cache_segments.intValue();
+        LC.zimbra_message_cache_max_bytes.setDefault(3 * footprint * segments);
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(2000);
+        MessageCache.loadSettings();
+        MessageCache.getSegmentStats(); // reset counters
+
+        List<List<String>> bySegment = new ArrayList<List<String>>();
+        for (int i = 0; i < segments; i++) {
+            bySegment.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < 200; i++) {
+            String digest = "digest-" + i;
+            MimeMessage mm = newMessage();
+            MessageCache.cacheMessage(digest, mm, mm);
+            bySegment.get(MessageCache.segmentIndex(digest)).add(digest);
+            Assert.assertTrue(MessageCache.getDataSize() <= 3 * footprint * segments);
+        }
+
+        // each segment keeps only its 3 most recently cached digests
+        int expected = 0;
+        for (List<String> digests : bySegment) {
+            for (int i = 0; i < digests.size(); i++) {
+                Assert.assertEquals(digests.get(i), i >= digests.size() - 3, MessageCache.contains(digests.get(i)));
+            }
+            expected += Math.min(digests.size(), 3);
+        }
+        Assert.assertEquals(expected, MessageCache.getSize());
+        Assert.assertEquals(expected * footprint, MessageCache.getDataSize());
+
+        long evictions = 0;
+        for (MessageCache.SegmentStats seg : MessageCache.getSegmentStats()) {
+            Assert.assertEquals(seg.entries * footprint, seg.dataSize);
+            evictions += seg.evictions;
+        }
+        Assert.assertEquals(200 - expected, evictions);
+
+        // the counter follows purges and re-caching of the same digest
+        MessageCache.purge("digest-199");
+        Assert.assertEquals((expected - 1) * footprint, MessageCache.getDataSize());
+        MimeMessage mm = newMessage();
+        MessageCache.cacheMessage("digest-198", mm, mm);
+        Assert.assertEquals((expected - 1) * footprint, MessageCache.getDataSize());
+    }
+}
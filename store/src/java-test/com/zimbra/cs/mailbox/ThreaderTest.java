@@ -343,6 +343,78 @@ public final class ThreaderTest {
         checkConversations(mbox, msgid3A, msgid3, true);
     }
 
+    private boolean checkCache(Mailbox mbox) throws ServiceException {
+        mbox.beginTransaction("ThreaderTest", null);
+        try {
+            return mbox.getThreaderCache().checkConsistency();
+        } finally {
+            mbox.endTransaction(false);
+        }
+    }
+
+    @Test
+    public void hashCache() throws Exception {
+        Account acct = getAccount();
+        acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.references);
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        ThreaderCache cache = mbox.getThreaderCache();
+
+        int msgid1 = mbox.addMessage(null, getRootMessage(), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+
+        // reply to the thread starter is answered from the cache
+        long misses = cache.getMisses();
+        MimeMessage mm = getSecondMessage();
+        mm.setHeader("Subject", "Re: " + ROOT_SUBJECT);
+        mm.setHeader("In-Reply-To", ROOT_MESSAGE_ID);
+        int msgid2 = mbox.addMessage(null, new ParsedMessage(mm, false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        checkConversations(mbox, msgid1, msgid2, true);
+        Assert.assertEquals("no database lookups", misses, cache.getMisses());
+        Assert.assertTrue("cache hit", cache.getHits() > 0);
+        Assert.assertTrue("consistent after open", checkCache(mbox));
+
+        // once the conversation is gone, replies start a new one
+        int convId = mbox.getMessageById(null, msgid1).getConversationId();
+        mbox.delete(null, convId, MailItem.Type.CONVERSATION);
+        Assert.assertTrue("consistent after delete", checkCache(mbox));
+
+        mm.setHeader("Message-ID", THIRD_MESSAGE_ID);
+        int msgid3 = mbox.addMessage(null, new ParsedMessage(mm, false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        Assert.assertFalse("new conversation", mbox.getMessageById(null, msgid3).getConversationId() == convId);
+        Assert.assertTrue("consistent after redelivery", checkCache(mbox));
+
+        // stale entries are dropped rather than returned
+        cache.loaded(Collections.singletonMap(Mailbox.getHash("\u0001\u0002" + ROOT_MESSAGE_ID), convId));
+        mm.setHeader("Message-ID", FOURTH_MESSAGE_ID);
+        mm.setHeader("In-Reply-To", ROOT_MESSAGE_ID);
+        int msgid4 = mbox.addMessage(null, new ParsedMessage(mm, false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        Assert.assertFalse("stale target ignored", mbox.getMessageById(null, msgid4).getConversationId() == convId);
+    }
+
+    @Test
+    public void hashCacheAfterImapCopy() throws Exception {
+        Account acct = getAccount();
+        acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.references);
+
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+
+        // an unthreaded message's hashes are open in the message itself, and an IMAP copy takes them over
+        int msgid1 = mbox.addMessage(null, getRootMessage(), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        Assert.assertTrue("virtual conversation", mbox.getMessageById(null, msgid1).getConversationId() < 0);
+        int copyId = mbox.imapCopy(null, new int[] { msgid1 }, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_SENT)
+                .get(0).getId();
+        Assert.assertTrue("consistent after copy", checkCache(mbox));
+
+        // a reply threads with the copy, not the original
+        MimeMessage mm = getSecondMessage();
+        mm.setHeader("Subject", "Re: " + ROOT_SUBJECT);
+        mm.setHeader("In-Reply-To", ROOT_MESSAGE_ID);
+        int msgid2 = mbox.addMessage(null, new ParsedMessage(mm, false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        checkConversations(mbox, copyId, msgid2, true);
+        checkConversations(mbox, msgid1, msgid2, false);
+        Assert.assertTrue("consistent after reply", checkCache(mbox));
+    }
+
     @Test
     public void bogusThreadIndexHeader() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
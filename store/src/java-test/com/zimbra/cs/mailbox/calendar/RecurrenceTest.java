@@ -0,0 +1,251 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ParsedDuration;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.common.calendar.ZCalendar.ICalTok;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.CalendarItem.Instance;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.Recurrence.CancellationRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.ExceptionRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.IRecurrence;
+import com.zimbra.cs.mailbox.calendar.Recurrence.RecurrenceRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.SimpleRepeatingRule;
+import com.zimbra.cs.mailbox.calendar.Recurrence.SingleDates;
+
+public final class RecurrenceTest {
+
+    private static final ICalTimeZone PACIFIC = new ICalTimeZone(
+            "America/Los_Angeles",
+            -28800000, "16010101T020000", "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=11;BYDAY=1SU", "PST",
+            -25200000, "16010101T020000", "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=3;BYDAY=2SU", "PDT");
+    private static final TimeZoneMap TZMAP = new TimeZoneMap(PACIFIC);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static ParsedDateTime dt(String local) throws Exception {
+        return ParsedDateTime.parse("TZID=\"" + PACIFIC.getID() + "\":" + local, TZMAP);
+    }
+
+    private static long time(int year, int month, int day) {
+        Calendar cal = new GregorianCalendar(PACIFIC);
+        cal.clear();
+        cal.set(year, month, day, 0, 0, 0);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Weekly series with two RDATEs, an EXDATE, a moved instance and a canceled instance.
+     */
+    private static RecurrenceRule weeklySeries(String rule) throws Exception {
+        ParsedDuration duration = ParsedDuration.parse("PT1H");
+        List<IRecurrence> addRules = new ArrayList<IRecurrence>();
+        List<IRecurrence> subRules = new ArrayList<IRecurrence>();
+        addRules.add(new SimpleRepeatingRule(dt("20090105T120000"), duration, new ZRecur(rule, TZMAP), null));
+
+        RdateExdate rdate = new RdateExdate(ICalTok.RDATE, PACIFIC);
+        rdate.addValue(dt("20090106T120000"));
+        rdate.addValue(dt("20090112T120000"));  // same time as a rule instance
+        addRules.add(new SingleDates(rdate, duration));
+
+        RdateExdate exdate = new RdateExdate(ICalTok.EXDATE, PACIFIC);
+        exdate.addValue(dt("20090209T120000"));
+        subRules.add(new SingleDates(exdate, duration));
+
+        RecurrenceRule recurrence = new RecurrenceRule(dt("20090105T120000"), duration, null, addRules, subRules);
+        recurrence.addException(new ExceptionRule(new RecurId(dt("20090216T120000"), RecurId.RANGE_NONE),
+                dt("20090216T130000"), ParsedDuration.parse("PT2H"), null));
+        recurrence.addException(new CancellationRule(new RecurId(dt("20090119T120000"), RecurId.RANGE_NONE)));
+        return recurrence;
+    }
+
+    private static List<String> describe(Iterable<Instance> instances) {
+        List<String> list = new ArrayList<String>();
+        for (Instance inst : instances) {
+            list.add(inst + (inst.fromRdate() ? "/rdate" : ""));
+        }
+        return list;
+    }
+
+    private static List<Instance> drain(Iterator<Instance> iter) {
+        List<Instance> list = new ArrayList<Instance>();
+        while (iter.hasNext()) {
+            list.add(iter.next());
+        }
+        return list;
+    }
+
+    private static void assertSameExpansion(IRecurrence recur, long start, long end) throws Exception {
+        List<Instance> expected = Recurrence.expandInstances(recur, 1, start, end);
+        List<Instance> actual = drain(Recurrence.instanceIterator(recur, 1, start, end));
+        Assert.assertEquals(describe(expected), describe(actual));
+    }
+
+    @Test
+    public void sameInstancesAsList() throws Exception {
+        String[] rules = {
+            "FREQ=WEEKLY;INTERVAL=1",
+            "FREQ=WEEKLY;COUNT=10",
+            "FREQ=DAILY;INTERVAL=2;UNTIL=20090401T000000Z",
+            "FREQ=WEEKLY;BYDAY=MO,WE,FR",
+            "FREQ=MONTHLY;BYDAY=1MO,-1MO",
+        };
+        long[][] ranges = {
+            { time(2009, Calendar.JANUARY, 1), time(2010, Calendar.JANUARY, 1) },
+            { time(2009, Calendar.FEBRUARY, 10), time(2009, Calendar.FEBRUARY, 20) },
+            { time(2009, Calendar.JANUARY, 1), Long.MAX_VALUE },
+            { time(2008, Calendar.JANUARY, 1), time(2008, Calendar.DECEMBER, 1) },
+        };
+        for (String rule : rules) {
+            for (long[] range : ranges) {
+                assertSameExpansion(weeklySeries(rule), range[0], range[1]);
+            }
+        }
+    }
+
+    @Test
+    public void sameDatesAsList() throws Exception {
+        String[] rules = {
+            "FREQ=DAILY",
+            "FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29",
+            "FREQ=MONTHLY;BYMONTHDAY=31;COUNT=12",
+            "FREQ=HOURLY;INTERVAL=6;BYHOUR=0,6,12",
+            "FREQ=MINUTELY",
+        };
+        ParsedDateTime dtStart = dt("20080229T090000");
+        long start = time(2008, Calendar.JANUARY, 1);
+        long end = time(2016, Calendar.JANUARY, 1);
+        for (String rule : rules) {
+            ZRecur recur = new ZRecur(rule, TZMAP);
+            List<Date> actual = new ArrayList<Date>();
+            for (Iterator<Date> iter = recur.iterateRecurrenceOverRange(dtStart, start, end); iter.hasNext(); ) {
+                actual.add(iter.next());
+            }
+            Assert.assertEquals(rule, recur.expandRecurrenceOverRange(dtStart, start, end), actual);
+        }
+    }
+
+    @Test
+    public void exceptionsMergedInOrder() throws Exception {
+        List<Instance> instances = drain(Recurrence.instanceIterator(weeklySeries("FREQ=WEEKLY"), 1,
+                time(2009, Calendar.JANUARY, 1), time(2009, Calendar.MARCH, 1)));
+        // 8 weeks - 1 EXDATE - 1 cancellation; the moved instance stays (RDATEs are off by default)
+        Assert.assertEquals(6, instances.size());
+        long prev = Long.MIN_VALUE;
+        boolean sawException = false;
+        for (Instance inst : instances) {
+            Assert.assertTrue(inst.getStart() >= prev);
+            Assert.assertFalse(inst.getStart() == dt("20090119T120000").getUtcTime());
+            Assert.assertFalse(inst.getStart() == dt("20090209T120000").getUtcTime());
+            if (inst.isException()) {
+                Assert.assertEquals(dt("20090216T130000").getUtcTime(), inst.getStart());
+                sawException = true;
+            }
+            prev = inst.getStart();
+        }
+        Assert.assertTrue(sawException);
+    }
+
+    /**
+     * Rule whose expansion runs into bad data after {@code good} dates.
+     */
+    private static final class BrokenRecur extends ZRecur {
+        private final int good;
+
+        BrokenRecur(String rule, int good) throws Exception {
+            super(rule, TZMAP);
+            this.good = good;
+        }
+
+        @Override
+        public Iterator<Date> iterateRecurrenceOverRange(ParsedDateTime dtStart, long rangeStart, long rangeEnd)
+                throws ServiceException {
+            final Iterator<Date> dates = super.iterateRecurrenceOverRange(dtStart, rangeStart, rangeEnd);
+            return new Iterator<Date>() {
+                private int count = 0;
+
+                @Override
+                public boolean hasNext() {
+                    if (count >= good) {
+                        throw new IllegalArgumentException("bad data");
+                    }
+                    return dates.hasNext();
+                }
+
+                @Override
+                public Date next() {
+                    count++;
+                    return dates.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void badRuleDropped() throws Exception {
+        ParsedDuration duration = ParsedDuration.parse("PT1H");
+        ParsedDateTime dtStart = dt("20090105T120000");
+        List<IRecurrence> addRules = new ArrayList<IRecurrence>();
+        addRules.add(new SimpleRepeatingRule(dtStart, duration, new BrokenRecur("FREQ=WEEKLY", 3), null));
+        RecurrenceRule recurrence =
+                new RecurrenceRule(dtStart, duration, null, addRules, new ArrayList<IRecurrence>());
+        long start = time(2009, Calendar.JANUARY, 1);
+        long end = time(2009, Calendar.MARCH, 1);
+
+        // the list expansion, which CalendarItem.expandInstances uses, drops the whole rule and keeps DTSTART
+        List<Instance> expanded = Recurrence.expandInstances(recurrence, 1, start, end);
+        Assert.assertEquals(1, expanded.size());
+        Assert.assertEquals(dtStart.getUtcTime(), expanded.get(0).getStart());
+
+        // the iterator returns what the rule produced before the bad data
+        List<Instance> iterated = drain(Recurrence.instanceIterator(recurrence, 1, start, end));
+        Assert.assertEquals(3, iterated.size());
+        Assert.assertEquals(dt("20090119T120000").getUtcTime(), iterated.get(2).getStart());
+    }
+
+    @Test
+    public void unboundedSeriesStopsEarly() throws Exception {
+        Iterator<Instance> iter = Recurrence.instanceIterator(weeklySeries("FREQ=DAILY"), 1,
+                time(2009, Calendar.JANUARY, 1), Long.MAX_VALUE);
+        Assert.assertTrue(iter.hasNext());
+        Assert.assertEquals(dt("20090105T120000").getUtcTime(), iter.next().getStart());
+        Assert.assertEquals(dt("20090106T120000").getUtcTime(), iter.next().getStart());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ZCalendar.ZComponent;
+import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.Invite;
+import com.zimbra.cs.mailbox.calendar.ZOrganizer;
+
+public final class FreeBusyCacheTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private Mailbox mbox;
+    private FreeBusyCache cache;
+    private long start;
+    private long end;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        LC.calendar_cache_directory.setDefault("build/test/calcache");
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(
+                Provisioning.getInstance().getAccountByName("test@zimbra.com").getId());
+        // start from empty caches, so that nothing built for an earlier mailbox with the same ids is picked up
+        CalendarCacheManager.getInstance().purgeMailbox(mbox);
+        FileUtil.deleteDir(new File(LC.calendar_cache_directory.value()));
+        cache = CalendarCacheManager.getInstance().getFreeBusyCache();
+        start = System.currentTimeMillis();
+        end = start + 24 * HOUR;
+    }
+
+    private int createAppointment(int folderId) throws Exception {
+        Account acct = mbox.getAccount();
+        ZVCalendar calendar = new ZVCalendar();
+        calendar.addComponent(new ZComponent("VEVENT"));
+        Invite invite = MailboxTestUtil.generateInvite(acct, "busy", calendar);
+        ICalTimeZone tz = invite.getTimeZoneMap().getLocalTimeZone();
+        invite.setDtStart(ParsedDateTime.fromUTCTime(start + HOUR, tz));
+        invite.setDtEnd(ParsedDateTime.fromUTCTime(start + 2 * HOUR, tz));
+        invite.setOrganizer(new ZOrganizer(acct.getName(), null));
+        invite.setUid(UUID.randomUUID().toString());
+        invite.setMethod("REQUEST");
+        invite.setName("busy");
+        invite.setFreeBusy("B");
+        invite.setIsOrganizer(true);
+        invite.setItemType(MailItem.Type.APPOINTMENT);
+        return mbox.addInvite(null, invite, folderId).calItemId;
+    }
+
+    private FolderFreeBusy cached(int folderId) throws Exception {
+        FolderFreeBusy fb = cache.getFreeBusy(mbox, folderId, start, end);
+        Assert.assertSame(fb, cache.get(mbox.getAccountId(), folderId));
+        Assert.assertTrue(FileStore.getFreeBusyFile(mbox.getId(), folderId).exists());
+        return fb;
+    }
+
+    private void assertInvalidated(int folderId) {
+        Assert.assertNull(cache.get(mbox.getAccountId(), folderId));
+        Assert.assertFalse(FileStore.getFreeBusyFile(mbox.getId(), folderId).exists());
+    }
+
+    private static byte[] encode(FolderFreeBusy fb) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        fb.encode(out);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static FolderFreeBusy decode(byte[] data) throws IOException {
+        return FolderFreeBusy.decode(new DataInputStream(new ByteArrayInputStream(data)), data.length);
+    }
+
+    @Test
+    public void encodeDecode() throws Exception {
+        int calItemId = createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        FolderFreeBusy fb = cached(Mailbox.ID_FOLDER_CALENDAR);
+        Assert.assertEquals(2, fb.getNumInstances());
+
+        byte[] data = encode(fb);
+        FolderFreeBusy decoded = decode(data);
+        Assert.assertEquals(fb.getFolderId(), decoded.getFolderId());
+        Assert.assertEquals(fb.getModSeq(), decoded.getModSeq());
+        Assert.assertEquals(fb.getRangeStart(), decoded.getRangeStart());
+        Assert.assertEquals(fb.getRangeEnd(), decoded.getRangeEnd());
+        Assert.assertEquals(fb.getNumInstances(), decoded.getNumInstances());
+        Assert.assertTrue(decoded.containsItem(calItemId));
+        Assert.assertArrayEquals(data, encode(decoded));
+
+        // and the same through the file that was written
+        FolderFreeBusy loaded = FileStore.loadFreeBusy(mbox.getId(), Mailbox.ID_FOLDER_CALENDAR, fb.getModSeq());
+        Assert.assertArrayEquals(data, encode(loaded));
+        Assert.assertNull(FileStore.loadFreeBusy(mbox.getId(), Mailbox.ID_FOLDER_CALENDAR, fb.getModSeq() + 1));
+    }
+
+    @Test
+    public void corruptData() throws Exception {
+        createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        byte[] data = encode(cached(Mailbox.ID_FOLDER_CALENDAR));
+
+        for (int length = 0; length < data.length; length++) {
+            try {
+                decode(Arrays.copyOf(data, length));
+                Assert.fail("decoded a timeline truncated to " + length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+
+        // an instance count that can't fit in the data is rejected before anything is allocated for it
+        byte[] corrupt = data.clone();
+        int countOffset = 1 + 4 + 4 + 8 + 8;
+        corrupt[countOffset] = 0x7f;
+        try {
+            decode(corrupt);
+            Assert.fail("decoded a timeline with a bogus instance count");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        FolderFreeBusy fb = cached(Mailbox.ID_FOLDER_CALENDAR);
+        File file = FileStore.getFreeBusyFile(mbox.getId(), Mailbox.ID_FOLDER_CALENDAR);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        Assert.assertNull(FileStore.loadFreeBusy(mbox.getId(), Mailbox.ID_FOLDER_CALENDAR, fb.getModSeq()));
+        Assert.assertFalse("unreadable file is discarded", file.exists());
+    }
+
+    @Test
+    public void invalidateOnCreate() throws Exception {
+        Assert.assertEquals(0, cached(Mailbox.ID_FOLDER_CALENDAR).getNumInstances());
+        createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        assertInvalidated(Mailbox.ID_FOLDER_CALENDAR);
+        Assert.assertEquals(1, cached(Mailbox.ID_FOLDER_CALENDAR).getNumInstances());
+    }
+
+    @Test
+    public void invalidateOnModify() throws Exception {
+        int calItemId = createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        cached(Mailbox.ID_FOLDER_CALENDAR);
+        mbox.alterTag(null, calItemId, MailItem.Type.APPOINTMENT, Flag.FlagInfo.FLAGGED, true, null);
+        assertInvalidated(Mailbox.ID_FOLDER_CALENDAR);
+    }
+
+    @Test
+    public void invalidateOnDelete() throws Exception {
+        int calItemId = createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        Assert.assertTrue(cached(Mailbox.ID_FOLDER_CALENDAR).containsItem(calItemId));
+        mbox.delete(null, calItemId, MailItem.Type.APPOINTMENT);
+        assertInvalidated(Mailbox.ID_FOLDER_CALENDAR);
+        Assert.assertEquals(0, cached(Mailbox.ID_FOLDER_CALENDAR).getNumInstances());
+    }
+
+    @Test
+    public void invalidateOnMove() throws Exception {
+        Folder other = mbox.createFolder(null, "other",
+                new Folder.FolderOptions().setDefaultView(MailItem.Type.APPOINTMENT));
+        int calItemId = createAppointment(Mailbox.ID_FOLDER_CALENDAR);
+        Assert.assertTrue(cached(Mailbox.ID_FOLDER_CALENDAR).containsItem(calItemId));
+        Assert.assertEquals(0, cached(other.getId()).getNumInstances());
+
+        mbox.move(null, calItemId, MailItem.Type.APPOINTMENT, other.getId());
+        assertInvalidated(Mailbox.ID_FOLDER_CALENDAR);
+        assertInvalidated(other.getId());
+        Assert.assertEquals(0, cached(Mailbox.ID_FOLDER_CALENDAR).getNumInstances());
+        Assert.assertTrue(cached(other.getId()).containsItem(calItemId));
+    }
+}
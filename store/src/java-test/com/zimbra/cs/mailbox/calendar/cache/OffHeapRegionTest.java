@@ -0,0 +1,64 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class OffHeapRegionTest {
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void roundTrip() {
+        OffHeapRegion region = new OffHeapRegion(1024 * 1024);
+        int[] lengths = { 0, 1, OffHeapRegion.PAGE_SIZE - 1, OffHeapRegion.PAGE_SIZE, OffHeapRegion.PAGE_SIZE * 3 + 7 };
+        int[][] pages = new int[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            pages[i] = region.store(bytes(lengths[i], i));
+            Assert.assertEquals(OffHeapRegion.pagesFor(lengths[i]), pages[i].length);
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            Assert.assertArrayEquals(bytes(lengths[i], i), region.load(pages[i], lengths[i]));
+        }
+    }
+
+    @Test
+    public void boundedByBytes() {
+        OffHeapRegion region = new OffHeapRegion(OffHeapRegion.PAGE_SIZE * 4);
+        Assert.assertFalse(region.fits(OffHeapRegion.PAGE_SIZE * 4 + 1));
+
+        int[] first = region.store(bytes(OffHeapRegion.PAGE_SIZE * 3, 1));
+        Assert.assertNotNull(first);
+        Assert.assertEquals(OffHeapRegion.PAGE_SIZE * 3, region.getUsedBytes());
+        Assert.assertFalse(region.hasRoomFor(OffHeapRegion.PAGE_SIZE * 2));
+        Assert.assertNull(region.store(bytes(OffHeapRegion.PAGE_SIZE * 2, 2)));
+
+        region.release(first);
+        Assert.assertEquals(0, region.getUsedBytes());
+        int[] second = region.store(bytes(OffHeapRegion.PAGE_SIZE * 4, 2));
+        Assert.assertNotNull(second);
+        Assert.assertArrayEquals(bytes(OffHeapRegion.PAGE_SIZE * 4, 2), region.load(second, OffHeapRegion.PAGE_SIZE * 4));
+        Assert.assertEquals(OffHeapRegion.PAGE_SIZE * 4, region.getReservedBytes());
+    }
+}
@@ -1,5 +1,6 @@
 package com.zimbra.cs.redolog.logger;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.mailbox.MailboxOperation;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 import com.zimbra.cs.redolog.RedoLogManager;
@@ -14,6 +15,9 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class  FileLogWriterTest {
     @Rule public TemporaryFolder folder = new TemporaryFolder();
@@ -71,4 +75,70 @@ public class  FileLogWriterTest {
     public void logBeforeOpen() throws Exception {
         logWriter.log(null, null, false);
     }
+
+    @Test
+    public void groupCommit() throws Exception {
+        LC.redolog_group_commit.setDefault(true);
+        logWriter =
+            new FileLogWriter(mockRedoLogManager, folder.newFile("groupcommit"),
+                              10 /* fsync interval in ms */);
+        logWriter.open();
+        final RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                                  .withConstructor(MailboxOperation.Preview)
+                                  .createMock();
+        final byte[] record = "0123456789".getBytes();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            logWriter.log(op, new ByteArrayInputStream(record), true /* synchronous */);
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals("file size incorrect.",
+                            FileHeader.HEADER_LEN + 8 * 100 * record.length, logWriter.getSize());
+        logWriter.close();
+        Assert.assertEquals("bytes on disk incorrect.",
+                            FileHeader.HEADER_LEN + 8 * 100 * record.length, folder.getRoot().toPath()
+                                .resolve("groupcommit").toFile().length());
+    }
+
+    @Test
+    public void groupCommitLargeRecord() throws Exception {
+        LC.redolog_group_commit.setDefault(true);
+        LC.redolog_group_commit_buffer_kb.setDefault(4);
+        try {
+            logWriter =
+                new FileLogWriter(mockRedoLogManager, folder.newFile("largerecord"),
+                                  10 /* fsync interval in ms */);
+            logWriter.open();
+            RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                                .withConstructor(MailboxOperation.Preview)
+                                .createMock();
+            logWriter.log(op, new ByteArrayInputStream(new byte[100]), true);
+            logWriter.log(op, new ByteArrayInputStream(new byte[10000]), true);
+            logWriter.log(op, new ByteArrayInputStream(new byte[100]), false);
+            logWriter.flush();
+            logWriter.close();
+            Assert.assertEquals(FileHeader.HEADER_LEN + 10200,
+                                folder.getRoot().toPath().resolve("largerecord").toFile().length());
+        } finally {
+            LC.redolog_group_commit_buffer_kb.setDefault(1024);
+        }
+    }
 }
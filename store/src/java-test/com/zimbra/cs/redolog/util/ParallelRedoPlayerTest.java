@@ -0,0 +1,153 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ParallelRedoPlayerTest {
+
+    private static final AtomicInteger clock = new AtomicInteger();
+
+    private static class TestOp extends RedoableOp {
+        private final int seq;
+        private final List<Integer> played;
+        volatile int started;
+        volatile int finished;
+
+        TestOp(MailboxOperation type, int mboxId, int seq, List<Integer> played) {
+            super(type, null);
+            setMailboxId(mboxId);
+            this.seq = seq;
+            this.played = played;
+        }
+
+        @Override
+        public void redo() throws Exception {
+            started = clock.incrementAndGet();
+            if (seq % 7 == 0) {
+                Thread.sleep(1);
+            }
+            if (played != null) {
+                played.add(seq);
+            }
+            finished = clock.incrementAndGet();
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return "seq=" + seq;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) {
+        }
+    }
+
+    private static ParallelRedoPlayer newPlayer() {
+        return new ParallelRedoPlayer(false, true, false, false, 8, 10, false);
+    }
+
+    @Test
+    public void mailboxOrder() throws Exception {
+        ParallelRedoPlayer player = newPlayer();
+        List<List<Integer>> played = new ArrayList<List<Integer>>();
+        for (int m = 0; m < 50; m++) {
+            played.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < 40; i++) {
+            for (int m = 0; m < 50; m++) {
+                player.playOp(new TestOp(MailboxOperation.CreateMessage, m + 1, i, played.get(m)));
+            }
+        }
+        player.shutdown();
+
+        for (List<Integer> list : played) {
+            Assert.assertEquals(40, list.size());
+            for (int i = 0; i < 40; i++) {
+                Assert.assertEquals(i, list.get(i).intValue());
+            }
+        }
+        Assert.assertEquals(2000, player.getOpStats().get(MailboxOperation.CreateMessage).getCount());
+    }
+
+    @Test
+    public void barriers() throws Exception {
+        ParallelRedoPlayer player = newPlayer();
+        List<TestOp> before = new ArrayList<TestOp>();
+        List<TestOp> after = new ArrayList<TestOp>();
+        for (int m = 1; m <= 20; m++) {
+            TestOp op = new TestOp(MailboxOperation.SetItemTags, m, m, null);
+            before.add(op);
+            player.playOp(op);
+        }
+        TestOp volume = new TestOp(MailboxOperation.CreateVolume, RedoableOp.UNKNOWN_ID, 0, null);
+        player.playOp(volume);
+        TestOp create = new TestOp(MailboxOperation.CreateMailbox, 21, 0, null);
+        player.playOp(create);
+        for (int m = 1; m <= 21; m++) {
+            TestOp op = new TestOp(MailboxOperation.SetItemTags, m, m, null);
+            after.add(op);
+            player.playOp(op);
+        }
+        player.shutdown();
+
+        for (TestOp op : before) {
+            Assert.assertTrue(op.finished < volume.started);
+        }
+        Assert.assertTrue(volume.finished < create.started);
+        for (TestOp op : after) {
+            Assert.assertTrue(create.finished < op.started);
+        }
+        Assert.assertEquals(41, player.getOpStats().get(MailboxOperation.SetItemTags).getCount());
+        Assert.assertEquals(1, player.getOpStats().get(MailboxOperation.CreateVolume).getCount());
+    }
+
+    @Test
+    public void stopOnError() throws Exception {
+        ParallelRedoPlayer player = newPlayer();
+        player.playOp(new TestOp(MailboxOperation.CreateMessage, 1, 1, null) {
+            @Override
+            public void redo() throws Exception {
+                throw new Exception("replay failure");
+            }
+        });
+        try {
+            for (int i = 0; i < 10000; i++) {
+                player.playOp(new TestOp(MailboxOperation.CreateMessage, 1, i, null));
+            }
+            Assert.fail("playback should stop after an error");
+        } catch (Exception expected) {
+        } finally {
+            player.shutdown();
+        }
+    }
+}
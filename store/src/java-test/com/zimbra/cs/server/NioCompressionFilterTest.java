@@ -0,0 +1,133 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Unit test for {@link NioCompressionFilter}.
+ */
+public final class NioCompressionFilterTest {
+    private DummySession session;
+    private TestIoHandler handler;
+    private NioCompressionFilter filter;
+
+    @Before
+    public void setUp() {
+        session = new DummySession();
+        handler = new TestIoHandler();
+        session.setHandler(handler);
+        filter = new NioCompressionFilter(Deflater.DEFAULT_COMPRESSION);
+        session.getFilterChain().addFirst("compress", filter);
+    }
+
+    @Test
+    public void write() throws Exception {
+        session.setAttribute(NioCompressionFilter.DISABLE_COMPRESSION_ONCE, true);
+        session.write(IoBuffer.wrap("A001 OK DEFLATE active\r\n".getBytes(Charsets.US_ASCII)));
+        Assert.assertEquals("A001 OK DEFLATE active\r\n", handler.sent(null));
+
+        // every write is sync-flushed, so each one can be inflated on its own
+        Inflater inflater = new Inflater(true);
+        String line = "* 1 FETCH (FLAGS (\\Seen) UID 1)\r\n";
+        for (int i = 0; i < 3; i++) {
+            session.write(IoBuffer.wrap(line.getBytes(Charsets.US_ASCII)));
+            Assert.assertEquals(line, handler.sent(inflater));
+        }
+        String body = Strings.repeat("0123456789abcdef", 4096);
+        session.write(IoBuffer.wrap(body.getBytes(Charsets.US_ASCII)));
+        Assert.assertEquals(body, handler.sent(inflater));
+
+        Assert.assertEquals(line.length() * 3 + body.length(), filter.getRawBytesOut());
+        Assert.assertTrue(filter.getWireBytesOut() < filter.getRawBytesOut());
+    }
+
+    @Test
+    public void read() throws Exception {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] command = deflate(deflater, "A002 NOOP\r\n");
+        // split the compressed command across two reads
+        session.getFilterChain().fireMessageReceived(IoBuffer.wrap(command, 0, 3));
+        session.getFilterChain().fireMessageReceived(IoBuffer.wrap(command, 3, command.length - 3));
+        session.getFilterChain().fireMessageReceived(IoBuffer.wrap(deflate(deflater, "A003 LOGOUT\r\n")));
+        Assert.assertEquals("A002 NOOP\r\nA003 LOGOUT\r\n", handler.received.toString());
+        Assert.assertEquals(handler.received.length(), filter.getRawBytesIn());
+    }
+
+    private static byte[] deflate(Deflater deflater, String data) {
+        deflater.setInput(data.getBytes(Charsets.US_ASCII));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int n;
+        do {
+            n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.write(chunk, 0, n);
+        } while (n == chunk.length);
+        return out.toByteArray();
+    }
+
+    private static final class TestIoHandler extends IoHandlerAdapter {
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        private final StringBuilder received = new StringBuilder();
+
+        @Override
+        public void messageSent(IoSession session, Object message) {
+            IoBuffer buf = (IoBuffer) message;
+            while (buf.hasRemaining()) {
+                sent.write(buf.get());
+            }
+        }
+
+        @Override
+        public void messageReceived(IoSession session, Object message) {
+            IoBuffer buf = (IoBuffer) message;
+            while (buf.hasRemaining()) {
+                received.append((char) buf.get());
+            }
+        }
+
+        String sent(Inflater inflater) throws Exception {
+            byte[] data = sent.toByteArray();
+            sent.reset();
+            if (inflater == null) {
+                return new String(data, Charsets.US_ASCII);
+            }
+            inflater.setInput(data);
+            StringBuilder result = new StringBuilder();
+            byte[] chunk = new byte[1024];
+            int n;
+            while ((n = inflater.inflate(chunk)) > 0) {
+                result.append(new String(chunk, 0, n, Charsets.US_ASCII));
+            }
+            Assert.assertTrue(inflater.needsInput());
+            return result.toString();
+        }
+    }
+}
@@ -122,6 +122,59 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void testMappedCache()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        fdc.setMaxSize(1).setMaxMappedFileSize(20).setMaxMappedBytes(30);
+
+        File file1 = createUncompressed("Love Will Tear Us Apart");
+        File file2 = createUncompressed("Atmosphere");
+        File file3 = createUncompressed("Transmission");
+        File file4 = createUncompressed("Shadowplay");
+
+        byte[] buf = new byte[30];
+
+        // Too large to map, so it takes the single file descriptor slot.
+        assertEquals(23, fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length));
+        assertEquals("Love Will Tear Us Apart", new String(buf, 0, 23));
+        assertEquals(0, fdc.getMappedBytes());
+
+        assertEquals(4, fdc.read(file2.getPath(), file2.length(), 6, buf, 0, 4));
+        assertEquals("here", new String(buf, 0, 4));
+        assertEquals(-1, fdc.read(file2.getPath(), file2.length(), 10, buf, 0, 4));
+        assertEquals(10, fdc.getMappedBytes());
+
+        assertEquals(12, fdc.read(file3.getPath(), file3.length(), 0, buf, 0, buf.length));
+        assertEquals("Transmission", new String(buf, 0, 12));
+        assertEquals(22, fdc.getMappedBytes());
+        assertEquals(3, fdc.getSize());
+        assertTrue(fdc.contains(file1.getPath()));
+
+        // Exceeds the mapped byte budget, so the least recently used mapping goes.
+        fdc.read(file4.getPath(), file4.length(), 0, buf, 0, buf.length);
+        assertEquals(22, fdc.getMappedBytes());
+        assertTrue(fdc.contains(file1.getPath()));
+        assertFalse(fdc.contains(file2.getPath()));
+        assertTrue(fdc.contains(file3.getPath()));
+        assertTrue(fdc.contains(file4.getPath()));
+
+        fdc.remove(file3.getPath());
+        assertEquals(10, fdc.getMappedBytes());
+        fdc.shutdown();
+        assertEquals(0, fdc.getMappedBytes());
+        assertEquals(0, fdc.getSize());
+    }
+
+    private File createUncompressed(String content)
+    throws IOException {
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        Files.write(content.getBytes(), file);
+        return file;
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
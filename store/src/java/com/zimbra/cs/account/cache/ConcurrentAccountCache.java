@@ -0,0 +1,236 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.ConcurrentHitRateCounter;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * {@link IAccountCache} that doesn't serialize lookups on a global monitor.
+ * Indexes are bounded concurrent maps that share one immutable entry per account.
+ * If an {@link IEntryRefresher} is supplied, a stale account is still returned for
+ * up to <tt>staleTTL</tt> ms while it is reloaded in the background; otherwise a
+ * stale account is a miss, as in {@link AccountCache}.
+ */
+public class ConcurrentAccountCache implements IAccountCache {
+
+    private final Cache<String, ConcurrentCacheEntry<Account>> mNameCache;
+    private final Cache<String, ConcurrentCacheEntry<Account>> mIdCache;
+    private final Cache<String, ConcurrentCacheEntry<Account>> mAliasCache;
+    private final Cache<String, ConcurrentCacheEntry<Account>> mForeignPrincipalCache;
+    private final Cache<String, ConcurrentCacheEntry<Account>> mOldNameCache;
+
+    private final long mRefreshTTL;
+    private final long mStaleTTL;
+    private final IEntryRefresher<Account> mRefresher;
+    private final ConcurrentHitRateCounter mHitRate = new ConcurrentHitRateCounter();
+
+    public ConcurrentAccountCache(int maxItems, long refreshTTL) {
+        this(maxItems, refreshTTL, 0, null);
+    }
+
+    public ConcurrentAccountCache(int maxItems, long refreshTTL, long staleTTL, IEntryRefresher<Account> refresher) {
+        mNameCache = newIndex(maxItems);
+        mIdCache = newIndex(maxItems);
+        mAliasCache = newIndex(maxItems);
+        mForeignPrincipalCache = newIndex(maxItems);
+        mOldNameCache = newIndex(maxItems);
+        mRefreshTTL = refreshTTL;
+        mStaleTTL = staleTTL;
+        mRefresher = refresher;
+    }
+
+    private static Cache<String, ConcurrentCacheEntry<Account>> newIndex(int maxItems) {
+        return CacheBuilder.newBuilder().maximumSize(maxItems).build();
+    }
+
+    @Override
+    public void clear() {
+        mNameCache.invalidateAll();
+        mIdCache.invalidateAll();
+        mAliasCache.invalidateAll();
+        mForeignPrincipalCache.invalidateAll();
+        mOldNameCache.invalidateAll();
+    }
+
+    @Override
+    public void remove(Account entry) {
+        if (entry != null) {
+            mNameCache.invalidate(entry.getName());
+            mIdCache.invalidate(entry.getId());
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
+            for (String alias : aliases) {
+                mAliasCache.invalidate(alias);
+            }
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
+            for (String fp : fps) {
+                mForeignPrincipalCache.invalidate(fp);
+            }
+            String oldName = entry.getOldMailAddress();
+            if (oldName != null) {
+                mOldNameCache.invalidate(oldName);
+            }
+        }
+    }
+
+    @Override
+    public void put(Account entry) {
+        if (entry != null) {
+            ConcurrentCacheEntry<Account> cacheEntry = new ConcurrentCacheEntry<Account>(entry, mRefreshTTL);
+            mNameCache.put(entry.getName(), cacheEntry);
+            mIdCache.put(entry.getId(), cacheEntry);
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
+            for (String alias : aliases) {
+                mAliasCache.put(alias, cacheEntry);
+            }
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
+            for (String fp : fps) {
+                mForeignPrincipalCache.put(fp, cacheEntry);
+            }
+            if (StringUtils.isNotEmpty(entry.getOldMailAddress())) {
+                mOldNameCache.put(entry.getOldMailAddress(), cacheEntry);
+            }
+        }
+    }
+
+    @Override
+    public void replace(Account entry) {
+        remove(entry);
+        put(entry);
+    }
+
+    /**
+     * Removes the cache entry from the indexes that still map to it, leaving
+     * anything put by another thread in the meantime alone.
+     */
+    private void evict(ConcurrentCacheEntry<Account> ce) {
+        Account entry = ce.entry;
+        mNameCache.asMap().remove(entry.getName(), ce);
+        mIdCache.asMap().remove(entry.getId(), ce);
+        for (String alias : entry.getMultiAttr(Provisioning.A_zimbraMailAlias)) {
+            mAliasCache.asMap().remove(alias, ce);
+        }
+        for (String fp : entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal)) {
+            mForeignPrincipalCache.asMap().remove(fp, ce);
+        }
+        String oldName = entry.getOldMailAddress();
+        if (oldName != null) {
+            mOldNameCache.asMap().remove(oldName, ce);
+        }
+    }
+
+    private void refresh(ConcurrentCacheEntry<Account> ce) {
+        try {
+            Account fresh = mRefresher.refresh(ce.entry);
+            evict(ce);
+            if (fresh != null && mIdCache.getIfPresent(fresh.getId()) == null) {
+                put(fresh);
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.account.debug("unable to refresh cached account %s", ce.entry.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the account for the cache entry, or <tt>null</tt> if it is too stale to
+     * serve.  Does not record a hit or miss.
+     */
+    private Account validate(final ConcurrentCacheEntry<Account> ce) {
+        if (mRefreshTTL != 0) {
+            long now = System.currentTimeMillis();
+            if (ce.isStale(now)) {
+                boolean serveStale = mRefresher != null && !ce.isExpired(now, mStaleTTL) &&
+                        ce.scheduleRefresh(new Runnable() {
+                            @Override
+                            public void run() {
+                                refresh(ce);
+                            }
+                        });
+                if (!serveStale) {
+                    evict(ce);
+                    return null;
+                }
+            }
+        }
+        return ce.entry;
+    }
+
+    private Account lookup(String key, Cache<String, ConcurrentCacheEntry<Account>> cache) {
+        ConcurrentCacheEntry<Account> ce = cache.getIfPresent(key);
+        return ce == null ? null : validate(ce);
+    }
+
+    private Account get(String key, Cache<String, ConcurrentCacheEntry<Account>> cache) {
+        return record(lookup(key, cache));
+    }
+
+    private Account record(Account acct) {
+        if (acct != null) {
+            mHitRate.hit();
+        } else {
+            mHitRate.miss();
+        }
+        return acct;
+    }
+
+    @Override
+    public Account getById(String key) {
+        return get(key, mIdCache);
+    }
+
+    @Override
+    public Account getByName(String key) {
+        String name = key.toLowerCase();
+        Account acct = lookup(name, mNameCache);
+        if (acct == null) {
+            acct = lookup(name, mAliasCache);
+        }
+        if (acct == null) {
+            acct = lookup(name, mOldNameCache);
+        }
+        return record(acct);
+    }
+
+    @Override
+    public Account getByForeignPrincipal(String key) {
+        return get(key, mForeignPrincipalCache);
+    }
+
+    @Override
+    public int getSize() {
+        return (int) mIdCache.size();
+    }
+
+    /**
+     * Returns the cache hit rate as a value between 0 and 100.
+     */
+    @Override
+    public double getHitRate() {
+        return mHitRate.getAverage();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Immutable cache entry shared by all the indexes of a concurrent entry cache.
+ * An entry goes stale <tt>refreshTTL</tt> ms after it was loaded.  A stale entry
+ * may still be served for up to <tt>staleTTL</tt> more ms while a single background
+ * refresh reloads it; after that it is treated as a miss.
+ */
+final class ConcurrentCacheEntry<E extends NamedEntry> {
+
+    private static final ThreadPoolExecutor REFRESH_EXECUTOR = new ThreadPoolExecutor(
+            LC.ldap_cache_refresh_threads.intValue(), LC.ldap_cache_refresh_threads.intValue(),
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(LC.ldap_cache_refresh_queue_size.intValue()),
+            new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresh-%d").setDaemon(true).build());
+    static {
+        REFRESH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    final E entry;
+    private final long expires;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    ConcurrentCacheEntry(E entry, long refreshTTL) {
+        this.entry = entry;
+        this.expires = System.currentTimeMillis() + refreshTTL;
+    }
+
+    boolean isStale(long now) {
+        return expires < now;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the entry is too stale to be served even while it is
+     * being refreshed.
+     */
+    boolean isExpired(long now, long staleTTL) {
+        return expires + staleTTL < now;
+    }
+
+    /**
+     * Schedules a background refresh unless one is already running for this entry.
+     * Returns <tt>false</tt> if the refresh could not be scheduled.
+     */
+    boolean scheduleRefresh(final Runnable refresh) {
+        if (!refreshing.compareAndSet(false, true)) {
+            return true;
+        }
+        try {
+            REFRESH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh.run();
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            refreshing.set(false);
+            return false;
+        }
+    }
+}
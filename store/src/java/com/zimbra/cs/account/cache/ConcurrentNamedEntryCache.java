@@ -0,0 +1,171 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.List;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.ConcurrentHitRateCounter;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * {@link INamedEntryCache} that doesn't serialize lookups on a global monitor.
+ * Entries are kept in bounded concurrent maps keyed by name and id.  If an
+ * {@link IEntryRefresher} is supplied, a stale entry is still returned for up to
+ * <tt>staleTTL</tt> ms while it is reloaded in the background; otherwise a stale
+ * entry is a miss, as in {@link NamedEntryCache}.
+ */
+public class ConcurrentNamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
+
+    private final Cache<String, ConcurrentCacheEntry<E>> mNameCache;
+    private final Cache<String, ConcurrentCacheEntry<E>> mIdCache;
+
+    private final long mRefreshTTL;
+    private final long mStaleTTL;
+    private final IEntryRefresher<E> mRefresher;
+    private final ConcurrentHitRateCounter mHitRate = new ConcurrentHitRateCounter();
+
+    public ConcurrentNamedEntryCache(int maxItems, long refreshTTL) {
+        this(maxItems, refreshTTL, 0, null);
+    }
+
+    public ConcurrentNamedEntryCache(int maxItems, long refreshTTL, long staleTTL, IEntryRefresher<E> refresher) {
+        mNameCache = CacheBuilder.newBuilder().maximumSize(maxItems).build();
+        mIdCache = CacheBuilder.newBuilder().maximumSize(maxItems).build();
+        mRefreshTTL = refreshTTL;
+        mStaleTTL = staleTTL;
+        mRefresher = refresher;
+    }
+
+    @Override
+    public void clear() {
+        mNameCache.invalidateAll();
+        mIdCache.invalidateAll();
+    }
+
+    @Override
+    public void remove(String name, String id) {
+        mNameCache.invalidate(name);
+        mIdCache.invalidate(id);
+    }
+
+    @Override
+    public void remove(E entry) {
+        if (entry != null) {
+            mNameCache.invalidate(entry.getName());
+            mIdCache.invalidate(entry.getId());
+        }
+    }
+
+    @Override
+    public void put(E entry) {
+        if (entry != null) {
+            ConcurrentCacheEntry<E> cacheEntry = new ConcurrentCacheEntry<E>(entry, mRefreshTTL);
+            mNameCache.put(entry.getName(), cacheEntry);
+            mIdCache.put(entry.getId(), cacheEntry);
+        }
+    }
+
+    @Override
+    public void replace(E entry) {
+        remove(entry);
+        put(entry);
+    }
+
+    @Override
+    public void put(List<E> entries, boolean clear) {
+        if (entries != null) {
+            if (clear) clear();
+            for (E e: entries)
+                put(e);
+        }
+    }
+
+    /**
+     * Removes the cache entry from the indexes that still map to it, leaving
+     * anything put by another thread in the meantime alone.
+     */
+    private void evict(ConcurrentCacheEntry<E> ce) {
+        mNameCache.asMap().remove(ce.entry.getName(), ce);
+        mIdCache.asMap().remove(ce.entry.getId(), ce);
+    }
+
+    private void refresh(ConcurrentCacheEntry<E> ce) {
+        try {
+            E fresh = mRefresher.refresh(ce.entry);
+            evict(ce);
+            if (fresh != null && mIdCache.getIfPresent(fresh.getId()) == null) {
+                put(fresh);
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.account.debug("unable to refresh cached entry %s", ce.entry.getName(), e);
+        }
+    }
+
+    private E get(String key, Cache<String, ConcurrentCacheEntry<E>> cache) {
+        final ConcurrentCacheEntry<E> ce = cache.getIfPresent(key);
+        if (ce == null) {
+            mHitRate.miss();
+            return null;
+        }
+        if (mRefreshTTL != 0) {
+            long now = System.currentTimeMillis();
+            if (ce.isStale(now)) {
+                boolean serveStale = mRefresher != null && !ce.isExpired(now, mStaleTTL) &&
+                        ce.scheduleRefresh(new Runnable() {
+                            @Override
+                            public void run() {
+                                refresh(ce);
+                            }
+                        });
+                if (!serveStale) {
+                    evict(ce);
+                    mHitRate.miss();
+                    return null;
+                }
+            }
+        }
+        mHitRate.hit();
+        return ce.entry;
+    }
+
+    @Override
+    public E getById(String key) {
+        return get(key, mIdCache);
+    }
+
+    @Override
+    public E getByName(String key) {
+        return get(key.toLowerCase(), mNameCache);
+    }
+
+    @Override
+    public int getSize() {
+        return (int) mIdCache.size();
+    }
+
+    /**
+     * Returns the cache hit rate as a value between 0 and 100.
+     */
+    @Override
+    public double getHitRate() {
+        return mHitRate.getAverage();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Reloads a stale cache entry from its backing store.  Used by the concurrent
+ * caches to revalidate entries in the background while the stale copy is served.
+ */
+public interface IEntryRefresher<E extends NamedEntry> {
+    /**
+     * Returns a freshly loaded copy of the entry, or <tt>null</tt> if it no longer exists.
+     */
+    public E refresh(E entry) throws ServiceException;
+}
@@ -35,10 +35,13 @@ import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.account.UCService;
 import com.zimbra.cs.account.XMPPComponent;
 import com.zimbra.cs.account.cache.AccountCache;
+import com.zimbra.cs.account.cache.ConcurrentAccountCache;
+import com.zimbra.cs.account.cache.ConcurrentNamedEntryCache;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
+import com.zimbra.cs.account.cache.IEntryRefresher;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
 import com.zimbra.cs.account.cache.INamedEntryCache;
 import com.zimbra.cs.account.cache.NamedEntryCache;
@@ -69,20 +72,9 @@ abstract class LdapCache {
      */
     static class LRUMapCache extends LdapCache {
 
-        private final IAccountCache accountCache =
-            new AccountCache(
-                    LC.ldap_cache_account_maxsize.intValue(),
-                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
-
-        private final INamedEntryCache<LdapCos> cosCache =
-            new NamedEntryCache<LdapCos>(
-                    LC.ldap_cache_cos_maxsize.intValue(),
-                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
-
-        private final INamedEntryCache<ShareLocator> shareLocatorCache =
-                new NamedEntryCache<ShareLocator>(
-                        LC.ldap_cache_share_locator_maxsize.intValue(),
-                        LC.ldap_cache_share_locator_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final IAccountCache accountCache;
+        private final INamedEntryCache<LdapCos> cosCache;
+        private final INamedEntryCache<ShareLocator> shareLocatorCache;
 
         private final IDomainCache domainCache =
             new DomainCache(
@@ -93,36 +85,89 @@ abstract class LdapCache {
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
-        private final INamedEntryCache<Server> serverCache =
-            new NamedEntryCache<Server>(
-                    LC.ldap_cache_server_maxsize.intValue(),
-                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<Server> serverCache;
+        private final INamedEntryCache<UCService> ucServiceCache;
+        private final INamedEntryCache<LdapZimlet> zimletCache;
+        private final INamedEntryCache<Group> groupCache;
+        private final INamedEntryCache<XMPPComponent> xmppComponentCache;
+        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache;
+
+        /**
+         * If <tt>ldap_cache_concurrent</tt> is set, uses the concurrent cache
+         * implementations, and when <tt>prov</tt> is not null, serves stale accounts,
+         * cos and servers for up to <tt>ldap_cache_stale_maxage</tt> minutes while
+         * they are reloaded from <tt>prov</tt> in the background.
+         */
+        LRUMapCache(final LdapProvisioning prov) {
+            boolean concurrent = LC.ldap_cache_concurrent.booleanValue();
+            long staleTTL = prov == null ? 0 : LC.ldap_cache_stale_maxage.intValue() * Constants.MILLIS_PER_MINUTE;
+
+            int maxSize = LC.ldap_cache_account_maxsize.intValue();
+            long maxAge = LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE;
+            if (concurrent) {
+                accountCache = new ConcurrentAccountCache(maxSize, maxAge, staleTTL, prov == null ? null :
+                    new IEntryRefresher<Account>() {
+                        @Override
+                        public Account refresh(Account entry) throws ServiceException {
+                            return prov.refreshCachedAccount(entry);
+                        }
+                    });
+            } else {
+                accountCache = new AccountCache(maxSize, maxAge);
+            }
 
-        private final INamedEntryCache<UCService> ucServiceCache =
-            new NamedEntryCache<UCService>(
+            cosCache = newNamedEntryCache(concurrent,
+                    LC.ldap_cache_cos_maxsize.intValue(),
+                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    staleTTL, prov == null ? null : new IEntryRefresher<LdapCos>() {
+                        @Override
+                        public LdapCos refresh(LdapCos entry) throws ServiceException {
+                            return prov.refreshCachedCos(entry);
+                        }
+                    });
+            serverCache = newNamedEntryCache(concurrent,
+                    LC.ldap_cache_server_maxsize.intValue(),
+                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    staleTTL, prov == null ? null : new IEntryRefresher<Server>() {
+                        @Override
+                        public Server refresh(Server entry) throws ServiceException {
+                            return prov.refreshCachedServer(entry);
+                        }
+                    });
+
+            shareLocatorCache = newNamedEntryCache(concurrent,
+                    LC.ldap_cache_share_locator_maxsize.intValue(),
+                    LC.ldap_cache_share_locator_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+            ucServiceCache = newNamedEntryCache(concurrent,
                     LC.ldap_cache_ucservice_maxsize.intValue(),
                     LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
-
-        private final INamedEntryCache<LdapZimlet> zimletCache =
-            new NamedEntryCache<LdapZimlet>(
+            zimletCache = newNamedEntryCache(concurrent,
                     LC.ldap_cache_zimlet_maxsize.intValue(),
                     LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
-
-
-        private final INamedEntryCache<Group> groupCache =
-            new NamedEntryCache<Group>(
+            groupCache = newNamedEntryCache(concurrent,
                     LC.ldap_cache_group_maxsize.intValue(),
                     LC.ldap_cache_group_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
-
-        private final INamedEntryCache<XMPPComponent> xmppComponentCache =
-            new NamedEntryCache<XMPPComponent>(
+            xmppComponentCache = newNamedEntryCache(concurrent,
                     LC.ldap_cache_xmppcomponent_maxsize.intValue(),
                     LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+            alwaysOnClusterCache = newNamedEntryCache(concurrent,
+                    LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
+                    LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        }
 
-        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
-                new NamedEntryCache<AlwaysOnCluster>(
-                        LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
-                        LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private static <E extends NamedEntry> INamedEntryCache<E> newNamedEntryCache(
+                boolean concurrent, int maxItems, long refreshTTL) {
+            return newNamedEntryCache(concurrent, maxItems, refreshTTL, 0, null);
+        }
+
+        private static <E extends NamedEntry> INamedEntryCache<E> newNamedEntryCache(
+                boolean concurrent, int maxItems, long refreshTTL, long staleTTL, IEntryRefresher<E> refresher) {
+            if (concurrent) {
+                return new ConcurrentNamedEntryCache<E>(maxItems, refreshTTL, staleTTL, refresher);
+            } else {
+                return new NamedEntryCache<E>(maxItems, refreshTTL);
+            }
+        }
 
         @Override
         IAccountCache accountCache() {
@@ -302,7 +302,7 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         }
 
         if (this.useCache) {
-            cache = new LdapCache.LRUMapCache();
+            cache = new LdapCache.LRUMapCache(this);
         } else {
             cache = new LdapCache.NoopCache();
         }
@@ -962,19 +962,33 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             return null;
         Account a = accountCache.getById(zimbraId);
         if (a == null) {
-            ZLdapFilter filter = filterFactory.accountById(zimbraId);
+            a = loadAccountById(zimbraId, zlc, loadFromMaster);
+            accountCache.put(a);
+        }
+        return a;
+    }
 
-            a = getAccountByQuery(mDIT.mailBranchBaseDN(), filter, zlc, loadFromMaster);
+    private Account loadAccountById(String zimbraId, ZLdapContext zlc, boolean loadFromMaster)
+    throws ServiceException {
+        ZLdapFilter filter = filterFactory.accountById(zimbraId);
 
-            // search again under the admin base if not found and admin base is not under mail base
-            if (a == null && !mDIT.isUnder(mDIT.mailBranchBaseDN(), mDIT.adminBaseDN()))
-                a = getAccountByQuery(mDIT.adminBaseDN(), filter, zlc, loadFromMaster);
+        Account a = getAccountByQuery(mDIT.mailBranchBaseDN(), filter, zlc, loadFromMaster);
+
+        // search again under the admin base if not found and admin base is not under mail base
+        if (a == null && !mDIT.isUnder(mDIT.mailBranchBaseDN(), mDIT.adminBaseDN()))
+            a = getAccountByQuery(mDIT.adminBaseDN(), filter, zlc, loadFromMaster);
 
-            accountCache.put(a);
-        }
         return a;
     }
 
+    /**
+     * Loads a fresh copy of a cached account, bypassing the cache.  Used to
+     * revalidate stale cache entries in the background.
+     */
+    Account refreshCachedAccount(Account acct) throws ServiceException {
+        return loadAccountById(acct.getId(), null, false);
+    }
+
     public String getDNforAccount(Account acct, ZLdapContext zlc, boolean loadFromMaster) {
         if (acct == null) {
             return null;
@@ -3214,6 +3228,13 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         return null;
     }
 
+    /**
+     * Loads a fresh copy of a cached cos, bypassing the cache.
+     */
+    LdapCos refreshCachedCos(LdapCos cos) throws ServiceException {
+        return getCOSByQuery(filterFactory.cosById(cos.getId()), null);
+    }
+
     private Cos getCosById(String zimbraId, ZLdapContext zlc) throws ServiceException {
         if (zimbraId == null)
             return null;
@@ -4103,6 +4124,13 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         return null;
     }
 
+    /**
+     * Loads a fresh copy of a cached server, bypassing the cache.
+     */
+    Server refreshCachedServer(Server server) throws ServiceException {
+        return getServerByQuery(filterFactory.serverById(server.getId()), null);
+    }
+
     private Server getServerById(String zimbraId, ZLdapContext zlc, boolean nocache)
     throws ServiceException {
         if (zimbraId == null)
@@ -181,6 +181,15 @@ public abstract class Db {
         // default is to do nothing
     }
 
+    /** Returns how many seconds the read replica behind the given connection
+     *  lags the primary, or <tt>-1</tt> if replication is stopped or the lag
+     *  cannot be determined. */
+    @SuppressWarnings("unused")
+    int getReplicaLagSeconds(DbConnection conn) throws SQLException {
+        // default is to treat the replica as current
+        return 0;
+    }
+
     /** Callback invoked immediately before a connection is returned to the
      *  pool by the user.  Note that <tt>COMMIT</tt>/<tt>ROLLBACK</tt> must
      *  already have been called before this method is invoked. */
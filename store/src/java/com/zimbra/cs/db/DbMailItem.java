@@ -1238,6 +1238,78 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Returns the items that the given hashes are open in, keyed by hash. Hashes that are not open are left out.
+     */
+    public static Map<String, Integer> getOpenConversationIds(Mailbox mbox, List<String> hashes)
+    throws ServiceException {
+        Map<String, Integer> result = Maps.newHashMapWithExpectedSize(hashes.size());
+        DbConnection conn = mbox.getOperationConnection();
+        for (int i = 0; i < hashes.size(); i += Db.getINClauseBatchSize()) {
+            List<String> batch = hashes.subList(i, Math.min(i + Db.getINClauseBatchSize(), hashes.size()));
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = conn.prepareStatement("SELECT hash, conv_id FROM " + getConversationTableName(mbox) +
+                        " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("hash", batch.size()));
+                int pos = 1;
+                pos = setMailboxId(stmt, mbox, pos);
+                for (String hash : batch) {
+                    stmt.setString(pos++, hash);
+                }
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    result.put(rs.getString(1), rs.getInt(2));
+                }
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("fetching open conversations for hashes " + hashes, e);
+            } finally {
+                DbPool.closeResults(rs);
+                DbPool.closeStatement(stmt);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hands every hash in the mailbox's <tt>open_conversation</tt> rows to {@code callback}, stopping after
+     * {@code limit} of them.
+     *
+     * @return {@code false} if the mailbox has more than {@code limit} open hashes
+     */
+    public static boolean visitOpenConversationHashes(Mailbox mbox, int limit, Callback<String> callback)
+    throws ServiceException {
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT hash FROM " + getConversationTableName(mbox) +
+                    (DebugConfig.disableMailboxGroups ? "" : " WHERE mailbox_id = ?");
+            if (Db.supports(Db.Capability.LIMIT_CLAUSE)) {
+                sql += " " + Db.getInstance().limit(limit + 1);
+            }
+            stmt = conn.prepareStatement(sql);
+            if (!Db.supports(Db.Capability.LIMIT_CLAUSE)) {
+                stmt.setMaxRows(limit + 1);
+            }
+            setMailboxId(stmt, mbox, 1);
+            rs = stmt.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                if (++count > limit) {
+                    return false;
+                }
+                callback.call(rs.getString(1));
+            }
+            return true;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("listing open conversation hashes for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     /**
      * Deletes rows from <tt>open_conversation</tt> whose items are older than
      * the given date.
@@ -2588,25 +2660,50 @@ public class DbMailItem {
 
     public static List<UnderlyingData> getById(Mailbox mbox, Collection<Integer> ids, MailItem.Type type)
     throws ServiceException {
+        final List<UnderlyingData> result = new ArrayList<UnderlyingData>(ids.size());
+        visitById(mbox, ids, type, false, new ItemVisitor() {
+            @Override
+            public void visit(UnderlyingData data) {
+                result.add(data);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Receives the rows loaded by {@link DbMailItem#visitById}.
+     */
+    public static interface ItemVisitor {
+        public void visit(UnderlyingData data) throws ServiceException;
+    }
+
+    /**
+     * Loads the items with the given ids in IN-list chunks of {@link Db#getINClauseBatchSize()} on the mailbox's
+     * operation connection, handing each row to {@code visitor} as it is read rather than collecting them. Ids that
+     * do not exist are skipped. Conversations are passed on once their chunk has been read, after the extra query
+     * that fills in their children.
+     *
+     * @throws ServiceException if an item is not of the requested type, or is a folder or tag
+     */
+    public static void visitById(Mailbox mbox, Collection<Integer> ids, MailItem.Type type, boolean fromDumpster,
+            ItemVisitor visitor) throws ServiceException {
         if (Mailbox.isCachedType(type)) {
             throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
         }
-
-        List<UnderlyingData> result = new ArrayList<UnderlyingData>();
         if (ids.isEmpty()) {
-            return result;
+            return;
         }
-        List<UnderlyingData> conversations = new ArrayList<UnderlyingData>();
 
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
-        ResultSet rs = null;
+        List<UnderlyingData> conversations = new ArrayList<UnderlyingData>();
         Iterator<Integer> it = ids.iterator();
         for (int i = 0; i < ids.size(); i += Db.getINClauseBatchSize()) {
+            int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
             try {
-                int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
                 stmt = conn.prepareStatement("SELECT " + DB_FIELDS +
-                            " FROM " + getMailItemTableName(mbox, "mi") +
+                            " FROM " + getMailItemTableName(mbox, "mi", fromDumpster) +
                             " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
                 int pos = 1;
                 pos = setMailboxId(stmt, mbox, pos);
@@ -2616,17 +2713,20 @@ public class DbMailItem {
 
                 rs = stmt.executeQuery();
                 while (rs.next()) {
-                    UnderlyingData data = constructItem(rs);
+                    UnderlyingData data = constructItem(rs, fromDumpster);
                     MailItem.Type resultType = MailItem.Type.of(data.type);
                     if (!MailItem.isAcceptableType(type, resultType)) {
                         throw MailItem.noSuchItem(data.id, type);
+                    }
+                    if (fromDumpster) {
+                        visitor.visit(data);
                     } else if (Mailbox.isCachedType(resultType)) {
                         throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
-                    }
-                    if (resultType == MailItem.Type.CONVERSATION) {
+                    } else if (resultType == MailItem.Type.CONVERSATION) {
                         conversations.add(data);
+                    } else {
+                        visitor.visit(data);
                     }
-                    result.add(data);
                 }
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("fetching " + ids.size() + " items: " + getIdListForLogging(ids), e);
@@ -2634,12 +2734,15 @@ public class DbMailItem {
                 DbPool.closeResults(rs);
                 DbPool.closeStatement(stmt);
             }
-        }
 
-        if (!conversations.isEmpty()) {
-            completeConversations(mbox, conn, conversations);
+            if (!conversations.isEmpty()) {
+                completeConversations(mbox, conn, conversations);
+                for (UnderlyingData data : conversations) {
+                    visitor.visit(data);
+                }
+                conversations.clear();
+            }
         }
-        return result;
     }
 
     public static UnderlyingData getByName(Mailbox mbox, int folderId, String name, MailItem.Type type)
@@ -3514,7 +3617,46 @@ public class DbMailItem {
         MailItem.Type.CONTACT.toByte() + ")";
 
     public static List<ImapMessage> loadImapFolder(Folder folder) throws ServiceException {
-        return loadImapFolder(folder, null, null).getFirst();
+        int capacity = (int) Math.min(folder.getItemCount(), Integer.MAX_VALUE);
+        final List<ImapMessage> result = new ArrayList<ImapMessage>(capacity);
+        visitImapFolder(folder, new Callback<ImapMessage>() {
+            @Override
+            public void call(ImapMessage value) {
+                result.add(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Hands the IMAP data of every message in {@code folder} to {@code callback} as it is read. Large folders are
+     * read with a streaming {@code ResultSet}, so {@code callback} must not use the mailbox's connection.
+     */
+    public static void visitImapFolder(Folder folder, Callback<ImapMessage> callback) throws ServiceException {
+        Mailbox mbox = folder.getMailbox();
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT " + IMAP_FIELDS +
+                    " FROM " + getMailItemTableName(mbox, " mi") +
+                    " WHERE " + IN_THIS_MAILBOX_AND + "folder_id = ? AND type IN " + IMAP_TYPES);
+            if (folder.getSize() > RESULTS_STREAMING_MIN_ROWS) {
+                Db.getInstance().enableStreaming(stmt);
+            }
+            int pos = 1;
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, folder.getId());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                callback.call(toImapMessage(rs));
+            }
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("loading IMAP folder data: " + folder.getPath(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
     }
 
     public static Pair<List<ImapMessage>, Boolean> loadImapFolder(Folder folder, Integer limit, Integer cursorId) throws ServiceException {
@@ -3584,8 +3726,12 @@ public class DbMailItem {
     }
 
     private static void addImapResult(List<ImapMessage> result, ResultSet rs) throws SQLException {
+        result.add(toImapMessage(rs));
+    }
+
+    private static ImapMessage toImapMessage(ResultSet rs) throws SQLException {
         int flags = rs.getBoolean(4) ? Flag.BITMASK_UNREAD | rs.getInt(5) : rs.getInt(5);
-        result.add(new ImapMessage(rs.getInt(1), MailItem.Type.of(rs.getByte(2)), rs.getInt(3), flags, DbTag.deserializeTags(rs.getString(6))));
+        return new ImapMessage(rs.getInt(1), MailItem.Type.of(rs.getByte(2)), rs.getInt(3), flags, DbTag.deserializeTags(rs.getString(6)));
     }
 
     public static int countImapRecent(Folder folder, int uidCutoff) throws ServiceException {
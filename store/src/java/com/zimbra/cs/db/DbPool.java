@@ -24,10 +24,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
 import com.zimbra.common.localconfig.LC;
@@ -38,6 +42,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
 
 /**
  * @since Apr 7, 2004
@@ -50,6 +55,11 @@ public class DbPool {
     private static GenericObjectPool sConnectionPool;
     private static boolean sIsInitialized;
 
+    private static PoolingDataSource sReplicaDataSource;
+    private static GenericObjectPool sReplicaPool;
+    private static final AtomicLong sReplicaNextLagCheck = new AtomicLong();
+    private static volatile long sReplicaSuspendedUntil;
+
     private static boolean isShutdown;
     private static boolean isUsageWarningEnabled = true;
 
@@ -58,6 +68,7 @@ public class DbPool {
     public static class DbConnection {
         private final Connection connection;
         private Throwable mStackTrace;
+        private boolean replica;
         Integer mboxId;
 
         DbConnection(Connection conn) {
@@ -73,6 +84,11 @@ public class DbPool {
             return connection;
         }
 
+        /** Returns <tt>true</tt> if this connection reads from the read replica rather than the primary. */
+        public boolean isReplica() {
+            return replica;
+        }
+
         public void setTransactionIsolation(int level) throws ServiceException {
             try {
                 connection.setTransactionIsolation(level);
@@ -112,7 +128,9 @@ public class DbPool {
         }
 
         public PreparedStatement prepareStatement(String sql) throws SQLException {
-            return new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            ZimbraPerf.COUNTER_DB_STMT_CACHE.increment(DebugPreparedStatement.checkOut(stmt) ? 100 : 0);
+            return new StatTrackingPreparedStatement(stmt, sql);
         }
 
         public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
@@ -212,6 +230,7 @@ public class DbPool {
         boolean mSupportsStatsCallback;
         Properties mDatabaseProperties;
         byte whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+        int mStatementCacheSize = LC.zimbra_db_statement_cache_size.intValue();
     }
 
     /**
@@ -282,8 +301,17 @@ public class DbPool {
         sConnectionPool = new GenericObjectPool(null, pconfig.mPoolSize, pconfig.whenExhaustedAction, -1, pconfig.mPoolSize);
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
+        // Each pooled connection keeps up to mStatementCacheSize prepared statements keyed by SQL text,
+        // evicting the least recently returned ones once full.
+        KeyedObjectPoolFactory stmtPoolFactory = null;
+        if (pconfig.mStatementCacheSize > 0) {
+            stmtPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, 0,
+                    1, pconfig.mStatementCacheSize);
+        }
+        DebugConnection.setStatementPooling(stmtPoolFactory != null);
+
         boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        new PoolableConnectionFactory(cfac, sConnectionPool, stmtPoolFactory, null, defReadOnly, defAutoCommit);
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -323,6 +351,10 @@ public class DbPool {
     }
 
     public static DbConnection getConnection(Mailbox mbox) throws ServiceException {
+        return getConnection(mbox, false);
+    }
+
+    private static DbConnection getConnection(Mailbox mbox, boolean replica) throws ServiceException {
         if (!isInitialized()) {
             throw ServiceException.FAILURE("Database connection pool not initialized.", null);
         }
@@ -331,9 +363,14 @@ public class DbPool {
             Db.getInstance().preOpen(mboxId);
             long start = ZimbraPerf.STOPWATCH_DB_CONN.start();
 
-            // If the connection pool is overutilized, warn about potential leaks
-            PoolingDataSource pool = getPool();
-            checkPoolUsage();
+            PoolingDataSource pool;
+            if (replica) {
+                pool = getReplicaPool();
+            } else {
+                // If the connection pool is overutilized, warn about potential leaks
+                pool = getPool();
+                checkPoolUsage();
+            }
 
             Connection dbconn = null;
             DbConnection conn = null;
@@ -349,6 +386,7 @@ public class DbPool {
                     dbconn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
                 conn = new DbConnection(dbconn, mboxId);
+                conn.replica = replica;
                 Db.getInstance().postOpen(conn);
             } catch (SQLException e) {
                 try {
@@ -382,6 +420,141 @@ public class DbPool {
         }
     }
 
+    /**
+     * Returns a connection for a read-only query against <tt>mbox</tt> that
+     * can tolerate data a few seconds old.  The connection comes from the
+     * read replica pool when one is configured via
+     * <tt>zimbra_db_replica_url</tt>, the replica is keeping up with the
+     * primary, and the mailbox has not committed a write within the last
+     * {@link #getReplicaWriteWindow()} milliseconds; otherwise it is an
+     * ordinary connection to the primary.  Callers must not write through
+     * the returned connection.
+     */
+    public static DbConnection getReadConnection(Mailbox mbox) throws ServiceException {
+        if (!isReplicaUsable(mbox)) {
+            ZimbraPerf.COUNTER_DB_REPLICA_READ.increment(0);
+            return getConnection(mbox);
+        }
+        DbConnection conn = null;
+        try {
+            conn = getConnection(mbox, true);
+            if (checkReplicaLag(conn)) {
+                ZimbraPerf.COUNTER_DB_REPLICA_READ.increment(100);
+                return conn;
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.dbconn.warn("unable to read from database replica; falling back to the primary", e);
+            suspendReplica();
+        }
+        quietClose(conn);
+        ZimbraPerf.COUNTER_DB_REPLICA_READ.increment(0);
+        return getConnection(mbox);
+    }
+
+    private static boolean isReplicaUsable(Mailbox mbox) {
+        if (mbox == null || LC.zimbra_db_replica_url.value().isEmpty() || Zimbra.isAlwaysOn()) {
+            // another server may be writing this mailbox, so its last write time is unknown here
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now < sReplicaSuspendedUntil || now - mbox.getLastDbWriteTime() < getReplicaWriteWindow()) {
+            return false;
+        }
+        // leave the overflow to the primary rather than waiting on a busy replica pool
+        GenericObjectPool pool = sReplicaPool;
+        return pool == null || pool.getNumActive() < pool.getMaxActive();
+    }
+
+    /**
+     * Returns how long (ms) after committing a write a mailbox keeps reading
+     * from the primary.  A mailbox idle for this long has no writes that the
+     * replica could still be missing: the last lag check saw at most
+     * <tt>zimbra_db_replica_max_lag</tt> seconds of lag no more than one
+     * check interval ago, and the window covers both plus a second for the
+     * whole-second granularity of the lag figure.
+     */
+    static long getReplicaWriteWindow() {
+        long minimum = LC.zimbra_db_replica_max_lag.longValue() * 1000 +
+                LC.zimbra_db_replica_lag_check_interval.longValue() + 1000;
+        return Math.max(LC.zimbra_db_replica_write_window.longValue(), minimum);
+    }
+
+    /**
+     * Measures replication lag on <tt>conn</tt> if the last measurement is
+     * older than <tt>zimbra_db_replica_lag_check_interval</tt>.  A replica
+     * that is stopped or too far behind is taken out of rotation until the
+     * next check is due.
+     */
+    private static boolean checkReplicaLag(DbConnection conn) throws ServiceException {
+        long now = System.currentTimeMillis();
+        long due = sReplicaNextLagCheck.get();
+        long interval = LC.zimbra_db_replica_lag_check_interval.longValue();
+        if (now < due || !sReplicaNextLagCheck.compareAndSet(due, now + interval)) {
+            return true;
+        }
+        int lag;
+        try {
+            lag = Db.getInstance().getReplicaLagSeconds(conn);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("checking database replica lag", e);
+        }
+        int maxLag = LC.zimbra_db_replica_max_lag.intValue();
+        if (lag < 0 || lag > maxLag) {
+            ZimbraLog.dbconn.warn("database replica is %s; reading from the primary for the next %d ms",
+                    lag < 0 ? "not replicating" : lag + "s behind (max " + maxLag + "s)", interval);
+            suspendReplica();
+            return false;
+        }
+        return true;
+    }
+
+    private static void suspendReplica() {
+        long interval = LC.zimbra_db_replica_lag_check_interval.longValue();
+        sReplicaSuspendedUntil = System.currentTimeMillis() + interval;
+        // re-measure the lag on the first read after the suspension ends
+        sReplicaNextLagCheck.set(0);
+    }
+
+    /** Initializes the read replica connection pool. */
+    private static synchronized PoolingDataSource getReplicaPool() {
+        if (sReplicaDataSource != null)
+            return sReplicaDataSource;
+
+        getPool(); // loads the driver classes
+        PoolConfig pconfig = Db.getInstance().getPoolConfig();
+        int size = LC.zimbra_db_replica_pool_size.intValue();
+        sReplicaPool = new GenericObjectPool(null, size, GenericObjectPool.WHEN_EXHAUSTED_FAIL, -1, size);
+        ConnectionFactory cfac = new ZimbraConnectionFactory(LC.zimbra_db_replica_url.value(),
+                pconfig.mDatabaseProperties);
+
+        KeyedObjectPoolFactory stmtPoolFactory = null;
+        if (pconfig.mStatementCacheSize > 0) {
+            stmtPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, 0,
+                    1, pconfig.mStatementCacheSize);
+        }
+        DebugConnection.setStatementPooling(stmtPoolFactory != null);
+
+        boolean defAutoCommit = false, defReadOnly = true;
+        new PoolableConnectionFactory(cfac, sReplicaPool, stmtPoolFactory, null, defReadOnly, defAutoCommit);
+
+        PoolingDataSource pds = new PoolingDataSource(sReplicaPool);
+        pds.setAccessToUnderlyingConnectionAllowed(true);
+        sReplicaDataSource = pds;
+        ZimbraLog.dbconn.info("database replica pool of size %d started for %s", size, LC.zimbra_db_replica_url.value());
+        return sReplicaDataSource;
+    }
+
+    /** Closes the read replica pool; the next replica read starts a new one. */
+    static synchronized void closeReplicaPool() throws Exception {
+        if (sReplicaPool != null) {
+            sReplicaPool.close();
+            sReplicaPool = null;
+        }
+        sReplicaDataSource = null;
+        sReplicaSuspendedUntil = 0;
+        sReplicaNextLagCheck.set(0);
+    }
+
     private static void checkPoolUsage() {
         int numActive = sConnectionPool.getNumActive();
         int maxActive = sConnectionPool.getMaxActive();
@@ -539,6 +712,7 @@ public class DbPool {
             sConnectionPool = null;
         }
         sPoolingDataSource = null;
+        closeReplicaPool();
         Db.getInstance().shutdown();
     }
 
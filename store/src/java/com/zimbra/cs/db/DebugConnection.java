@@ -24,6 +24,8 @@ import com.zimbra.common.util.ZimbraLog;
 import org.apache.commons.dbcp.DelegatingConnection;
 
 class DebugConnection extends DelegatingConnection {
+    private static volatile boolean sStatementPooling = false;
+
     protected final Connection mConn;
 
     DebugConnection(Connection conn) {
@@ -34,9 +36,28 @@ class DebugConnection extends DelegatingConnection {
     Connection getConnection() {
         return mConn;
     }
+
+    /**
+     * Tells connections whether the pool caches prepared statements.
+     */
+    static void setStatementPooling(boolean enabled) {
+        sStatementPooling = enabled;
+    }
+
+    /**
+     * When the pool caches prepared statements, they are closed, or kept in the statement cache, by
+     * the pool wrappers above this connection, so they must not be closed when the pool passivates
+     * it.  Without the cache, statements stay traced so that any left open are closed as before.
+     */
+    PreparedStatement untraced(DebugPreparedStatement stmt) {
+        if (sStatementPooling) {
+            removeTrace(stmt);
+        }
+        return stmt;
+    }
     
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return new DebugPreparedStatement(this, mConn.prepareStatement(sql), sql);
+        return untraced(new DebugPreparedStatement(this, mConn.prepareStatement(sql), sql));
     }
 
     public void commit() throws SQLException {
@@ -52,34 +73,34 @@ class DebugConnection extends DelegatingConnection {
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency)
     throws SQLException {
-        return new DebugPreparedStatement(
-            this, mConn.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+        return untraced(new DebugPreparedStatement(
+            this, mConn.prepareStatement(sql, resultSetType, resultSetConcurrency), sql));
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency,
                                               int resultSetHoldability)
     throws SQLException {
-        return new DebugPreparedStatement(
+        return untraced(new DebugPreparedStatement(
            this, mConn.prepareStatement(sql, resultSetType,
-                    resultSetConcurrency, resultSetHoldability), sql);
+                    resultSetConcurrency, resultSetHoldability), sql));
     }
 
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
     throws SQLException {
-        return new DebugPreparedStatement(
-            this, mConn.prepareStatement(sql, autoGeneratedKeys), sql);
+        return untraced(new DebugPreparedStatement(
+            this, mConn.prepareStatement(sql, autoGeneratedKeys), sql));
     }
 
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
     throws SQLException {
-        return new DebugPreparedStatement(
-            this, mConn.prepareStatement(sql, columnIndexes), sql);
+        return untraced(new DebugPreparedStatement(
+            this, mConn.prepareStatement(sql, columnIndexes), sql));
     }
 
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
         throws SQLException {
-        return new DebugPreparedStatement(
-            this, mConn.prepareStatement(sql, columnNames), sql);
+        return untraced(new DebugPreparedStatement(
+            this, mConn.prepareStatement(sql, columnNames), sql));
     }
 }
@@ -28,6 +28,7 @@ import java.sql.PreparedStatement;
 import java.sql.Ref;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
@@ -38,6 +39,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.util.Zimbra;
 
 import org.apache.commons.dbcp.DelegatingPreparedStatement;
+import org.apache.commons.dbcp.DelegatingStatement;
 import org.apache.commons.dbcp.DelegatingConnection;
 
 class DebugPreparedStatement extends DelegatingPreparedStatement {
@@ -48,6 +50,7 @@ class DebugPreparedStatement extends DelegatingPreparedStatement {
     private final PreparedStatement mStmt;
     private String mSql;
     private long mStartTime;
+    private boolean mCheckedOut;
 
     /**
      * A list that implicitly resizes when {@link #set} is called.
@@ -72,6 +75,23 @@ class DebugPreparedStatement extends DelegatingPreparedStatement {
         mSql = sql;
     }
 
+    /**
+     * Marks the statement under the given pool wrappers as handed out, and returns whether it
+     * had been handed out before, i.e. whether it came from the connection's statement cache.
+     */
+    static boolean checkOut(Statement stmt) {
+        while (stmt instanceof DelegatingStatement && !(stmt instanceof DebugPreparedStatement)) {
+            stmt = ((DelegatingStatement) stmt).getDelegate();
+        }
+        if (!(stmt instanceof DebugPreparedStatement)) {
+            return false;
+        }
+        DebugPreparedStatement debugStmt = (DebugPreparedStatement) stmt;
+        boolean reused = debugStmt.mCheckedOut;
+        debugStmt.mCheckedOut = true;
+        return reused;
+    }
+
     public static void setSlowSqlThreshold(long millis) {
         ZimbraLog.sqltrace.info("Setting slow SQL threshold to %dms.", millis);
         sSlowSqlThreshold = millis;
@@ -212,6 +212,24 @@ public class MySQL extends Db {
         }
     }
 
+    @Override
+    int getReplicaLagSeconds(DbConnection conn) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SHOW SLAVE STATUS");
+            rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return -1;  // not replicating from anywhere
+            }
+            int lag = rs.getInt("Seconds_Behind_Master");
+            return rs.wasNull() ? -1 : lag;  // NULL while the SQL or I/O thread is stopped
+        } finally {
+            conn.closeQuietly(rs);
+            conn.closeQuietly(stmt);
+        }
+    }
+
     @Override
     public String toString() {
         return "MySQL";
@@ -37,7 +37,7 @@ public class RetryConnection extends DebugConnection {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
                 return new ExecuteResult<PreparedStatement>(
-                        new RetryPreparedStatement(conn, mConn.prepareStatement(sql), sql));
+                        conn.untraced(new RetryPreparedStatement(conn, mConn.prepareStatement(sql), sql)));
             }
         };
         return exec.doRetry().getResult();
@@ -53,8 +53,8 @@ public class RetryConnection extends DebugConnection {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
                 return new ExecuteResult<PreparedStatement>(
-                        new RetryPreparedStatement(conn, mConn.prepareStatement(
-                                sql, resultSetType, resultSetConcurrency), sql));
+                        conn.untraced(new RetryPreparedStatement(conn, mConn.prepareStatement(
+                                sql, resultSetType, resultSetConcurrency), sql)));
             }
         };
         return exec.doRetry().getResult();
@@ -69,9 +69,9 @@ public class RetryConnection extends DebugConnection {
         AbstractRetry<PreparedStatement> exec = new AbstractRetry<PreparedStatement>() {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
-                return new ExecuteResult<PreparedStatement>(new RetryPreparedStatement(
+                return new ExecuteResult<PreparedStatement>(conn.untraced(new RetryPreparedStatement(
                         conn, mConn.prepareStatement(sql, resultSetType,
-                                resultSetConcurrency, resultSetHoldability), sql));
+                                resultSetConcurrency, resultSetHoldability), sql)));
             }
         };
         return exec.doRetry().getResult();
@@ -84,8 +84,8 @@ public class RetryConnection extends DebugConnection {
         AbstractRetry<PreparedStatement> exec = new AbstractRetry<PreparedStatement>() {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
-                return new ExecuteResult<PreparedStatement>(new RetryPreparedStatement(
-                        conn, mConn.prepareStatement(sql, autoGeneratedKeys), sql));
+                return new ExecuteResult<PreparedStatement>(conn.untraced(new RetryPreparedStatement(
+                        conn, mConn.prepareStatement(sql, autoGeneratedKeys), sql)));
             }
         };
         return exec.doRetry().getResult();
@@ -98,8 +98,8 @@ public class RetryConnection extends DebugConnection {
         AbstractRetry<PreparedStatement> exec = new AbstractRetry<PreparedStatement>() {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
-                return new ExecuteResult<PreparedStatement>(new RetryPreparedStatement(
-                        conn, mConn.prepareStatement(sql, columnIndexes), sql));
+                return new ExecuteResult<PreparedStatement>(conn.untraced(new RetryPreparedStatement(
+                        conn, mConn.prepareStatement(sql, columnIndexes), sql)));
             }
         };
         return exec.doRetry().getResult();
@@ -112,8 +112,8 @@ public class RetryConnection extends DebugConnection {
         AbstractRetry<PreparedStatement> exec = new AbstractRetry<PreparedStatement>() {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
-                return new ExecuteResult<PreparedStatement>(new RetryPreparedStatement(
-                        conn, mConn.prepareStatement(sql, columnNames), sql));
+                return new ExecuteResult<PreparedStatement>(conn.untraced(new RetryPreparedStatement(
+                        conn, mConn.prepareStatement(sql, columnNames), sql)));
             }
         };
         return exec.doRetry().getResult();
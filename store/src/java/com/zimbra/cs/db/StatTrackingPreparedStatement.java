@@ -40,6 +40,7 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 
 import com.zimbra.cs.stats.ActivityTracker;
+import com.zimbra.cs.stats.SqlTemplateTracker;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
@@ -49,6 +50,8 @@ import com.zimbra.cs.stats.ZimbraPerf;
  * since the actual SQL query can't reliably be retrieved from the PreparedStatement.
  * Calls to trackQueryStats happen in all "execute" methods that take no arguments;
  * all other calls simply delegate to the wrapped PreparedStatement instance.
+ * The same executions are also timed per SQL template in {@link ZimbraPerf#SQL_TEMPLATE_TRACKER},
+ * along with the rows they returned or updated.
  *
  * Added for bug #56968
  * @author iraykin
@@ -56,6 +59,9 @@ import com.zimbra.cs.stats.ZimbraPerf;
 public class StatTrackingPreparedStatement implements PreparedStatement {
     private final PreparedStatement stmt;
     private String queryString;
+    private SqlTemplateTracker.Template template;
+    private StatTrackingResultSet lastResults;
+    private boolean modified;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
 
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
@@ -81,6 +87,11 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
      */
     public void setQueryString(String sql) {
         this.queryString = sql;
+        this.template = getTemplate(sql);
+    }
+
+    private static SqlTemplateTracker.Template getTemplate(String sql) {
+        return sql == null ? null : ZimbraPerf.SQL_TEMPLATE_TRACKER.getTemplate(sql);
     }
 
     /* Not sure if the query types should be mutually exclusive like this.
@@ -110,25 +121,59 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
             tracker.addStat(getQueryType(sql), startTime);
         }
     }
+
+    private void trackTemplateStats(SqlTemplateTracker.Template t, long startNanos, long rows) {
+        if (t != null) {
+            t.record(startNanos, rows);
+        }
+    }
+
+    private ResultSet trackResults(ResultSet rs, SqlTemplateTracker.Template t, long startNanos) {
+        if (t == null) {
+            return rs;
+        }
+        t.record(startNanos, 0);
+        if (lastResults != null) {
+            lastResults.flush();
+        }
+        lastResults = rs == null ? null : new StatTrackingResultSet(rs, this, t);
+        return lastResults;
+    }
     @Override
     public ResultSet executeQuery(String sql) throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         ResultSet results = stmt.executeQuery(sql);
         trackQueryStats(sql, startTime);
-        return results;
+        return trackResults(results, getTemplate(sql), startNanos);
     }
 
     @Override
     public int executeUpdate(String sql) throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         int results = stmt.executeUpdate(sql);
         trackQueryStats(sql, startTime);
+        trackTemplateStats(getTemplate(sql), startNanos, results);
         return results;
     }
 
     @Override
     public void close() throws SQLException {
-        stmt.close();
+        if (lastResults != null) {
+            lastResults.flush();
+            lastResults = null;
+        }
+        try {
+            if (modified) {
+                // the statement may go back to the connection's statement cache, so restore the defaults
+                stmt.setMaxRows(0);
+                stmt.setFetchSize(0);
+                stmt.setQueryTimeout(0);
+            }
+        } finally {
+            stmt.close();
+        }
     }
 
     @Override
@@ -148,6 +193,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setMaxRows(int max) throws SQLException {
+        modified = true;
         stmt.setMaxRows(max);
     }
 
@@ -163,6 +209,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setQueryTimeout(int seconds) throws SQLException {
+        modified = true;
         stmt.setQueryTimeout(seconds);
     }
 
@@ -191,8 +238,10 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     @Override
     public boolean execute(String sql) throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         boolean results = stmt.execute(sql);
         trackQueryStats(sql, startTime);
+        trackTemplateStats(getTemplate(sql), startNanos, 0);
         return results;
     }
 
@@ -223,6 +272,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setFetchSize(int rows) throws SQLException {
+        modified = true;
         stmt.setFetchSize(rows);
     }
 
@@ -253,7 +303,16 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int[] executeBatch() throws SQLException {
-        return stmt.executeBatch();
+        long startNanos = System.nanoTime();
+        int[] results = stmt.executeBatch();
+        if (template != null) {
+            long rows = 0;
+            for (int count : results) {
+                rows += Math.max(count, 0);
+            }
+            template.record(startNanos, rows);
+        }
+        return results;
     }
 
     @Override
@@ -349,16 +408,19 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     @Override
     public ResultSet executeQuery() throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         ResultSet results = stmt.executeQuery();
         trackQueryStats(queryString, startTime);
-        return results;
+        return trackResults(results, template, startNanos);
     }
 
     @Override
     public int executeUpdate() throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         int results = stmt.executeUpdate();
         trackQueryStats(queryString, startTime);
+        trackTemplateStats(template, startNanos, results);
         return results;
     }
 
@@ -472,8 +534,10 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     @Override
     public boolean execute() throws SQLException {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         boolean results = stmt.execute();
         trackQueryStats(queryString, startTime);
+        trackTemplateStats(template, startNanos, 0);
         return results;
     }
 
@@ -106,7 +106,7 @@ public class FreeBusy implements Iterable<FreeBusy.Interval> {
         return new IntervalIterator(mList);
     }
     
-    protected static class IntervalList implements Iterable<Interval> {
+    public static class IntervalList implements Iterable<Interval> {
         
         public Iterator<Interval> iterator() {
         	return new IntervalIterator(this);
@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.jsieve.parser.generated.Node;
+import org.apache.jsieve.parser.generated.ParseException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * A parsed Sieve script together with the line each of its rules starts on.  Instances are immutable
+ * and shared by every account whose script has the same SHA-256 hash, so a domain or COS admin script
+ * is parsed once per server rather than once per account.
+ */
+public final class CompiledRules {
+
+    private static final Pattern PAT_RULE_NAME = Pattern.compile("# (.+)");
+
+    private static final Cache<String, CompiledRules> SHARED = CacheBuilder.newBuilder()
+            .maximumSize(LC.filter_script_cache_size.intValue())
+            .build();
+
+    private final String hash;
+    private final Node node;
+    private final TreeMap<Integer, String> ruleNames;  // first line of rule -> rule name
+
+    private CompiledRules(String hash, String script, Node node) {
+        this.hash = hash;
+        this.node = node;
+        this.ruleNames = new TreeMap<Integer, String>();
+        BufferedReader reader = new BufferedReader(new StringReader(script));
+        try {
+            String line;
+            for (int lineNum = 1; (line = reader.readLine()) != null; lineNum++) {
+                Matcher matcher = PAT_RULE_NAME.matcher(line);
+                if (matcher.matches()) {
+                    ruleNames.put(lineNum, matcher.group(1));
+                }
+            }
+        } catch (IOException e) {
+            ZimbraLog.filter.warn("Unable to determine filter rule names.", e);
+        }
+    }
+
+    /**
+     * Returns the compiled form of the script, parsing it only if no account on this server has
+     * used the same script since it was last evicted.
+     */
+    public static CompiledRules compile(String script) throws ParseException {
+        String hash = ByteUtil.getSHA256Digest(script.getBytes(StandardCharsets.UTF_8), false);
+        CompiledRules rules = SHARED.getIfPresent(hash);
+        if (rules != null) {
+            ZimbraPerf.COUNTER_FILTER_SCRIPT_CACHE_HIT.increment(1);
+            return rules;
+        }
+        ZimbraPerf.COUNTER_FILTER_SCRIPT_CACHE_HIT.increment(0);
+        rules = new CompiledRules(hash, script, RuleManager.parse(script));
+        // keep whichever copy won a concurrent race so that all accounts share one tree
+        CompiledRules existing = SHARED.asMap().putIfAbsent(hash, rules);
+        return existing != null ? existing : rules;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the name of the rule containing the given script line: the nearest preceding
+     * <tt>"# name"</tt> comment, or <tt>"line N"</tt> if the script has none.
+     */
+    public String getRuleName(int line) {
+        Map.Entry<Integer, String> entry = ruleNames.floorEntry(line);
+        return entry != null ? entry.getValue() : "line " + line;
+    }
+}
@@ -64,7 +64,7 @@ import java.util.regex.Pattern;
  */
 public final class RuleManager {
     /**
-     * Keys used to save the parsed version of a Sieve script in an <tt>Account</tt>'s
+     * Keys used to save the {@link CompiledRules} of a Sieve script in an <tt>Account</tt>'s
      * cached data.  The cache is invalidated whenever an <tt>Account</tt> attribute
      * is modified, so the script and parsed rules won't get out of sync.
      */
@@ -144,14 +144,14 @@ public final class RuleManager {
             script = "";
         }
         try {
-            Node node = parse(script);
+            CompiledRules rules = CompiledRules.compile(script);
             // evaluate against dummy mail adapter to catch more errors
-            SIEVE_FACTORY.evaluate(new DummyMailAdapter(), node);
+            SIEVE_FACTORY.evaluate(new DummyMailAdapter(), rules.getNode());
             // save
             Map<String, Object> attrs = new HashMap<String, Object>();
             attrs.put(sieveScriptAttrName, script);
             Provisioning.getInstance().modifyAttrs(entry, attrs);
-            entry.setCachedData(rulesCacheKey, node);
+            entry.setCachedData(rulesCacheKey, rules);
         } catch (ParseException e) {
             ZimbraLog.filter.error("Unable to parse script:\n" + script);
             throw ServiceException.PARSE_ERROR("parsing Sieve script", e);
@@ -210,11 +210,22 @@ public final class RuleManager {
      */
     public static Node getRulesNode(Account account, String rulesCacheKey)
         throws ParseException, ServiceException {
+        return getCompiledRules(account, rulesCacheKey).getNode();
+    }
+
+    /**
+     * Returns the compiled filter rules for the given account, caching them on the <tt>Account</tt>.
+     * Accounts with the same script, such as an inherited admin script, share one compiled copy.
+     *
+     * @see CompiledRules#compile(String)
+     */
+    private static CompiledRules getCompiledRules(Account account, String rulesCacheKey)
+        throws ParseException, ServiceException {
 
         String sieveScriptAttrName = getScriptAttributeName(rulesCacheKey);
 
-        Node node = (Node) account.getCachedData(rulesCacheKey);
-        if (null == node) {
+        CompiledRules rules = (CompiledRules) account.getCachedData(rulesCacheKey);
+        if (null == rules) {
             String script = getRules(account, sieveScriptAttrName);
 
             if (null == script) {
@@ -223,10 +234,10 @@ public final class RuleManager {
 
             ZimbraLog.filter.debug("attrName[%s] rule[%s]", sieveScriptAttrName, script);
 
-            node = parse(script);
-            account.setCachedData(rulesCacheKey, node);
+            rules = CompiledRules.compile(script);
+            account.setCachedData(rulesCacheKey, rules);
         }
-        return node;
+        return rules;
     }
 
     /**
@@ -410,9 +421,9 @@ public final class RuleManager {
             Account account = mailbox.getAccount();
             for (String filter : filters) {
                 // Determine whether to apply rules
-                Node node = getRulesNode(account, filter);
+                CompiledRules rules = getCompiledRules(account, filter);
 
-                if (null == node) {
+                if (null == rules) {
                     applyRules = false;
                 }
                 if (SpamHandler.isSpam(handler.getMimeMessage()) &&
@@ -425,7 +436,7 @@ public final class RuleManager {
                     if (filter.equals(FILTER_RULES_CACHE_KEY)) {
                         mailAdapter.setUserScriptExecuting(true);
                     }
-                    boolean proceed = evaluateScript(mailAdapter, node);
+                    boolean proceed = evaluateScript(mailAdapter, rules);
                     if (!proceed) {
                         continue;
                     }
@@ -477,12 +488,12 @@ public final class RuleManager {
         try {
             Account account = mailbox.getAccount();
             for (String filter : filters) {
-                Node node = getRulesNode(account, filter);
-                if (null != node) {
+                CompiledRules rules = getCompiledRules(account, filter);
+                if (null != rules) {
                     if (filter.equals(OUTGOING_FILTER_RULES_CACHE_KEY)) {
                         mailAdapter.setUserScriptExecuting(true);
                     }
-                    boolean proceed = evaluateScript(mailAdapter, node);
+                    boolean proceed = evaluateScript(mailAdapter, rules);
                     if (!proceed) {
                         continue;
                     }
@@ -512,9 +523,10 @@ public final class RuleManager {
         return addedMessageIds;
     }
 
-    private static boolean evaluateScript(ZimbraMailAdapter mailAdapter, Node node) throws SieveException {
+    private static boolean evaluateScript(ZimbraMailAdapter mailAdapter, CompiledRules rules) throws SieveException {
+        mailAdapter.setExecutingRules(rules);
         try {
-            SIEVE_FACTORY.evaluate(mailAdapter, node);
+            SIEVE_FACTORY.evaluate(mailAdapter, rules.getNode());
         } catch (SieveException e) {
             if (editHeaderUserScriptError.equals(e.getMessage())) {
                 ZimbraLog.filter.info(
@@ -525,6 +537,8 @@ public final class RuleManager {
             } else {
                 throw e;
             }
+        } finally {
+            mailAdapter.recordRuleTimes();
         }
         if (!mailAdapter.getAccount().isSieveEditHeaderEnabled()) {
             if (mailAdapter.isAddHeaderPresent()) {
@@ -841,18 +855,18 @@ public final class RuleManager {
         String rulesCacheKey = getAdminScriptCacheKey(filterType, afType);
         String adminRuleAttrName = getAdminScriptAttributeName(filterType, afType);
 
-        Node node = (Node) entry.getCachedData(rulesCacheKey);
-        if (null == node) {
+        CompiledRules rules = (CompiledRules) entry.getCachedData(rulesCacheKey);
+        if (null == rules) {
             String adminRule = entry.getAttr(adminRuleAttrName);
 
             if (null == adminRule) {
                 adminRule = "";
             }
             ZimbraLog.filter.debug("filterType[%s] rule[%s]", filterType == FilterType.INCOMING ? "incoming" : "outgoing", adminRule);
-            node = parse(adminRule);
-            entry.setCachedData(rulesCacheKey, node);
+            rules = CompiledRules.compile(adminRule);
+            entry.setCachedData(rulesCacheKey, rules);
         }
-        return node;
+        return rules.getNode();
     }
 
     public static void setAdminRulesFromXML(Entry entry, List<FilterRule> rules, FilterType filterType, AdminFilterType afType) throws ServiceException {
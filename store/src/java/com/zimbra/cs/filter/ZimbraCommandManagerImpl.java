@@ -19,11 +19,18 @@ package com.zimbra.cs.filter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.apache.jsieve.Arguments;
+import org.apache.jsieve.Block;
 import org.apache.jsieve.CommandManager;
 import org.apache.jsieve.ExecutableCommand;
+import org.apache.jsieve.ScriptCoordinate;
+import org.apache.jsieve.SieveContext;
 import org.apache.jsieve.exception.LookupException;
+import org.apache.jsieve.exception.SieveException;
+import org.apache.jsieve.mail.MailAdapter;
 
 import com.zimbra.cs.extension.ExtensionUtil;
 
@@ -43,8 +50,21 @@ public class ZimbraCommandManagerImpl implements CommandManager {
         return IMPLICITLY_DECLARED.contains(name);
     }
 
+    /**
+     * Commands that start or continue a rule.  Each is timed as part of the rule it belongs to.
+     */
+    private static final List<String> RULE_COMMANDS = Arrays.asList("if", "elsif", "else");
+
     private final ConcurrentMap<String, String> classNameMap;
 
+    /**
+     * Classes already resolved, by class name.  jSieve asks for a new command instance every time a
+     * command runs, and going through the class loader each time is a large part of evaluating a
+     * script.  Keyed by class name rather than command name so that re-registering a command takes
+     * effect immediately.
+     */
+    private final ConcurrentMap<String, Class> resolvedClasses = new ConcurrentHashMap<String, Class>();
+
     /**
      * Constructor for Zimbra's own CommandManager.
      */
@@ -64,10 +84,14 @@ public class ZimbraCommandManagerImpl implements CommandManager {
      * @throws LookupException
      */
     private Class lookup(String name) throws LookupException {
-        Class cmdClass = null;
+        String className = getClassName(name);
+        Class cmdClass = resolvedClasses.get(className);
+        if (cmdClass != null) {
+            return cmdClass;
+        }
         try {
             cmdClass = getClass().getClassLoader()
-                    .loadClass(getClassName(name));
+                    .loadClass(className);
         } catch (ClassNotFoundException e) {
         	// try once more from zimbra extension
         	try {
@@ -79,6 +103,7 @@ public class ZimbraCommandManagerImpl implements CommandManager {
         if (!ExecutableCommand.class.isAssignableFrom(cmdClass))
             throw new LookupException("Class " + cmdClass.getName()
                     + " must implement " + ExecutableCommand.class.getName());
+        resolvedClasses.put(className, cmdClass);
         return cmdClass;
     }
 
@@ -96,7 +121,8 @@ public class ZimbraCommandManagerImpl implements CommandManager {
     @Override
     public ExecutableCommand getCommand(String name) throws LookupException {
         try {
-            return (ExecutableCommand) lookup(name).newInstance();
+            ExecutableCommand command = (ExecutableCommand) lookup(name).newInstance();
+            return RULE_COMMANDS.contains(name.toLowerCase()) ? new TimedRuleCommand(command) : command;
         } catch (InstantiationException e) {
             throw new LookupException(e.getMessage());
         } catch (IllegalAccessException e) {
@@ -158,4 +184,31 @@ public class ZimbraCommandManagerImpl implements CommandManager {
         return extensions;
     }
 
+    /**
+     * Reports the start and end of a top-level rule to the {@link ZimbraMailAdapter} so that it can
+     * time each rule of the script.
+     */
+    private static final class TimedRuleCommand implements ExecutableCommand {
+        private final ExecutableCommand command;
+
+        TimedRuleCommand(ExecutableCommand command) {
+            this.command = command;
+        }
+
+        @Override
+        public Object execute(MailAdapter mail, Arguments arguments, Block block, SieveContext context)
+                throws SieveException {
+            if (!(mail instanceof ZimbraMailAdapter)) {
+                return command.execute(mail, arguments, block, context);
+            }
+            ZimbraMailAdapter mailAdapter = (ZimbraMailAdapter) mail;
+            ScriptCoordinate coordinate = context.getCoordinate();
+            mailAdapter.ruleStarted(coordinate != null ? coordinate.getStartLineNumber() : 0);
+            try {
+                return command.execute(mail, arguments, block, context);
+            } finally {
+                mailAdapter.ruleFinished();
+            }
+        }
+    }
 }
@@ -18,6 +18,10 @@
 package com.zimbra.cs.filter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -25,15 +29,18 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
@@ -53,9 +60,11 @@ import com.google.common.base.CharMatcher;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.zimbra.common.mime.InternetAddress;
+import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.mime.shim.JavaMailInternetAddress;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.HtmlTextExtractor;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
@@ -83,6 +92,7 @@ import com.zimbra.cs.mime.MPartInfo;
 import com.zimbra.cs.mime.Mime;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.StoreManager;
 
@@ -116,6 +126,12 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
      */
     private static Set<String> addrHdrs = ImmutableSet.of("from", "sender", "to", "bcc", "cc", "reply-to");
 
+    /**
+     * Maximum number of characters of text extracted from an HTML part for body tests, and of a text/plain
+     * part kept in memory between tests.  Larger text/plain parts are read again by each test.
+     */
+    private static final int MAX_BODY_TEXT_LENGTH = 1024 * 1024;
+
     /**
      * List of Actions to perform.
      */
@@ -151,6 +167,24 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
     private boolean isReplaceHeaderPresent = false;
     private boolean isUserScriptExecuting = false;
 
+    /**
+     * Header, address and body values looked up by tests, computed once per message.  Cleared when
+     * an editheader action changes the message.
+     */
+    private final Map<String, List<String>> headerCache = new HashMap<String, List<String>>();
+    private final Map<String, Address[]> addressCache = new HashMap<String, Address[]>();
+    private final Map<String, Set<String>> allPartsHeaderCache = new HashMap<String, Set<String>>();
+    private List<TextBody> textBodies;
+
+    /**
+     * Script being evaluated, and the time spent in each of its rules so far.
+     */
+    private CompiledRules executingRules;
+    private final Map<String, Long> ruleNanos = new LinkedHashMap<String, Long>();
+    private int ruleDepth = 0;
+    private int ruleLine;
+    private long ruleStart;
+
     public ZimbraMailAdapter(Mailbox mailbox, FilterHandler handler) {
         this.mailbox = mailbox;
         this.handler = handler;
@@ -674,23 +708,28 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
 
     @Override
     public List<String> getHeader(String name) {
-        MimeMessage msg;
-        try {
-            msg = handler.getMimeMessage();
-        } catch (ServiceException e) {
-            ZimbraLog.filter.warn("Unable to get MimeMessage.", e);
-            return Collections.emptyList();
-        }
+        String key = name.toLowerCase();
+        List<String> values = headerCache.get(key);
+        if (values == null) {
+            MimeMessage msg;
+            try {
+                msg = handler.getMimeMessage();
+            } catch (ServiceException e) {
+                ZimbraLog.filter.warn("Unable to get MimeMessage.", e);
+                return Collections.emptyList();
+            }
 
-        String[] headers = Mime.getHeaders(msg, name);
-        if (headers == null) {
-            return Collections.emptyList();
+            String[] headers = Mime.getHeaders(msg, name);
+            if (headers == null) {
+                values = Collections.emptyList();
+            } else if (addrHdrs.contains(key)) {
+                values = handleIDN(name, headers);
+            } else {
+                values = Arrays.asList(headers);
+            }
+            headerCache.put(key, values);
         }
-
-        if (addrHdrs.contains(name.toLowerCase()))
-            return handleIDN(name, headers);
-        else
-            return Arrays.asList(headers);
+        return values.isEmpty() ? Collections.<String>emptyList() : new ArrayList<String>(values);
     }
 
     @Override
@@ -727,20 +766,25 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
      */
     public Set<String> getMatchingHeaderFromAllParts(String name)
     throws SieveMailException {
-        MimeMessage msg;
-        Set<String> values = new HashSet<String>();
+        String key = name.toLowerCase();
+        Set<String> values = allPartsHeaderCache.get(key);
+        if (values == null) {
+            MimeMessage msg;
+            values = new HashSet<String>();
 
-        try {
-            msg = handler.getMimeMessage();
-            for (MPartInfo partInfo : Mime.getParts(msg)) {
-                MimePart part = partInfo.getMimePart();
-                values.addAll(Arrays.asList(Mime.getHeaders(part, name)));
+            try {
+                msg = handler.getMimeMessage();
+                for (MPartInfo partInfo : Mime.getParts(msg)) {
+                    MimePart part = partInfo.getMimePart();
+                    values.addAll(Arrays.asList(Mime.getHeaders(part, name)));
+                }
+            } catch (Exception e) {
+                throw new SieveMailException("Unable to match attachment headers.", e);
             }
-        } catch (Exception e) {
-            throw new SieveMailException("Unable to match attachment headers.", e);
+            allPartsHeaderCache.put(key, values);
         }
 
-        return values;
+        return new HashSet<String>(values);
     }
 
     @Override
@@ -771,6 +815,16 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
 
     @Override
     public Address[] parseAddresses(String headerName) {
+        String key = headerName.toLowerCase();
+        Address[] addresses = addressCache.get(key);
+        if (addresses == null) {
+            addresses = parseAddressesUncached(headerName);
+            addressCache.put(key, addresses);
+        }
+        return addresses.length == 0 ? addresses : addresses.clone();
+    }
+
+    private Address[] parseAddressesUncached(String headerName) {
         MimeMessage msg;
         try {
             msg = handler.getMimeMessage();
@@ -801,6 +855,161 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
         return retVal.toArray(new Address[retVal.size()]);
     }
 
+    /**
+     * Decoded text of an inline body part, either held in memory or read from the part each time it's opened.
+     */
+    public static final class TextBody {
+        private final String text;
+        private final MimePart part;
+        private final String charset;
+
+        TextBody(String text) {
+            this.text = text;
+            this.part = null;
+            this.charset = null;
+        }
+
+        TextBody(MimePart part, String charset) {
+            this.text = null;
+            this.part = part;
+            this.charset = charset;
+        }
+
+        /**
+         * Returns a reader over the text.  The caller must close it.
+         */
+        public Reader open() throws IOException {
+            if (text != null) {
+                return new StringReader(text);
+            }
+            try {
+                return openTextReader(part, charset);
+            } catch (MessagingException e) {
+                throw new IOException("unable to read body part", e);
+            }
+        }
+    }
+
+    private static Reader openTextReader(MimePart part, String charset) throws IOException, MessagingException {
+        InputStream in = part.getInputStream();
+        return charset == null ? new InputStreamReader(in) : new InputStreamReader(in, charset);
+    }
+
+    /**
+     * Returns the decoded text of each inline text/plain and text/html part, in message order, for
+     * body tests.  Extracted once per message.  HTML parts are cut off after {@link #MAX_BODY_TEXT_LENGTH}
+     * characters of text.  text/plain parts longer than that are not kept in memory for the whole delivery,
+     * but are read in full each time they are opened.
+     */
+    public List<TextBody> getTextBodies() {
+        if (textBodies != null) {
+            return textBodies;
+        }
+        ParsedMessage pm = getParsedMessage();
+        if (pm == null) {
+            return Collections.emptyList();
+        }
+        String defaultCharset = account == null ? null : account.getPrefMailDefaultCharset();
+
+        List<TextBody> texts = new ArrayList<TextBody>();
+        for (MPartInfo mpi : pm.getMessageParts()) {
+            String cType = mpi.getContentType();
+            // Check only parts that are text/plain or text/html and are not attachments.
+            if (Part.ATTACHMENT.equals(mpi.getDisposition())) {
+                continue;
+            }
+            if (cType.equals(MimeConstants.CT_TEXT_PLAIN)) {
+                Reader reader = null;
+                try {
+                    String cthdr = mpi.getMimePart().getHeader("Content-Type", null);
+                    String charset = null;
+                    if (cthdr != null) {
+                        charset = Mime.getCharset(cthdr);
+                    }
+                    if (charset == null || !Charset.isSupported(charset)) {
+                        charset = defaultCharset;
+                    }
+                    reader = openTextReader(mpi.getMimePart(), charset);
+                    String text = ByteUtil.getContent(reader, MAX_BODY_TEXT_LENGTH + 1, false);
+                    if (text.length() > MAX_BODY_TEXT_LENGTH) {
+                        texts.add(new TextBody(mpi.getMimePart(), charset));
+                    } else {
+                        texts.add(new TextBody(text));
+                    }
+                } catch (Exception e) {
+                    ZimbraLog.filter.warn("Unable to read text body part %s", mpi.getPartName(), e);
+                } finally {
+                    ByteUtil.closeReader(reader);
+                }
+            } else if (cType.equals(MimeConstants.CT_TEXT_HTML)) {
+                InputStream in = null;
+                try {
+                    in = mpi.getMimePart().getInputStream();
+                    String cthdr = mpi.getMimePart().getHeader("Content-Type", null);
+                    Reader reader = Mime.getTextReader(in, cthdr, defaultCharset);
+                    texts.add(new TextBody(HtmlTextExtractor.extract(reader, MAX_BODY_TEXT_LENGTH)));
+                } catch (Exception e) {
+                    ZimbraLog.filter.warn("Unable to read HTML body part %s", mpi.getPartName(), e);
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+            }
+        }
+        textBodies = texts;
+        return texts;
+    }
+
+    /**
+     * Drops header, address and body values computed for tests, after the message has been changed.
+     */
+    private void clearMessageCache() {
+        headerCache.clear();
+        addressCache.clear();
+        allPartsHeaderCache.clear();
+        textBodies = null;
+    }
+
+    /**
+     * Sets the script about to be evaluated, so that rule timings can be reported by rule name.
+     */
+    public void setExecutingRules(CompiledRules rules) {
+        executingRules = rules;
+    }
+
+    /**
+     * Called when an <tt>if</tt>, <tt>elsif</tt> or <tt>else</tt> starts.  Only the outermost one is
+     * timed, as the rule that starts on the given script line.
+     */
+    public void ruleStarted(int line) {
+        if (ruleDepth++ == 0) {
+            ruleLine = line;
+            ruleStart = System.nanoTime();
+        }
+    }
+
+    public void ruleFinished() {
+        if (ruleDepth > 0 && --ruleDepth == 0) {
+            long elapsed = System.nanoTime() - ruleStart;
+            String name = executingRules != null ? executingRules.getRuleName(ruleLine) : "line " + ruleLine;
+            Long prev = ruleNanos.get(name);
+            ruleNanos.put(name, prev == null ? elapsed : prev + elapsed);
+        }
+    }
+
+    /**
+     * Records the time spent in each rule of the script that just ran, and resets for the next one.
+     */
+    public void recordRuleTimes() {
+        for (Map.Entry<String, Long> entry : ruleNanos.entrySet()) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(entry.getValue());
+            ZimbraPerf.COUNTER_FILTER_RULE_TIME.increment(micros);
+            ZimbraLog.filter.debug("Rule \"%s\" took %dus", entry.getKey(), micros);
+        }
+        ruleNanos.clear();
+        ruleDepth = 0;
+        executingRules = null;
+    }
+
     // jSieve 0.4
     @Override
     public boolean isInBodyText(String substring) {
@@ -919,6 +1128,7 @@ public class ZimbraMailAdapter implements MailAdapter, EnvelopeAccessors {
     }
 
     public void updateIncomingBlob() {
+        clearMessageCache();
         DeliveryContext ctxt = handler.getDeliveryContext();
         if (ctxt != null) {
             StoreManager sm = StoreManager.getInstance();
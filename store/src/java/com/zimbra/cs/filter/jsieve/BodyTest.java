@@ -23,16 +23,10 @@ package com.zimbra.cs.filter.jsieve;
 
 import com.zimbra.common.filter.Sieve;
 import com.zimbra.common.filter.Sieve.Comparator;
-import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.common.util.HtmlTextExtractor;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.cs.account.Account;
 import com.zimbra.cs.filter.ZimbraMailAdapter;
-import com.zimbra.cs.mime.MPartInfo;
-import com.zimbra.cs.mime.Mime;
-import com.zimbra.cs.mime.ParsedMessage;
 import org.apache.jsieve.Argument;
 import org.apache.jsieve.Arguments;
 import org.apache.jsieve.SieveContext;
@@ -43,17 +37,11 @@ import org.apache.jsieve.exception.SyntaxException;
 import org.apache.jsieve.mail.MailAdapter;
 import org.apache.jsieve.tests.AbstractTest;
 
-import javax.mail.Part;
-
 import static com.zimbra.cs.filter.jsieve.ComparatorName.ASCII_NUMERIC_COMPARATOR;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PushbackReader;
 import java.io.Reader;
-import java.io.StringReader;
-import java.nio.charset.Charset;
 import java.util.ListIterator;
 
 public class BodyTest extends AbstractTest {
@@ -147,62 +135,17 @@ public class BodyTest extends AbstractTest {
 
     private boolean test(MailAdapter mail, boolean caseSensitive, String substring) {
         ZimbraMailAdapter zimbraMail = (ZimbraMailAdapter) mail;
-        ParsedMessage pm = zimbraMail.getParsedMessage();
-        if (pm == null) {
-            return false;
-        }
-
-        Account acct = null;
-        try {
-            acct = zimbraMail.getMailbox().getAccount();
-        } catch (ServiceException e) {
-            ZimbraLog.filter.warn("Error in getting account", e);
-        }
-        String defaultCharset = acct == null ? null : acct.getPrefMailDefaultCharset();
-
-        for (MPartInfo mpi : pm.getMessageParts()) {
-            String cType = mpi.getContentType();
-            // Check only parts that are text/plain or text/html and are not attachments.
-            if (!Part.ATTACHMENT.equals(mpi.getDisposition())) {
-                if (cType.equals(MimeConstants.CT_TEXT_PLAIN)) {
-                    InputStream in = null;
-                    try {
-                        in = mpi.getMimePart().getInputStream();
-                        String cthdr = mpi.getMimePart().getHeader("Content-Type", null);
-                        String charset = null;
-                        if (cthdr != null) {
-                            charset = Mime.getCharset(cthdr);
-                        }
-                        if (charset == null || !Charset.isSupported(charset)) {
-                            charset = defaultCharset;
-                        }
-                        Reader reader = charset == null ? new InputStreamReader(in) : new InputStreamReader(in, charset);
-                        if (contains(reader, caseSensitive, substring)) {
-                            return true;
-                        }
-                    } catch (Exception e) {
-                        ZimbraLog.filter.warn("Unable to test text body for substring '%s'", substring, e);
-                    } finally {
-                        ByteUtil.closeStream(in);
-                    }
-                } else if (cType.equals(MimeConstants.CT_TEXT_HTML)) {
-                    InputStream in = null;
-
-                    try {
-                        // Extract up to 1MB of text and check for substring.
-                        in = mpi.getMimePart().getInputStream();
-                        String cthdr = mpi.getMimePart().getHeader("Content-Type", null);
-                        Reader reader = Mime.getTextReader(in, cthdr, defaultCharset);
-                        String text = HtmlTextExtractor.extract(reader, 1024 * 1024);
-                        if (contains(new StringReader(text), caseSensitive, substring)) {
-                            return true;
-                        }
-                    } catch (Exception e) {
-                        ZimbraLog.filter.warn("Unable to test HTML body for substring '%s'", substring, e);
-                    } finally {
-                        ByteUtil.closeStream(in);
-                    }
+        for (ZimbraMailAdapter.TextBody body : zimbraMail.getTextBodies()) {
+            Reader reader = null;
+            try {
+                reader = body.open();
+                if (contains(reader, caseSensitive, substring)) {
+                    return true;
                 }
+            } catch (IOException e) {
+                ZimbraLog.filter.warn("Unable to test body for substring '%s'", substring, e);
+            } finally {
+                ByteUtil.closeReader(reader);
             }
         }
         return false;
@@ -90,7 +90,7 @@ public final class ContactRankingTest extends AbstractTest {
             }
         }
         try {
-            ContactRankings ranking = new ContactRankings(mbox.getAccountId());
+            ContactRankings ranking = ContactRankings.getInstance(mbox.getAccountId());
             for (InternetAddress addr : addrs) {
                 if (ranking.query(addr.getAddress()) > 0) {
                     return true;
@@ -70,6 +70,13 @@ public class ImapConfig extends ServerConfig {
         return LC.imap_write_chunk_size.intValue();
     }
 
+    /**
+     * Returns the zlib compression level (0-9) used for connections that issue COMPRESS DEFLATE.
+     */
+    public int getCompressDeflateLevel() {
+        return LC.imap_compress_deflate_level.intValue();
+    }
+
     /**
      * Returns the max idle timeout for unauthenticated connections.
      *
@@ -16,16 +16,18 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -44,7 +46,6 @@ import com.zimbra.common.mailbox.ZimbraTag;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.ArrayUtil;
-import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
@@ -68,14 +69,24 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
 
-    private final ItemIdentifier folderIdentifier;
-    private final int uidValidity;
+    // not final, as they are assigned by readObject()
+    private ItemIdentifier folderIdentifier;
+    private int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
-    private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
+    private ImapMessageSequence sequence = new ImapMessageSequence();
+    private ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
+
+    // the serialized form predates ImapMessageSequence and still carries the message list as a List<ImapMessage>
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("folderIdentifier", ItemIdentifier.class),
+        new ObjectStreamField("uidValidity", int.class),
+        new ObjectStreamField("query", String.class),
+        new ObjectStreamField("typeConstraint", Set.class),
+        new ObjectStreamField("sequence", List.class),
+        new ObjectStreamField("tags", ImapFlagCache.class)
+    };
 
     // below this point are session-specific attributes of the folder SELECT state
     protected static class SessionData {
@@ -123,6 +134,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.tags = new ImapFlagCache();
     }
 
+    /** Reconstitutes the serialized state of a paged-out folder.  Messages
+     *  are then appended via {@link #restoreMessage}.
+     * @see ImapFolderSerializer */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapFlagCache tags) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -287,11 +310,11 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     public synchronized void traverse(Function<ImapMessage, Void> func) {
         int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
-            ImapMessage i4msg = it.next();
+        for (int i = 0; i < sequence.size(); i++) {
+            ImapMessage i4msg = sequence.get(i);
             if (i4msg.imapUid == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %s", prevUid, this.folderIdentifier);
-                it.remove();
+                sequence.remove(i--);
             } else {
                 prevUid = i4msg.imapUid;
                 func.apply(i4msg);
@@ -336,20 +359,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      *         and only if the key is found.
      * @see Collections#binarySearch(List, Object) */
     private int uidSearch(int uid) {
-        int low = 0;
-        int high = getSize() - 1;
-        while (low <= high) {
-            int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
-            if (targetUid < uid) {
-                low = mid + 1;
-            } else if (targetUid > uid) {
-                high = mid - 1;
-            } else {
-                return mid;  // key found
-            }
-        }
-        return -(low + 1);  // key not found
+        return sequence.search(uid);
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
@@ -370,17 +380,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
-        if (messageIds == null) {
-            // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
-                }
-            }
-        }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        // if item id and IMAP uid differ, the message is found through the sequence's item id index
+        int index = sequence.indexOfId(id);
+        return index < 0 ? null : checkRemoved(sequence.get(index));
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -416,8 +418,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
-     *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
+     *  the folder's {@link #sequence} message list.
      * @return true if message cached successfully without modification false if a renumber was required. */
     protected synchronized boolean cache(ImapMessage i4msg, boolean recent) {
         // provide the information missing from the DB search
@@ -453,6 +454,42 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return true;
     }
 
+    /** Appends a deserialized message to the end of the folder's
+     *  {@link #sequence} message list as-is, without renumbering it or
+     *  touching the tag cache.
+     * @see ImapFolderSerializer */
+    void restoreMessage(ImapMessage i4msg) {
+        sequence.add(i4msg);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("folderIdentifier", folderIdentifier);
+        fields.put("uidValidity", uidValidity);
+        fields.put("query", query);
+        fields.put("typeConstraint", typeConstraint);
+        fields.put("sequence", sequence.asList());
+        fields.put("tags", tags);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        folderIdentifier = (ItemIdentifier) fields.get("folderIdentifier", null);
+        uidValidity = fields.get("uidValidity", 0);
+        query = (String) fields.get("query", null);
+        typeConstraint = (Set<MailItem.Type>) fields.get("typeConstraint", ImapHandler.ITEM_TYPES);
+        tags = (ImapFlagCache) fields.get("tags", null);
+        sequence = new ImapMessageSequence();
+        List<ImapMessage> messages = (List<ImapMessage>) fields.get("sequence", null);
+        if (messages != null) {
+            for (ImapMessage i4msg : messages) {
+                sequence.add(i4msg);
+            }
+        }
+    }
+
     private boolean insertOutOfOrder(ImapMessage i4msg) {
         LinkedList<ImapMessage> shifted = new LinkedList<ImapMessage>();
         int idx  = sequence.size() - 1;
@@ -506,22 +543,21 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     private void setIndex(ImapMessage i4msg, int position) {
         i4msg.sequence = position;
-        if (messageIds != null) {
-            if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
-            } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
-            }
+    }
+
+    /** Called after a message's permanent flags or tags have changed, so
+     *  that its tags are interned and the tag cache follows. */
+    protected void updateFlags(ImapMessage i4msg) {
+        if (getBySequence(i4msg.sequence, true) == i4msg) {
+            sequence.update(i4msg.sequence - 1);
         }
+        updateTagCache(i4msg);
     }
 
     /** Cleans up all references to an ImapMessage from all the folder's data
      *  structures other than {@link #sequence}.  The {@link #sequence}
      *  cleanup must be done separately. */
     private void uncache(ImapMessage i4msg) {
-        if (messageIds != null) {
-            messageIds.remove(i4msg.msgId);
-        }
         SessionData sdata = sessionData;
         if (sdata != null) {
             sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
@@ -561,8 +597,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             return;
         }
 
-        for (ImapMessage i4msg : sequence) {
-            if (i4msg != null && i4flag.matches(i4msg)) {
+        for (int i = 0; i < sequence.size(); i++) {
+            ImapMessage i4msg = sequence.get(i);
+            if (i4flag.matches(i4msg)) {
                 dirtyMessage(i4msg, modseq);
 
                 List<String> tags = Lists.newArrayList(i4msg.tags);
@@ -571,6 +608,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                     tags.add(newName);
                 }
                 i4msg.tags = tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+                sequence.update(i);
             }
         }
     }
@@ -713,18 +751,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
-        if (getSize() > 0) {
-            result.addAll(sequence);
-            result.remove(null);
+        for (int i = 0; i < sequence.size(); i++) {
+            result.add(sequence.get(i));
         }
         return result;
     }
 
     protected synchronized ImapMessageSet getFlaggedMessages(ImapFlag i4flag) {
         ImapMessageSet result = new ImapMessageSet();
-        if (i4flag != null && getSize() > 0) {
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4flag.matches(i4msg)) {
+        if (i4flag != null) {
+            for (int i = 0; i < sequence.size(); i++) {
+                ImapMessage i4msg = sequence.get(i);
+                if (i4flag.matches(i4msg)) {
                     result.add(i4msg);
                 }
             }
@@ -741,14 +779,19 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
-    private List<Pair<Integer, Integer>> normalizeSubsequence(String subseqStr, boolean byUID) {
+    private static final int[] NO_RANGES = new int[0];
+
+    /** Parses a sequence set into sorted, merged ranges, packed as
+     *  <tt>{lower0, upper0, lower1, upper1, ...}</tt>. */
+    private int[] normalizeSubsequence(String subseqStr, boolean byUID) {
         if (subseqStr == null || subseqStr.trim().isEmpty()) {
-            return Collections.emptyList();
+            return NO_RANGES;
         }
         ImapMessage i4msg = getLastMessage();
         int lastID = (i4msg == null ? (byUID ? Integer.MAX_VALUE : getSize()) : (byUID ? i4msg.imapUid : i4msg.sequence));
 
-        List<Pair<Integer, Integer>> normalized = new ArrayList<Pair<Integer, Integer>>(5);
+        int[] normalized = new int[10];
+        int count = 0;
         for (String subset : subseqStr.split(",")) {
             int lower;
             int upper;
@@ -769,23 +812,30 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
             // add to list, merging with existing ranges if needed
             int insertpos = 0;
-            for (int i = 0; i < normalized.size(); i++) {
-                Pair<Integer, Integer> range = normalized.get(i);
-                int lrange = range.getFirst();
-                int urange = range.getSecond();
+            for (int i = 0; i < count; i += 2) {
+                int lrange = normalized[i];
+                int urange = normalized[i + 1];
                 if (lower > urange + 1) {
-                    insertpos++;
+                    insertpos += 2;
                     continue;
                 } else if (upper < lrange - 1) {
                     break;
                 } else {
-                    normalized.remove(i--);
+                    System.arraycopy(normalized, i + 2, normalized, i, count - i - 2);
+                    count -= 2;
+                    i -= 2;
                     lower = Math.min(lower, lrange);  upper = Math.max(upper, urange);
                 }
             }
-            normalized.add(insertpos, new Pair<Integer, Integer>(lower, upper));
+            if (count == normalized.length) {
+                normalized = Arrays.copyOf(normalized, count * 2);
+            }
+            System.arraycopy(normalized, insertpos, normalized, insertpos + 2, count - insertpos);
+            normalized[insertpos] = lower;
+            normalized[insertpos + 1] = upper;
+            count += 2;
         }
-        return normalized;
+        return Arrays.copyOf(normalized, count);
     }
 
     /**
@@ -793,33 +843,33 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      * numbers in the ranges
      */
     private static class SubSequenceRanges {
-        private final List<Pair<Integer, Integer>> ranges;
+        private final int[] ranges;
         private int rangeIndex = 0;
         private int nextNum = 0;
 
         /**
-         * @param theRanges list of start/end numbers in ranges. Must be in ascending order
+         * @param theRanges packed start/end numbers of the ranges. Must be in ascending order
          */
-        private SubSequenceRanges(List<Pair<Integer, Integer>> theRanges) {
+        private SubSequenceRanges(int[] theRanges) {
             ranges = theRanges;
-            if (!ranges.isEmpty()) {
-                nextNum = ranges.get(rangeIndex).getFirst();
+            if (ranges.length > 0) {
+                nextNum = ranges[rangeIndex];
             }
         }
 
         private boolean hasNext() {
-            return (rangeIndex < ranges.size() && nextNum <= ranges.get(rangeIndex).getSecond());
+            return (rangeIndex < ranges.length && nextNum <= ranges[rangeIndex + 1]);
         }
 
         /** DON'T CALL unless hasNext() returns true */
         private int next() {
             int retVal = nextNum;
-            if (nextNum < ranges.get(rangeIndex).getSecond()) {
+            if (nextNum < ranges[rangeIndex + 1]) {
                 nextNum++;
             } else {
-                rangeIndex++;
-                if (rangeIndex < ranges.size()) {
-                    nextNum = ranges.get(rangeIndex).getFirst();
+                rangeIndex += 2;
+                if (rangeIndex < ranges.length) {
+                    nextNum = ranges[rangeIndex];
                 }
             }
             return retVal;
@@ -901,9 +951,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         } else if ("$".equals(subseqStr)) {
             return getSavedSearchResults();
         }
-        for (Pair<Integer, Integer> range : normalizeSubsequence(subseqStr, byUID)) {
-            int lower = range.getFirst();
-            int upper = range.getSecond();
+        int[] ranges = normalizeSubsequence(subseqStr, byUID);
+        for (int r = 0; r < ranges.length; r += 2) {
+            int lower = ranges[r];
+            int upper = ranges[r + 1];
             if (!byUID && !allowOutOfRangeMsgSeq && ((lower < 1) || upper > getSize())) {
                 // 9: "The server should respond with a tagged BAD response to a command that uses a message
                 //     sequence number greater than the number of messages in the selected mailbox.  This
@@ -946,9 +997,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             return subseqStr;
         }
         StringBuilder sb = new StringBuilder(subseqStr.length());
-        for (Pair<Integer, Integer> range : normalizeSubsequence(subseqStr, byUID)) {
-            int lower = range.getFirst();
-            int upper = range.getSecond();
+        int[] ranges = normalizeSubsequence(subseqStr, byUID);
+        for (int r = 0; r < ranges.length; r += 2) {
+            int lower = ranges[r];
+            int upper = ranges[r + 1];
             if (croplow > 0 && upper < croplow) {
                 continue;
             }
@@ -970,31 +1022,30 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         StringBuilder sb = new StringBuilder();
 
         Iterator<ImapMessage> i4it = i4set.iterator();
-        Iterator<Pair<Integer, Integer>> itrange = normalizeSubsequence(subseqStr, byUID).iterator();
-        if (!itrange.hasNext()) {
+        int[] ranges = normalizeSubsequence(subseqStr, byUID);
+        if (ranges.length == 0) {
             return subseqStr;
         }
-        Pair<Integer, Integer> range = itrange.next();
-        int lower = range.getFirst();
-        int upper = range.getSecond();
+        int r = 0;
+        int lower = ranges[r];
+        int upper = ranges[r + 1];
         int id = !i4it.hasNext() ? -1 : (byUID ? i4it.next().imapUid : i4it.next().sequence);
 
         while (lower != -1) {
             if (lower > upper) {
                 // no valid values remaining in this range, so go to the next one
-                if (!itrange.hasNext()) {
+                if ((r += 2) >= ranges.length) {
                     break;
                 }
-                range = itrange.next();
-                lower = range.getFirst();
-                upper = range.getSecond();
+                lower = ranges[r];
+                upper = ranges[r + 1];
             } else if (id == -1 || id > upper) {
                 // the remainder of the range qualifies, so serialize it and go to the next range
                 sb.append(sb.length() == 0 ? "" : ",").append(lower).append(lower == upper ? "" : ":" + upper);
-                if (!itrange.hasNext()) {
+                if ((r += 2) >= ranges.length) {
                     break;
                 }
-                range = itrange.next();  lower = range.getFirst();  upper = range.getSecond();
+                lower = ranges[r];  upper = ranges[r + 1];
             } else if (id <= lower) {
                 // the current ID is too low for this range, so fetch the next ID
                 if (id == lower) {
@@ -1079,28 +1130,31 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
-        int seq = 1;
+        // compact the sequence in a single pass; "kept" is the number of surviving messages so far, so the
+        //   sequence number of the current message is always kept + 1
+        int kept = 0;
+        int size = sequence.size();
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = sequence.get(i);
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
-                //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
-                    removed.add(byUID ? i4msg.imapUid : seq);
+                    removed.add(byUID ? i4msg.imapUid : kept + 1);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+            } else {
+                if (kept != i) {
+                    sequence.set(kept, i4msg);
+                    setIndex(i4msg, kept + 1);
+                }
+                kept++;
             }
         }
+        if (kept != size) {
+            sequence.truncate(kept);
+        }
         return removed;
     }
 
@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+/**
+ * Ehcache value serializer for paged-out {@link ImapFolder}s, using the
+ * compact {@link ImapFolderSerializer} format instead of Java serialization.
+ */
+public final class ImapFolderEhcacheSerializer implements Serializer<ImapFolder> {
+
+    @Override
+    public ByteBuffer serialize(ImapFolder folder) throws SerializerException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            synchronized (folder) {
+                ImapFolderSerializer.write(folder, bout);
+            }
+        } catch (IOException e) {
+            throw new SerializerException("Failed to serialize ImapFolder", e);
+        }
+        return ByteBuffer.wrap(bout.toByteArray());
+    }
+
+    @Override
+    public ImapFolder read(ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+        try {
+            return ImapFolderSerializer.read(new ByteBufferInputStream(binary));
+        } catch (IOException e) {
+            throw new SerializerException("Failed to deserialize ImapFolder", e);
+        }
+    }
+
+    @Override
+    public boolean equals(ImapFolder folder, ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+        return folder.equals(read(binary));
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.io.SecureObjectInputStream;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact, versioned serialization of the paged-out state of an {@link ImapFolder}.
+ * <p>
+ * The message list is written column by column: item ids, UIDs and sequence numbers as
+ * zigzag varint deltas, flags as run-length encoded (flags, session flags) pairs, and tags
+ * as varint indexes into a dictionary of the tag names used in the folder.  For a typical
+ * folder this comes to a few bytes per message, and both directions stream straight
+ * between the folder and the underlying stream.
+ * <p>
+ * {@link #read} also accepts the Java serialization format that was used before, so that
+ * folders paged out by an older server can still be restored.
+ */
+final class ImapFolderSerializer {
+
+    private static final int MAGIC = 0x493446; // "I4F"
+    private static final byte VERSION = 1;
+
+    private static final short JAVA_STREAM_MAGIC = (short) 0xaced;
+
+    private static final Set<String> LEGACY_CLASSES = new HashSet<String>();
+    static {
+        LEGACY_CLASSES.add(ImapFolder.class.getName());
+        LEGACY_CLASSES.add(ItemIdentifier.class.getName());
+        LEGACY_CLASSES.add(ImapMessage.class.getName());
+        LEGACY_CLASSES.add(ImapFlagCache.class.getName());
+        LEGACY_CLASSES.add(ImapFlag.class.getName());
+        LEGACY_CLASSES.add(MailItem.Type.class.getName());
+    }
+
+    private static final String[] NO_TAGS = new String[0];
+
+    private ImapFolderSerializer() {
+    }
+
+    /**
+     * Writes the folder to the stream.  The stream is flushed but not closed.  The caller
+     * must synchronize on the folder.
+     */
+    static void write(ImapFolder folder, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeByte(MAGIC >> 16);
+        out.writeByte(MAGIC >> 8);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+
+        ItemIdentifier ident = folder.getItemIdentifier();
+        writeString(out, ident.accountId);
+        writeVarint(out, zigzag(ident.id));
+        writeVarint(out, zigzag(ident.subPartId));
+        out.writeInt(folder.getUIDValidity());
+        writeString(out, folder.isVirtual() ? folder.getQuery() : null);
+
+        Set<MailItem.Type> types = folder.getTypeConstraint();
+        writeVarint(out, types.size());
+        for (MailItem.Type type : types) {
+            out.writeByte(type.toByte());
+        }
+
+        List<ImapFlag> flags = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : folder.getTagset()) {
+            flags.add(i4flag);
+        }
+        writeVarint(out, flags.size());
+        for (ImapFlag i4flag : flags) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            writeVarint(out, zigzag(i4flag.mId));
+            writeVarint(out, i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? 1 : 0) | (i4flag.mPermanent ? 2 : 0) | (i4flag.mListed ? 4 : 0));
+        }
+
+        int size = folder.getSize();
+        writeVarint(out, size);
+
+        // tag dictionary
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        for (int seq = 1; seq <= size; seq++) {
+            String[] tags = message(folder, seq).tags;
+            if (tags != null) {
+                for (String tag : tags) {
+                    if (!dictionary.containsKey(tag)) {
+                        dictionary.put(tag, names.size());
+                        names.add(tag);
+                    }
+                }
+            }
+        }
+        writeVarint(out, names.size());
+        for (String name : names) {
+            writeString(out, name);
+        }
+
+        long prev = 0;
+        for (int seq = 1; seq <= size; seq++) {
+            int id = message(folder, seq).msgId;
+            writeVarint(out, zigzag(id - prev));
+            prev = id;
+        }
+        prev = 0;
+        for (int seq = 1; seq <= size; seq++) {
+            int uid = message(folder, seq).imapUid;
+            writeVarint(out, zigzag(uid - prev));
+            prev = uid;
+        }
+        for (int seq = 1; seq <= size; seq++) {
+            writeVarint(out, zigzag(message(folder, seq).sequence - seq));
+        }
+        for (int seq = 1; seq <= size; ) {
+            ImapMessage i4msg = message(folder, seq);
+            int run = 1;
+            while (seq + run <= size) {
+                ImapMessage next = message(folder, seq + run);
+                if (next.flags != i4msg.flags || next.sflags != i4msg.sflags) {
+                    break;
+                }
+                run++;
+            }
+            writeVarint(out, i4msg.flags & 0xffffffffL);
+            writeVarint(out, i4msg.sflags & 0xffff);
+            writeVarint(out, run);
+            seq += run;
+        }
+        for (int seq = 1; seq <= size; seq++) {
+            String[] tags = message(folder, seq).tags;
+            if (tags == null) {
+                writeVarint(out, 0);
+            } else {
+                writeVarint(out, tags.length + 1);
+                for (String tag : tags) {
+                    writeVarint(out, dictionary.get(tag));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static ImapMessage message(ImapFolder folder, int seq) {
+        return folder.getBySequence(seq, true);
+    }
+
+    /**
+     * Reads a folder written by {@link #write}, or by Java serialization.
+     */
+    static ImapFolder read(InputStream is) throws IOException, ClassNotFoundException {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        DataInputStream in = new DataInputStream(bis);
+        bis.mark(4);
+        if (in.readShort() == JAVA_STREAM_MAGIC) {
+            bis.reset();
+            ObjectInputStream ois = new SecureObjectInputStream(bis, new HashSet<String>(LEGACY_CLASSES));
+            return (ImapFolder) ois.readObject();
+        }
+        bis.reset();
+        int magic = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (magic != MAGIC) {
+            throw new StreamCorruptedException("not a serialized ImapFolder");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("unsupported ImapFolder serialization version " + version);
+        }
+
+        String accountId = readString(in);
+        int id = (int) unzigzag(readVarint(in));
+        int subPartId = (int) unzigzag(readVarint(in));
+        ItemIdentifier ident = new ItemIdentifier(accountId, id, subPartId);
+        int uidValidity = in.readInt();
+        String query = readString(in);
+
+        int typeCount = (int) readVarint(in);
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = 0; i < typeCount; i++) {
+            types.add(MailItem.Type.of(in.readByte()));
+        }
+
+        ImapFlagCache tagset = new ImapFlagCache();
+        int flagCount = (int) readVarint(in);
+        for (int i = 0; i < flagCount; i++) {
+            String name = readString(in);
+            String imapName = readString(in);
+            int flagId = (int) unzigzag(readVarint(in));
+            long bitmask = readVarint(in);
+            int bits = in.readByte();
+            tagset.cache(new ImapFlag(name, imapName, flagId, bitmask, (bits & 1) != 0, (bits & 2) != 0,
+                    (bits & 4) != 0));
+        }
+
+        ImapFolder folder = new ImapFolder(ident, uidValidity, query, types, tagset);
+
+        int size = readCount(in);
+        int dictSize = readCount(in);
+        String[] names = new String[dictSize];
+        for (int i = 0; i < dictSize; i++) {
+            names[i] = readString(in);
+        }
+
+        ImapMessage[] msgs = new ImapMessage[size];
+        long prev = 0;
+        for (int i = 0; i < size; i++) {
+            prev += unzigzag(readVarint(in));
+            msgs[i] = new ImapMessage((int) prev, MailItem.Type.MESSAGE, 0, 0, null);
+        }
+        prev = 0;
+        for (int i = 0; i < size; i++) {
+            prev += unzigzag(readVarint(in));
+            msgs[i].imapUid = (int) prev;
+        }
+        for (int i = 0; i < size; i++) {
+            msgs[i].sequence = (int) (i + 1 + unzigzag(readVarint(in)));
+        }
+        for (int i = 0; i < size; ) {
+            int flags = (int) readVarint(in);
+            short sflags = (short) readVarint(in);
+            int run = readCount(in);
+            if (run == 0 || i + run > size) {
+                throw new StreamCorruptedException("bad flag run length " + run);
+            }
+            for (int end = i + run; i < end; i++) {
+                msgs[i].flags = flags;
+                msgs[i].sflags = sflags;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            int count = readCount(in);
+            if (count == 0) {
+                msgs[i].tags = null;
+            } else if (count == 1) {
+                msgs[i].tags = NO_TAGS;
+            } else {
+                String[] tags = new String[count - 1];
+                for (int t = 0; t < tags.length; t++) {
+                    int index = readCount(in);
+                    if (index >= dictSize) {
+                        throw new StreamCorruptedException("bad tag index " + index);
+                    }
+                    tags[t] = names[index];
+                }
+                msgs[i].tags = tags;
+            }
+            folder.restoreMessage(msgs[i]);
+        }
+        return folder;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed varint");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long value = readVarint(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("bad count " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
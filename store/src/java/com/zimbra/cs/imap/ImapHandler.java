@@ -121,6 +121,7 @@ import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.FlushCache;
 import com.zimbra.cs.service.mail.FolderAction;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.BuildInfo;
 import com.zimbra.soap.admin.type.CacheEntrySelector;
@@ -133,7 +134,7 @@ public abstract class ImapHandler {
     protected enum ImapExtension { CONDSTORE, QRESYNC }
 
     private static final Set<String> SUPPORTED_EXTENSIONS = new LinkedHashSet<String>(Arrays.asList(
-        "ACL", "BINARY", "CATENATE", "CHILDREN", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
+        "ACL", "BINARY", "CATENATE", "CHILDREN", "COMPRESS=DEFLATE", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
         "I18NLEVEL=1", "ID", "IDLE", "LIST-EXTENDED", "LIST-STATUS", "LITERAL+", "LOGIN-REFERRALS",
         "MULTIAPPEND", "NAMESPACE", "QRESYNC", "QUOTA", "RIGHTS=ektx", "SASL-IR", "SEARCHRES",
         "SORT", "THREAD=ORDEREDSUBJECT", "UIDPLUS", "UNSELECT", "WITHIN", "XLIST"
@@ -224,6 +225,7 @@ public abstract class ImapHandler {
     protected Authenticator authenticator;
     protected ImapCredentials credentials;
     protected boolean startedTLS;
+    protected boolean startedCompression;
     protected String lastCommand;
     protected int consecutiveError;
     private ImapProxy imapProxy;
@@ -274,6 +276,12 @@ public abstract class ImapHandler {
     protected abstract void enableInactivityTimer() throws IOException;
     protected abstract void completeAuthentication() throws IOException;
     protected abstract boolean doSTARTTLS(String tag) throws IOException;
+
+    /**
+     * Sends the tagged OK response to COMPRESS and switches the connection to DEFLATE compression immediately after
+     * it, as required by RFC 4978 3.
+     */
+    protected abstract void startCompression(String tag, int level) throws IOException;
     protected abstract InetSocketAddress getLocalAddress();
 
     protected ImapCredentials getCredentials() {
@@ -528,6 +536,11 @@ public abstract class ImapHandler {
                 } else if (command.equals("CLOSE")) {
                     checkEOF(tag, req);
                     return doCLOSE(tag);
+                } else if (command.equals("COMPRESS") && extensionEnabled("COMPRESS=DEFLATE")) {
+                    req.skipSpace();
+                    String mechanism = req.readATOM();
+                    checkEOF(tag, req);
+                    return doCOMPRESS(tag, mechanism);
                 } else if (command.equals("CREATE")) {
                     req.skipSpace();
                     ImapPath path = new ImapPath(req.readFolder(), credentials);
@@ -1236,6 +1249,29 @@ public abstract class ImapHandler {
         return true;
     }
 
+    private boolean doCOMPRESS(String tag, String mechanism) throws IOException {
+        if (!mechanism.equals("DEFLATE")) {
+            sendBAD(tag, "unsupported compression mechanism: " + mechanism);
+        } else if (startedCompression) {
+            // RFC 4978 3: a server that refuses COMPRESS because compression is already active
+            //             must say so with the COMPRESSIONACTIVE response code
+            sendNO(tag, "[COMPRESSIONACTIVE] DEFLATE active via COMPRESS");
+        } else {
+            startCompression(tag, config.getCompressDeflateLevel());
+            startedCompression = true;
+        }
+        return true;
+    }
+
+    /**
+     * Logs and accumulates the traffic of a connection that was compressed via COMPRESS DEFLATE.
+     */
+    protected void recordCompression(long rawIn, long wireIn, long rawOut, long wireOut) {
+        ZimbraLog.imap.debug("COMPRESS: received %d bytes as %d, sent %d bytes as %d", rawIn, wireIn, rawOut, wireOut);
+        ZimbraPerf.COUNTER_IMAP_COMPRESS_BYTES.increment(wireIn + wireOut);
+        ZimbraPerf.COUNTER_IMAP_COMPRESS_SAVED_BYTES.increment(rawIn + rawOut - wireIn - wireOut);
+    }
+
     protected String getCapabilityString() {
         // [IMAP4rev1]        RFC 3501: Internet Message Access Protocol - Version 4rev1
         // [LOGINDISABLED]    RFC 3501: Internet Message Access Protocol - Version 4rev1
@@ -1246,6 +1282,7 @@ public abstract class ImapHandler {
         // [BINARY]           RFC 3516: IMAP4 Binary Content Extension
         // [CATENATE]         RFC 4469: Internet Message Access Protocol (IMAP) CATENATE Extension
         // [CHILDREN]         RFC 3348: IMAP4 Child Mailbox Extension
+        // [COMPRESS=DEFLATE] RFC 4978: The IMAP COMPRESS Extension
         // [CONDSTORE]        RFC 4551: IMAP Extension for Conditional STORE Operation or Quick Flag Changes Resynchronization
         // [ENABLE]           RFC 5161: The IMAP ENABLE Extension
         // [ESEARCH]          RFC 4731: IMAP4 Extension to SEARCH Command for Controlling What Kind of Information Is Returned
@@ -323,7 +323,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         this.flags = f & IMAP_FLAGS;
         this.tags  = t;
         if (parent != null) {
-            parent.updateTagCache(this);
+            parent.updateFlags(this);
             parent.dirtyMessage(this, changeId);
         }
     }
@@ -0,0 +1,277 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The message list of an {@link ImapFolder}, in sequence number order.
+ * <p>
+ * The {@link ImapMessage} records are held in a plain array, with nothing copied out of them, so a cached message
+ * costs no more than it did in an {@code ArrayList}.  UID lookups are a binary search over the records, item ID
+ * lookups for the few messages whose item ID differs from their UID go through a primitive open-addressing index
+ * instead of a boxed {@code HashMap}, and tag arrays are interned so that all the messages with the same set of
+ * tags share a single array.
+ * <p>
+ * Not thread-safe; the owning folder synchronizes access.
+ */
+final class ImapMessageSequence implements Iterable<ImapMessage> {
+
+    private static final ImapMessage[] NO_MESSAGES = new ImapMessage[0];
+
+    private ImapMessage[] messages = NO_MESSAGES;
+    private int size;
+
+    /** Item ID to index of the messages whose item ID differs from their UID; built on first use. */
+    private int[] idKeys;
+    private int[] idIndexes;
+    private int idCount;
+
+    private final Map<TagSet, String[]> tagSets = new HashMap<TagSet, String[]>();
+
+    int size() {
+        return size;
+    }
+
+    ImapMessage get(int index) {
+        return messages[index];
+    }
+
+    /**
+     * Binary search for the given IMAP UID.
+     *
+     * @return the index of the UID, or <tt>(-(<i>insertion point</i>) - 1)</tt> if it is not in the sequence
+     */
+    int search(int uid) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midUid = messages[mid].imapUid;
+            if (midUid < uid) {
+                low = mid + 1;
+            } else if (midUid > uid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Returns the index of the last message whose item ID differs from its UID and equals {@code id}, or -1.  A later
+     * message whose item ID and UID are both {@code id} hides earlier entries.
+     */
+    int indexOfId(int id) {
+        if (idKeys == null) {
+            reindex();
+        }
+        int mask = idKeys.length - 1;
+        for (int slot = mix(id) & mask; idKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (idKeys[slot] == id) {
+                return idIndexes[slot];
+            }
+        }
+        return -1;
+    }
+
+    void add(ImapMessage i4msg) {
+        if (size == messages.length) {
+            grow();
+        }
+        store(size++, i4msg);
+        if (idKeys != null) {
+            index(size - 1);
+        }
+    }
+
+    void add(int index, ImapMessage i4msg) {
+        if (size == messages.length) {
+            grow();
+        }
+        System.arraycopy(messages, index, messages, index + 1, size - index);
+        size++;
+        store(index, i4msg);
+        idKeys = null;
+    }
+
+    void set(int index, ImapMessage i4msg) {
+        store(index, i4msg);
+        idKeys = null;
+    }
+
+    ImapMessage remove(int index) {
+        ImapMessage i4msg = messages[index];
+        System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+        messages[--size] = null;
+        idKeys = null;
+        return i4msg;
+    }
+
+    /** Drops every message from {@code newSize} on; used after compacting the sequence in place with {@link #set}. */
+    void truncate(int newSize) {
+        Arrays.fill(messages, newSize, size, null);
+        size = newSize;
+        idKeys = null;
+    }
+
+    /** Interns the message's tags after they changed. */
+    void update(int index) {
+        ImapMessage i4msg = messages[index];
+        i4msg.tags = intern(i4msg.tags);
+    }
+
+    List<ImapMessage> asList() {
+        List<ImapMessage> list = new ArrayList<ImapMessage>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(messages[i]);
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<ImapMessage> iterator() {
+        return new Iterator<ImapMessage>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public ImapMessage next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return messages[next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void store(int index, ImapMessage i4msg) {
+        i4msg.tags = intern(i4msg.tags);
+        messages[index] = i4msg;
+    }
+
+    private void grow() {
+        messages = Arrays.copyOf(messages, Math.max(16, messages.length + (messages.length >> 1)));
+    }
+
+    private String[] intern(String[] tags) {
+        if (tags == null) {
+            return null;
+        }
+        TagSet key = new TagSet(tags);
+        String[] interned = tagSets.get(key);
+        if (interned == null) {
+            tagSets.put(key, tags);
+            interned = tags;
+        }
+        return interned;
+    }
+
+    private void reindex() {
+        idKeys = new int[16];
+        idIndexes = new int[16];
+        idCount = 0;
+        for (int i = 0; i < size; i++) {
+            index(i);
+        }
+    }
+
+    private void index(int index) {
+        ImapMessage i4msg = messages[index];
+        int id = i4msg.msgId;
+        if (id == 0) {
+            return;
+        }
+        if ((idCount + 1) * 2 > idKeys.length) {
+            rehash(idKeys.length * 2);
+        }
+        int value = id == i4msg.imapUid ? -1 : index;
+        int mask = idKeys.length - 1;
+        int slot = mix(id) & mask;
+        while (idKeys[slot] != 0) {
+            if (idKeys[slot] == id) {
+                idIndexes[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (value >= 0) {
+            idKeys[slot] = id;
+            idIndexes[slot] = value;
+            idCount++;
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = idKeys;
+        int[] oldIndexes = idIndexes;
+        idKeys = new int[capacity];
+        idIndexes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (idKeys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                idKeys[slot] = oldKeys[i];
+                idIndexes[slot] = oldIndexes[i];
+            }
+        }
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class TagSet {
+        private final String[] tags;
+        private final int hash;
+
+        TagSet(String[] tags) {
+            this.tags = tags;
+            this.hash = Arrays.hashCode(tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagSet && Arrays.equals(tags, ((TagSet) o).tags);
+        }
+    }
+}
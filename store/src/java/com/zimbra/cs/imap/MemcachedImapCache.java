@@ -17,22 +17,14 @@
 package com.zimbra.cs.imap;
 
 import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 
-import com.google.common.io.Closeables;
-import com.zimbra.common.mailbox.ItemIdentifier;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.common.util.memcached.MemcachedMap;
 import com.zimbra.common.util.memcached.MemcachedSerializer;
-import com.zimbra.cs.io.SecureObjectInputStream;
-import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.memcached.MemcachedConnector;
 import com.zimbra.cs.memcached.MemcachedKeyPrefix;
 
@@ -99,22 +91,12 @@ final class MemcachedImapCache implements ImapSessionManager.Cache<String, ImapF
     }
 
     private static final class ImapMemcachedSerializer implements MemcachedSerializer<ImapFolder> {
-        private Set<String> validClassNames;
-
-        public ImapMemcachedSerializer() {
-            this.validClassNames = new HashSet<String>();
-            this.validClassNames.add(ImapFolder.class.getName());
-            this.validClassNames.add(ItemIdentifier.class.getName());
-            this.validClassNames.add(ImapMessage.class.getName());
-            this.validClassNames.add(ImapFlagCache.class.getName());
-            this.validClassNames.add(MailItem.Type.class.getName());
-        }
 
         @Override
         public Object serialize(ImapFolder folder) throws ServiceException {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
-                oout.writeObject(folder);
+            try {
+                ImapFolderSerializer.write(folder, bout);
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Failed to serialize ImapFolder", e);
             }
@@ -123,15 +105,10 @@ final class MemcachedImapCache implements ImapSessionManager.Cache<String, ImapF
 
         @Override
         public ImapFolder deserialize(Object obj) throws ServiceException {
-            ObjectInputStream in = null;
-
             try {
-                in = new SecureObjectInputStream(new ByteArrayInputStream((byte[]) obj), this.validClassNames);
-                return (ImapFolder) in.readObject();
+                return ImapFolderSerializer.read(new ByteArrayInputStream((byte[]) obj));
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Failed to deserialize ImapFolder", e);
-            } finally {
-                Closeables.closeQuietly(in);
             }
         }
 
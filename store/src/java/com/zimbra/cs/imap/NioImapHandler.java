@@ -24,6 +24,7 @@ import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.server.NioCompressionFilter;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioOutputStream;
@@ -33,6 +34,7 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
     private final ImapConfig config;
     private final NioConnection connection;
     private NioImapRequest request;
+    private NioCompressionFilter compression;
 
     NioImapHandler(NioImapServer server, NioConnection conn) {
         super(server.getConfig());
@@ -170,6 +172,11 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         } finally {
             logout();
         }
+        if (compression != null) {
+            recordCompression(compression.getRawBytesIn(), compression.getWireBytesIn(),
+                    compression.getRawBytesOut(), compression.getWireBytesOut());
+            compression = null;
+        }
     }
 
     @Override
@@ -249,6 +256,12 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         return true;
     }
 
+    @Override
+    protected void startCompression(String tag, int level) throws IOException {
+        compression = connection.startCompression(level);
+        sendOK(tag, "DEFLATE active");
+    }
+
     @Override
     protected InetSocketAddress getLocalAddress() {
         return connection.getLocalAddress();
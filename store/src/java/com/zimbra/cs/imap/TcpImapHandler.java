@@ -18,10 +18,15 @@ package com.zimbra.cs.imap;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -206,7 +211,24 @@ final class TcpImapHandler extends ProtocolHandler {
         return delegate;
     }
 
+    /**
+     * {@link InflaterInputStream#available()} claims there is always more to read until the end of the stream, which
+     * would make a buffered reader block for input the client has not sent yet.
+     */
+    private static final class CompressedInputStream extends InflaterInputStream {
+        CompressedInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inf.needsInput() ? Math.min(in.available(), 1) : 1;
+        }
+    }
+
     private final class HandlerDelegate extends ImapHandler {
+        private Deflater deflater;
+        private Inflater inflater;
 
         HandlerDelegate(ImapConfig config) {
             super(config);
@@ -285,6 +307,15 @@ final class TcpImapHandler extends ProtocolHandler {
                     ZimbraLog.imap.debug("TCP:I/O error while closing connection: %s", e);
                 }
             } finally {
+                // the zlib streams hold native memory, so free them even when closing the streams failed
+                if (deflater != null) {
+                    recordCompression(inflater.getBytesWritten(), inflater.getBytesRead(),
+                            deflater.getBytesRead(), deflater.getBytesWritten());
+                    deflater.end();
+                    inflater.end();
+                    deflater = null;
+                    inflater = null;
+                }
                 ZimbraLog.clearContext();
             }
         }
@@ -351,6 +382,16 @@ final class TcpImapHandler extends ProtocolHandler {
             return true;
         }
 
+        @Override
+        protected void startCompression(String tag, int level) throws IOException {
+            sendOK(tag, "DEFLATE active");
+            deflater = new Deflater(level, true);
+            inflater = new Inflater(true);
+            // layered over the current streams, so any TLS or SASL security layer stays underneath
+            input = new TcpServerInputStream(new CompressedInputStream(input, inflater));
+            output = new BufferedOutputStream(new DeflaterOutputStream(output, deflater, true));
+        }
+
         @Override
         protected InetSocketAddress getLocalAddress() {
             return (InetSocketAddress) socket.getLocalSocketAddress();
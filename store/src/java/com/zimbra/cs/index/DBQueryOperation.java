@@ -1021,7 +1021,7 @@ public class DBQueryOperation extends QueryOperation {
         if (offsetConstraints != null) {
             assert cursorOffset < 0 : cursorOffset;
             Mailbox mbox = context.getMailbox();
-            DbConnection conn = DbPool.getConnection(mbox);
+            DbConnection conn = DbPool.getReadConnection(mbox);
             try {
                 cursorOffset = new DbSearch(mbox, context.getParams().inDumpster()).countResults(conn, offsetConstraints);
             } finally {
@@ -1252,7 +1252,7 @@ public class DBQueryOperation extends QueryOperation {
     int getDbHitCount() throws ServiceException {
         if (dbHitCount < 0) {
             Mailbox mbox = context.getMailbox();
-            DbConnection conn = DbPool.getConnection(mbox);
+            DbConnection conn = DbPool.getReadConnection(mbox);
             try {
                 dbHitCount = new DbSearch(mbox, context.getParams().inDumpster()).countResults(conn, constraints);
             } finally {
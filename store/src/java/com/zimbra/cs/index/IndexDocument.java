@@ -16,9 +16,19 @@
  */
 package com.zimbra.cs.index;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CachingTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
 
 import com.google.common.base.Strings;
 import com.zimbra.cs.index.analysis.FieldTokenStream;
@@ -45,6 +55,50 @@ public final class IndexDocument {
         return document;
     }
 
+    /**
+     * Runs the analyzer over all tokenized fields up front and caches the resulting tokens in the fields, so that
+     * {@link org.apache.lucene.index.IndexWriter#addDocument(Document)} merely replays them. This moves the expensive
+     * part of indexing out of the mailbox lock. Fields that already carry a {@link TokenStream} are left untouched.
+     * <p>
+     * Cached tokens take several times the memory of the text they came from, so a document whose tokenized string
+     * fields add up to more than {@code maxChars} characters, or that has a field backed by a {@link Reader}, is left
+     * alone and analyzed while it is added, as before.
+     *
+     * @param analyzer the analyzer the index writer is configured with
+     * @param maxChars largest document, in characters of tokenized text, to analyze up front
+     * @return whether the document was analyzed
+     */
+    public boolean preAnalyze(Analyzer analyzer, int maxChars) throws IOException {
+        List<Field> fields = new ArrayList<Field>();
+        long chars = 0;
+        for (Fieldable fieldable : document.getFields()) {
+            if (!(fieldable instanceof Field) || !fieldable.isIndexed() || !fieldable.isTokenized() ||
+                    fieldable.tokenStreamValue() != null) {
+                continue;
+            }
+            String value = fieldable.stringValue();
+            if (fieldable.readerValue() != null) {
+                return false;
+            } else if (value == null) {
+                continue;
+            }
+            chars += value.length();
+            if (chars > maxChars) {
+                return false;
+            }
+            fields.add((Field) fieldable);
+        }
+        for (Field field : fields) {
+            TokenStream source = analyzer.tokenStream(field.name(), new StringReader(field.stringValue()));
+            source.reset();
+            CachingTokenFilter cache = new CachingTokenFilter(source);
+            cache.incrementToken(); // the first call consumes the whole source stream
+            cache.reset();
+            field.setTokenStream(cache);
+        }
+        return true;
+    }
+
     public void addMimeType(MimeTypeTokenStream stream) {
         document.add(new Field(LuceneFields.L_MIMETYPE, stream));
     }
@@ -45,7 +45,9 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.util.SharedByteArrayInputStream;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.calendar.ICalTimeZone;
 import com.zimbra.common.calendar.ParsedDateTime;
@@ -549,9 +551,10 @@ public abstract class CalendarItem extends MailItem {
         CalendarItem item = type == Type.APPOINTMENT ? new Appointment(mbox, data) : new Task(mbox, data);
         Invite defInvite = item.getDefaultInviteOrNull();
         if (defInvite != null) {
-            Collection<Instance> instances =
-                    item.expandInstances(CalendarUtils.MICROSOFT_EPOC_START_MS_SINCE_EPOC, Long.MAX_VALUE, false);
-            if (instances.isEmpty()) {
+            // only need to know there is at least one instance, so don't expand the whole series
+            Iterator<Instance> instances =
+                    item.instanceIterator(CalendarUtils.MICROSOFT_EPOC_START_MS_SINCE_EPOC, Long.MAX_VALUE);
+            if (!instances.hasNext()) {
                 ZimbraLog.calendar.info("CalendarItem has effectively zero instances: id=%d, folderId=%d, subject=\"%s\", UID=%s ",
                         data.id, folder.getId(), firstInvite.isPublic() ? firstInvite.getName() : "(private)", firstInvite.getUid());
                 item.delete();
@@ -974,6 +977,8 @@ public abstract class CalendarItem extends MailItem {
         List<Instance> instances = new ArrayList<Instance>();
         if (mRecurrence != null) {
             long startTime = System.currentTimeMillis();
+            // the list expansion drops a rule whose bad data only shows up partway through the range, where the
+            // iterator would return the instances found before it
             instances = Recurrence.expandInstances(mRecurrence, getId(), start, endAdjusted);
             if (ZimbraLog.calendar.isDebugEnabled()) {
                 long elapsed = System.currentTimeMillis() - startTime;
@@ -1024,6 +1029,25 @@ public abstract class CalendarItem extends MailItem {
         return instances;
     }
 
+    /**
+     * Returns the instances overlapping the time period from start to end, in start time order.  The recurrence
+     * is expanded only as far as the caller iterates, so prefer this over {@link #expandInstances} when only the
+     * first few instances are needed.  Unlike {@link #expandInstances}, a rule with bad data found partway through
+     * the range yields the instances before that point instead of none.
+     */
+    public Iterator<Instance> instanceIterator(final long start, final long end) throws ServiceException {
+        if (mRecurrence == null) {
+            return expandInstances(start, end, false).iterator();
+        }
+        return Iterators.filter(Recurrence.instanceIterator(mRecurrence, getId(), start, end),
+                new Predicate<Instance>() {
+                    @Override
+                    public boolean apply(Instance inst) {
+                        return !inst.hasStart() || !inst.hasEnd() || (inst.getEnd() > start && inst.getStart() < end);
+                    }
+                });
+    }
+
     public static class Instance implements Comparable<Instance> {
         private final boolean mHasStart;
         private final boolean mHasEnd;
@@ -398,7 +398,7 @@ public class ContactAutoComplete {
 
     public AutoCompleteResult resolveEmailAddr(String str) throws ServiceException {
            AutoCompleteResult result = new AutoCompleteResult(1);
-           result.rankings = new ContactRankings(getRequestedAcctId());
+           result.rankings = ContactRankings.getInstance(getRequestedAcctId());
            for (String addr : mRequestedAcct.getAllAddrsSet()) {
                if (addr.equals(str)) {
                   ContactEntry entry = new ContactEntry();
@@ -413,7 +413,7 @@ public class ContactAutoComplete {
         ZimbraLog.gal.debug("AutoComplete querying: %s", str);
         str = str.toLowerCase();
         AutoCompleteResult result = new AutoCompleteResult(limit);
-        result.rankings = new ContactRankings(getRequestedAcctId());
+        result.rankings = ContactRankings.getInstance(getRequestedAcctId());
         if (limit <= 0) {
             return result;
         }
@@ -16,12 +16,18 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import javax.mail.Address;
@@ -30,59 +36,62 @@ import javax.mail.internet.InternetAddress;
 import com.zimbra.common.account.Key;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.ContactAutoComplete.ContactEntry;
 
+/**
+ * Per-account table of the addresses the user sends to most, consulted by
+ * autocomplete on every keystroke.  Readers search an immutable prefix index
+ * without locking; updates build a new index under the instance lock and
+ * publish it once it has been saved.  The table is stored in the mailbox
+ * config as a single packed binary blob.
+ */
 public class ContactRankings {
     private static final String CONFIG_KEY_CONTACT_RANKINGS = "CONTACT_RANKINGS";
     private static final String KEY_NAME = "n";
     private static final String KEY_RANKING = "r";
     private static final String KEY_LAST_ACCESSED = "t";
+    private static final String KEY_PACKED = "p";
+    private static final byte PACKED_VERSION = 1;
+
+    private final String mAccountId;
+    private volatile Index mIndex = Index.EMPTY;
 
-    private int mTableSize;
-    private String mAccountId;
-    private TreeMap<String,TreeSet<ContactEntry>> mEntryMap;
-    private HashMap<String,ContactEntry> mEntries;
     public ContactRankings(String accountId) throws ServiceException {
         mAccountId = accountId;
-        mEntryMap = new TreeMap<String,TreeSet<ContactEntry>>();
-        mEntries = new HashMap<String,ContactEntry>();
-        mTableSize = Provisioning.getInstance().get(Key.AccountBy.id, mAccountId).getIntAttr(Provisioning.A_zimbraContactRankingTableSize, 40);
         if (!LC.contact_ranking_enabled.booleanValue())
             return;
         readFromDatabase();
     }
+
+    /**
+     * Returns the rankings cached on the account's mailbox, loading them from
+     * the database on first use.
+     */
+    public static ContactRankings getInstance(String accountId) throws ServiceException {
+        if (!LC.contact_ranking_enabled.booleanValue())
+            return new ContactRankings(accountId);
+        return MailboxManager.getInstance().getMailboxByAccountId(accountId).getContactRankings();
+    }
+
     public static void reset(String accountId) throws ServiceException {
         if (!LC.contact_ranking_enabled.booleanValue())
             return;
-        ContactRankings rankings = new ContactRankings(accountId);
-        rankings.mEntryMap.clear();
-        rankings.mEntries.clear();
-        rankings.writeToDatabase();
+        getInstance(accountId).update(new HashMap<String,ContactEntry>());
     }
     public static void remove(String accountId, String email) throws ServiceException {
         if (!LC.contact_ranking_enabled.booleanValue())
             return;
-        ContactRankings rankings = new ContactRankings(accountId);
-        ContactEntry entry = rankings.mEntries.get(email.toLowerCase());
-        if (entry != null)
-            rankings.remove(entry);
-        rankings.writeToDatabase();
+        getInstance(accountId).remove(email);
     }
 
     public static void increment(String accountId, Collection<? extends Address> addrs) throws ServiceException {
         if (!LC.contact_ranking_enabled.booleanValue())
             return;
-        ContactRankings rankings = new ContactRankings(accountId);
-        for (Address addr : addrs)
-            if (addr instanceof InternetAddress) {
-                InternetAddress address = (InternetAddress)addr;
-                rankings.increment(address.getAddress(), address.getPersonal());
-            }
-
-        rankings.writeToDatabase();
+        getInstance(accountId).incrementAll(addrs);
     }
 
     public static void increment(String accountId, Address[] addrs) throws ServiceException {
@@ -91,125 +100,178 @@ public class ContactRankings {
         increment(accountId, addrSet);
     }
 
-    public synchronized void increment(String email, String displayName) {
+    private synchronized void remove(String email) throws ServiceException {
+        Map<String,ContactEntry> entries = new HashMap<String,ContactEntry>(mIndex.entries);
+        if (entries.remove(email.toLowerCase()) != null)
+            update(entries);
+    }
+
+    private synchronized void incrementAll(Collection<? extends Address> addrs) throws ServiceException {
+        Map<String,ContactEntry> entries = new HashMap<String,ContactEntry>(mIndex.entries);
+        int tableSize = getTableSize();
         long now = System.currentTimeMillis();
+        for (Address addr : addrs)
+            if (addr instanceof InternetAddress) {
+                InternetAddress address = (InternetAddress)addr;
+                increment(entries, tableSize, now, address.getAddress(), address.getPersonal());
+            }
+        update(entries);
+    }
+
+    public synchronized void increment(String email, String displayName) throws ServiceException {
+        Map<String,ContactEntry> entries = new HashMap<String,ContactEntry>(mIndex.entries);
+        increment(entries, getTableSize(), System.currentTimeMillis(), email, displayName);
+        update(entries);
+    }
+
+    /**
+     * Applies one sent-to address to a private copy of the table.  Entries in
+     * the published index are never modified; changed ones are replaced.
+     */
+    private static void increment(Map<String,ContactEntry> entries, int tableSize, long now,
+            String email, String displayName) {
         email = email.toLowerCase();
-        ContactEntry entry = mEntries.get(email.toLowerCase());
+        ContactEntry entry = entries.get(email);
         if (entry == null) {
-            entry = new ContactEntry();
-            entry.mEmail = email;
-            entry.setName(displayName);
-            entry.mRanking = 1;
-            entry.mFolderId = ContactAutoComplete.FOLDER_ID_UNKNOWN;
-            entry.mLastAccessed = now;
-
-            if (mEntries.size() >= mTableSize) {
-                ContactEntry lastEntry = getSortedSet().last();
+            entry = newEntry(email, displayName, 1, now);
+
+            if (entries.size() >= tableSize) {
+                ContactEntry lastEntry = new TreeSet<ContactEntry>(entries.values()).last();
                 if (lastEntry.mRanking < 1)
-                    remove(lastEntry);
+                    entries.remove(lastEntry.mEmail);
             }
 
-            if (mEntries.size() < mTableSize) {
-                add(entry);
+            if (entries.size() < tableSize) {
+                entries.put(email, entry);
             } else {
-                for (ContactEntry e : mEntries.values()) {
-                    int weeksOld = (int) ((now - e.mLastAccessed) / Constants.MILLIS_PER_WEEK) + 1;
-                    e.mRanking -= weeksOld;
-                    if (e.mRanking < 0)
-                        e.mRanking = 0;
+                for (Map.Entry<String,ContactEntry> e : entries.entrySet()) {
+                    ContactEntry old = e.getValue();
+                    int weeksOld = (int) ((now - old.mLastAccessed) / Constants.MILLIS_PER_WEEK) + 1;
+                    e.setValue(newEntry(old.mEmail, old.mDisplayName, Math.max(old.mRanking - weeksOld, 0),
+                            old.mLastAccessed));
                 }
             }
         } else {
-            entry.mRanking++;
-            if (entry.mRanking <= 0)
-                entry.mRanking = 1;
-            if (displayName != null && displayName.length() > 0)
-                entry.setName(displayName);
-            entry.mLastAccessed = now;
+            String name = displayName != null && displayName.length() > 0 ? displayName : entry.mDisplayName;
+            entries.put(email, newEntry(email, name, Math.max(entry.mRanking + 1, 1), now));
         }
     }
+
+    private static ContactEntry newEntry(String email, String displayName, int ranking, long lastAccessed) {
+        ContactEntry entry = new ContactEntry();
+        entry.mEmail = email;
+        entry.setName(displayName);
+        entry.mRanking = ranking;
+        entry.mFolderId = ContactAutoComplete.FOLDER_ID_UNKNOWN;
+        entry.mLastAccessed = lastAccessed;
+        return entry;
+    }
+
+    private int getTableSize() throws ServiceException {
+        return Provisioning.getInstance().get(Key.AccountBy.id, mAccountId).getIntAttr(Provisioning.A_zimbraContactRankingTableSize, 40);
+    }
+
     public int query(String email) {
-        ContactEntry entry = mEntries.get(email.toLowerCase());
+        ContactEntry entry = mIndex.entries.get(email.toLowerCase());
         if (entry != null)
             return entry.mRanking;
         return 0;
     }
-    public synchronized Collection<ContactEntry> search(String str) {
+
+    /**
+     * Returns the entries whose address, display name or last name starts
+     * with <tt>str</tt>, highest ranked first.  The returned entries are
+     * shared with the index and must not be modified.
+     */
+    public Collection<ContactEntry> search(String str) {
+        Index index = mIndex;
+        String prefix = str.toLowerCase();
         TreeSet<ContactEntry> entries = new TreeSet<ContactEntry>();
-        int len = str.length();
-        for (String k : mEntryMap.tailMap(str).keySet()) {
-            if (k.length() >= len &&
-                    k.substring(0, len).equalsIgnoreCase(str)) {
-                entries.addAll(mEntryMap.get(k));
-            } else
-                break;
-        }
+        for (int i = index.lowerBound(prefix); i < index.keys.length && index.keys[i].startsWith(prefix); i++)
+            entries.add(index.targets[i]);
         return entries;
     }
-    private synchronized TreeSet<ContactEntry> getSortedSet() {
-        return new TreeSet<ContactEntry>(mEntries.values());
+    private TreeSet<ContactEntry> getSortedSet() {
+        return new TreeSet<ContactEntry>(mIndex.entries.values());
     }
+
+    /** Saves the new table and then publishes it to readers. */
+    private synchronized void update(Map<String,ContactEntry> entries) throws ServiceException {
+        Index index = new Index(entries);
+        writeToDatabase(index);
+        mIndex = index;
+        dump("writing");
+    }
+
     private synchronized void readFromDatabase() throws ServiceException {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(mAccountId);
         Metadata config = mbox.getConfig(null, CONFIG_KEY_CONTACT_RANKINGS);
+        Map<String,ContactEntry> entries = new HashMap<String,ContactEntry>();
         if (config == null) {
-            config = new Metadata();
-            mbox.setConfig(null, CONFIG_KEY_CONTACT_RANKINGS, config);
-        }
-        for (Map.Entry<Object, Object> entry : config.map.entrySet()) {
-            if (entry.getValue() instanceof Map) {
-                Map<?, ?> m = (Map<?, ?>) entry.getValue();
-                ContactEntry contact = new ContactEntry();
-                contact.mEmail = ((String) entry.getKey()).toLowerCase();
-                Long num = (Long) m.get(KEY_RANKING);
-                contact.mRanking = num.intValue();
-                num = (Long) m.get(KEY_LAST_ACCESSED);
-                contact.mLastAccessed = num.longValue();
-                contact.setName((String) m.get(KEY_NAME));
-                contact.mFolderId = ContactAutoComplete.FOLDER_ID_UNKNOWN;
-                add(contact);
+            // nothing ranked yet
+        } else if (config.containsKey(KEY_PACKED)) {
+            try {
+                unpack(ByteUtil.decodeFSSafeBase64(config.get(KEY_PACKED)), entries);
+            } catch (IOException e) {
+                ZimbraLog.gal.warn("discarding unreadable contact rankings for account %s", mAccountId, e);
+                entries.clear();
+            }
+        } else {
+            // table saved as nested metadata before the packed format was introduced
+            for (Map.Entry<Object, Object> entry : config.map().entrySet()) {
+                if (entry.getValue() instanceof Map) {
+                    Map<?, ?> m = (Map<?, ?>) entry.getValue();
+                    String email = ((String) entry.getKey()).toLowerCase();
+                    Long ranking = (Long) m.get(KEY_RANKING);
+                    Long lastAccessed = (Long) m.get(KEY_LAST_ACCESSED);
+                    entries.put(email, newEntry(email, (String) m.get(KEY_NAME), ranking.intValue(),
+                            lastAccessed.longValue()));
+                }
             }
         }
+        mIndex = new Index(entries);
         dump("reading");
     }
-    private synchronized void writeToDatabase() throws ServiceException {
+    private void writeToDatabase(Index index) throws ServiceException {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(mAccountId);
         Metadata config = new Metadata();
-        for (ContactEntry entry : getSortedSet()) {
-            Metadata m = new Metadata();
-            m.put(KEY_RANKING, entry.mRanking);
-            if (entry.mDisplayName != null)
-                m.put(KEY_NAME, entry.mDisplayName);
-            m.put(KEY_LAST_ACCESSED, entry.mLastAccessed);
-            config.put(entry.mEmail, m);
-        }
+        config.put(KEY_PACKED, ByteUtil.encodeFSSafeBase64(pack(index.entries.values())));
         mbox.setConfig(null, CONFIG_KEY_CONTACT_RANKINGS, config);
-        dump("writing");
     }
-    private synchronized TreeSet<ContactEntry> get(String str) {
-        TreeSet<ContactEntry> val = mEntryMap.get(str.toLowerCase());
-        if (val == null) {
-            val = new TreeSet<ContactEntry>();
-            mEntryMap.put(str.toLowerCase(), val);
+
+    private static byte[] pack(Collection<ContactEntry> entries) throws ServiceException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 48 + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(PACKED_VERSION);
+            out.writeInt(entries.size());
+            for (ContactEntry entry : entries) {
+                out.writeUTF(entry.mEmail);
+                out.writeUTF(entry.mDisplayName);
+                out.writeInt(entry.mRanking);
+                out.writeLong(entry.mLastAccessed);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("encoding contact rankings", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void unpack(byte[] packed, Map<String,ContactEntry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        byte version = in.readByte();
+        if (version != PACKED_VERSION)
+            throw new IOException("unknown contact rankings version " + version);
+        for (int count = in.readInt(); count > 0; count--) {
+            String email = in.readUTF();
+            String name = in.readUTF();
+            int ranking = in.readInt();
+            long lastAccessed = in.readLong();
+            entries.put(email, newEntry(email, name, ranking, lastAccessed));
         }
-        return val;
-    }
-    private synchronized void add(ContactEntry entry) {
-        get(entry.mEmail).add(entry);
-        if (entry.mDisplayName.length() > 0)
-            get(entry.mDisplayName).add(entry);
-        if (entry.mLastName.length() > 0)
-            get(entry.mLastName).add(entry);
-        mEntries.put(entry.mEmail.toLowerCase(), entry);
-    }
-    private synchronized void remove(ContactEntry entry) {
-        get(entry.mEmail).remove(entry);
-        if (entry.mDisplayName.length() > 0)
-            get(entry.mDisplayName).remove(entry);
-        if (entry.mLastName.length() > 0)
-            get(entry.mLastName).remove(entry);
-        mEntries.remove(entry.mEmail.toLowerCase());
     }
+
     private void dump(String action) {
         if (ZimbraLog.gal.isDebugEnabled()) {
             StringBuilder buf = new StringBuilder(action + " contact rankings");
@@ -221,5 +283,65 @@ public class ContactRankings {
             ZimbraLog.gal.debug(buf.toString());
         }
     }
-}
 
+    /**
+     * Immutable snapshot of the table: the entries by address plus a sorted
+     * array of every lowercased address, display name and last name, each
+     * paired with its entry, so a prefix lookup is a binary search followed
+     * by a scan of the matching run.
+     */
+    private static final class Index {
+        static final Index EMPTY = new Index(Collections.<String,ContactEntry>emptyMap());
+
+        final Map<String,ContactEntry> entries;
+        final String[] keys;
+        final ContactEntry[] targets;
+
+        Index(Map<String,ContactEntry> entries) {
+            this.entries = entries;
+            List<IndexKey> index = new ArrayList<IndexKey>(entries.size() * 3);
+            for (ContactEntry entry : entries.values()) {
+                index.add(new IndexKey(entry.mEmail, entry));
+                if (entry.mDisplayName.length() > 0)
+                    index.add(new IndexKey(entry.mDisplayName.toLowerCase(), entry));
+                if (entry.mLastName.length() > 0)
+                    index.add(new IndexKey(entry.mLastName.toLowerCase(), entry));
+            }
+            Collections.sort(index);
+            keys = new String[index.size()];
+            targets = new ContactEntry[index.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = index.get(i).key;
+                targets[i] = index.get(i).entry;
+            }
+        }
+
+        /** Returns the position of the first key not less than <tt>prefix</tt>. */
+        int lowerBound(String prefix) {
+            int low = 0, high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(prefix) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+    }
+
+    private static final class IndexKey implements Comparable<IndexKey> {
+        final String key;
+        final ContactEntry entry;
+
+        IndexKey(String key, ContactEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(IndexKey other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
@@ -308,10 +308,12 @@ public class Conversation extends MailItem {
 
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, this);
+        mMailbox.getThreaderCache().opened(hash, getId());
     }
 
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, this);
+        mMailbox.getThreaderCache().closed(hash, getId());
     }
 
     @Override
@@ -745,6 +747,7 @@ public class Conversation extends MailItem {
         }
         DbMailItem.reparentChildren(other, this);
         DbMailItem.changeOpenTargets(other, getId());
+        mMailbox.getThreaderCache().retargeted(other, getId());
 
         recalculateMetadata();
 
@@ -0,0 +1,357 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.util.BEncoding;
+
+/**
+ * Read-only view of a BEncoded dictionary that indexes its keys without decoding any values.
+ * <p>
+ * Indexing walks the encoded string once, validating it and recording where each key and value starts; no
+ * substrings, maps or boxed numbers are created. Values are decoded from the original string when they are read,
+ * and nested dictionaries are handed out as views of their own. Only the strict form written by
+ * {@link BEncoding#encode} is indexed: anything else makes {@link #index} return {@code null} so that the caller
+ * can fall back to {@link BEncoding#decode}, which keeps the behavior for legacy or corrupt data unchanged.
+ */
+final class EncodedMetadata {
+    private static final int INITIAL_CAPACITY = 8;
+    // longest run of digits that always fits in an int
+    private static final int MAX_LENGTH_DIGITS = 9;
+    private static final String MAX_LONG = Long.toString(Long.MAX_VALUE);
+    private static final String MIN_LONG_MAGNITUDE = Long.toString(Long.MIN_VALUE).substring(1);
+
+    private final String data;
+    private final String skipKey;
+    // for entry i: key starts at entries[4i] with length entries[4i+1], value spans [entries[4i+2], entries[4i+3])
+    private int[] entries = new int[INITIAL_CAPACITY * 4];
+    private int size;
+    // keys written by BEncoding.encode are sorted, which allows binary search and rules out duplicates
+    private boolean sorted = true;
+
+    private EncodedMetadata(String data, String skipKey) {
+        this.data = data;
+        this.skipKey = skipKey;
+    }
+
+    /**
+     * Indexes the dictionary that makes up all of {@code data}, leaving out {@code skipKey} if not {@code null}.
+     *
+     * @return the index, or {@code null} if {@code data} is not a dictionary in strict BEncoding form
+     */
+    static EncodedMetadata index(String data, String skipKey) {
+        EncodedMetadata index = new EncodedMetadata(data, skipKey);
+        return index.scan(0) == data.length() ? index : null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) >= 0;
+    }
+
+    /**
+     * Returns the value's string form as {@link Object#toString()} of the decoded value would, or {@code null}.
+     */
+    String getString(String key) {
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+        int start = entries[i * 4 + 2];
+        int end = entries[i * 4 + 3];
+        char c = data.charAt(start);
+        if (c >= '0' && c <= '9') {
+            return data.substring(data.indexOf(':', start) + 1, end);
+        } else if (c == 'i') {
+            return Long.toString(parseLong(start + 1, end - 1));
+        }
+        return decode(start, new int[1]).toString();
+    }
+
+    /**
+     * Returns the decoded value, or {@code null}.
+     */
+    Object get(String key) {
+        int i = find(key);
+        return i < 0 ? null : decode(entries[i * 4 + 2], new int[1]);
+    }
+
+    /**
+     * Returns a view of the nested dictionary, or {@code null} if the value is missing or is not a dictionary.
+     */
+    EncodedMetadata getMap(String key) {
+        int i = find(key);
+        if (i < 0 || data.charAt(entries[i * 4 + 2]) != 'd') {
+            return null;
+        }
+        EncodedMetadata nested = new EncodedMetadata(data, null);
+        // the range was already validated while indexing the parent, but keys may be non-strings
+        return nested.scan(entries[i * 4 + 2]) == entries[i * 4 + 3] ? nested : null;
+    }
+
+    /**
+     * Decodes all entries into a new map, the same way {@link BEncoding#decode} would.
+     */
+    Map<Object, Object> toMap() {
+        Map<Object, Object> map = new HashMap<Object, Object>(Math.max(size * 4 / 3 + 1, 16));
+        int[] next = new int[1];
+        for (int i = 0; i < size; i++) {
+            int k = i * 4;
+            map.put(data.substring(entries[k], entries[k] + entries[k + 1]), decode(entries[k + 2], next));
+        }
+        return map;
+    }
+
+    private int find(String key) {
+        if (sorted) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareKey(mid, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (entries[i * 4 + 1] == key.length() && data.regionMatches(entries[i * 4], key, 0, key.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the key of entry {@code i} with {@code key} as {@link String#compareTo} would. */
+    private int compareKey(int i, String key) {
+        return compareRegions(entries[i * 4], entries[i * 4 + 1], key, 0, key.length());
+    }
+
+    private static int compareRegions(String a, int aStart, int aLength, String b, int bStart, int bLength) {
+        int n = Math.min(aLength, bLength);
+        for (int j = 0; j < n; j++) {
+            char ca = a.charAt(aStart + j);
+            char cb = b.charAt(bStart + j);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private int compareRegions(int aStart, int aLength, String b, int bStart, int bLength) {
+        return compareRegions(data, aStart, aLength, b, bStart, bLength);
+    }
+
+    /**
+     * Indexes the dictionary at {@code pos}, returning the offset just past it or -1 if it cannot be indexed.
+     */
+    private int scan(int pos) {
+        int end = data.length();
+        if (pos >= end || data.charAt(pos) != 'd') {
+            return -1;
+        }
+        pos++;
+        while (pos < end) {
+            char c = data.charAt(pos);
+            if (c == 'e') {
+                return pos + 1;
+            } else if (c < '0' || c > '9') {
+                return -1; // not a string key
+            }
+            int colon = skipDigits(pos, MAX_LENGTH_DIGITS);
+            if (colon < 0 || data.charAt(colon) != ':') {
+                return -1;
+            }
+            int keyLength = (int) parseLong(pos, colon);
+            int keyStart = colon + 1;
+            int valueStart = keyStart + keyLength;
+            if (valueStart >= end || valueStart < 0 || data.charAt(valueStart) == 'e') {
+                return -1;
+            }
+            pos = skip(valueStart);
+            if (pos < 0) {
+                return -1;
+            }
+            if (skipKey == null || keyLength != skipKey.length() ||
+                    !data.regionMatches(keyStart, skipKey, 0, keyLength)) {
+                add(keyStart, keyLength, valueStart, pos);
+            }
+        }
+        return -1;
+    }
+
+    private void add(int keyStart, int keyLength, int valueStart, int valueEnd) {
+        int i = size;
+        if (size > 0) {
+            int last = (size - 1) * 4;
+            int cmp = sorted ? compareRegions(data, entries[last], entries[last + 1], data, keyStart, keyLength) : 1;
+            if (cmp == 0) {
+                i = size - 1;
+            } else if (cmp > 0) {
+                // out of order, so duplicates are possible: later values win, as with HashMap.put()
+                sorted = false;
+                for (int j = 0; j < size; j++) {
+                    if (entries[j * 4 + 1] == keyLength &&
+                            data.regionMatches(entries[j * 4], data, keyStart, keyLength)) {
+                        i = j;
+                        break;
+                    }
+                }
+            }
+        }
+        if (i == size) {
+            if (entries.length == size * 4) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            size++;
+        }
+        entries[i * 4] = keyStart;
+        entries[i * 4 + 1] = keyLength;
+        entries[i * 4 + 2] = valueStart;
+        entries[i * 4 + 3] = valueEnd;
+    }
+
+    /**
+     * Validates the value at {@code pos}, returning the offset just past it or -1.
+     */
+    private int skip(int pos) {
+        int end = data.length();
+        if (pos >= end) {
+            return -1;
+        }
+        char c = data.charAt(pos);
+        if (c == 'd' || c == 'l') {
+            boolean dict = c == 'd';
+            pos++;
+            while (pos < end) {
+                if (data.charAt(pos) == 'e') {
+                    return pos + 1;
+                }
+                pos = skip(pos);
+                if (pos < 0) {
+                    return -1;
+                }
+                if (dict) {
+                    if (pos >= end || data.charAt(pos) == 'e') {
+                        return -1; // missing dictionary value
+                    }
+                    pos = skip(pos);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        } else if (c == 'i') {
+            int digits = pos + 1;
+            boolean negative = digits < end && data.charAt(digits) == '-';
+            if (negative) {
+                digits++;
+            }
+            String limit = negative ? MIN_LONG_MAGNITUDE : MAX_LONG;
+            int e = skipDigits(digits, limit.length());
+            if (e < 0 || data.charAt(e) != 'e') {
+                return -1;
+            }
+            // as many digits as the limit: compare them, which is enough to rule out overflow
+            if (e - digits == limit.length() && compareRegions(digits, limit.length(), limit, 0, limit.length()) > 0) {
+                return -1;
+            }
+            return e + 1;
+        } else if (c >= '0' && c <= '9') {
+            int colon = skipDigits(pos, MAX_LENGTH_DIGITS);
+            if (colon < 0 || data.charAt(colon) != ':') {
+                return -1;
+            }
+            long next = colon + 1 + parseLong(pos, colon);
+            return next <= end ? (int) next : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the first non-digit after at least one and at most {@code max} digits, or -1.
+     */
+    private int skipDigits(int pos, int max) {
+        int end = Math.min(data.length(), pos + max + 1);
+        int i = pos;
+        while (i < end && data.charAt(i) >= '0' && data.charAt(i) <= '9') {
+            i++;
+        }
+        return i == pos || i == end ? -1 : i;
+    }
+
+    private long parseLong(int start, int end) {
+        boolean negative = data.charAt(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (data.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes the already validated value at {@code pos}, leaving the offset just past it in {@code next[0]}.
+     */
+    private Object decode(int pos, int[] next) {
+        char c = data.charAt(pos);
+        if (c == 'd') {
+            Map<String, Object> map = new HashMap<String, Object>();
+            pos++;
+            while (data.charAt(pos) != 'e') {
+                Object key = decode(pos, next);
+                Object value = decode(next[0], next);
+                map.put(key.toString(), value);
+                pos = next[0];
+            }
+            next[0] = pos + 1;
+            return map;
+        } else if (c == 'l') {
+            List<Object> list = new ArrayList<Object>();
+            pos++;
+            while (data.charAt(pos) != 'e') {
+                list.add(decode(pos, next));
+                pos = next[0];
+            }
+            next[0] = pos + 1;
+            return list;
+        } else if (c == 'i') {
+            int e = data.indexOf('e', pos);
+            next[0] = e + 1;
+            return Long.valueOf(parseLong(pos + 1, e));
+        } else {
+            int colon = data.indexOf(':', pos);
+            int start = colon + 1;
+            next[0] = start + (int) parseLong(pos, colon);
+            return data.substring(start, next[0]);
+        }
+    }
+}
@@ -1688,14 +1688,32 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         return mbox.getItem(DbMailItem.getByUuid(mbox, uuid, type, fromDumpster));
     }
 
-    static List<MailItem> getById(Mailbox mbox, Collection<Integer> ids, Type type) throws ServiceException {
+    static List<MailItem> getById(final Mailbox mbox, Collection<Integer> ids, Type type) throws ServiceException {
         if (ids == null || ids.isEmpty()) {
             return Collections.emptyList();
         }
-        List<MailItem> items = new ArrayList<MailItem>();
-        for (UnderlyingData ud : DbMailItem.getById(mbox, ids, type)) {
-            items.add(mbox.getItem(ud));
-        }
+        final List<MailItem> items = new ArrayList<MailItem>(ids.size());
+        DbMailItem.visitById(mbox, ids, type, false, new DbMailItem.ItemVisitor() {
+            @Override
+            public void visit(UnderlyingData data) throws ServiceException {
+                items.add(mbox.getItem(data));
+            }
+        });
+        return items;
+    }
+
+    /**
+     * Loads the items with the given ids in bulk, keyed by id. Ids that do not exist are left out of the map.
+     */
+    static Map<Integer, MailItem> getByIdMap(final Mailbox mbox, Collection<Integer> ids, Type type,
+            boolean fromDumpster) throws ServiceException {
+        final Map<Integer, MailItem> items = Maps.newHashMapWithExpectedSize(ids.size());
+        DbMailItem.visitById(mbox, ids, type, fromDumpster, new DbMailItem.ItemVisitor() {
+            @Override
+            public void visit(UnderlyingData data) throws ServiceException {
+                items.put(data.id, mbox.getItem(data));
+            }
+        });
         return items;
     }
 
@@ -2751,6 +2769,10 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         ZimbraLog.mailop.info("Performing IMAP copy of %s: copyId=%d, folderId=%d, folderName=%s, parentId=%d.",
             getMailopContext(this), copyId, target.getId(), target.getName(), data.parentId);
         DbMailItem.icopy(this, data, shareIndex);
+        if (this instanceof Message && getParentId() <= 0) {
+            // DbMailItem.icopy moved our open conversation hashes to the copy
+            mMailbox.getThreaderCache().retargeted(this, copyId);
+        }
 
         MailItem copy = constructItem(mMailbox, data);
         copy.finishCreation(null);
@@ -3190,21 +3212,23 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
                 item.propagateDeletion(info);
             } else {
                 // update message counts
-                List<UnderlyingData> unreadData = DbMailItem.getById(mbox, info.unreadIds, Type.MESSAGE);
-                for (UnderlyingData data : unreadData) {
-                    // Note: Previous code was: MailItem unread = mbox.getItem(data.setFlag(Flag.FlagInfo.UNCACHED));
-                    //
-                    // We used to mark "data" as uncached, but that was only causing more SQL queries to be run
-                    // because of virtual conversation logic.  A message that doesn't belong to a conversation
-                    // doesn't have a parent, but getParent() tries to create a virtual conversation out of the
-                    // message and fetches the message.  If message isn't found in the cache it must hit the
-                    // database again.  So by adding the message object here, we prevent a redundant SQL query.
-                    // For messages belonging to a real conversation we will have unnecessarily added it to
-                    // the cache during deletion, causing cache churn.  But that's probably better than running
-                    // extra SQL queries for potentially a very large number of messages being deleted.
-                    MailItem unread = mbox.getItem(data);
-                    unread.updateUnread(-data.unreadCount, unread.isTagged(Flag.FlagInfo.DELETED) ? -data.unreadCount : 0);
-                }
+                DbMailItem.visitById(mbox, info.unreadIds, Type.MESSAGE, false, new DbMailItem.ItemVisitor() {
+                    @Override
+                    public void visit(UnderlyingData data) throws ServiceException {
+                        // Note: Previous code was: MailItem unread = mbox.getItem(data.setFlag(Flag.FlagInfo.UNCACHED));
+                        //
+                        // We used to mark "data" as uncached, but that was only causing more SQL queries to be run
+                        // because of virtual conversation logic.  A message that doesn't belong to a conversation
+                        // doesn't have a parent, but getParent() tries to create a virtual conversation out of the
+                        // message and fetches the message.  If message isn't found in the cache it must hit the
+                        // database again.  So by adding the message object here, we prevent a redundant SQL query.
+                        // For messages belonging to a real conversation we will have unnecessarily added it to
+                        // the cache during deletion, causing cache churn.  But that's probably better than running
+                        // extra SQL queries for potentially a very large number of messages being deleted.
+                        MailItem unread = mbox.getItem(data);
+                        unread.updateUnread(-data.unreadCount, unread.isTagged(Flag.FlagInfo.DELETED) ? -data.unreadCount : 0);
+                    }
+                });
 
                 for (Map.Entry<Integer, DbMailItem.LocationCount> entry : info.folderCounts.entrySet()) {
                     int folderID = entry.getKey();
@@ -3390,20 +3414,18 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         return info;
     }
 
-    private static final int UNREAD_ITEM_BATCH_SIZE = 500;
-
     void propagateDeletion(PendingDelete info) throws ServiceException {
         if (!info.unreadIds.isEmpty()) {
-            for (int i = 0, count = info.unreadIds.size(); i < count; i += UNREAD_ITEM_BATCH_SIZE) {
-                List<Integer> batch = info.unreadIds.subList(i, Math.min(i + UNREAD_ITEM_BATCH_SIZE, count));
-                for (UnderlyingData data : DbMailItem.getById(mMailbox, batch, Type.MESSAGE)) {
+            DbMailItem.visitById(mMailbox, info.unreadIds, Type.MESSAGE, false, new DbMailItem.ItemVisitor() {
+                @Override
+                public void visit(UnderlyingData data) throws ServiceException {
                     Message msg = (Message) mMailbox.getItem(data);
                     if (msg.isUnread()) {
                         msg.updateUnread(-1, msg.isTagged(Flag.FlagInfo.DELETED) ? -1 : 0);
                     }
                     mMailbox.uncache(msg);
                 }
-            }
+            });
         }
 
         for (Map.Entry<Integer, DbMailItem.LocationCount> entry : info.folderCounts.entrySet()) {
@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -42,6 +41,8 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
@@ -57,6 +58,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -152,6 +154,8 @@ import com.zimbra.cs.mailbox.calendar.Util;
 import com.zimbra.cs.mailbox.calendar.ZOrganizer;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
+import com.zimbra.cs.mailbox.calendar.cache.FolderFreeBusy;
+import com.zimbra.cs.mailbox.calendar.cache.FreeBusyCache;
 import com.zimbra.cs.mailbox.calendar.tzfixup.TimeZoneFixupRules;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.mime.Mime;
@@ -392,6 +396,7 @@ public class Mailbox implements MailboxStore {
         final List<Object> otherDirtyStuff = new LinkedList<Object>();
         PendingDelete deletes = null;
         private boolean writeChange;
+        private boolean staleReadOk;
 
         MailboxChange() {
         }
@@ -440,9 +445,17 @@ public class Mailbox implements MailboxStore {
             return active;
         }
 
+        /** Lets a top-level read transaction that has not touched the database
+         *  yet fetch its connection from the read replica. */
+        void allowStaleReads() {
+            if (depth == 1 && !writeChange && conn == null) {
+                staleReadOk = true;
+            }
+        }
+
         DbConnection getConnection() throws ServiceException {
             if (conn == null) {
-                conn = DbPool.getConnection(Mailbox.this);
+                conn = staleReadOk ? DbPool.getReadConnection(Mailbox.this) : DbPool.getConnection(Mailbox.this);
                 ZimbraLog.mailbox.debug("  fetching new DB connection");
             }
             return conn;
@@ -488,6 +501,7 @@ public class Mailbox implements MailboxStore {
             DbPool.quietClose(conn);
             this.active = false;
             this.conn = null;
+            this.staleReadOk = false;
             this.octxt = null;
             this.tcon = null;
             this.imap = null;
@@ -602,15 +616,56 @@ public class Mailbox implements MailboxStore {
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
+        // the weight each cached item was charged with, so that it comes off the total unchanged however the
+        // item has changed since
+        private final Map<Integer /* id */, Long> charges;
+        private final AtomicLong estimatedSize = new AtomicLong();
 
         public ItemCache(Mailbox mbox) {
             mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
+                            MAX_ITEM_CACHE_WITH_LISTENERS).listener(new EvictionListener<Integer, MailItem>() {
+                                @Override
+                                public void onEviction(Integer id, MailItem item) {
+                                    discharge(id);
+                                }
+                            }).build();
+            charges = new ConcurrentHashMap<Integer, Long>(MAX_ITEM_CACHE_WITH_LISTENERS);
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
         }
 
+        /**
+         * Rough estimate of the heap retained by a cached item: a fixed overhead for the
+         * {@link MailItem} and its {@link MailItem.UnderlyingData}, plus its strings.
+         */
+        static long estimateSize(MailItem item) {
+            MailItem.UnderlyingData data = item.mData;
+            return CACHED_ITEM_OVERHEAD + 2L * (length(data.getSubject()) + length(data.name)
+                            + length(data.metadata) + length(data.locator) + length(data.uuid));
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+
+        long getEstimatedSize() {
+            return estimatedSize.get();
+        }
+
+        private void charge(int id, MailItem item) {
+            long weight = estimateSize(item);
+            Long previous = charges.put(id, weight);
+            estimatedSize.addAndGet(weight - (previous == null ? 0 : previous));
+        }
+
+        private void discharge(int id) {
+            Long previous = charges.remove(id);
+            if (previous != null) {
+                estimatedSize.addAndGet(-previous);
+            }
+        }
+
         public void put(MailItem item) {
             if (isAlwaysOn) {
                 try {
@@ -620,6 +675,8 @@ public class Mailbox implements MailboxStore {
                 }
             } else {
                 int id = item.getId();
+                // charged before it goes in, so that an eviction triggered by this put takes the new weight off
+                charge(id, item);
                 mapById.put(id, item);
                 String uuid = item.getUuid();
                 if (uuid != null) {
@@ -674,6 +731,7 @@ public class Mailbox implements MailboxStore {
             } else {
                 MailItem removed = mapById.remove(id);
                 if (removed != null) {
+                    discharge(id);
                     String uuid = removed.getUuid();
                     if (uuid != null) {
                         uuid2id.remove(uuid);
@@ -716,6 +774,8 @@ public class Mailbox implements MailboxStore {
         public void clear() {
             mapById.clear();
             uuid2id.clear();
+            charges.clear();
+            estimatedSize.set(0);
         }
     }
 
@@ -736,6 +796,12 @@ public class Mailbox implements MailboxStore {
     private static final int MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX = LC.zimbra_mailbox_galsync_cache.intValue();
     private static final int MAX_MSGID_CACHE = 10;
 
+    // rough per-object heap estimates used to budget the MailboxManager cache
+    private static final long MAILBOX_OVERHEAD = 8 * 1024;
+    private static final long CACHED_FOLDER_OVERHEAD = 1024;
+    private static final long CACHED_TAG_OVERHEAD = 512;
+    private static final long CACHED_ITEM_OVERHEAD = 512;
+
     private final int mId;
     private MailboxData mData;
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
@@ -743,9 +809,9 @@ public class Mailbox implements MailboxStore {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
-    private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
-                    .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
+    private volatile ItemCache mItemCache;
+    private final ThreaderCache threaderCache = new ThreaderCache(this);
+    private final AtomicReference<ContactRankings> contactRankings = new AtomicReference<ContactRankings>();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
 
@@ -753,6 +819,11 @@ public class Mailbox implements MailboxStore {
     private volatile boolean open = false;
     private boolean galSyncMailbox = false;
     private volatile boolean requiresWriteLock = true;
+    private volatile long lastDbWriteTime = System.currentTimeMillis();
+    // access frequency used to pick eviction victims, and the MailboxMap eviction pass it was last aged in;
+    // guarded by the MailboxManager monitor
+    int cacheFrequency;
+    int cacheEpoch;
     protected Mailbox(MailboxData data) {
         mId = data.id;
         mData = data;
@@ -1043,6 +1114,50 @@ public class Mailbox implements MailboxStore {
         return false;
     }
 
+    /**
+     * Returns a rough estimate, in bytes, of the heap retained by this mailbox and its folder,
+     * tag and item caches.
+     */
+    public long getEstimatedSize() {
+        long size = MAILBOX_OVERHEAD;
+        ItemCache cache = mItemCache;
+        if (cache != null) {
+            size += cache.getEstimatedSize();
+        }
+        FolderCache folders = mFolderCache;
+        if (folders != null) {
+            size += folders.size() * CACHED_FOLDER_OVERHEAD;
+        }
+        Map<Object, Tag> tags = mTagCache;
+        if (tags != null) {
+            // tags are cached both by id and by name
+            size += tags.size() / 2 * CACHED_TAG_OVERHEAD;
+        }
+        size += threaderCache.getEstimatedSize();
+        return size;
+    }
+
+    /**
+     * Drops the item cache so that it can be reclaimed.  A transaction in progress keeps using
+     * the cache it started with; the next one starts with an empty cache.
+     *
+     * @return the estimated number of bytes released
+     */
+    long purgeItemCache() {
+        ItemCache cache = mItemCache;
+        if (cache == null) {
+            return 0;
+        }
+        mItemCache = null;
+        ZimbraLog.cache.debug("purged MailItem cache for mailbox %d", getId());
+        return cache.getEstimatedSize();
+    }
+
+    public int getItemCacheSize() {
+        ItemCache cache = mItemCache;
+        return cache == null ? 0 : cache.size();
+    }
+
     /** Loookup a {@link Session} in the set of listeners on this mailbox. */
     public Session getListener(String sessionId) {
         if (sessionId != null) {
@@ -1615,6 +1730,7 @@ public class Mailbox implements MailboxStore {
             markItemDeleted(item.getType(), item.getId(), item.getFolderId());
         } else {
             currentChange().dirty.recordDeleted(itemSnapshot);
+            threaderCache.invalidateTarget(item.getId());
         }
     }
 
@@ -1624,6 +1740,7 @@ public class Mailbox implements MailboxStore {
      * @param itemId  The id of the item being deleted. */
     void markItemDeleted(MailItem.Type type, int itemId, int folderId) {
         currentChange().dirty.recordDeleted(mData.accountId, itemId, folderId, type);
+        threaderCache.invalidateTarget(itemId);
     }
 
     /** Adds the items to the current change's list of items deleted during the transaction.
@@ -1631,6 +1748,10 @@ public class Mailbox implements MailboxStore {
      * @param idlist  The ids of the items being deleted. */
     void markItemDeleted(TypedIdList idlist) {
         currentChange().dirty.recordDeleted(mData.accountId, idlist);
+        List<Integer> threadTargets = idlist.getIds(EnumSet.of(MailItem.Type.CONVERSATION, MailItem.Type.MESSAGE, MailItem.Type.CHAT));
+        if (threadTargets != null) {
+            threaderCache.invalidateTargets(threadTargets);
+        }
     }
 
     /** Adds the item to the current change's list of items modified during
@@ -1673,8 +1794,8 @@ public class Mailbox implements MailboxStore {
      *    <li>The {@link Blob} or {@link MailboxBlob} for a newly-created file.
      *    <li>The {@link PendingDelete} holding blobs and index
      *        entries to be cleaned up after a {@link MailItem#deletes}.
-     *    <li>The SHA1 hash of a conversation's subject stored in
-     *        {@link #mConvHashes}.</ul>
+     *    <li>The threading hash of an {@code OPEN_CONVERSATION} row cached
+     *        in the {@link ThreaderCache}.</ul>
      *
      * @param obj  The relevant object.
      * @see #commitCache(Mailbox.MailboxChange)
@@ -1687,6 +1808,22 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /** Returns when this mailbox last committed a database transaction that could have written to it
+     *  (or when it was loaded, if it has not committed one since). */
+    public long getLastDbWriteTime() {
+        return lastDbWriteTime;
+    }
+
+    /** Returns this mailbox's contact ranking table, loading it from the database on first use. */
+    ContactRankings getContactRankings() throws ServiceException {
+        ContactRankings rankings = contactRankings.get();
+        if (rankings == null) {
+            contactRankings.compareAndSet(null, new ContactRankings(getAccountId()));
+            rankings = contactRankings.get();
+        }
+        return rankings;
+    }
+
     public DbConnection getOperationConnection() throws ServiceException {
         if (!currentChange().isActive()) {
             throw ServiceException.FAILURE("cannot fetch Connection outside transaction", new Exception());
@@ -1773,6 +1910,16 @@ public class Mailbox implements MailboxStore {
         beginTransaction(caller, System.currentTimeMillis(), octxt, null, null, false);
     }
 
+    /**
+     * Begins a read transaction whose queries may be answered from the database
+     * read replica.  Only use this for lookups that do not write and can live
+     * with the replica's bounded staleness; see {@link DbPool#getReadConnection}.
+     */
+    protected void beginStaleReadTransaction(String caller, OperationContext octxt) throws ServiceException {
+        beginReadTransaction(caller, octxt);
+        currentChange().allowStaleReads();
+    }
+
     protected void beginTransaction(String caller, OperationContext octxt, RedoableOp recorder) throws ServiceException {
         long timestamp = octxt == null ? System.currentTimeMillis() : octxt.getTimestamp();
         beginTransaction(caller, timestamp, octxt, recorder, null, true);
@@ -1836,11 +1983,11 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        // keep a reference to the item cache so that it survives a purge during the op
+        ItemCache cache = mItemCache;
         if (cache == null) {
             cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -2006,7 +2153,7 @@ public class Mailbox implements MailboxStore {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
         } else {
-            mItemCache.clear();
+            mItemCache = null;
         }
         try {
             if (Zimbra.isAlwaysOn()) {
@@ -2808,7 +2955,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -2896,6 +3043,12 @@ public class Mailbox implements MailboxStore {
 
     public MailItem getItemById(OperationContext octxt, int id, MailItem.Type type, boolean fromDumpster)
                     throws ServiceException {
+        if (!fromDumpster) {
+            MailItem item = getCachedItemOptimistically(octxt, id, type);
+            if (item != null) {
+                return item;
+            }
+        }
         boolean success = false;
         try {
             // tag/folder caches are populated in beginTransaction...
@@ -2912,6 +3065,40 @@ public class Mailbox implements MailboxStore {
         return getItemById(id, type, false);
     }
 
+    /**
+     * Looks up a folder, tag or flag in the always-loaded caches without acquiring the mailbox lock. Only used when
+     * the caller is the mailbox owner (so no access check is needed) and isn't already inside a transaction.  The
+     * folder and tag caches are {@link ConcurrentHashMap}s and flags are built on the fly, so the lookup has no side
+     * effects on the caches even when the stamp turns out to be invalid.  Mailboxes under maintenance and always-on
+     * nodes (where the lock is distributed) always take the regular path.
+     *
+     * @return the cached item, or {@code null} if the caller has to fall back to a regular read transaction
+     */
+    private MailItem getCachedItemOptimistically(OperationContext octxt, int id, MailItem.Type type) {
+        if (!isCachedType(type) || Zimbra.isAlwaysOn() || isTransactionActive()) {
+            return null;
+        }
+        if (octxt != null && (octxt.getAuthenticatedUser() == null || octxt.isUsingAdminPrivileges() ||
+                !getAccountId().equalsIgnoreCase(octxt.getAuthenticatedUser().getId()))) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0L) {
+            return null;
+        }
+        try {
+            // beginMaintenance() sets this under the write lock, so a racing transition invalidates the stamp
+            if (maintenance != null || requiresWriteLock() || mFolderCache == null || mTagCache == null) {
+                return null;
+            }
+            MailItem item = getCachedItem(id, type);
+            return lock.validate(stamp) ? item : null;
+        } catch (ServiceException | RuntimeException e) {
+            // a concurrent writer left the caches in an intermediate state; retry under the lock
+            return null;
+        }
+    }
+
     // Returns true if the item in dumpster is visible to the user.
     // Item is hidden from non-admin user if it is too old or is a spam.
     private boolean isVisibleInDumpster(MailItem item) throws ServiceException {
@@ -3127,10 +3314,21 @@ public class Mailbox implements MailboxStore {
         }
         MailItem items[] = new MailItem[ids.length];
         if (fromDumpster) {
-            for (int i = 0; i < items.length; ++i) {
-                int id = ids[i];
+            Set<Integer> wanted = new HashSet<Integer>();
+            for (int id : ids) {
                 if (id > 0) {
-                    items[i] = getItemById(id, type, true);
+                    wanted.add(id);
+                }
+            }
+            Map<Integer, MailItem> loaded = MailItem.getByIdMap(this, wanted, type, true);
+            for (int i = 0; i < items.length; ++i) {
+                if (ids[i] > 0) {
+                    // as in getItemById(int, Type, boolean), hidden items look the same as missing ones
+                    MailItem item = loaded.get(ids[i]);
+                    if (item == null || !isVisibleInDumpster(item)) {
+                        throw MailItem.noSuchItem(ids[i], type);
+                    }
+                    items[i] = item;
                 }
             }
             return items;
@@ -3183,11 +3381,8 @@ public class Mailbox implements MailboxStore {
         }
 
         // cache miss, so fetch from the database
-        List<MailItem> itemsFromDb = MailItem.getById(this, uncached, relaxType ? MailItem.Type.UNKNOWN : type);
-        HashMap<Integer, MailItem> tempCache = new HashMap<Integer, MailItem>();
-        for (MailItem item : itemsFromDb) {
-            tempCache.put(item.getId(), item);
-        }
+        Map<Integer, MailItem> tempCache = MailItem.getByIdMap(this, uncached, relaxType ? MailItem.Type.UNKNOWN : type,
+                false);
         uncached.clear();
         Map<Integer, Integer> virtualConvsToRealConvs = new HashMap<Integer, Integer>();
         for (int i = 0; i < ids.length; i++) {
@@ -3215,10 +3410,8 @@ public class Mailbox implements MailboxStore {
 
         // special case asking for VirtualConversation but having it be a real Conversation
         if (!virtualConvsToRealConvs.isEmpty()) {
-            itemsFromDb = MailItem.getById(this, virtualConvsToRealConvs.values(), MailItem.Type.CONVERSATION);
-            for (MailItem item : itemsFromDb) {
-                tempCache.put(item.getId(), item);
-            }
+            tempCache.putAll(MailItem.getByIdMap(this, virtualConvsToRealConvs.values(), MailItem.Type.CONVERSATION,
+                    false));
             for (int i = 0; i < ids.length; i++) {
                 if (ids[i] <= -FIRST_USER_ID && items[i] == null) {
                     items[i] = tempCache.get(virtualConvsToRealConvs.get(ids[i]));
@@ -3591,7 +3784,7 @@ public class Mailbox implements MailboxStore {
     public List<Integer> listItemIds(OperationContext octxt, MailItem.Type type, int folderId) throws ServiceException {
         boolean success = false;
         try {
-            beginReadTransaction("listItemIds", octxt);
+            beginStaleReadTransaction("listItemIds", octxt);
             Folder folder = getFolderById(folderId);
             List<Integer> ids = DbMailItem.listByFolder(folder, type, true);
             success = true;
@@ -3604,7 +3797,7 @@ public class Mailbox implements MailboxStore {
     public TypedIdList getItemIds(OperationContext octxt, int folderId) throws ServiceException {
         boolean success = false;
         try {
-            beginReadTransaction("listAllItemIds", octxt);
+            beginStaleReadTransaction("listAllItemIds", octxt);
             Folder folder = getFolderById(folderId);
             TypedIdList ids = DbMailItem.listByFolder(folder, true);
             success = true;
@@ -3643,7 +3836,15 @@ public class Mailbox implements MailboxStore {
     }
 
     public List<ImapMessage> openImapFolder(OperationContext octxt, int folderId) throws ServiceException {
-        return openImapFolder(octxt, folderId, null, null).getFirst();
+        boolean success = false;
+        try {
+            beginTransaction("openImapFolder", octxt);
+            List<ImapMessage> i4list = DbMailItem.loadImapFolder(getFolderById(folderId));
+            success = true;
+            return i4list;
+        } finally {
+            endTransaction(success);
+        }
     }
 
     public Pair<List<ImapMessage>, Boolean> openImapFolder(OperationContext octxt, int folderId, Integer limit, Integer cursorId) throws ServiceException {
@@ -4010,7 +4211,7 @@ public class Mailbox implements MailboxStore {
             }
             boolean success = false;
             try {
-                beginReadTransaction("getModifiedItems", octxt);
+                beginStaleReadTransaction("getModifiedItems", octxt);
 
                 Set<Integer> visible = Folder.toId(getAccessibleFolders(ACL.RIGHT_READ));
                 if (folderIds == null) {
@@ -4052,7 +4253,7 @@ public class Mailbox implements MailboxStore {
             }
             boolean success = false;
             try {
-                beginReadTransaction("getModifiedItems", octxt);
+                beginStaleReadTransaction("getModifiedItems", octxt);
 
                 Set<Integer> visible = Folder.toId(getAccessibleFolders(ACL.RIGHT_READ));
                 if (folderIds == null) {
@@ -4652,22 +4853,49 @@ public class Mailbox implements MailboxStore {
     }
 
     Conversation getConversationByHash(String hash) throws ServiceException {
-        Conversation conv = null;
+        List<Conversation> convs = getConversationsByHash(Collections.singletonList(hash));
+        return convs.isEmpty() ? null : convs.get(0);
+    }
 
-        Integer convId = mConvHashes.get(hash);
-        if (convId != null) {
-            conv = getCachedConversation(convId);
-        }
-        if (conv != null) {
-            return conv;
+    /**
+     * Returns the conversations that the given threading hashes are open in, one per distinct {@code OPEN_CONVERSATION}
+     * target. Hashes are resolved through the {@link ThreaderCache} where possible.
+     */
+    List<Conversation> getConversationsByHash(List<String> hashes) throws ServiceException {
+        List<String> unresolved = new ArrayList<String>();
+        List<Integer> targets = threaderCache.lookup(hashes, unresolved);
+        ZimbraPerf.COUNTER_MBOX_THREADER_CACHE.increment(unresolved.isEmpty() ? 100 : 0);
+        if (!unresolved.isEmpty()) {
+            Map<String, Integer> loaded = DbMailItem.getOpenConversationIds(this, unresolved);
+            threaderCache.loaded(loaded);
+            for (Integer target : loaded.values()) {
+                if (!targets.contains(target)) {
+                    targets.add(target);
+                }
+            }
         }
 
-        // XXX: why not just do a "getConversationById()" if convId != null?
-        MailItem.UnderlyingData data = DbMailItem.getByHash(this, hash);
-        if (data == null || data.type == MailItem.Type.CONVERSATION.toByte()) {
-            return getConversation(data);
+        List<Conversation> convs = new ArrayList<Conversation>(targets.size());
+        for (int target : targets) {
+            MailItem item;
+            try {
+                item = getItemById(target, MailItem.Type.UNKNOWN);
+            } catch (NoSuchItemException e) {
+                // the item was deleted and its rows with it, so the cached target was stale
+                threaderCache.invalidateTarget(target);
+                continue;
+            }
+            if (item instanceof Conversation) {
+                convs.add((Conversation) item);
+            } else if (item instanceof Message) {
+                convs.add((Conversation) item.getParent());
+            }
         }
-        return (Conversation) getMessage(data).getParent();
+        return convs;
+    }
+
+    ThreaderCache getThreaderCache() {
+        return threaderCache;
     }
 
     public SenderList getConversationSenderList(int convId) throws ServiceException {
@@ -5090,6 +5318,29 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Returns the free/busy timelines of the appointment calendars covered by
+     * {@link #getAllCalendarsSummaryForRange}, each spanning at least [start, end).
+     */
+    public List<FolderFreeBusy> getAllCalendarsFreeBusyForRange(long start, long end) throws ServiceException {
+        boolean success = false;
+        try {
+            beginReadTransaction("getAllCalendarsFreeBusyForRange", null);
+            success = true;
+            FreeBusyCache fbCache = CalendarCacheManager.getInstance().getFreeBusyCache();
+            List<FolderFreeBusy> list = new ArrayList<FolderFreeBusy>();
+            for (Folder folder : listAllFolders()) {
+                if (folder.inTrash() || folder.inSpam() || folder.getDefaultView() != MailItem.Type.APPOINTMENT) {
+                    continue;
+                }
+                list.add(fbCache.getFreeBusy(this, folder.getId(), start, end));
+            }
+            return list;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     /**
      * @param octxt
      * @param params
@@ -6559,15 +6810,12 @@ public class Mailbox implements MailboxStore {
     void openConversation(Conversation conv, String subjectHash) throws ServiceException {
         String hash = subjectHash != null ? subjectHash : getHash(conv.getNormalizedSubject());
         conv.open(hash);
-        markOtherItemDirty(hash);
-        mConvHashes.put(hash, Integer.valueOf(conv.getId()));
     }
 
     // please keep this package-visible but not public
     void closeConversation(Conversation conv, String subjectHash) throws ServiceException {
         String hash = subjectHash != null ? subjectHash : getHash(conv.getNormalizedSubject());
         conv.close(hash);
-        mConvHashes.remove(hash);
     }
 
     // please keep this package-visible but not public
@@ -9105,6 +9353,7 @@ public class Mailbox implements MailboxStore {
             if (Threader.isHashPurgeAllowed(acct)) {
                 int convTimeoutSecs = (int) (LC.conversation_max_age_ms.longValue() / Constants.MILLIS_PER_SECOND);
                 DbMailItem.closeOldConversations(this, getOperationTimestamp() - convTimeoutSecs);
+                threaderCache.clear();
             }
 
             if (isTrackingSync()) {
@@ -9693,6 +9942,9 @@ public class Mailbox implements MailboxStore {
                     }
                 }
                 dbCommitSuccess = true;
+                if (conn != null && !conn.isReplica() && (currentChange().writeChange || currentChange().hasChanges())) {
+                    lastDbWriteTime = System.currentTimeMillis();
+                }
             } finally {
                 if (!dbCommitSuccess) {
                     // Write abort redo records to prevent the transactions from
@@ -9913,6 +10165,7 @@ public class Mailbox implements MailboxStore {
 
         if (DebugConfig.checkMailboxCacheConsistency && currentChange().dirty != null
                         && currentChange().dirty.hasNotifications()) {
+            threaderCache.checkConsistency();
             if (currentChange().dirty.created != null) {
                 for (BaseItemInfo item : currentChange().dirty.created.values()) {
                     if (item instanceof MailItem) {
@@ -10063,7 +10316,7 @@ public class Mailbox implements MailboxStore {
                 if (obj instanceof MailboxBlob || obj instanceof Blob) {
                     deletes.add(obj);
                 } else if (obj instanceof String) {
-                    mConvHashes.remove(obj);
+                    threaderCache.invalidate((String) obj);
                 }
             }
             return deletes;
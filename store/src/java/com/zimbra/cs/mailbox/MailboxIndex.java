@@ -18,20 +18,29 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -42,6 +51,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.InternetAddress;
@@ -86,11 +96,21 @@ public final class MailboxIndex {
     private static final long MAX_TX_BYTES = LC.zimbra_index_max_transaction_bytes.longValue();
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
+    private static final long MAX_TX_LATENCY = LC.zimbra_index_max_transaction_latency_ms.longValue();
 
+    // Batch index tasks queue up when all index threads are busy. Each mailbox has at most one queued batch.
     private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
             LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
-            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
+            Long.MAX_VALUE, TimeUnit.NANOSECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(LC.zimbra_index_queue_size.intValue(), 1)),
             new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
+    // Extracts and analyzes deferred items ahead of the index threads, shared by all mailboxes.
+    private static final ExecutorService EXTRACT_EXECUTOR = LC.zimbra_index_extract_threads.intValue() > 0 ?
+            Executors.newFixedThreadPool(LC.zimbra_index_extract_threads.intValue(),
+                    new ThreadFactoryBuilder().setNameFormat("IndexExtract-%d").setDaemon(true).build()) :
+            MoreExecutors.newDirectExecutorService();
+    // How many items a single batch may have in extraction at a time.
+    private static final int EXTRACT_WINDOW = Math.max(LC.zimbra_index_extract_threads.intValue() * 2, 1);
     // Re-index threads are created on demand basis. The number of threads are capped.
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
@@ -99,6 +119,8 @@ public final class MailboxIndex {
     private volatile long lastFailedTime = -1;
     // Only one thread may run index at a time.
     private final Semaphore indexLock = new Semaphore(1);
+    // Set while a BatchIndexTask for this mailbox is waiting for an index thread.
+    private final AtomicBoolean batchQueued = new AtomicBoolean(false);
     private final Mailbox mailbox;
     private final Analyzer analyzer;
     private IndexStore indexStore;
@@ -328,7 +350,7 @@ public final class MailboxIndex {
      * Submits a task to {@link #INDEX_EXECUTOR}.
      *
      * @param task index task
-     * @throws RejectedExecutionException if all index threads are busy
+     * @throws RejectedExecutionException if the index queue is full
      */
     public void submit(IndexTask task) {
         INDEX_EXECUTOR.submit(task);
@@ -364,10 +386,15 @@ public final class MailboxIndex {
         // If there was a failure, we trigger indexing even if the deferred count is still low.
         if ((lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY) ||
                 getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) >= getBatchThreshold()) {
+            if (!batchQueued.compareAndSet(false, true)) {
+                return; // the queued batch will pick up these items too
+            }
             try {
                 INDEX_EXECUTOR.submit(new BatchIndexTask());
             } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+                batchQueued.set(false);
+                lastFailedTime = System.currentTimeMillis(); // retry after the failure delay
+                ZimbraLog.index.warn("Deferring batch index because the index queue is full");
             }
         }
     }
@@ -714,9 +741,16 @@ public final class MailboxIndex {
     }
 
     /**
-     * Index a potentially very large list of {@link MailItem}s. Iterate through the list of items, fetch each one and
-     * call generateIndexData(). Buffer the items, IndexData into a chunk and when the chunk gets sufficiently large,
-     * run a Mailbox transaction to actually do the indexing
+     * Index a potentially very large list of {@link MailItem}s. The work is done in two stages that overlap:
+     * <ol>
+     *  <li>Iterate through the list of items and fetch each one. {@link #EXTRACT_EXECUTOR} calls generateIndexData()
+     *  and runs the analyzer over the resulting documents, up to {@link #EXTRACT_WINDOW} items ahead of the writer.
+     *  None of this holds the Mailbox lock.
+     *  <li>In fetch order, buffer the extracted items into a chunk, and when the chunk gets sufficiently large, or its
+     *  oldest item has waited long enough, run a Mailbox transaction to actually add them to the index. As the
+     *  documents are already analyzed, the transaction only replays their tokens into the index writer.
+     * </ol>
+     * Only one thread runs this per mailbox at a time (see {@link #indexLock}), so each index has a single writer.
      *
      * @param ids item IDs to index
      * @param status progress will be written to the status
@@ -730,85 +764,102 @@ public final class MailboxIndex {
             return;
         }
 
-        // we re-index 'chunks' of items -- up to a certain size or count
-        List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
-        long chunkByteSize = 0;
-        int i = 0;
-        for (int id : ids) {
-            i++;
-            status.addProcessed(1);
+        boolean preAnalyze = indexStore instanceof LuceneIndex;
+        Deque<Future<Mailbox.IndexItemEntry>> extracting = new ArrayDeque<Future<Mailbox.IndexItemEntry>>();
+        IndexChunk chunk = new IndexChunk();
+        try {
+            for (int id : ids) {
+                status.addProcessed(1);
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
 
-            // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
-            // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
-            // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
+                ZimbraLog.index.debug("Tokenizing id=%d", id);
+                MailItem item = fetchDeferredItem(id, status);
+                if (item == null) {
                     continue;
                 }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
+                extracting.add(EXTRACT_EXECUTOR.submit(new ExtractTask(item, preAnalyze)));
+                while (extracting.size() >= EXTRACT_WINDOW) {
+                    addExtracted(extracting.remove(), chunk, status);
                 }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
-                continue;
-            } finally {
-                mailbox.endTransaction(item != null);
             }
+            while (!extracting.isEmpty()) {
+                addExtracted(extracting.remove(), chunk, status);
+            }
+            chunk.commit(status);
+        } finally {
+            for (Future<Mailbox.IndexItemEntry> future : extracting) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Fetches a deferred item without holding the Mailbox lock.
+     *
+     * @return the item, or null if it no longer exists or failed to load
+     */
+    private MailItem fetchDeferredItem(int id, BatchStatus status) throws ServiceException {
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
             try {
-                chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
-            } catch (MailItem.TemporaryIndexingException e) {
-                ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
-                lastFailedTime = System.currentTimeMillis();
-                status.addFailed(1);
-                continue;
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                removeDeferredId(id);
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
             }
-            chunkByteSize += item.getSize();
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            status.addFailed(1);
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        return item;
+    }
 
-            if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
-                // we have a chunk of items and their corresponding index data -- add them to the index
+    /**
+     * Waits for the extraction of the next item and adds it to the chunk, committing the chunk when it is full. If
+     * the chunk would exceed its latency budget while waiting, the chunk is committed first.
+     */
+    private void addExtracted(Future<Mailbox.IndexItemEntry> future, IndexChunk chunk, BatchStatus status)
+            throws ServiceException {
+        Mailbox.IndexItemEntry entry;
+        try {
+            if (!future.isDone() && !chunk.isEmpty()) {
                 try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
-
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
-                    }
-
-                    try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
-                        }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
-                    }
-                } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                    future.get(chunk.getRemainingLatency(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    chunk.commit(status);
                 }
             }
+            entry = future.get();
+        } catch (InterruptedException e) {
+            throw ServiceException.INTERRUPTED("interrupted while extracting");
+        } catch (ExecutionException e) { // already logged by ExtractTask
+            if (e.getCause() instanceof MailItem.TemporaryIndexingException) {
+                lastFailedTime = System.currentTimeMillis();
+            }
+            status.addFailed(1);
+            return;
+        }
+
+        chunk.add(entry);
+        if (chunk.isFull()) {
+            ZimbraLog.index.debug("Batch progress %d/%d", status.getProcessed(), status.getTotal());
+            chunk.commit(status);
         }
     }
 
@@ -1070,7 +1121,7 @@ public final class MailboxIndex {
         List<DbSearch.Result> result;
         boolean success = false;
         try {
-            mailbox.beginReadTransaction("search", null);
+            mailbox.beginStaleReadTransaction("search", null);
             result = new DbSearch(mailbox, inDumpster).search(mailbox.getOperationConnection(),
                     constraints, sort, offset, size, fetch);
             if (fetch == DbSearch.FetchMode.MAIL_ITEM) {
@@ -1431,9 +1482,108 @@ public final class MailboxIndex {
 
         @Override
         protected void exec() throws Exception {
-            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), new BatchStatus(), false);
+            batchQueued.set(false);
+            BatchStatus status = new BatchStatus();
+            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), status, false);
+            // drain items deferred while this batch was running rather than waiting for the next change to trigger
+            if (status.getProcessed() > status.getFailed()) {
+                maybeIndexDeferredItems();
+            }
+        }
+
+    }
+
+    /**
+     * Generates the index data of an item, and analyzes it if the index store is Lucene and the documents are small
+     * enough (see {@link IndexDocument#preAnalyze}).
+     */
+    private final class ExtractTask implements Callable<Mailbox.IndexItemEntry> {
+        private final MailItem item;
+        private final boolean preAnalyze;
+
+        ExtractTask(MailItem item, boolean preAnalyze) {
+            this.item = item;
+            this.preAnalyze = preAnalyze;
+        }
+
+        @Override
+        public Mailbox.IndexItemEntry call() throws Exception {
+            try {
+                List<IndexDocument> docs = item.generateIndexData();
+                if (preAnalyze && docs != null) {
+                    for (IndexDocument doc : docs) {
+                        doc.preAnalyze(analyzer, LC.zimbra_index_preanalyze_max_chars.intValue());
+                    }
+                }
+                return new Mailbox.IndexItemEntry(item, docs);
+            } catch (MailItem.TemporaryIndexingException e) {
+                ZimbraLog.index.warn("Temporary index failure id=%d", item.getId(), e);
+                throw e;
+            } catch (Exception e) {
+                ZimbraLog.index.warn("Failed to extract deferred item id=%d", item.getId(), e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Extracted items waiting to be added to the index in a single Mailbox transaction. A chunk is full once it
+     * exceeds the byte or item limit, or its oldest item has waited longer than {@link #MAX_TX_LATENCY}.
+     */
+    private final class IndexChunk {
+        private final List<Mailbox.IndexItemEntry> entries = new ArrayList<Mailbox.IndexItemEntry>();
+        private long byteSize = 0;
+        private long startTime;
+
+        void add(Mailbox.IndexItemEntry entry) {
+            if (entries.isEmpty()) {
+                startTime = System.currentTimeMillis();
+            }
+            entries.add(entry);
+            byteSize += entry.item.getSize();
+        }
+
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        boolean isFull() {
+            return byteSize > MAX_TX_BYTES || entries.size() >= MAX_TX_ITEMS || getRemainingLatency() <= 0;
+        }
+
+        long getRemainingLatency() {
+            return MAX_TX_LATENCY - (System.currentTimeMillis() - startTime);
         }
 
+        void commit(BatchStatus status) throws ServiceException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            try {
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
+
+                try {
+                    boolean success = false;
+                    try {
+                        mailbox.beginTransaction("IndexItemList-Commit", null);
+                        for (Mailbox.IndexItemEntry entry : entries) {
+                            mailbox.addIndexItemToCurrentChange(entry);
+                        }
+                        success = true;
+                    } finally {
+                        mailbox.endTransaction(success);
+                    }
+                } catch (ServiceException e) {
+                    ZimbraLog.index.warn("Failed to index chunk=%s", entries, e);
+                    status.addFailed(entries.size());
+                }
+            } finally {
+                entries.clear();
+                byteSize = 0;
+            }
+        }
     }
 
     private static final class ItemSearchResult extends DbSearch.Result {
@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
@@ -28,6 +29,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.LockTimeHistogram;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
@@ -39,13 +41,27 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  * thrown. {@code Mailbox.beginTransaction()}) internally acquires the mailbox lock and it's released by
  * {@code Mailbox.endTransaction()}, so that you don't have to explicitly call {@link #lock()} and {@link #release()}
  * wrapping a mailbox transaction.
- *
+ * <p>
+ * Short read-only accessors may instead use {@link #tryOptimisticRead()} and {@link #validate(long)}, which don't
+ * touch the read lock at all. Every write lock holder also holds the write mode of an internal {@link StampedLock},
+ * so a stamp stays valid only as long as no writer has come and gone since it was taken.
  */
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    /** Write-locked for as long as {@link #zLock} is write-locked; only used to hand out optimistic read stamps. */
+    private final StampedLock versionLock = new StampedLock();
+    private long writeStamp;
+    private final LockTimeHistogram waitTimes = new LockTimeHistogram();
+    private final LockTimeHistogram holdTimes = new LockTimeHistogram();
+    private final ThreadLocal<long[]> holdStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
@@ -80,6 +96,58 @@ public final class MailboxLock {
         }
     }
 
+    /**
+     * Returns a stamp for an optimistic read of mailbox state, or zero if the mailbox is currently write-locked or
+     * optimistic reads are disabled. The caller must not modify anything while reading, must tolerate seeing torn
+     * state (including runtime exceptions), and must discard what it read unless {@link #validate(long)} returns
+     * true afterwards.
+     */
+    public long tryOptimisticRead() {
+        if (!LC.zimbra_mailbox_lock_optimistic_read.booleanValue()) {
+            return 0L;
+        }
+        return versionLock.tryOptimisticRead();
+    }
+
+    /**
+     * Returns true if no write lock has been acquired since the given stamp was issued by
+     * {@link #tryOptimisticRead()}.
+     */
+    public boolean validate(long stamp) {
+        return stamp != 0L && versionLock.validate(stamp);
+    }
+
+    /** Returns the time threads spent waiting to acquire this lock, recorded for outermost acquisitions only. */
+    public LockTimeHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    /** Returns the time threads held this lock, from outermost acquisition to final release. */
+    public LockTimeHistogram getHoldTimes() {
+        return holdTimes;
+    }
+
+    private void acquired(boolean write, long startNanos) {
+        if (getHoldCount() == 1) {
+            long now = System.nanoTime();
+            waitTimes.record(now - startNanos);
+            holdStart.get()[0] = now;
+        }
+        if (write && zLock.getWriteHoldCount() == 1) {
+            writeStamp = versionLock.writeLock();
+        }
+    }
+
+    private void releasing(boolean write) {
+        if (write && zLock.getWriteHoldCount() == 1) {
+            versionLock.unlockWrite(writeStamp);
+        }
+        if (getHoldCount() == 1) {
+            holdTimes.record(System.nanoTime() - holdStart.get()[0]);
+            holdStart.remove();
+        }
+    }
+
     int getHoldCount() {
         return zLock.getReadHoldCount() + zLock.getWriteHoldCount();
     }
@@ -159,6 +227,7 @@ public final class MailboxLock {
 
     public void lock(boolean write) {
         write = write || mbox.requiresWriteLock();
+        long start = System.nanoTime();
         ZimbraLog.mailbox.trace("LOCK %s", (write ? "WRITE" : "READ"));
         assert(neverReadBeforeWrite(write));
         try {
@@ -169,6 +238,7 @@ public final class MailboxLock {
                     return;
                 }
                 lockStack.push(write);
+                acquired(write, start);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -198,6 +268,7 @@ public final class MailboxLock {
                     return;
                 }
                 lockStack.push(write);
+                acquired(write, start);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -234,6 +305,7 @@ public final class MailboxLock {
         ZimbraLog.mailbox.trace("RELEASE %s", (write ? "WRITE" : "READ"));
 
         releaseDistributedLock(write);
+        releasing(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
             zLock.writeLock().unlock();
@@ -269,6 +341,8 @@ public final class MailboxLock {
 
         private void logStackTrace() {
             StringBuilder out = new StringBuilder("Failed to lock mailbox\n");
+            out.append("Lock wait - ").append(waitTimes).append('\n');
+            out.append("Lock hold - ").append(holdTimes).append('\n');
             zLock.printStackTrace(out);
             ZimbraLog.mailbox.error(out, this);
         }
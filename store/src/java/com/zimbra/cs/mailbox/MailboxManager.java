@@ -17,10 +17,12 @@
 package com.zimbra.cs.mailbox;
 
 import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -150,10 +152,11 @@ public class MailboxManager {
      * Maps mailbox IDs ({@link Integer}s) to either
      * <ul>
      *  <li>a loaded {@link Mailbox}, or
-     *  <li>a {@link SoftReference} to a loaded {@link Mailbox}, or
+     *  <li>a {@link SoftReference} to a loaded {@link Mailbox} that was evicted, or
      *  <li>a {@link MaintenanceContext} for the mailbox.
      * </ul>
-     * Mailboxes are faulted into memory as needed, but may drop from memory when the SoftReference expires due to
+     * Mailboxes are faulted into memory as needed, and are evicted when the cache goes over its size or heap budget
+     * (see {@link MailboxMap}).  An evicted mailbox may drop from memory when the SoftReference expires due to
      * memory pressure combined with a lack of outstanding references to the {@link Mailbox}.  Only one {@link Mailbox}
      * per user is cached, and only that {@link Mailbox} can process user requests.
      */
@@ -173,7 +176,9 @@ public class MailboxManager {
     }
 
     protected MailboxMap createCache() {
-        return new MailboxMap(LC.zimbra_mailbox_manager_hardref_cache.intValue());
+        long maxBytes = Runtime.getRuntime().maxMemory() / 100 * LC.zimbra_mailbox_manager_cache_heap_percent.intValue();
+        return new MailboxMap(LC.zimbra_mailbox_manager_hardref_cache.intValue(), maxBytes,
+                LC.zimbra_mailbox_manager_cache_evict_batch.intValue());
     }
 
     /**
@@ -480,6 +485,7 @@ public class MailboxManager {
             }
 
             mbox = instantiateMailbox(data);
+            ZimbraPerf.COUNTER_MBOX_LOADS.increment();
             Account account = mbox.getAccount();
             boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
             mbox.setGalSyncMailbox(isGalSyncAccount);
@@ -571,6 +577,14 @@ public class MailboxManager {
         return count;
     }
 
+    /**
+     * Returns the estimated heap retained by the loaded mailboxes and their caches, as of the last
+     * time each mailbox was looked up.
+     */
+    public synchronized long getEstimatedCacheBytes() {
+        return cache.getEstimatedBytes();
+    }
+
     /**
      * Returns TRUE if the specified mailbox is in-memory and not in maintenance mode, if false, then caller can assume
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
@@ -1020,38 +1034,61 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * Cache of loaded mailboxes bounded by count and by the estimated heap retained by the
+     * mailboxes and their item caches.  When over budget, a few victims are picked per pass
+     * from the least recently used end, preferring those accessed least often: first their
+     * item caches are purged, then the mailboxes themselves are demoted to soft references.
+     * By then a demoted mailbox only holds its folder and tag caches, so keeping it softly
+     * reachable is cheap and saves a reload if it is asked for again before the GC needs the
+     * space.  A demoted mailbox that is still around is revived on the next lookup, so there
+     * is never more than one {@link Mailbox} per id.
+     * <p>
+     * The estimated size of each cached mailbox is charged to a running total when it is put,
+     * re-weighed whenever it is looked up or its item cache is purged, and the same amount
+     * that was charged is subtracted when it is removed or demoted.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
+        /** Minimum interval between budget checks triggered by lookups. */
+        private static final long CHECK_INTERVAL_MS = 1000;
+        /** Number of least recently used entries considered for eviction per victim. */
+        private static final int VICTIM_WINDOW = 8;
+
         final int mHardSize;
+        final long mMaxBytes;
+        final int mEvictBatch;
         final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
-
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
-            hardSize = Math.max(hardSize, 0);
-            mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+        final HashMap<Integer, SoftReference<Mailbox>> mSoftMap;
+        /** Bytes charged to {@link #mEstimatedBytes} for each mailbox in {@link #mHardMap}. */
+        private final HashMap<Integer, Long> mCharges;
+        private long mLastCheck;
+        private long mEstimatedBytes;
+        /** Bumped by every eviction pass; access counts are halved once per epoch they missed. */
+        private int mEpoch;
+
+        MailboxMap(int hardSize, long maxBytes, int evictBatch) {
+            mHardSize = Math.max(hardSize, 0);
+            mMaxBytes = maxBytes;
+            mEvictBatch = Math.max(evictBatch, 1);
+            mHardMap = new LinkedHashMap<Integer, Object>(16, (float) .75, true);
+            mSoftMap = new HashMap<Integer, SoftReference<Mailbox>>();
+            mCharges = new HashMap<Integer, Long>();
         }
 
         protected MailboxMap() {
             mHardSize = 0;
+            mMaxBytes = 0;
+            mEvictBatch = 1;
             mHardMap = null;
             mSoftMap = null;
+            mCharges = null;
         }
 
         @Override public void clear() {
             mHardMap.clear();
             mSoftMap.clear();
+            mCharges.clear();
+            mEstimatedBytes = 0;
         }
 
         @Override public boolean containsKey(Object key) {
@@ -1059,14 +1096,18 @@ public class MailboxManager {
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            return values().contains(value);
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
             Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
-            entries.addAll(mSoftMap.entrySet());
+            entries.addAll(mHardMap.entrySet());
+            for (Entry<Integer, SoftReference<Mailbox>> entry : mSoftMap.entrySet()) {
+                Mailbox mbox = entry.getValue().get();
+                if (mbox != null) {
+                    entries.add(new AbstractMap.SimpleEntry<Integer, Object>(entry.getKey(), mbox));
+                }
+            }
             return entries;
         }
 
@@ -1075,13 +1116,29 @@ public class MailboxManager {
         }
 
         public Object get(Object key, boolean trackGC) {
-            Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
+            Object obj = mHardMap.get(key);
             if (obj == null) {
-                obj = mSoftMap.get(key);
-                if (obj instanceof SoftReference) {
-                    obj = ((SoftReference<?>) obj).get();
-                    if (trackGC && obj == null)
+                SoftReference<Mailbox> ref = mSoftMap.remove(key);
+                if (ref != null) {
+                    obj = ref.get();
+                    if (obj != null) {
+                        // still around, so it has to stay the cached instance
+                        mHardMap.put((Integer) key, obj);
+                    } else if (trackGC) {
                         ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
+                    }
+                }
+            }
+            if (obj instanceof Mailbox) {
+                Mailbox mbox = (Mailbox) obj;
+                mbox.cacheFrequency = frequency(mbox) + 1;
+                charge(mbox);
+            }
+            if (trackGC) {
+                long now = System.currentTimeMillis();
+                if (now - mLastCheck > CHECK_INTERVAL_MS) {
+                    mLastCheck = now;
+                    evict();
                 }
             }
             return obj;
@@ -1093,25 +1150,27 @@ public class MailboxManager {
 
         @Override public Set<Integer> keySet() {
             Set<Integer> keys = new HashSet<Integer>(size());
-            if (mHardSize > 0)
-                keys.addAll(mHardMap.keySet());
+            keys.addAll(mHardMap.keySet());
             keys.addAll(mSoftMap.keySet());
             return keys;
         }
 
         @Override public Object put(Integer key, Object value) {
-            Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
+            Object removed = mHardMap.put(key, value);
+            SoftReference<Mailbox> ref = mSoftMap.remove(key);
+            if (removed == null && ref != null) {
+                removed = ref.get();
+            }
+            if (removed != value) {
+                discharge(key);
+            }
+            if (value instanceof Mailbox) {
+                charge((Mailbox) value);
+                if (removed == null) {
+                    mLastCheck = System.currentTimeMillis();
+                    evict();
+                }
             }
-            if (removed instanceof SoftReference)
-                removed = ((SoftReference<?>) removed).get();
             return removed;
         }
 
@@ -1121,11 +1180,11 @@ public class MailboxManager {
         }
 
         @Override public Object remove(Object key) {
-            Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
+            Object removed = mHardMap.remove(key);
+            SoftReference<Mailbox> ref = mSoftMap.remove(key);
+            discharge(key);
+            if (removed == null && ref != null) {
+                removed = ref.get();
             }
             return removed;
         }
@@ -1136,16 +1195,127 @@ public class MailboxManager {
 
         @Override public Collection<Object> values() {
             List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
-            for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
+            values.addAll(mHardMap.values());
+            for (SoftReference<Mailbox> ref : mSoftMap.values()) {
+                values.add(ref.get());
             }
             return values;
         }
 
+        /**
+         * Returns the estimated heap retained by the cached mailboxes, as of the last time each of
+         * them was looked up.
+         */
+        long getEstimatedBytes() {
+            return mEstimatedBytes;
+        }
+
+        /**
+         * Re-weighs a mailbox in {@link #mHardMap} and adjusts the running total by the difference
+         * from what was charged for it before.
+         */
+        private void charge(Mailbox mbox) {
+            long size = mbox.getEstimatedSize();
+            Long charged = mCharges.put(mbox.getId(), size);
+            mEstimatedBytes += size - (charged == null ? 0 : charged);
+        }
+
+        /**
+         * Subtracts whatever was last charged for the mailbox from the running total.
+         */
+        private void discharge(Object key) {
+            Long charged = mCharges.remove(key);
+            if (charged != null) {
+                mEstimatedBytes -= charged;
+            }
+        }
+
+        /**
+         * Returns the mailbox's access count after halving it once for every eviction pass since
+         * it was last aged.
+         */
+        private int frequency(Mailbox mbox) {
+            int missed = mEpoch - mbox.cacheEpoch;
+            if (missed != 0) {
+                mbox.cacheFrequency = missed < 0 || missed >= Integer.SIZE ? 0 : mbox.cacheFrequency >>> missed;
+                mbox.cacheEpoch = mEpoch;
+            }
+            return mbox.cacheFrequency;
+        }
+
+        /**
+         * Purges item caches and demotes mailboxes until the cache is within budget or
+         * {@code mEvictBatch} victims have been processed, whichever comes first.  The rest
+         * of the excess is dealt with on later passes, so eviction is spread out rather
+         * than dropping everything at once.
+         */
+        void evict() {
+            int excess = mHardSize > 0 ? mHardMap.size() - mHardSize : 0;
+            if (mEstimatedBytes <= mMaxBytes && excess <= 0) {
+                return;
+            }
+            pruneSoftMap();
+            for (int n = 0; n < mEvictBatch && (mEstimatedBytes > mMaxBytes || excess > 0); n++) {
+                Mailbox victim = pickVictim(excess <= 0);
+                if (victim == null) {
+                    break;
+                }
+                if (excess <= 0 && victim.getItemCacheSize() > 0) {
+                    victim.purgeItemCache();
+                    charge(victim);
+                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICTIONS.increment();
+                } else {
+                    victim.purgeItemCache();
+                    mHardMap.remove(victim.getId());
+                    discharge(victim.getId());
+                    mSoftMap.put(victim.getId(), new SoftReference<Mailbox>(victim));
+                    ZimbraPerf.COUNTER_MBOX_EVICTIONS.increment();
+                    excess--;
+                }
+            }
+            // age the access counts so that old popularity doesn't protect a mailbox forever
+            mEpoch++;
+        }
+
+        /**
+         * Returns the least frequently accessed of the {@link #VICTIM_WINDOW} least recently used
+         * mailboxes without sessions, or <tt>null</tt> if there is none.  When <tt>purgeable</tt>
+         * is set, a mailbox that still has an item cache to purge is preferred.
+         */
+        private Mailbox pickVictim(boolean purgeable) {
+            Mailbox victim = null;
+            Mailbox fallback = null;
+            int seen = 0;
+            for (Object o : mHardMap.values()) {
+                if (!(o instanceof Mailbox)) {
+                    continue; // mailboxes in maintenance stay put
+                }
+                Mailbox mbox = (Mailbox) o;
+                if (mbox.hasListeners(null)) {
+                    continue; // sessions keep it reachable anyway
+                }
+                if (!purgeable || mbox.getItemCacheSize() > 0) {
+                    if (victim == null || frequency(mbox) < frequency(victim)) {
+                        victim = mbox;
+                    }
+                } else if (fallback == null) {
+                    fallback = mbox;
+                }
+                if (++seen >= VICTIM_WINDOW) {
+                    break;
+                }
+            }
+            return victim != null ? victim : fallback;
+        }
+
+        private void pruneSoftMap() {
+            for (Iterator<SoftReference<Mailbox>> it = mSoftMap.values().iterator(); it.hasNext(); ) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+        }
+
         @Override public String toString() {
             return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
         }
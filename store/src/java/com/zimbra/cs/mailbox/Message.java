@@ -1347,6 +1347,7 @@ public class Message extends MailItem {
                 !isDraft() && inSpam() == folder.inSpam()) {
             Conversation conv = mMailbox.createConversation(Mailbox.ID_AUTO_INCREMENT, this, copy);
             DbMailItem.changeOpenTargets(this, conv.getId());
+            mMailbox.getThreaderCache().retargeted(this, conv.getId());
             parent.removeChild(this);
         }
         return copy;
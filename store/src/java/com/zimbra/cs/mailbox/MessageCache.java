@@ -18,14 +18,19 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -42,27 +47,140 @@ import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
 
+/**
+ * Cache of parsed <tt>MimeMessage</tt>s keyed by blob digest.  The cache is split into
+ * a fixed number of segments, each with its own lock and its own LRU ordering, so that
+ * threads reading different messages don't contend on a single monitor.  Each segment
+ * evicts its least recently used entries when it exceeds either its share of
+ * <tt>zimbraMessageCacheSize</tt> or its share of the approximate byte budget set by
+ * <tt>zimbra_message_cache_max_bytes</tt>.
+ */
 public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
 
+    /** Approximate heap cost of a cached entry beyond any in-memory message content:
+     *  the parsed header block, the MIME part tree and the map entry itself. */
+    private static final long ENTRY_OVERHEAD = 2048;
+
     private static final class CacheNode {
         CacheNode()  { }
         MimeMessage message;
         MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
+        Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        /** Number of bytes of message data held in memory.  Once the node is in the
+         *  cache, this is only modified while holding the owning segment's lock. */
         long size = 0;
+
+        long footprint() {
+            return size + ENTRY_OVERHEAD;
+        }
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
-    /** Number of bytes of message data stored in the cache.  This value includes only
-     * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    /** One lock stripe of the cache.  All access to {@link #map} and {@link #dataSize}
+     *  must be synchronized on the segment. */
+    private static final class Segment {
+        private final LinkedHashMap<String, CacheNode> map = new LinkedHashMap<String, CacheNode>(16, 0.75f, true);
+        /** Estimated number of bytes retained by the entries in this segment. */
+        private long dataSize = 0;
+        private int maxEntries;
+        private long maxBytes;
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        synchronized void setLimits(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            trim();
+        }
+
+        synchronized CacheNode get(String digest) {
+            return map.get(digest);
+        }
+
+        synchronized boolean containsKey(String digest) {
+            return map.containsKey(digest);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long getDataSize() {
+            return dataSize;
+        }
+
+        synchronized CacheNode remove(String digest) {
+            CacheNode node = map.remove(digest);
+            if (node != null) {
+                dataSize -= node.footprint();
+            }
+            return node;
+        }
+
+        synchronized void put(String digest, CacheNode node) {
+            CacheNode previous = map.put(digest, node);
+            if (previous != null) {
+                dataSize -= previous.footprint();
+            }
+            dataSize += node.footprint();
+            trim();
+        }
+
+        /** Grows the in-memory size of a node, accounting for it if the node is still cached. */
+        synchronized void resize(String digest, CacheNode node, long delta) {
+            node.size += delta;
+            if (map.get(digest) == node) {
+                dataSize += delta;
+                trim();
+            }
+        }
+
+        synchronized List<CacheNode> values() {
+            return new ArrayList<CacheNode>(map.values());
+        }
+
+        private void trim() {
+            Iterator<Map.Entry<String, CacheNode>> it = map.entrySet().iterator();
+            while ((map.size() > maxEntries || dataSize > maxBytes) && it.hasNext()) {
+                Map.Entry<String, CacheNode> entry = it.next();
+                sLog.debug("Pruning digest %s from the cache.", entry.getKey());
+                it.remove();
+                dataSize -= entry.getValue().footprint();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Snapshot of the counters for one cache segment.  Hit, miss and eviction counts
+     *  cover the period since the previous call to {@link MessageCache#getSegmentStats}. */
+    public static final class SegmentStats {
+        public final int entries;
+        public final long dataSize;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        SegmentStats(int entries, long dataSize, long hits, long misses, long evictions) {
+            this.entries = entries;
+            this.dataSize = dataSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+    }
+
+    /** Cache segments mapping message digest to the corresponding message structure. */
+    private static final Segment[] sSegments;
 
     static {
+        int count = Math.max(1, LC.zimbra_message_cache_segments.intValue());
+        sSegments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            sSegments[i] = new Segment();
+        }
         try {
             loadSettings();
         } catch (ServiceException e) {
@@ -71,25 +189,60 @@ public class MessageCache {
     }
 
     public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        long maxBytes = LC.zimbra_message_cache_max_bytes.longValue();
+        ZimbraLog.cache.info("setting message cache size to %d entries and %d bytes across %d segments",
+                maxCacheSize, maxBytes, sSegments.length);
+        int segmentEntries = (maxCacheSize + sSegments.length - 1) / sSegments.length;
+        long segmentBytes = maxBytes / sSegments.length;
+        for (Segment segment : sSegments) {
+            segment.setLimits(segmentEntries, segmentBytes);
+        }
+    }
+
+    private static Segment segmentFor(String digest) {
+        return sSegments[segmentIndex(digest)];
+    }
+
+    static int segmentIndex(String digest) {
+        int h = digest.hashCode();
+        // spread the bits, since digests that share a prefix would otherwise cluster
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % sSegments.length;
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
+        int size = 0;
+        for (Segment segment : sSegments) {
+            size += segment.size();
         }
+        return size;
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return segmentFor(digest).containsKey(digest);
     }
 
+    /** Returns the estimated number of bytes retained by the cache, including
+     *  per-entry overhead and message data that was read into memory. */
     public static long getDataSize() {
-        return sDataSize;
+        long size = 0;
+        for (Segment segment : sSegments) {
+            size += segment.getDataSize();
+        }
+        return size;
+    }
+
+    /** Returns the current counters for each cache segment and resets the
+     *  hit, miss and eviction counts. */
+    public static List<SegmentStats> getSegmentStats() {
+        List<SegmentStats> stats = new ArrayList<SegmentStats>(sSegments.length);
+        for (Segment segment : sSegments) {
+            stats.add(new SegmentStats(segment.size(), segment.getDataSize(), segment.hits.getAndSet(0),
+                    segment.misses.getAndSet(0), segment.evictions.getAndSet(0)));
+        }
+        return stats;
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +277,9 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            CacheNode node = segmentFor(digest).remove(digest);
+            if (node != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -156,13 +306,12 @@ public class MessageCache {
         InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
+        Segment segment = segmentFor(digest);
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        cnode = segment.get(digest);
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -173,11 +322,9 @@ public class MessageCache {
                     in = fetchFromStore(item);
                     cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
                     if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
+                        // Only new nodes are loaded here, so the segment picks up the
+                        // size when the node is cached below.
                         cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
                     }
                 } finally {
                     ByteUtil.closeStream(in);
@@ -209,7 +356,7 @@ public class MessageCache {
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
                         cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
+                        expandMessage(item, cnode, decryptedMimeMessage, newNode ? null : segment);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
@@ -219,7 +366,7 @@ public class MessageCache {
             }
 
             if (newNode) {
-                cacheItem(digest, cnode);
+                segment.put(digest, cnode);
             }
         } catch (IOException e) {
             throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
@@ -232,9 +379,11 @@ public class MessageCache {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            segment.hits.incrementAndGet();
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            segment.misses.incrementAndGet();
         }
 
         if (expand) {
@@ -266,8 +415,12 @@ public class MessageCache {
         return false;
     }
 
-    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
-        throws MessagingException, ServiceException {
+    /**
+     * @param segment the segment holding <tt>cnode</tt>, or <tt>null</tt> if the node
+     *                has not been cached yet
+     */
+    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage,
+            Segment segment) throws MessagingException, ServiceException {
         MimeMessage mimeToExpand = cnode.message;
         if (decryptedMimeMessage != null) {
             mimeToExpand = decryptedMimeMessage;
@@ -286,8 +439,11 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
+            if (segment == null) {
+                cnode.size *= 2;
+            } else {
+                segment.resize(item.getDigest(), cnode, cnode.size);
+            }
         }
     }
 
@@ -357,43 +513,22 @@ public class MessageCache {
         CacheNode cnode = new CacheNode();
         cnode.message = original;
         cnode.expanded = expanded;
-        cacheItem(digest, cnode);
-    }
-
-    private static void cacheItem(String digest, CacheNode cnode) {
-        sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
-        }
+        segmentFor(digest).put(digest, cnode);
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
+        for (Segment segment : sSegments) {
+            // walk a copy so that MIME parsing doesn't happen while holding the segment lock
+            for (CacheNode cacheNode : segment.values()) {
                 try {
                     if (Mime.isEncrypted(cacheNode.message.getContentType())
                         && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
                         cacheNode.smimeAccessInfo.remove(mboxId);
                     }
                 } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
+                    sLog.warn("MessagingException while checking content type for cache node in mailbox %d",
+                        mboxId, e);
                 }
             }
         }
@@ -402,11 +537,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = segmentFor(digest).get(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -125,7 +125,9 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    // encoded form that values are read from until the first call that needs the whole map; see #map()
+    private EncodedMetadata encoded;
+    private Map<Object, Object> map;
 
     public Metadata() {
         associatedItemId = null;
@@ -147,6 +149,10 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        this.encoded = EncodedMetadata.index(encoded, FN_MD_VERSION);
+        if (this.encoded != null) {
+            return;
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -183,28 +189,43 @@ public final class Metadata {
         }
     }
 
+    private Metadata(EncodedMetadata encoded) {
+        associatedItemId = null;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Returns the backing map, decoding it from the encoded form first if necessary.
+     */
+    Map<Object, Object> map() {
+        if (map == null) {
+            map = encoded.toMap();
+        }
+        return map;
+    }
+
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        return map != null ? map.containsKey(key) : encoded.containsKey(key);
     }
 
     public int size() {
-        return map.size();
+        return map != null ? map.size() : encoded.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            map().putAll(source.map());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : map().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -221,48 +242,48 @@ public final class Metadata {
     }
 
     public Metadata remove(String key) {
-        map.remove(key);
+        map().remove(key);
         return this;
     }
 
     public Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            map().put(key, value);
         }
         return this;
     }
 
     public Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            map().put(key, Long.valueOf(value));
         }
         return this;
     }
 
     public Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            map().put(key, new Double(value));
         }
         return this;
     }
 
     public Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            map().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            map().put(key, value.map());
         }
         return this;
     }
 
     public Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            map().put(key, value.list);
         }
         return this;
     }
@@ -284,6 +305,10 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
+        if (map == null) {
+            String value = encoded.getString(key);
+            return value == null ? defaultValue : value;
+        }
         Object value = map.get(key);
         return value == null ? defaultValue : value.toString();
     }
@@ -318,7 +343,7 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = map != null ? map.get(key) : encoded.get(key);
         if (nullOK && value == null) {
             return null;
         }
@@ -335,7 +360,13 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        if (map == null) {
+            EncodedMetadata nested = encoded.getMap(key);
+            if (nested != null) {
+                return new Metadata(nested);
+            }
+        }
+        Object value = map != null ? map.get(key) : encoded.get(key);
         if (nullable && value == null) {
             return null;
         }
@@ -357,7 +388,7 @@ public final class Metadata {
 
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, map(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
@@ -345,20 +345,11 @@ public final class Threader {
             return Collections.emptyList();
         }
         ZimbraLog.mailbox.debug("  lookup by references (%s): %s", mode, refHashes);
-        List<MailItem.UnderlyingData> dlist = DbMailItem.getByHashes(mbox, refHashes);
-        if (dlist == null || dlist.isEmpty()) {
+        List<Conversation> matches = mbox.getConversationsByHash(refHashes);
+        if (matches.isEmpty()) {
             ZimbraLog.mailbox.debug("  no reference matches found");
             return Collections.emptyList();
         }
-
-        List<Conversation> matches = new ArrayList<Conversation>(dlist.size());
-        for (MailItem.UnderlyingData data : dlist) {
-            if (data.type == MailItem.Type.CONVERSATION.toByte()) {
-                matches.add(mbox.getConversation(data));
-            } else {
-                matches.add((Conversation) mbox.getMessage(data).getParent());
-            }
-        }
         ZimbraLog.mailbox.debug("  found %d reference match(es)", matches.size());
 
         if (mode.isSubjrefs()) {
@@ -470,7 +461,6 @@ public final class Threader {
             return;
 
         if (subjHash != null) {
-            // use the Mailbox version in order to update Mailbox.mConvHashes
             mbox.openConversation(conv, subjHash);
         }
 
@@ -487,6 +477,7 @@ public final class Threader {
     void changeThreadingTargets(Message msg, Conversation conv) throws ServiceException {
         if (conv != null && msg != null && isEnabled() && !mode.isSubject()) {
             DbMailItem.changeOpenTargets(msg, conv.getId());
+            mbox.getThreaderCache().retargeted(msg, conv.getId());
             ZimbraLog.mailbox.debug("  transferred hashes from message %d to conv %d", msg.getId(), conv.getId());
         }
     }
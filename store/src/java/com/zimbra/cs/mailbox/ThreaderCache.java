@@ -0,0 +1,284 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * In-memory view of a mailbox's {@code OPEN_CONVERSATION} rows, so that most messages can be threaded without
+ * querying the table.
+ * <p>
+ * Recently used hashes are kept in a bounded LRU map along with the id of the item they are open in, i.e. the
+ * {@code conv_id} column, which is a message id for a virtual conversation. Hashes that are not in the map are
+ * checked against a Bloom filter holding every hash of the mailbox: a hash the filter has never seen cannot be in
+ * the table either. Only hashes that pass the filter but are not in the map, typically those of older threads, are
+ * left for the caller to look up in the database.
+ * <p>
+ * The filter is only ever added to, so it stays a superset of the table as rows are closed and purged. It is loaded
+ * on first use and reloaded once it has taken in more hashes than it was sized for; a mailbox with more open hashes
+ * than that goes without one. Every change to the table must be reported through {@link #opened}, {@link #closed},
+ * {@link #retargeted} and {@link #clear}. Changes are marked dirty on the current transaction and the affected
+ * entries are dropped if it rolls back.
+ */
+final class ThreaderCache {
+    private static final int CAPACITY = LC.zimbra_threader_hash_cache_size.intValue();
+    private static final int FILTER_CAPACITY = LC.zimbra_threader_hash_filter_size.intValue();
+    private static final double FILTER_FPP = 0.01;
+    // rough heap retained by an entry: the hash string plus the map node
+    private static final long ENTRY_OVERHEAD = 160;
+    // bits per hash for a 1% false positive rate, rounded up
+    private static final long FILTER_BITS_PER_HASH = 10;
+
+    private final Mailbox mbox;
+    private final boolean enabled;
+    private final Map<String, Integer> entries;
+    // guarded by this
+    private BloomFilter<CharSequence> filter;
+    private int filterHashes;
+    private boolean filterOverflow;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ThreaderCache(Mailbox mbox) {
+        this.mbox = mbox;
+        // with the item cache kept in memcached, other servers may change the mailbox behind our back
+        this.enabled = CAPACITY > 0 && !Zimbra.isAlwaysOn();
+        this.entries = new ConcurrentLinkedHashMap.Builder<String, Integer>()
+                .maximumWeightedCapacity(Math.max(CAPACITY, 1)).build();
+    }
+
+    /**
+     * Resolves as many of {@code hashes} as possible without going to the database.
+     *
+     * @param unresolved receives the hashes that may be open but whose target is not cached
+     * @return the ids of the items that the resolved hashes are open in, in the order of {@code hashes}
+     */
+    List<Integer> lookup(Collection<String> hashes, List<String> unresolved) throws ServiceException {
+        List<Integer> targets = new ArrayList<Integer>(hashes.size());
+        if (!enabled) {
+            unresolved.addAll(hashes);
+            return targets;
+        }
+        BloomFilter<CharSequence> known = getFilter();
+        for (String hash : hashes) {
+            Integer target = entries.get(hash);
+            if (target != null) {
+                hits.incrementAndGet();
+                if (!targets.contains(target)) {
+                    targets.add(target);
+                }
+            } else if (known != null && !known.mightContain(hash)) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                unresolved.add(hash);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Caches targets that were looked up in the database.
+     */
+    void loaded(Map<String, Integer> targets) {
+        if (enabled) {
+            entries.putAll(targets);
+        }
+    }
+
+    void opened(String hash, int targetId) throws ServiceException {
+        if (!enabled) {
+            return;
+        }
+        mbox.markOtherItemDirty(hash);
+        entries.put(hash, targetId);
+        synchronized (this) {
+            if (filter != null) {
+                filter.put(hash);
+                if (++filterHashes > FILTER_CAPACITY) {
+                    // past its design size the false positive rate climbs; start over on the next lookup
+                    filter = null;
+                }
+            }
+        }
+    }
+
+    void closed(String hash, int targetId) {
+        if (enabled) {
+            mbox.markOtherItemDirty(hash);
+            entries.remove(hash, targetId);
+        }
+    }
+
+    /**
+     * Points the hashes open in {@code oldTarget} at {@code newTargetId}, as {@link DbMailItem#changeOpenTargets}
+     * does in the database.
+     */
+    void retargeted(MailItem oldTarget, int newTargetId) {
+        if (!enabled) {
+            return;
+        }
+        Integer oldTargetId = oldTarget instanceof VirtualConversation ?
+                ((VirtualConversation) oldTarget).getMessageId() : oldTarget.getId();
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            if (oldTargetId.equals(entry.getValue()) && entries.replace(entry.getKey(), oldTargetId, newTargetId)) {
+                mbox.markOtherItemDirty(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops a cached target, either because it turned out to be stale or because the transaction that set it
+     * rolled back.
+     */
+    void invalidate(String hash) {
+        entries.remove(hash);
+    }
+
+    /**
+     * Drops the cached hashes open in an item that no longer exists; its rows went with it.
+     */
+    void invalidateTarget(int targetId) {
+        invalidateTargets(Collections.singleton(targetId));
+    }
+
+    /**
+     * Drops the cached hashes open in any of the deleted items, whose rows went away with them.
+     */
+    void invalidateTargets(Collection<Integer> targetIds) {
+        if (enabled && !targetIds.isEmpty() && !entries.isEmpty()) {
+            entries.values().removeAll(targetIds instanceof Set ? targetIds : new HashSet<Integer>(targetIds));
+        }
+    }
+
+    /**
+     * Drops all cached targets, for when rows were removed from {@code OPEN_CONVERSATION} without going through
+     * {@link #closed}.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEstimatedSize() {
+        long size = entries.size() * ENTRY_OVERHEAD;
+        synchronized (this) {
+            if (filter != null) {
+                size += FILTER_CAPACITY * FILTER_BITS_PER_HASH / 8;
+            }
+        }
+        return size;
+    }
+
+    private synchronized BloomFilter<CharSequence> getFilter() throws ServiceException {
+        if (filter != null || filterOverflow || FILTER_CAPACITY <= 0) {
+            return filter;
+        }
+        final BloomFilter<CharSequence> loading =
+                BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), FILTER_CAPACITY, FILTER_FPP);
+        final int[] count = new int[1];
+        if (!DbMailItem.visitOpenConversationHashes(mbox, FILTER_CAPACITY, new DbMailItem.Callback<String>() {
+            @Override
+            public void call(String hash) {
+                loading.put(hash);
+                count[0]++;
+            }
+        })) {
+            ZimbraLog.mailbox.debug("more than %d open conversation hashes in mailbox %d, not filtering misses",
+                    FILTER_CAPACITY, mbox.getId());
+            filterOverflow = true;
+            return null;
+        }
+        filter = loading;
+        filterHashes = count[0];
+        return filter;
+    }
+
+    /**
+     * Compares the cache with the database, dropping all cached targets if they disagree.
+     *
+     * @return {@code true} if the cache is consistent with the {@code OPEN_CONVERSATION} table
+     */
+    boolean checkConsistency() throws ServiceException {
+        if (!enabled) {
+            return true;
+        }
+        boolean consistent = true;
+        List<String> cached = new ArrayList<String>(entries.keySet());
+        Map<String, Integer> actual = DbMailItem.getOpenConversationIds(mbox, cached);
+        for (String hash : cached) {
+            Integer target = entries.get(hash);
+            if (target != null && !target.equals(actual.get(hash))) {
+                ZimbraLog.mailbox.error("threader cache of mailbox %d has hash %s open in %d, database has %s",
+                        mbox.getId(), hash, target, actual.get(hash));
+                consistent = false;
+            }
+        }
+        final BloomFilter<CharSequence> known;
+        synchronized (this) {
+            known = filter;
+        }
+        if (known != null) {
+            final List<String> unknown = new ArrayList<String>();
+            DbMailItem.visitOpenConversationHashes(mbox, Integer.MAX_VALUE - 1, new DbMailItem.Callback<String>() {
+                @Override
+                public void call(String hash) {
+                    if (!known.mightContain(hash)) {
+                        unknown.add(hash);
+                    }
+                }
+            });
+            if (!unknown.isEmpty()) {
+                ZimbraLog.mailbox.error("threader cache filter of mailbox %d is missing open hashes %s",
+                        mbox.getId(), unknown);
+                synchronized (this) {
+                    filter = null;
+                }
+                consistent = false;
+            }
+        }
+        if (!consistent) {
+            entries.clear();
+        }
+        return consistent;
+    }
+}
@@ -101,11 +101,13 @@ public class VirtualConversation extends Conversation {
     @Override
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, getMessage());
+        mMailbox.getThreaderCache().opened(hash, getMessageId());
     }
 
     @Override
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, getMessage());
+        mMailbox.getThreaderCache().closed(hash, getMessageId());
     }
 
     @Override
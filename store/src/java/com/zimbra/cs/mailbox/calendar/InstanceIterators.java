@@ -0,0 +1,140 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.zimbra.cs.mailbox.CalendarItem.Instance;
+
+/**
+ * Streaming counterparts of the list operations used by recurrence expansion.  Each one returns
+ * the same instances, in the same order, as the list version it mirrors, but only pulls from its
+ * sources as far as the caller iterates.
+ */
+final class InstanceIterators {
+
+    private InstanceIterators() {
+    }
+
+    /**
+     * Merges sources sorted by {@link Instance#compareTo}, like
+     * {@link com.zimbra.common.util.ListUtil#mergeSortedLists} with duplicate removal: when there is
+     * more than one source, an instance equal to the one just returned is dropped.
+     */
+    static Iterator<Instance> merge(List<Iterator<Instance>> sources) {
+        if (sources.isEmpty()) {
+            return Collections.<Instance>emptyIterator();
+        } else if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        final List<PeekingIterator<Instance>> iters = new ArrayList<PeekingIterator<Instance>>(sources.size());
+        for (Iterator<Instance> source : sources) {
+            iters.add(Iterators.peekingIterator(source));
+        }
+        return new AbstractIterator<Instance>() {
+            private Instance mLastAdded;
+
+            @Override
+            protected Instance computeNext() {
+                while (true) {
+                    PeekingIterator<Instance> lowest = null;
+                    for (PeekingIterator<Instance> iter : iters) {
+                        if (iter.hasNext() && (lowest == null || lowest.peek().compareTo(iter.peek()) > 0)) {
+                            lowest = iter;
+                        }
+                    }
+                    if (lowest == null) {
+                        return endOfData();
+                    }
+                    Instance inst = lowest.next();
+                    if (mLastAdded == null || !mLastAdded.equals(inst)) {
+                        mLastAdded = inst;
+                        return inst;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the instances of <tt>a</tt> that have no match in <tt>b</tt>, both sorted by
+     * <tt>comparator</tt>, like {@link com.zimbra.common.util.ListUtil#subtractSortedLists}.
+     */
+    static Iterator<Instance> subtract(final Iterator<Instance> a, Iterator<Instance> b,
+            final Comparator<Instance> comparator) {
+        final PeekingIterator<Instance> exclude = Iterators.peekingIterator(b);
+        return new AbstractIterator<Instance>() {
+            @Override
+            protected Instance computeNext() {
+                while (a.hasNext()) {
+                    Instance inst = a.next();
+                    while (exclude.hasNext() && comparator.compare(inst, exclude.peek()) > 0) {
+                        exclude.next();
+                    }
+                    if (!exclude.hasNext() || comparator.compare(inst, exclude.peek()) != 0) {
+                        return inst;
+                    }
+                    // excluded; keep the exclusion around in case another instance has the same start time
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Collapses consecutive instances with the same time into one, preferring the one that wasn't
+     * generated from RDATE, like {@link Recurrence#expandInstances(Recurrence.IRecurrence, int, long, long)}.
+     */
+    static Iterator<Instance> dropSameTime(final Iterator<Instance> source) {
+        return new AbstractIterator<Instance>() {
+            private Instance mPrev;
+
+            @Override
+            protected Instance computeNext() {
+                while (source.hasNext()) {
+                    Instance inst = source.next();
+                    if (mPrev == null) {
+                        mPrev = inst;
+                    } else if (inst != null) {
+                        if (inst.sameTime(mPrev)) {
+                            if (!inst.fromRdate()) {
+                                mPrev = inst;
+                            }
+                        } else {
+                            Instance good = mPrev;
+                            mPrev = inst;
+                            return good;
+                        }
+                    }
+                }
+                if (mPrev != null) {
+                    Instance last = mPrev;
+                    mPrev = null;
+                    return last;
+                }
+                return endOfData();
+            }
+        };
+    }
+}
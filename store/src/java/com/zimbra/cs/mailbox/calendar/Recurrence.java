@@ -31,6 +31,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.zimbra.common.calendar.ICalTimeZone;
 import com.zimbra.common.calendar.ParsedDateTime;
 import com.zimbra.common.calendar.ParsedDuration;
@@ -129,6 +134,13 @@ public class Recurrence
         abstract List<Instance> expandInstances(int calItemId, long start, long end)
         throws ServiceException;
 
+        /**
+         * Returns the same instances as {@link #expandInstances}, in the same order, expanding them
+         * lazily as the iterator is advanced.
+         */
+        abstract Iterator<Instance> instanceIterator(int calItemId, long start, long end)
+        throws ServiceException;
+
         // get the first time for which the rule has instances
         public ParsedDateTime getStartTime();
         // get the last time (-1 means forever) for which the rule has instances
@@ -317,6 +329,15 @@ public class Recurrence
             return toRet;
         }
 
+        Iterator<Instance> instanceIterator(int calItemId, long start, long end)
+        throws ServiceException {
+            List<Iterator<Instance>> iters = new ArrayList<Iterator<Instance>>(mRules.size());
+            for (IRecurrence cur : mRules) {
+                iters.add(cur.instanceIterator(calItemId, start, end));
+            }
+            return InstanceIterators.merge(iters);
+        }
+
         @Override
         public String toString() {
             StringBuffer toRet = new StringBuffer();
@@ -432,6 +453,11 @@ public class Recurrence
             return expandInstances(calItemId);
         }
 
+        @Override
+        public Iterator<Instance> instanceIterator(int calItemId, long start, long end) {
+            return expandInstances(calItemId).iterator();
+        }
+
         /**
          * @return returns ALL instances - know this will not be an infinite list...
          */
@@ -779,6 +805,63 @@ public class Recurrence
             return toRet;
         }
 
+        /**
+         * Walks the rule one frequency interval at a time.  Unlike {@link #expandInstances}, a rule with bad
+         * data found partway through the range ends the iteration there instead of yielding no instances.
+         */
+        @Override
+        public Iterator<Instance> instanceIterator(final int calItemId, final long start, final long end) {
+            if (mDtStart == null) {
+                ZimbraLog.calendar.warn("Unable to expand a recurrence with no DTSTART");
+                return Collections.<Instance>emptyIterator();
+            }
+            ICalTimeZone dtStartTz = mDtStart.getTimeZone();
+            final ICalTimeZone tz = dtStartTz != null ? dtStartTz : ICalTimeZone.getUTC();
+            final boolean allDay = !mDtStart.hasTime() ||
+                    (mDtStart.hasZeroTime() && mDuration != null && mDuration.isMultipleOfDays());
+            final Iterator<Date> dates;
+            try {
+                long duration = 0;
+                if (mDuration != null) {
+                    ParsedDateTime et = mDtStart.add(mDuration);
+                    duration = et.getUtcTime() - mDtStart.getUtcTime();
+                }
+                dates = mRecur.iterateRecurrenceOverRange(mDtStart, start - duration, end);
+            } catch (ServiceException se) {
+                // Bugs 3172 and 3240.  Ignore recurrence rules with bad data.
+                ZimbraLog.calendar.warn("ServiceException expanding recurrence rule: " + mRecur.toString(), se);
+                return Collections.<Instance>emptyIterator();
+            } catch (IllegalArgumentException iae) {
+                // Bugs 3172 and 3240.  Ignore recurrence rules with bad data.
+                ZimbraLog.calendar.warn("Invalid recurrence rule: " + mRecur.toString(), iae);
+                return Collections.<Instance>emptyIterator();
+            }
+            return new AbstractIterator<Instance>() {
+                @Override
+                protected Instance computeNext() {
+                    try {
+                        while (dates.hasNext()) {
+                            long instStart = dates.next().getTime();
+                            long instEnd;
+                            if (mDuration != null) {
+                                ParsedDateTime startDt = ParsedDateTime.fromUTCTime(instStart, tz);
+                                instEnd = startDt.add(mDuration).getUtcTime();
+                            } else {
+                                instEnd = instStart;
+                            }
+                            if (instStart < end && instEnd > start) {
+                                return new Instance(calItemId, mInvId, true, true, instStart, instEnd,
+                                        allDay, tz.getOffset(instStart), tz.getOffset(instEnd), false, false);
+                            }
+                        }
+                    } catch (IllegalArgumentException iae) {
+                        ZimbraLog.calendar.warn("Invalid recurrence rule: " + mRecur.toString(), iae);
+                    }
+                    return endOfData();
+                }
+            };
+        }
+
         public ZRecur getRule() { return mRecur; }
 
 
@@ -964,20 +1047,12 @@ public class Recurrence
                 toAdd = new ArrayList<Instance>(1);
 
             // DTSTART
-            long firstStart = mDtStart.getUtcTime();
-            ParsedDateTime dtFirstEnd = mDuration != null ? mDtStart.add(mDuration) : null;
-            long firstEnd = dtFirstEnd != null ? dtFirstEnd.getUtcTime() : firstStart;
-            if (firstStart < end && firstEnd > start) {
+            CalendarItem.Instance dtstartInst = dtStartInstance(calItemId, start, end);
+            if (dtstartInst != null) {
                 CalendarItem.Instance first = null;
                 if (toAdd.size() > 0) {
                     first = toAdd.get(0);
                 }
-
-                boolean allDay = !mDtStart.hasTime() || (mDtStart.hasZeroTime() && mDuration != null && mDuration.isMultipleOfDays());
-                CalendarItem.Instance dtstartInst = new CalendarItem.Instance(
-                        calItemId, mInvId, true, true, firstStart, firstEnd,
-                        allDay, mDtStart.getOffset(), dtFirstEnd != null ? dtFirstEnd.getOffset() : 0,
-                        false, true);
                 if (first == null || first.compareTo(dtstartInst) != 0)
                     toAdd.add(0,dtstartInst);
             }
@@ -990,6 +1065,54 @@ public class Recurrence
                     toAdd, toExclude, new Instance.StartTimeComparator());
         }
 
+        @Override
+        public Iterator<Instance> instanceIterator(int calItemId, long start, long end)
+        throws ServiceException {
+            if (mDtStart == null) {
+                ZimbraLog.calendar.warn("Unable to expand a recurrence with no DTSTART");
+                return Collections.<Instance>emptyIterator();
+            }
+
+            // RRULEs + RDATEs
+            Iterator<Instance> toAdd;
+            if (mAddRules != null)
+                toAdd = mAddRules.instanceIterator(calItemId, start, end);
+            else
+                toAdd = Collections.<Instance>emptyIterator();
+
+            // DTSTART
+            CalendarItem.Instance dtstartInst = dtStartInstance(calItemId, start, end);
+            if (dtstartInst != null) {
+                PeekingIterator<Instance> rules = Iterators.peekingIterator(toAdd);
+                if (!rules.hasNext() || rules.peek().compareTo(dtstartInst) != 0)
+                    toAdd = Iterators.concat(Iterators.singletonIterator(dtstartInst), rules);
+                else
+                    toAdd = rules;
+            }
+
+            // -(EXRULEs + EXDATEs)
+            if (mSubtractRules == null)
+                return toAdd;
+            return InstanceIterators.subtract(toAdd, mSubtractRules.instanceIterator(calItemId, start, end),
+                    new Instance.StartTimeComparator());
+        }
+
+        /**
+         * @return the instance at DTSTART, or null if it doesn't overlap [start, end)
+         */
+        private CalendarItem.Instance dtStartInstance(int calItemId, long start, long end) {
+            long firstStart = mDtStart.getUtcTime();
+            ParsedDateTime dtFirstEnd = mDuration != null ? mDtStart.add(mDuration) : null;
+            long firstEnd = dtFirstEnd != null ? dtFirstEnd.getUtcTime() : firstStart;
+            if (firstStart >= end || firstEnd <= start)
+                return null;
+            boolean allDay = !mDtStart.hasTime() || (mDtStart.hasZeroTime() && mDuration != null && mDuration.isMultipleOfDays());
+            return new CalendarItem.Instance(
+                    calItemId, mInvId, true, true, firstStart, firstEnd,
+                    allDay, mDtStart.getOffset(), dtFirstEnd != null ? dtFirstEnd.getOffset() : 0,
+                    false, true);
+        }
+
         @Override
         public Element toXml(Element parent) {
             if (mAddRules != null) {
@@ -1224,6 +1347,11 @@ public class Recurrence
             return new ArrayList<Instance>(); // NONE!
         }
 
+        @Override
+        public Iterator<Instance> instanceIterator(int calItemId, long start, long end) {
+            return Collections.<Instance>emptyIterator();
+        }
+
         @Override
         public ParsedDateTime getStartTime() {
             return null;
@@ -1310,6 +1438,19 @@ public class Recurrence
             return toRet;
         }
 
+        @Override
+        public Iterator<Instance> instanceIterator(int calItemId, long start, long end)
+        throws ServiceException {
+            return Iterators.transform(super.instanceIterator(calItemId, start, end),
+                    new Function<Instance, Instance>() {
+                        @Override
+                        public Instance apply(Instance cur) {
+                            cur.setIsException(true);
+                            return cur;
+                        }
+                    });
+        }
+
 
         @Override
         public Element toXml(Element parent) {
@@ -1446,42 +1587,9 @@ public class Recurrence
 
         @Override
         public List<Instance> expandInstances(int calItemId, long start, long end) throws ServiceException {
-            long startAdjusted = start;
-            long endAdjusted = end;
-            // Stretch the start/end times to ensure all exception instances are included.
-            for (IException except : mExceptions) {
-                if (except != null) {
-                    RecurId rid = except.getRecurId();
-                    if (rid != null) {
-                        ParsedDateTime dt = rid.getDt();
-                        if (dt != null) {
-                            long recurIdTime = dt.getUtcTime();
-                            ParsedDateTime st = except.getStartTime();
-                            if (st != null) {
-                                long stTime = st.getUtcTime();
-                                if (stTime >= start && stTime < end) {
-                                    if (recurIdTime < startAdjusted)
-                                        startAdjusted = recurIdTime;
-                                    else if (recurIdTime > endAdjusted)
-                                        endAdjusted = recurIdTime + 1;
-                                }
-                            }
-                            if (end < Long.MAX_VALUE) {
-                                ParsedDateTime et = except.getEndTime();
-                                if (et != null) {
-                                    long etTime = et.getUtcTime();
-                                    if (etTime > start && etTime <= end) {
-                                        if (recurIdTime < startAdjusted)
-                                            startAdjusted = recurIdTime;
-                                        else if (recurIdTime > endAdjusted)
-                                            endAdjusted = recurIdTime + 1;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            long[] range = adjustedRange(start, end);
+            long startAdjusted = range[0];
+            long endAdjusted = range[1];
 
             // get the list of instances that THIS rule expands into
             List<Instance> stdInstances = super.expandInstances(calItemId, startAdjusted, endAdjusted);
@@ -1495,26 +1603,8 @@ public class Recurrence
                     if (inst.getEnd() < start || inst.getStart() >= end) {
                         // Restrict to [start, end) range.
                         iter.remove();
-                    } else {
-                        for (IException except : mExceptions) {
-                            if (except != null) {
-                                long instStart = inst.getStart();
-                                if (inst.isAllDay()) {
-                                    // Adjust start time value from instance's TZ to exception's TZ.
-                                    RecurId eRid = except.getRecurId();
-                                    if (eRid != null && eRid.getDt() != null) {
-                                        long eOffset = eRid.getDt().getOffset();
-                                        long iOffset = inst.getStartTzOffset();
-                                        if (iOffset != eOffset)
-                                            instStart += iOffset - eOffset;
-                                    }
-                                }
-                                if (except.matches(instStart)) {
-                                    iter.remove();
-                                    break;
-                                }
-                            }
-                        }
+                    } else if (isOverridden(inst)) {
+                        iter.remove();
                     }
                 }
             }
@@ -1557,6 +1647,109 @@ public class Recurrence
             return toRet;
         }
 
+        @Override
+        public Iterator<Instance> instanceIterator(int calItemId, final long start, final long end)
+        throws ServiceException {
+            long[] range = adjustedRange(start, end);
+            final Predicate<Instance> inRange = new Predicate<Instance>() {
+                @Override
+                public boolean apply(Instance inst) {
+                    return inst == null || !(inst.getEnd() < start || inst.getStart() >= end);
+                }
+            };
+
+            // instances that THIS rule expands into, less those replaced by an exception
+            Iterator<Instance> stdInstances = Iterators.filter(
+                    super.instanceIterator(calItemId, range[0], range[1]), new Predicate<Instance>() {
+                        @Override
+                        public boolean apply(Instance inst) {
+                            return inst == null || (inRange.apply(inst) && !isOverridden(inst));
+                        }
+                    });
+
+            // merged with the exception instances in the range
+            List<Iterator<Instance>> sources = new ArrayList<Iterator<Instance>>();
+            sources.add(stdInstances);
+            for (IException except : mExceptions) {
+                if (except != null) {
+                    Iterator<Instance> instances =
+                            Iterators.filter(except.instanceIterator(calItemId, range[0], range[1]), inRange);
+                    if (instances.hasNext())
+                        sources.add(instances);
+                }
+            }
+            return InstanceIterators.merge(sources);
+        }
+
+        /**
+         * Stretches [start, end) to the RECURRENCE-IDs of the exceptions whose instances fall in it,
+         * so that the series instances they replace are expanded too.
+         *
+         * @return adjusted start and end
+         */
+        private long[] adjustedRange(long start, long end) throws ServiceException {
+            long startAdjusted = start;
+            long endAdjusted = end;
+            for (IException except : mExceptions) {
+                if (except != null) {
+                    RecurId rid = except.getRecurId();
+                    if (rid != null) {
+                        ParsedDateTime dt = rid.getDt();
+                        if (dt != null) {
+                            long recurIdTime = dt.getUtcTime();
+                            ParsedDateTime st = except.getStartTime();
+                            if (st != null) {
+                                long stTime = st.getUtcTime();
+                                if (stTime >= start && stTime < end) {
+                                    if (recurIdTime < startAdjusted)
+                                        startAdjusted = recurIdTime;
+                                    else if (recurIdTime > endAdjusted)
+                                        endAdjusted = recurIdTime + 1;
+                                }
+                            }
+                            if (end < Long.MAX_VALUE) {
+                                ParsedDateTime et = except.getEndTime();
+                                if (et != null) {
+                                    long etTime = et.getUtcTime();
+                                    if (etTime > start && etTime <= end) {
+                                        if (recurIdTime < startAdjusted)
+                                            startAdjusted = recurIdTime;
+                                        else if (recurIdTime > endAdjusted)
+                                            endAdjusted = recurIdTime + 1;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            return new long[] { startAdjusted, endAdjusted };
+        }
+
+        /**
+         * @return true if the instance's start time matches the RECURRENCE-ID of one of the exceptions
+         */
+        private boolean isOverridden(Instance inst) {
+            for (IException except : mExceptions) {
+                if (except != null) {
+                    long instStart = inst.getStart();
+                    if (inst.isAllDay()) {
+                        // Adjust start time value from instance's TZ to exception's TZ.
+                        RecurId eRid = except.getRecurId();
+                        if (eRid != null && eRid.getDt() != null) {
+                            long eOffset = eRid.getDt().getOffset();
+                            long iOffset = inst.getStartTzOffset();
+                            if (iOffset != eOffset)
+                                instStart += iOffset - eOffset;
+                        }
+                    }
+                    if (except.matches(instStart))
+                        return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         public String toString() {
             StringBuffer toRet = new StringBuffer();
@@ -1647,6 +1840,16 @@ public class Recurrence
         return toRet;
     }
 
+    /**
+     * Returns the same instances as {@link #expandInstances(IRecurrence, int, long, long)}, in the same order,
+     * without expanding the whole range up front.  Rules, RDATEs/EXDATEs and exceptions are merged as the
+     * iterator is advanced, so a caller that stops early only pays for the instances it looked at.
+     */
+    public static Iterator<Instance> instanceIterator(IRecurrence recur, int calItemId, long start, long end)
+    throws ServiceException {
+        return InstanceIterators.dropSameTime(recur.instanceIterator(calItemId, start, end));
+    }
+
     // Get the set of TZIDs referenced in a recurrence.  RDATE and EXDATE can use TZID parameter.
     public static Set<String> getReferencedTZIDs(IRecurrence recur) {
         Set<String> tzids = new HashSet<String>();
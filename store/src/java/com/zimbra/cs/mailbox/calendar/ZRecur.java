@@ -25,8 +25,10 @@ import java.util.Date;
 import java.util.Formatter;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.http.client.utils.DateUtils;
@@ -586,82 +588,126 @@ public class ZRecur implements Cloneable {
         long rangeStart,
         long rangeEnd)
     throws ServiceException {
-        List<Date> toRet = new LinkedList<Date>();
-
-        Date rangeStartDate = new Date(rangeStart);
-        // subtract 1000ms (1sec) because the code in the method treats
-        // end time as inclusive while the rangeEnd input argument is
-        // exclusive value
-        Date rangeEndDate = new Date(rangeEnd - 1000);
-        Date dtStartDate = new Date(dtStart.getUtcTime());
-
-        Date earliestDate;
-        if (dtStartDate.after(rangeStartDate))
-            earliestDate = dtStartDate;
-        else
-            earliestDate = rangeStartDate;
+        List<Date> toRet = new ArrayList<Date>();
+        for (Iterator<Date> iter = iterateRecurrenceOverRange(dtStart, rangeStart, rangeEnd); iter.hasNext(); ) {
+            toRet.add(iter.next());
+        }
+        return toRet;
+    }
 
-        if (mUntil != null) {
-            Date until = mUntil.getDateForRecurUntil(dtStart.getTimeZone());
-            if (until.before(rangeEndDate))
-                rangeEndDate = until;
+    /**
+     * Lazy form of {@link #expandRecurrenceOverRange}.  Returns the same dates in the same order, but
+     * expands one frequency interval at a time as the caller asks for more, so a caller that stops early
+     * doesn't expand the rest of the series.
+     */
+    public Iterator<Date> iterateRecurrenceOverRange(
+        ParsedDateTime dtStart,
+        long rangeStart,
+        long rangeEnd)
+    throws ServiceException {
+        return new ExpansionIterator(dtStart, rangeStart, rangeEnd);
+    }
+
+    private class ExpansionIterator implements Iterator<Date> {
+        private final Date mDtStartDate;
+        private final Date mEarliestDate;
+        private Date mRangeEndDate;
+        private final int mMaxInstancesExpanded;
+        private int mNumInstancesExpanded = 1;  // initially 1 rather than 0 because DTSTART is always included
+        private final GregorianCalendar mCur;
+        private final int mBaseMonthDay;
+        private final boolean mBaseIsLeapDay;
+        private final int mFreqInterval;
+        private int mNumConsecutiveIterationsWithoutMatchingInstance = 0;
+        private boolean mPastHardEndTime = false;
+        private boolean mDone = false;
+        // dates found in the last expanded interval that haven't been returned yet
+        private final LinkedList<Date> mPending = new LinkedList<Date>();
+
+        ExpansionIterator(ParsedDateTime dtStart, long rangeStart, long rangeEnd) throws ServiceException {
+            Date rangeStartDate = new Date(rangeStart);
+            // subtract 1000ms (1sec) because the code in the method treats
+            // end time as inclusive while the rangeEnd input argument is
+            // exclusive value
+            mRangeEndDate = new Date(rangeEnd - 1000);
+            mDtStartDate = new Date(dtStart.getUtcTime());
+
+            if (mDtStartDate.after(rangeStartDate))
+                mEarliestDate = mDtStartDate;
+            else
+                mEarliestDate = rangeStartDate;
+
+            if (mUntil != null) {
+                Date until = mUntil.getDateForRecurUntil(dtStart.getTimeZone());
+                if (until.before(mRangeEndDate))
+                    mRangeEndDate = until;
+            }
+
+            // Set limit of expansion count.
+            int maxInstancesFromConfig = sExpansionLimits.maxInstances;
+            if (maxInstancesFromConfig <= 0)
+                mMaxInstancesExpanded = mCount;
+            else if (mCount <= 0)
+                mMaxInstancesExpanded = maxInstancesFromConfig;
+            else
+                mMaxInstancesExpanded = Math.min(mCount, maxInstancesFromConfig);
+
+            // Set hard limit of expansion time range.  (bug 21989)
+            ParsedDateTime earliestDateTime = ParsedDateTime.fromUTCTime(mEarliestDate.getTime());
+            Date hardEndDate = getEstimatedEndTime(earliestDateTime);
+            if (hardEndDate.before(mRangeEndDate))
+                mRangeEndDate = hardEndDate;
+
+            mCur = dtStart.getCalendarCopy();
+            mBaseMonthDay = mCur.get(Calendar.DAY_OF_MONTH);
+            mBaseIsLeapDay = ((mBaseMonthDay == 29) && (mCur.get(Calendar.MONTH) == Calendar.FEBRUARY));
+            mFreqInterval = mInterval > 0 ? mInterval : 1;
+
+            if (mRangeEndDate.before(mEarliestDate)) {
+                ZimbraLog.calendar.debug("Expanding recurrence over range where range end %s is before earliest date %s",
+                        DateUtils.formatDate(mRangeEndDate), DateUtils.formatDate(mEarliestDate));
+                mDone = true;
+                return;
+            }
+
+            // DTSTART is always part of the expansion, as long as it falls within
+            // the range.
+            if (!mDtStartDate.before(mEarliestDate) && !mDtStartDate.after(mRangeEndDate))
+                mPending.add(mDtStartDate);
         }
 
-        // Set limit of expansion count.
-        int maxInstancesFromConfig = sExpansionLimits.maxInstances;
-        int maxInstancesExpanded;
-        if (maxInstancesFromConfig <= 0)
-            maxInstancesExpanded = mCount;
-        else if (mCount <= 0)
-            maxInstancesExpanded = maxInstancesFromConfig;
-        else
-            maxInstancesExpanded = Math.min(mCount, maxInstancesFromConfig);
-        int numInstancesExpanded = 1;  // initially 1 rather than 0 because DTSTART is always included
-
-        // Set hard limit of expansion time range.  (bug 21989)
-        ParsedDateTime earliestDateTime = ParsedDateTime.fromUTCTime(earliestDate.getTime());
-        Date hardEndDate = getEstimatedEndTime(earliestDateTime);
-        if (hardEndDate.before(rangeEndDate))
-            rangeEndDate = hardEndDate;
-
-        if (rangeEndDate.before(earliestDate)) {
-            ZimbraLog.calendar.debug("Expanding recurrence over range where range end %s is before earliest date %s",
-                    DateUtils.formatDate(rangeEndDate), DateUtils.formatDate(earliestDate));
-            return toRet;
+        @Override
+        public boolean hasNext() {
+            while (mPending.isEmpty() && !mDone) {
+                expandNextInterval();
+            }
+            return !mPending.isEmpty();
         }
 
-        GregorianCalendar cur = dtStart.getCalendarCopy();
-        int baseMonthDay = cur.get(Calendar.DAY_OF_MONTH);
-        boolean baseIsLeapDay = ((baseMonthDay == 29) && (cur.get(Calendar.MONTH) == Calendar.FEBRUARY));
-
-        // until we hit rangeEnd, or we've SAVED count entries:
-        //
-        //     gather each set {
-        //
-        //
-        //
-        //        curDate forward one INTERVAL
-        //
-        //     }
-        //     check Set against BYSETPOS & ranges & count
-        //
-
-        int interval = mInterval;
-        if (interval <= 0)
-            interval = 1;
-
-        // DTSTART is always part of the expansion, as long as it falls within
-        // the range.
-        if (!dtStartDate.before(earliestDate) && !dtStartDate.after(rangeEndDate))
-            toRet.add(dtStartDate);
-
-        int numConsecutiveIterationsWithoutMatchingInstance = 0;
-        boolean pastHardEndTime = false;
-        long numIterations = 0;  // track how many times we looped
-        while (!pastHardEndTime && (maxInstancesExpanded <= 0 || numInstancesExpanded < maxInstancesExpanded)) {
-            numIterations++;
-            boolean curIsAtOrAfterEarliestDate = !cur.getTime().before(earliestDate);
-            boolean curIsAfterEndDate = cur.getTime().after(rangeEndDate);
+        @Override
+        public Date next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Gathers the instances of the interval starting at the current date into the pending list
+         * (checked against BYSETPOS, the range and the count), then moves the current date forward
+         * one INTERVAL.
+         */
+        private void expandNextInterval() {
+            if (mPastHardEndTime || (mMaxInstancesExpanded > 0 && mNumInstancesExpanded >= mMaxInstancesExpanded)) {
+                mDone = true;
+                return;
+            }
+            boolean curIsAtOrAfterEarliestDate = !mCur.getTime().before(mEarliestDate);
+            boolean curIsAfterEndDate = mCur.getTime().after(mRangeEndDate);
             List<Calendar> addList = new LinkedList<Calendar>();
 
             switch (mFreq) {
@@ -675,24 +721,24 @@ public class ZRecur implements Cloneable {
                  * BYYEARDAY - only those yeardays
                  * BYMONTH - only those months
                  */
-                if (!checkMonthList(cur))
-                    continue;
+                if (!checkMonthList(mCur))
+                    return;
 
-                if (!checkYearDayList(cur))
-                    continue;
+                if (!checkYearDayList(mCur))
+                    return;
 
-                if (!checkMonthDayList(cur))
-                    continue;
+                if (!checkMonthDayList(mCur))
+                    return;
 
-                if (!checkDayList(cur))
-                    continue;
+                if (!checkDayList(mCur))
+                    return;
 
-                if (!checkHourList(cur))
-                    continue;
+                if (!checkHourList(mCur))
+                    return;
 
-                addList.add((Calendar)(cur.clone()));
+                addList.add((Calendar)(mCur.clone()));
 
-                cur.add(Calendar.HOUR_OF_DAY, interval);
+                mCur.add(Calendar.HOUR_OF_DAY, mFreqInterval);
 
                 addList = expandHourList(addList);
                 addList = expandMinuteList(addList);
@@ -735,21 +781,21 @@ public class ZRecur implements Cloneable {
                  *
                  */
 
-                if (!checkMonthList(cur))
-                    continue;
+                if (!checkMonthList(mCur))
+                    return;
 
-                if (!checkYearDayList(cur))
-                    continue;
+                if (!checkYearDayList(mCur))
+                    return;
 
-                if (!checkMonthDayList(cur))
-                    continue;
+                if (!checkMonthDayList(mCur))
+                    return;
 
-                if (!checkDayList(cur))
-                    continue;
+                if (!checkDayList(mCur))
+                    return;
 
-                addList.add((Calendar)(cur.clone()));
+                addList.add((Calendar)(mCur.clone()));
 
-                cur.add(Calendar.DAY_OF_YEAR, interval);
+                mCur.add(Calendar.DAY_OF_YEAR, mFreqInterval);
 
                 addList = expandHourList(addList);
                 addList = expandMinuteList(addList);
@@ -787,18 +833,18 @@ public class ZRecur implements Cloneable {
                  * } while (count check & until check & rangeEnd check)
                  *
                  */
-                if (!checkMonthList(cur))
-                    continue;
+                if (!checkMonthList(mCur))
+                    return;
 
-                if (!checkYearDayList(cur))
-                    continue;
+                if (!checkYearDayList(mCur))
+                    return;
 
-                if (!checkMonthDayList(cur))
-                    continue;
+                if (!checkMonthDayList(mCur))
+                    return;
 
-                addList.add((Calendar)(cur.clone()));
+                addList.add((Calendar)(mCur.clone()));
 
-                cur.add(Calendar.WEEK_OF_YEAR, interval);
+                mCur.add(Calendar.WEEK_OF_YEAR, mFreqInterval);
 
                 addList = expandDayListForWeekly(addList);
                 addList = expandHourList(addList);
@@ -806,18 +852,18 @@ public class ZRecur implements Cloneable {
                 addList = expandSecondList(addList);
                 break;
             case MONTHLY:
-                if (!checkMonthList(cur))
-                    continue;
+                if (!checkMonthList(mCur))
+                    return;
 
-                if (!checkYearDayList(cur))
-                    continue;
+                if (!checkYearDayList(mCur))
+                    return;
 
-                addList.add((Calendar)(cur.clone()));
+                addList.add((Calendar)(mCur.clone()));
 
-                cur.set(Calendar.DAY_OF_MONTH, 1);
-                cur.add(Calendar.MONTH, interval);
-                int daysInMonth = cur.getActualMaximum(Calendar.DAY_OF_MONTH);
-                cur.set(Calendar.DAY_OF_MONTH, Math.min(baseMonthDay, daysInMonth));
+                mCur.set(Calendar.DAY_OF_MONTH, 1);
+                mCur.add(Calendar.MONTH, mFreqInterval);
+                int daysInMonth = mCur.getActualMaximum(Calendar.DAY_OF_MONTH);
+                mCur.set(Calendar.DAY_OF_MONTH, Math.min(mBaseMonthDay, daysInMonth));
 
                 addList = expandMonthDayList(addList);
                 addList = expandDayListForMonthlyYearly(addList);
@@ -837,19 +883,19 @@ public class ZRecur implements Cloneable {
                  * BYWEEKNO - specified week
                  * BYMONTH - once
                  */
-                if (baseIsLeapDay) {
+                if (mBaseIsLeapDay) {
                     // previously adding a year to a leap day will have rounded down to the 28th.
                     // If this happened, we need to be sure that if we are back in a leap
                     // year, it is back at 29th
-                    cur.set(Calendar.DAY_OF_MONTH, cur.getActualMaximum(Calendar.DAY_OF_MONTH));
+                    mCur.set(Calendar.DAY_OF_MONTH, mCur.getActualMaximum(Calendar.DAY_OF_MONTH));
                 }
-                if (ignoreYearForRecurrenceExpansion(cur, baseIsLeapDay)) {
-                    cur.add(Calendar.YEAR, interval);
+                if (ignoreYearForRecurrenceExpansion(mCur, mBaseIsLeapDay)) {
+                    mCur.add(Calendar.YEAR, mFreqInterval);
                     break;
                 }
-                addList.add((Calendar)(cur.clone()));
+                addList.add((Calendar)(mCur.clone()));
 
-                cur.add(Calendar.YEAR, interval);
+                mCur.add(Calendar.YEAR, mFreqInterval);
 
                 addList = expandMonthList(addList);
                 addList = expandYearDayList(addList);
@@ -863,7 +909,8 @@ public class ZRecur implements Cloneable {
                 break;
             default:
                 // MINUTELY and SECONDLY are intentionally not supported for performance reasons.
-                return toRet;
+                mDone = true;
+                return;
             }
 
             addList = handleSetPos(addList);
@@ -876,19 +923,19 @@ public class ZRecur implements Cloneable {
 
                 // We already counted DTSTART before the main loop, so don't
                 // count it twice.
-                if (toAdd.compareTo(dtStartDate) == 0) {
+                if (toAdd.compareTo(mDtStartDate) == 0) {
                     noInstanceFound = false;
                     continue;
                 }
 
                 // we still have expanded this instance, even if it isn't in our
                 // current date window
-                if (toAdd.after(dtStartDate))
-                    numInstancesExpanded++;
+                if (toAdd.after(mDtStartDate))
+                    mNumInstancesExpanded++;
 
-                if (!toAdd.after(rangeEndDate)) {
-                    if (!toAdd.before(earliestDate)) {
-                        toRet.add(toAdd);
+                if (!toAdd.after(mRangeEndDate)) {
+                    if (!toAdd.before(mEarliestDate)) {
+                        mPending.add(toAdd);
                         noInstanceFound = false;
                     }
                 } else {
@@ -896,7 +943,7 @@ public class ZRecur implements Cloneable {
                     break;
                 }
 
-                if (maxInstancesExpanded > 0 && numInstancesExpanded >= maxInstancesExpanded)
+                if (mMaxInstancesExpanded > 0 && mNumInstancesExpanded >= mMaxInstancesExpanded)
                     break;
             }
 
@@ -911,19 +958,18 @@ public class ZRecur implements Cloneable {
             // So the invalid rule detection must look for at least 4 consecutive failed iterations.
             if (curIsAtOrAfterEarliestDate) {
                 if (noInstanceFound)
-                    numConsecutiveIterationsWithoutMatchingInstance++;
+                    mNumConsecutiveIterationsWithoutMatchingInstance++;
                 else
-                    numConsecutiveIterationsWithoutMatchingInstance = 0;
-                if (numConsecutiveIterationsWithoutMatchingInstance >= 4) {
-                    ZimbraLog.calendar.warn("Invalid recurrence rule: " + toString());
-                    return toRet;
+                    mNumConsecutiveIterationsWithoutMatchingInstance = 0;
+                if (mNumConsecutiveIterationsWithoutMatchingInstance >= 4) {
+                    ZimbraLog.calendar.warn("Invalid recurrence rule: " + ZRecur.this.toString());
+                    mDone = true;
+                    return;
                 }
             }
 
-            pastHardEndTime = foundInstancePastEndDate || (noInstanceFound && curIsAfterEndDate);
+            mPastHardEndTime = foundInstancePastEndDate || (noInstanceFound && curIsAfterEndDate);
         }
-
-        return toRet;
     }
 
     @Override
@@ -17,6 +17,7 @@
 
 package com.zimbra.cs.mailbox.calendar.cache;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -362,47 +363,121 @@ public class CalSummaryCache {
         sMaxSearchDays = LC.calendar_search_max_days.intValueWithinRange(0, 3660);
     }
 
+    /**
+     * An LRU entry.  The summary itself lives serialized in the off-heap region; the entry keeps just
+     * enough on heap to answer which items are cached and which have gone stale without decoding it.
+     */
+    private static final class SummaryEntry {
+        private final int mLength;
+        private final int[] mItemIds;  // sorted
+        private int[] mPages;
+        private Set<Integer> mStaleItemIds;
+
+        private SummaryEntry(CalendarData calData, int length) {
+            mLength = length;
+            mItemIds = new int[calData.getNumItems()];
+            int i = 0;
+            for (Iterator<CalendarItemData> iter = calData.calendarItemIterator(); iter.hasNext(); ) {
+                mItemIds[i++] = iter.next().getCalItemId();
+            }
+            Arrays.sort(mItemIds);
+            if (calData.getNumStaleItems() > 0) {
+                mStaleItemIds = new HashSet<Integer>();
+                calData.copyStaleItemIdsTo(mStaleItemIds);
+            }
+        }
+
+        private boolean containsItem(int itemId) {
+            return Arrays.binarySearch(mItemIds, itemId) >= 0;
+        }
+
+        private int markItemStale(int itemId) {
+            if (mStaleItemIds == null) {
+                mStaleItemIds = new HashSet<Integer>();
+            }
+            mStaleItemIds.add(itemId);
+            return mStaleItemIds.size();
+        }
+    }
+
     @SuppressWarnings("serial")
-    private static class SummaryLRU extends LinkedHashMap<CalSummaryKey, CalendarData> {
+    private static class SummaryLRU extends LinkedHashMap<CalSummaryKey, SummaryEntry> {
         private final int mMaxAllowed;
+        private final OffHeapRegion mRegion;
 
         // map that keeps track of which calendar folders are cached for each account
         // This map is updated every time a calendar folder is added, removed, or aged out
         // of the LRU.
         private final Map<String /* account id */, Set<Integer> /* folder ids */> mAccountFolders;
 
-        private SummaryLRU(int capacity) {
+        private SummaryLRU(int capacity, long maxBytes) {
             super(capacity + 1, 1.0f, true);
             mMaxAllowed = Math.max(capacity, 1);
+            mRegion = new OffHeapRegion(maxBytes);
             mAccountFolders = new HashMap<String, Set<Integer>>();
         }
 
         @Override
         public void clear() {
+            for (SummaryEntry entry : values()) {
+                mRegion.release(entry.mPages);
+            }
             super.clear();
             mAccountFolders.clear();
         }
 
+        /**
+         * Returns the serialized summary, copying its stale item ids into <tt>staleItemIds</tt>, or null
+         * if the folder isn't cached.
+         */
+        public byte[] getEncoded(CalSummaryKey key, Set<Integer> staleItemIds) {
+            SummaryEntry entry = get(key);
+            if (entry == null)
+                return null;
+            if (entry.mStaleItemIds != null)
+                staleItemIds.addAll(entry.mStaleItemIds);
+            return mRegion.load(entry.mPages, entry.mLength);
+        }
+
+        /**
+         * Stores a serialized summary, aging out the least recently used folders until it fits the
+         * byte budget.  A summary larger than the whole budget isn't cached.
+         */
+        public void putEncoded(CalSummaryKey key, SummaryEntry entry, byte[] encoded) {
+            remove(key);
+            if (!mRegion.fits(encoded.length))
+                return;
+            for (Iterator<Map.Entry<CalSummaryKey, SummaryEntry>> iter = entrySet().iterator();
+                    !mRegion.hasRoomFor(encoded.length) && iter.hasNext(); ) {
+                Map.Entry<CalSummaryKey, SummaryEntry> eldest = iter.next();
+                iter.remove();
+                mRegion.release(eldest.getValue().mPages);
+                deregisterFromAccount(eldest.getKey());
+            }
+            entry.mPages = mRegion.store(encoded);
+            super.put(key, entry);
+            registerWithAccount(key);
+        }
+
+        public long getUsedBytes() {
+            return mRegion.getUsedBytes();
+        }
+
         @Override
-        public CalendarData put(CalSummaryKey key, CalendarData value) {
-            CalendarData prevVal = super.put(key, value);
-            if (prevVal == null)
-                registerWithAccount(key);
-            return prevVal;
+        public SummaryEntry put(CalSummaryKey key, SummaryEntry value) {
+            throw new UnsupportedOperationException("use putEncoded");
         }
 
         @Override
-        public void putAll(Map<? extends CalSummaryKey, ? extends CalendarData> t) {
-            super.putAll(t);
-            for (CalSummaryKey key : t.keySet()) {
-                registerWithAccount(key);
-            }
+        public void putAll(Map<? extends CalSummaryKey, ? extends SummaryEntry> t) {
+            throw new UnsupportedOperationException("use putEncoded");
         }
 
         @Override
-        public CalendarData remove(Object key) {
-            CalendarData prevVal = super.remove(key);
+        public SummaryEntry remove(Object key) {
+            SummaryEntry prevVal = super.remove(key);
             if (prevVal != null && key instanceof CalSummaryKey) {
+                mRegion.release(prevVal.mPages);
                 CalSummaryKey k = (CalSummaryKey) key;
                 deregisterFromAccount(k);
             }
@@ -410,10 +485,12 @@ public class CalSummaryCache {
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<CalSummaryKey, CalendarData> eldest) {
+        protected boolean removeEldestEntry(Map.Entry<CalSummaryKey, SummaryEntry> eldest) {
             boolean remove = size() > mMaxAllowed;
-            if (remove)
+            if (remove) {
+                mRegion.release(eldest.getValue().mPages);
                 deregisterFromAccount(eldest.getKey());
+            }
             return remove;
         }
 
@@ -448,19 +525,25 @@ public class CalSummaryCache {
             if (folders != null) {
                 for (int folderId : folders) {
                     CalSummaryKey key = new CalSummaryKey(accountId, folderId);
-                    CalendarData calData = get(key);
-                    if (calData != null) {
-                        CalendarItemData ci = calData.getCalendarItemData(itemId);
-                        if (ci != null) {
-                            retval = folderId;
-                            break;
-                        }
+                    SummaryEntry entry = get(key);
+                    if (entry != null && entry.containsItem(itemId)) {
+                        retval = folderId;
+                        break;
                     }
                 }
             }
             return retval;
         }
 
+        /**
+         * Marks an item of a cached folder stale.
+         * @return number of stale items in the folder, or 0 if the folder isn't cached
+         */
+        public int markItemStale(CalSummaryKey key, int itemId) {
+            SummaryEntry entry = get(key);
+            return entry != null ? entry.markItemStale(itemId) : 0;
+        }
+
         /**
          * Toss all folders of the account from the LRU.
          * @param mboxId
@@ -478,15 +561,54 @@ public class CalSummaryCache {
         }
     }
 
-    // LRU cache containing range-limited calendar summary by calendar folder
+    // LRU cache containing range-limited calendar summary by calendar folder, serialized off-heap
     private final SummaryLRU mSummaryCache;
     private final int mLRUCapacity;
     private final CalSummaryMemcachedCache mMemcachedCache;
+    private final CalSummaryMemcachedCache.CalSummarySerializer mSerializer;
 
-    CalSummaryCache(final int capacity) {
+    CalSummaryCache(final int capacity, final long maxBytes) {
         mLRUCapacity = capacity;
-        mSummaryCache = new SummaryLRU(capacity);
+        mSummaryCache = new SummaryLRU(capacity, maxBytes);
         mMemcachedCache = new CalSummaryMemcachedCache();
+        mSerializer = new CalSummaryMemcachedCache.CalSummarySerializer();
+    }
+
+    /**
+     * Reads a folder from the LRU.  The copy is decoded outside the LRU lock and is the caller's own.
+     */
+    private CalendarData getFromLRU(CalSummaryKey key) {
+        byte[] encoded;
+        Set<Integer> staleItemIds = new HashSet<Integer>();
+        synchronized (mSummaryCache) {
+            encoded = mSummaryCache.getEncoded(key, staleItemIds);
+        }
+        if (encoded == null)
+            return null;
+        CalendarData calData;
+        try {
+            calData = mSerializer.deserialize(encoded);
+        } catch (ServiceException e) {
+            ZimbraLog.calendar.warn("Unable to decode cached calendar summary for %s", key, e);
+            synchronized (mSummaryCache) {
+                mSummaryCache.remove(key);
+            }
+            return null;
+        }
+        for (int itemId : staleItemIds) {
+            calData.markItemStale(itemId);
+        }
+        return calData;
+    }
+
+    private void putInLRU(CalSummaryKey key, CalendarData calData) {
+        byte[] encoded = mSerializer.serialize(calData);
+        if (encoded == null)
+            return;
+        SummaryEntry entry = new SummaryEntry(calData, encoded.length);
+        synchronized (mSummaryCache) {
+            mSummaryCache.putEncoded(key, entry, encoded);
+        }
     }
 
     private static enum CacheLevel { Memory, Memcached, File, Miss }
@@ -543,21 +665,23 @@ public class CalSummaryCache {
                     "you do not have sufficient permissions on folder " + targetAcctId + ":" + folderId);
         result.allowPrivateAccess = (short) (perms & ACL.RIGHT_PRIVATE) == ACL.RIGHT_PRIVATE;
 
-        // Look up from memcached.
         CalSummaryKey key = new CalSummaryKey(targetAcctId, folderId);
-        CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
-        if (calData != null) {
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
-            result.data = calData;
-            if (ZimbraLog.calendar.isDebugEnabled()) {
-                ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (memcached) - %s items private=%s",
-                        targetAcctId, folderId, result.data.getNumItems(), result.allowPrivateAccess);
-            }
-            return result;
-        }
-        // If not found in memcached and account is not on local server, we're done.
+        CalendarData calData;
+        // If account is not on local server, memcached is the only place to look.
         if (!targetAcctOnLocalServer) {
+            calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
+            if (calData != null) {
+                ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
+                ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
+                ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(1);
+                result.data = calData;
+                if (ZimbraLog.calendar.isDebugEnabled()) {
+                    ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (memcached) - %s items private=%s",
+                            targetAcctId, folderId, result.data.getNumItems(), result.allowPrivateAccess);
+                }
+                return result;
+            }
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(0);
             if (ZimbraLog.calendar.isDebugEnabled()) {
                 ZimbraLog.calendar.debug("Calendar Summary - ignoring non-local %s:%s",
                         targetAcctId, folderId);
@@ -565,7 +689,6 @@ public class CalSummaryCache {
             return null;
         }
 
-        int lruSize = 0;
         CacheLevel dataFrom = CacheLevel.Memory;
         boolean incrementalUpdate = sMaxStaleItems > 0;
 
@@ -575,23 +698,34 @@ public class CalSummaryCache {
         OperationContext ownerOctxt = new OperationContext(targetAcct);
         int currentModSeq = folder.getImapMODSEQ();
 
-        // Lookup from heap LRU.
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    calData = mSummaryCache.get(key);
-                    lruSize = mSummaryCache.size();
-                }
+        // Lookup from off-heap LRU.
+        calData = mLRUCapacity > 0 ? getFromLRU(key) : null;
+        if (calData != null) {
+            // Sanity check: Cached data can't be newer than the backend data.
+            if (calData.getModSeq() > currentModSeq) {
+                calData = null;
+            } else {
+                dataFrom = CacheLevel.Memory;
+                // Data loaded from LRU supports incremental update for stale items.
+                incrementalUpdate = sMaxStaleItems > 0;
             }
-            if (calData != null) {
-                // Sanity check: Cached data can't be newer than the backend data.
-                if (calData.getModSeq() > currentModSeq) {
-                    calData = null;
-                } else {
-                    dataFrom = CacheLevel.Memory;
-                    // Data loaded from heap LRU supports incremental update for stale items.
-                    incrementalUpdate = sMaxStaleItems > 0;
+        }
+
+        if (calData == null) {
+            // Read through to memcached, which other servers may have filled.  It has no stale items list,
+            // so only data as of the folder's current modseq is usable.
+            try {
+                CalendarData shared = mMemcachedCache.get(key);
+                if (shared != null && shared.getModSeq() == currentModSeq) {
+                    calData = shared;
+                    dataFrom = CacheLevel.Memcached;
+                    if (mLRUCapacity > 0)
+                        putInLRU(key, calData);
                 }
+            } catch (ServiceException e) {
+                ZimbraLog.calendar.warn("Error loading calendar summary from memcached", e);
             }
+        }
 
         if (calData == null) {
             // Load from file.
@@ -600,12 +734,8 @@ public class CalSummaryCache {
                 if (calData != null) {
                     // If data is up to date, add to LRU.
                     if (calData.getModSeq() == currentModSeq) {
-                        if (mLRUCapacity > 0) {
-                            synchronized (mSummaryCache) {
-                                mSummaryCache.put(key, calData);
-                                lruSize = mSummaryCache.size();
-                            }
-                        }
+                        if (mLRUCapacity > 0)
+                            putInLRU(key, calData);
                     } else {
                         // Data loaded from file doesn't have stale items list.  It can't be refreshed incrementally.
                         incrementalUpdate = false;
@@ -646,14 +776,12 @@ public class CalSummaryCache {
             if (defaultRange == null)
                 defaultRange = Util.getMonthsRange(System.currentTimeMillis(),
                                                    sRangeMonthFrom, sRangeNumMonths);
+            long start = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_REBUILD.start();
             calData = reloadCalendarOverRange(ownerOctxt, mbox, folderId, type,
                     defaultRange.getFirst(), defaultRange.getSecond(), reusableCalData, incrementalUpdate);
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    mSummaryCache.put(key, calData);
-                    lruSize = mSummaryCache.size();
-                }
-            }
+            ZimbraPerf.STOPWATCH_CALENDAR_CACHE_REBUILD.stop(start);
+            if (mLRUCapacity > 0)
+                putInLRU(key, calData);
             dataFrom = CacheLevel.Miss;
 
             try {
@@ -665,8 +793,9 @@ public class CalSummaryCache {
 
         assert(calData != null);
 
-        // Put data in memcached if it didn't come from memcached.
-        if (!CacheLevel.Memcached.equals(dataFrom))
+        // Share data through memcached if it was just loaded from file or rebuilt.  Anything in the LRU
+        // already went to memcached when it was added.
+        if (CacheLevel.File.equals(dataFrom) || CacheLevel.Miss.equals(dataFrom))
                 mMemcachedCache.put(key, calData);
 
         if (rangeStart >= calData.getRangeStart() && rangeEnd <= calData.getRangeEnd()) {
@@ -679,30 +808,51 @@ public class CalSummaryCache {
         } else {
             // Requested range is outside the currently cached range.
             dataFrom = CacheLevel.Miss;
+            long start = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_REBUILD.start();
             result.data = reloadCalendarOverRange(ownerOctxt, mbox, folderId, type, rangeStart, rangeEnd,
                     reusableCalData, incrementalUpdate);
+            ZimbraPerf.STOPWATCH_CALENDAR_CACHE_REBUILD.stop(start);
         }
 
         // hit/miss tracking
         // COUNTER_CALENDAR_CACHE_HIT - A hit is a successful lookup from either memory or file.
         // COUNTER_CALENDAR_CACHE_MEM_HIT - A hit is a successful lookup from memory only.
+        // COUNTER_CALENDAR_CACHE_LRU_HIT - A hit is a successful lookup from the off-heap LRU.
+        // COUNTER_CALENDAR_CACHE_MEMCACHED_HIT - A hit is a successful lookup from memcached.
         switch (dataFrom) {
         case Memory:
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_HIT.increment(1);
+            break;
         case Memcached:
             ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
             ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_HIT.increment(0);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(1);
             break;
         case File:
             ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
             ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(0);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_HIT.increment(0);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(0);
             break;
         case Miss:
         default:
             ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(0);
             ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(0);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_HIT.increment(0);
+            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEMCACHED_HIT.increment(0);
             break;
         }
+        int lruSize;
+        long lruBytes;
+        synchronized (mSummaryCache) {
+            lruSize = mSummaryCache.size();
+            lruBytes = mSummaryCache.getUsedBytes();
+        }
         ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_SIZE.increment(lruSize);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_LRU_BYTES.increment(lruBytes);
 
         if (ZimbraLog.calendar.isDebugEnabled()) {
             ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (dataFrom=%s) - %s items private=%s",
@@ -731,20 +881,17 @@ public class CalSummaryCache {
         if (!LC.calendar_cache_enabled.booleanValue())
             return;
         CalSummaryKey key = new CalSummaryKey(mbox.getAccountId(), folderId);
-        CalendarData calData = null;
+        int numStaleItems = 0;
+        // Invalidate the item from the calendar.
         synchronized (mSummaryCache) {
             if (mLRUCapacity > 0) {
-                calData = mSummaryCache.get(key);
+                numStaleItems = mSummaryCache.markItemStale(key, calItemId);
             }
         }
-        // Invalidate the item from the calendar.
-        if (calData != null) {
-            int numStaleItems = calData.markItemStale(calItemId);
-            // If there are too many stale items, purge the calendar from cache to avoid accumulating
-            // too many stale item ids.
-            if (numStaleItems > sMaxStaleItemsBeforeInvalidatingCalendar)
-                invalidateSummary(mbox, folderId);
-        }
+        // If there are too many stale items, purge the calendar from cache to avoid accumulating
+        // too many stale item ids.
+        if (numStaleItems > sMaxStaleItemsBeforeInvalidatingCalendar)
+            invalidateSummary(mbox, folderId);
     }
 
     void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
@@ -49,7 +49,10 @@ public class CalSummaryMemcachedCache {
         mMemcachedLookup = new BigByteArrayMemcachedMap<CalSummaryKey, CalendarData>(memcachedClient, serializer);
     }
 
-    private static class CalSummarySerializer implements ByteArraySerializer<CalendarData> {
+    /**
+     * UTF-8 encoded metadata.  Also the format of the off-heap LRU in {@link CalSummaryCache}.
+     */
+    static class CalSummarySerializer implements ByteArraySerializer<CalendarData> {
         CalSummarySerializer() { }
 
         @Override
@@ -80,6 +83,13 @@ public class CalSummaryMemcachedCache {
         }
     }
 
+    /**
+     * Returns the whole cached summary, for callers that check its modseq before using it.
+     */
+    public CalendarData get(CalSummaryKey key) throws ServiceException {
+        return mMemcachedLookup.get(key);
+    }
+
     public CalendarData getForRange(CalSummaryKey key, long rangeStart, long rangeEnd)
     throws ServiceException {
         CalendarData calData = mMemcachedLookup.get(key);
@@ -34,6 +34,9 @@ public class CalendarCacheManager {
     private boolean mSummaryCacheEnabled;
     private CalSummaryCache mSummaryCache;
 
+    // for local free/busy lookups
+    private FreeBusyCache mFreeBusyCache;
+
     // for CalDAV ctag caching
     private CalListCache mCalListCache;
     private CtagInfoCache mCtagCache;
@@ -49,15 +52,21 @@ public class CalendarCacheManager {
         mCtagResponseCache = new CtagResponseCache();
 
         int summaryLRUSize = 0;
+        long summaryLRUBytes = 0;
         mSummaryCacheEnabled = LC.calendar_cache_enabled.booleanValue();
-        if (mSummaryCacheEnabled)
+        if (mSummaryCacheEnabled) {
             summaryLRUSize = LC.calendar_cache_lru_size.intValue();
-        mSummaryCache = new CalSummaryCache(summaryLRUSize);
+            summaryLRUBytes = LC.calendar_cache_lru_max_bytes.longValue();
+        }
+        mSummaryCache = new CalSummaryCache(summaryLRUSize, summaryLRUBytes);
+        mFreeBusyCache = new FreeBusyCache(mSummaryCacheEnabled ? LC.calendar_freebusy_cache_size.intValue() : 0);
     }
 
     public void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
-        if (mSummaryCacheEnabled)
+        if (mSummaryCacheEnabled) {
             mSummaryCache.notifyCommittedChanges(mods, changeId);
+            mFreeBusyCache.notifyCommittedChanges(mods, changeId);
+        }
         if (MemcachedConnector.isConnected()) {
             mCalListCache.notifyCommittedChanges(mods, changeId);
             mCtagCache.notifyCommittedChanges(mods, changeId);
@@ -66,6 +75,7 @@ public class CalendarCacheManager {
 
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
         mSummaryCache.purgeMailbox(mbox);
+        mFreeBusyCache.purgeMailbox(mbox);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.purgeMailbox(mbox);
             mCtagCache.purgeMailbox(mbox);
@@ -74,6 +84,7 @@ public class CalendarCacheManager {
 
     CtagInfoCache getCtagCache() { return mCtagCache; }
     public CalSummaryCache getSummaryCache() { return mSummaryCache; }
+    public FreeBusyCache getFreeBusyCache() { return mFreeBusyCache; }
     public CtagResponseCache getCtagResponseCache() { return mCtagResponseCache; }
 
     public AccountCtags getCtags(AccountKey key) throws ServiceException {
@@ -17,6 +17,10 @@
 
 package com.zimbra.cs.mailbox.calendar.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,6 +37,7 @@ import com.zimbra.cs.mailbox.Metadata;
 
 public class FileStore {
     private static final String FILE_EXT = ".dat";
+    private static final String FREEBUSY_FILE_EXT = ".fb";
     private static final int MBOX_GROUP_BITS = 8;
     private static final int MBOX_BITS = 12;
     private static final int FILE_GROUP_BITS = 8;
@@ -55,6 +60,10 @@ public class FileStore {
     }
 
     private static File getCalFolderFile(int mboxId, int folderId) {
+        return getCalFolderFile(mboxId, folderId, FILE_EXT);
+    }
+
+    private static File getCalFolderFile(int mboxId, int folderId, String ext) {
         int mdir = mboxId >> MBOX_BITS;
         mdir &= MBOX_GROUP_BITS;
         int fdir = folderId >> FILE_BITS;
@@ -62,7 +71,7 @@ public class FileStore {
 
         StringBuilder sb = new StringBuilder(LC.calendar_cache_directory.value());
         sb.append(File.separator).append(mdir).append(File.separator).append(mboxId);
-        sb.append(File.separator).append(mdir).append(File.separator).append(folderId).append(FILE_EXT);
+        sb.append(File.separator).append(mdir).append(File.separator).append(folderId).append(ext);
         return new File(sb.toString());
     }
 
@@ -128,6 +137,62 @@ public class FileStore {
         return new CalendarData(metaCalData);
     }
 
+    static File getFreeBusyFile(int mboxId, int folderId) {
+        return getCalFolderFile(mboxId, folderId, FREEBUSY_FILE_EXT);
+    }
+
+    static void deleteFreeBusy(int mboxId, int folderId) {
+        File file = getFreeBusyFile(mboxId, folderId);
+        if (file.exists())
+            file.delete();
+    }
+
+    static void saveFreeBusy(int mboxId, FolderFreeBusy fb) throws ServiceException {
+        File file = getFreeBusyFile(mboxId, fb.getFolderId());
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            FileUtil.ensureDirExists(file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                fb.encode(out);
+            } finally {
+                out.close();
+            }
+            tmpFile.renameTo(file);
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("IOException while saving to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns the saved free/busy timeline of the folder, or <tt>null</tt> if there is none for this modseq.  A
+     * truncated or corrupt file is deleted so that the timeline gets rebuilt.
+     */
+    static FolderFreeBusy loadFreeBusy(int mboxId, int folderId, int modSeq) {
+        File file = getFreeBusyFile(mboxId, folderId);
+        if (!file.exists())
+            return null;
+        FolderFreeBusy fb;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                fb = FolderFreeBusy.decode(in, file.length());
+            } finally {
+                in.close();
+            }
+            if (fb.getFolderId() != folderId)
+                throw new IOException("free/busy timeline of folder " + fb.getFolderId() +
+                        " in the file of folder " + folderId);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            ZimbraLog.calendar.warn("Discarding unreadable free/busy timeline " + file.getAbsolutePath(), e);
+            file.delete();
+            return null;
+        }
+        return fb.getModSeq() == modSeq ? fb : null;
+    }
+
     private static void saveToFile(File file, String str) throws ServiceException {
         File tmpFile = new File(file.getAbsolutePath() + ".tmp");
         try {
@@ -0,0 +1,279 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.zimbra.cs.fb.FreeBusy.FBInstance;
+import com.zimbra.cs.fb.FreeBusy.Interval;
+import com.zimbra.cs.fb.FreeBusy.IntervalList;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+/**
+ * Free/busy timeline of one calendar folder over a fixed range: every
+ * non-transparent, non-free appointment instance, sorted by start time.
+ * Immutable once built, so it can be shared by concurrent free/busy
+ * requests.
+ */
+public class FolderFreeBusy {
+
+    private static final byte VERSION = 1;
+    // encoded sizes: version, folder id, modseq, range start and end, count; then per instance start, duration,
+    // status (at least its length), appointment id and recurrence id
+    private static final int HEADER_BYTES = 1 + 4 + 4 + 8 + 8 + 4;
+    private static final int MIN_INSTANCE_BYTES = 8 + 8 + 2 + 4 + 8;
+
+    private final int mFolderId;
+    private final int mModSeq;  // folder modseq the timeline was built from
+    private final long mRangeStart;
+    private final long mRangeEnd;
+
+    // one entry per busy instance, in ascending start order
+    private final long[] mStarts;
+    private final long[] mEnds;
+    private final String[] mStatuses;
+    private final int[] mApptIds;
+    private final long[] mRecurIds;
+
+    private final long mMaxDuration;
+    private final int[] mSortedApptIds;
+
+    FolderFreeBusy(CalendarData calData, int modSeq, long rangeStart, long rangeEnd) {
+        List<Busy> busy = new ArrayList<Busy>();
+        for (Iterator<CalendarItemData> iter = calData.calendarItemIterator(); iter.hasNext(); ) {
+            addInstances(iter.next(), rangeEnd, busy);
+        }
+        Collections.sort(busy);
+
+        mFolderId = calData.getFolderId();
+        mModSeq = modSeq;
+        mRangeStart = rangeStart;
+        mRangeEnd = rangeEnd;
+        int size = busy.size();
+        mStarts = new long[size];
+        mEnds = new long[size];
+        mStatuses = new String[size];
+        mApptIds = new int[size];
+        mRecurIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            Busy b = busy.get(i);
+            mStarts[i] = b.start;
+            mEnds[i] = b.end;
+            mStatuses[i] = b.status;
+            mApptIds[i] = b.apptId;
+            mRecurIds[i] = b.recurId;
+        }
+        mMaxDuration = maxDuration(mStarts, mEnds);
+        mSortedApptIds = sortedIds(mApptIds);
+    }
+
+    private FolderFreeBusy(int folderId, int modSeq, long rangeStart, long rangeEnd, long[] starts, long[] ends,
+            String[] statuses, int[] apptIds, long[] recurIds) {
+        mFolderId = folderId;
+        mModSeq = modSeq;
+        mRangeStart = rangeStart;
+        mRangeEnd = rangeEnd;
+        mStarts = starts;
+        mEnds = ends;
+        mStatuses = statuses;
+        mApptIds = apptIds;
+        mRecurIds = recurIds;
+        mMaxDuration = maxDuration(starts, ends);
+        mSortedApptIds = sortedIds(apptIds);
+    }
+
+    /**
+     * Collects the instances of an appointment that count towards free/busy,
+     * applying the same transparency and free/busy status rules as the
+     * calendar summary.
+     */
+    private static void addInstances(CalendarItemData appt, long rangeEnd, List<Busy> busy) {
+        FullInstanceData defaultInstance = appt.getDefaultData();
+        if (defaultInstance == null)
+            return;
+        int apptId = appt.getCalItemId();
+        boolean isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(defaultInstance.getTransparency());
+        long defaultDuration = 0;
+        if (defaultInstance.getDuration() != null)
+            defaultDuration = defaultInstance.getDuration().longValue();
+        String defaultFreeBusy = defaultInstance.getFreeBusyActual();
+        for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
+            InstanceData instance = instIter.next();
+            long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
+            // Skip instances that are outside the time range but were returned due to alarm being in range.
+            if (instStart >= rangeEnd)
+                continue;
+            long dur = defaultDuration;
+            if (instance.getDuration() != null)
+                dur = instance.getDuration().longValue();
+            if (dur <= 0)  // Only consider instances with non-zero, positive duration.
+                continue;
+
+            long recurIdDt = 0;
+            // Skip if instance is TRANSPARENT to free/busy searches.
+            if (instance instanceof FullInstanceData) {
+                FullInstanceData fullInst = (FullInstanceData) instance;
+                recurIdDt = fullInst.getRecurrenceId();
+                if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(fullInst.getTransparency()))
+                    continue;
+            } else if (isTransparent) {
+                continue;
+            }
+
+            String freeBusy = instance.getFreeBusyActual();
+            if (freeBusy == null)
+                freeBusy = defaultFreeBusy;
+            if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy))
+                busy.add(new Busy(instStart, instStart + dur, freeBusy, apptId, recurIdDt));
+        }
+    }
+
+    public int getFolderId()    { return mFolderId; }
+    public int getModSeq()      { return mModSeq; }
+    public long getRangeStart() { return mRangeStart; }
+    public long getRangeEnd()   { return mRangeEnd; }
+    public int getNumInstances() { return mStarts.length; }
+
+    boolean covers(long start, long end) {
+        return start >= mRangeStart && end <= mRangeEnd;
+    }
+
+    boolean containsItem(int calItemId) {
+        return Arrays.binarySearch(mSortedApptIds, calItemId) >= 0;
+    }
+
+    /**
+     * Adds the busy instances overlapping [start, end) to <tt>intervals</tt>.
+     *
+     * @param exApptId appointment to leave out, or -1
+     */
+    public void addIntervals(IntervalList intervals, long start, long end, int exApptId) {
+        // no instance starting before start - mMaxDuration can reach into the range
+        for (int i = firstStartingAtOrAfter(start - mMaxDuration); i < mStarts.length && mStarts[i] < end; i++) {
+            if (mEnds[i] <= start || mApptIds[i] == exApptId)
+                continue;
+            FBInstance fbInst = new FBInstance(mStatuses[i], mStarts[i], mEnds[i], mApptIds[i], mRecurIds[i]);
+            intervals.addInterval(new Interval(mStarts[i], mEnds[i], mStatuses[i], fbInst));
+        }
+    }
+
+    private int firstStartingAtOrAfter(long time) {
+        int low = 0, high = mStarts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static long maxDuration(long[] starts, long[] ends) {
+        long max = 0;
+        for (int i = 0; i < starts.length; i++) {
+            max = Math.max(max, ends[i] - starts[i]);
+        }
+        return max;
+    }
+
+    private static int[] sortedIds(int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    void encode(DataOutputStream out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeInt(mFolderId);
+        out.writeInt(mModSeq);
+        out.writeLong(mRangeStart);
+        out.writeLong(mRangeEnd);
+        out.writeInt(mStarts.length);
+        for (int i = 0; i < mStarts.length; i++) {
+            out.writeLong(mStarts[i]);
+            out.writeLong(mEnds[i] - mStarts[i]);
+            out.writeUTF(mStatuses[i] != null ? mStatuses[i] : "");
+            out.writeInt(mApptIds[i]);
+            out.writeLong(mRecurIds[i]);
+        }
+    }
+
+    /**
+     * Reads back a timeline written by {@link #encode}.
+     *
+     * @param length number of bytes available, used to reject a corrupt instance count before allocating for it
+     * @throws IOException if the data is truncated or corrupt
+     */
+    static FolderFreeBusy decode(DataInputStream in, long length) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION)
+            throw new IOException("unknown free/busy timeline version " + version);
+        int folderId = in.readInt();
+        int modSeq = in.readInt();
+        long rangeStart = in.readLong();
+        long rangeEnd = in.readLong();
+        int size = in.readInt();
+        if (rangeEnd < rangeStart || size < 0 || size > (length - HEADER_BYTES) / MIN_INSTANCE_BYTES)
+            throw new IOException("corrupt free/busy timeline: range " + rangeStart + "-" + rangeEnd + ", " +
+                    size + " instances in " + length + " bytes");
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        String[] statuses = new String[size];
+        int[] apptIds = new int[size];
+        long[] recurIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = in.readLong();
+            ends[i] = starts[i] + in.readLong();
+            if (ends[i] <= starts[i] || (i > 0 && starts[i] < starts[i - 1]))
+                throw new IOException("corrupt free/busy timeline: instance " + i + " out of order");
+            String status = in.readUTF();
+            statuses[i] = status.isEmpty() ? null : status.intern();
+            apptIds[i] = in.readInt();
+            recurIds[i] = in.readLong();
+        }
+        return new FolderFreeBusy(folderId, modSeq, rangeStart, rangeEnd, starts, ends, statuses, apptIds, recurIds);
+    }
+
+    private static final class Busy implements Comparable<Busy> {
+        final long start;
+        final long end;
+        final String status;
+        final int apptId;
+        final long recurId;
+
+        Busy(long start, long end, String status, int apptId, long recurId) {
+            this.start = start;
+            this.end = end;
+            this.status = status;
+            this.apptId = apptId;
+            this.recurId = recurId;
+        }
+
+        @Override
+        public int compareTo(Busy other) {
+            return start < other.start ? -1 : (start == other.start ? 0 : 1);
+        }
+    }
+}
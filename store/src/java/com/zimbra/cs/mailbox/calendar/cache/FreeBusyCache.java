@@ -0,0 +1,220 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.CalendarItem;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.session.PendingLocalModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Free/busy timelines of local appointment calendars, kept per mailbox in a
+ * heap LRU and on disk next to the calendar summary cache.  A timeline is
+ * built from the folder's calendar summary over the summary cache's default
+ * range and reused until the folder's modseq moves or a committed change
+ * touches one of its appointments, so free/busy lookups don't have to walk
+ * every appointment and instance on each request.
+ */
+public class FreeBusyCache {
+
+    private static class MailboxTimelines {
+        final int mboxId;
+        final Map<Integer /* folder id */, FolderFreeBusy> folders = new HashMap<Integer, FolderFreeBusy>();
+
+        MailboxTimelines(int mboxId) {
+            this.mboxId = mboxId;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class TimelineLRU extends LinkedHashMap<String /* account id */, MailboxTimelines> {
+        private final int mMaxAllowed;
+
+        TimelineLRU(int capacity) {
+            super(capacity + 1, 1.0f, true);
+            mMaxAllowed = Math.max(capacity, 1);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MailboxTimelines> eldest) {
+            return size() > mMaxAllowed;
+        }
+    }
+
+    private final TimelineLRU mTimelines;
+    private final int mCapacity;
+
+    FreeBusyCache(int capacity) {
+        mCapacity = capacity;
+        mTimelines = new TimelineLRU(capacity);
+    }
+
+    /**
+     * Returns the free/busy timeline of a calendar folder covering at least
+     * [start, end).  Ranges beyond the cached window are computed for the
+     * caller without being cached.
+     */
+    public FolderFreeBusy getFreeBusy(Mailbox mbox, int folderId, long start, long end) throws ServiceException {
+        int modSeq = mbox.getFolderById(null, folderId).getImapMODSEQ();
+        if (mCapacity <= 0) {
+            ZimbraPerf.COUNTER_FREEBUSY_CACHE_HIT.increment(0);
+            return build(mbox, folderId, modSeq, start, end);
+        }
+
+        String accountId = mbox.getAccountId();
+        FolderFreeBusy fb = get(accountId, folderId);
+        if (fb == null || fb.getModSeq() != modSeq) {
+            fb = FileStore.loadFreeBusy(mbox.getId(), folderId, modSeq);
+            if (fb != null)
+                put(mbox, fb);
+        }
+        if (fb != null && fb.covers(start, end)) {
+            ZimbraPerf.COUNTER_FREEBUSY_CACHE_HIT.increment(1);
+            return fb;
+        }
+        ZimbraPerf.COUNTER_FREEBUSY_CACHE_HIT.increment(0);
+
+        Pair<Long, Long> range = Util.getMonthsRange(System.currentTimeMillis(),
+                LC.calendar_cache_range_month_from.intValue(), LC.calendar_cache_range_months.intValue());
+        if (start < range.getFirst() || end > range.getSecond())
+            return build(mbox, folderId, modSeq, start, end);
+
+        fb = build(mbox, folderId, modSeq, range.getFirst(), range.getSecond());
+        put(mbox, fb);
+        try {
+            FileStore.saveFreeBusy(mbox.getId(), fb);
+        } catch (ServiceException e) {
+            ZimbraLog.calendar.warn("Error persisting free/busy timeline", e);
+        }
+        return fb;
+    }
+
+    private static FolderFreeBusy build(Mailbox mbox, int folderId, int modSeq, long start, long end)
+    throws ServiceException {
+        CalendarDataResult result =
+            mbox.getCalendarSummaryForRange(null, folderId, MailItem.Type.APPOINTMENT, start, end);
+        return new FolderFreeBusy(result.data, modSeq, start, end);
+    }
+
+    @VisibleForTesting
+    FolderFreeBusy get(String accountId, int folderId) {
+        synchronized (mTimelines) {
+            MailboxTimelines timelines = mTimelines.get(accountId);
+            return timelines != null ? timelines.folders.get(folderId) : null;
+        }
+    }
+
+    private void put(Mailbox mbox, FolderFreeBusy fb) {
+        synchronized (mTimelines) {
+            MailboxTimelines timelines = mTimelines.get(mbox.getAccountId());
+            if (timelines == null) {
+                timelines = new MailboxTimelines(mbox.getId());
+                mTimelines.put(mbox.getAccountId(), timelines);
+            }
+            timelines.folders.put(fb.getFolderId(), fb);
+        }
+    }
+
+    private void invalidateFolder(String accountId, int mboxId, int folderId) {
+        synchronized (mTimelines) {
+            MailboxTimelines timelines = mTimelines.get(accountId);
+            if (timelines != null)
+                timelines.folders.remove(folderId);
+        }
+        FileStore.deleteFreeBusy(mboxId, folderId);
+    }
+
+    /** Drops every timeline of the account that has instances of the given appointment. */
+    private void invalidateItem(String accountId, int calItemId) {
+        int mboxId;
+        List<Integer> folderIds = new ArrayList<Integer>();
+        synchronized (mTimelines) {
+            MailboxTimelines timelines = mTimelines.get(accountId);
+            if (timelines == null)
+                return;
+            mboxId = timelines.mboxId;
+            for (Iterator<FolderFreeBusy> iter = timelines.folders.values().iterator(); iter.hasNext(); ) {
+                FolderFreeBusy fb = iter.next();
+                if (fb.containsItem(calItemId)) {
+                    iter.remove();
+                    folderIds.add(fb.getFolderId());
+                }
+            }
+        }
+        // file I/O stays out of the lock; a reader racing the delete still checks the modseq
+        for (int folderId : folderIds) {
+            FileStore.deleteFreeBusy(mboxId, folderId);
+        }
+    }
+
+    void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
+        if (mods.created != null) {
+            for (BaseItemInfo item : mods.created.values()) {
+                if (item instanceof CalendarItem) {
+                    CalendarItem calItem = (CalendarItem) item;
+                    Mailbox mbox = calItem.getMailbox();
+                    invalidateFolder(mbox.getAccountId(), mbox.getId(), calItem.getFolderId());
+                }
+            }
+        }
+        if (mods.modified != null) {
+            for (Change change : mods.modified.values()) {
+                if (change.what instanceof CalendarItem) {
+                    CalendarItem calItem = (CalendarItem) change.what;
+                    Mailbox mbox = calItem.getMailbox();
+                    invalidateFolder(mbox.getAccountId(), mbox.getId(), calItem.getFolderId());
+                    // a moved appointment also leaves its old folder
+                    if ((change.why & Change.FOLDER) != 0)
+                        invalidateItem(mbox.getAccountId(), calItem.getId());
+                }
+            }
+        }
+        if (mods.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                if (entry.getValue().what == MailItem.Type.APPOINTMENT) {
+                    String accountId = entry.getKey().getAccountId();
+                    if (accountId != null)
+                        invalidateItem(accountId, entry.getKey().getItemId());
+                }
+            }
+        }
+    }
+
+    void purgeMailbox(Mailbox mbox) {
+        synchronized (mTimelines) {
+            mTimelines.remove(mbox.getAccountId());
+        }
+        // the files go with the rest of the mailbox's calendar cache directory
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size pages of direct memory, bounded by a byte budget.  Values are copied in and out as byte
+ * arrays and may span any set of pages, so freed space is reusable without compaction.  Direct memory
+ * is reserved one chunk at a time as pages are first needed and is kept for the life of the region.
+ * <p>
+ * Not thread-safe; callers synchronize.
+ */
+final class OffHeapRegion {
+
+    static final int PAGE_SIZE = 8 * 1024;
+    private static final int PAGES_PER_CHUNK = 128;  // 1MB chunks
+
+    private final int mMaxPages;
+    private final List<ByteBuffer> mChunks = new ArrayList<ByteBuffer>();
+    private int[] mFreePages = new int[PAGES_PER_CHUNK];
+    private int mNumFree = 0;
+    private int mNumAllocated = 0;  // pages backed by a chunk so far
+
+    OffHeapRegion(long maxBytes) {
+        mMaxPages = (int) Math.min(Math.max(maxBytes, 0) / PAGE_SIZE, Integer.MAX_VALUE);
+    }
+
+    static int pagesFor(int length) {
+        return Math.max((length + PAGE_SIZE - 1) / PAGE_SIZE, 1);
+    }
+
+    /**
+     * Returns true if a value of this length could ever be stored, i.e. when the region is empty.
+     */
+    boolean fits(int length) {
+        return pagesFor(length) <= mMaxPages;
+    }
+
+    /**
+     * Returns true if a value of this length can be stored without freeing anything first.
+     */
+    boolean hasRoomFor(int length) {
+        return pagesFor(length) <= mNumFree + (mMaxPages - mNumAllocated);
+    }
+
+    /**
+     * Copies the value into free pages and returns their indexes, or null if there isn't enough room.
+     */
+    int[] store(byte[] data) {
+        if (!hasRoomFor(data.length)) {
+            return null;
+        }
+        int[] pages = new int[pagesFor(data.length)];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = takePage();
+        }
+        for (int i = 0, off = 0; off < data.length; i++, off += PAGE_SIZE) {
+            ByteBuffer buf = pageBuffer(pages[i]);
+            buf.put(data, off, Math.min(PAGE_SIZE, data.length - off));
+        }
+        return pages;
+    }
+
+    byte[] load(int[] pages, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0, off = 0; off < length; i++, off += PAGE_SIZE) {
+            ByteBuffer buf = pageBuffer(pages[i]);
+            buf.get(data, off, Math.min(PAGE_SIZE, length - off));
+        }
+        return data;
+    }
+
+    void release(int[] pages) {
+        if (mNumFree + pages.length > mFreePages.length) {
+            int[] grown = new int[Math.max(mFreePages.length * 2, mNumFree + pages.length)];
+            System.arraycopy(mFreePages, 0, grown, 0, mNumFree);
+            mFreePages = grown;
+        }
+        for (int page : pages) {
+            mFreePages[mNumFree++] = page;
+        }
+    }
+
+    long getUsedBytes() {
+        return (long) (mNumAllocated - mNumFree) * PAGE_SIZE;
+    }
+
+    long getReservedBytes() {
+        return (long) mNumAllocated * PAGE_SIZE;
+    }
+
+    private int takePage() {
+        if (mNumFree > 0) {
+            return mFreePages[--mNumFree];
+        }
+        if (mNumAllocated % PAGES_PER_CHUNK == 0) {
+            int pages = Math.min(PAGES_PER_CHUNK, mMaxPages - mNumAllocated);
+            mChunks.add(ByteBuffer.allocateDirect(pages * PAGE_SIZE));
+        }
+        return mNumAllocated++;
+    }
+
+    private ByteBuffer pageBuffer(int page) {
+        ByteBuffer buf = mChunks.get(page / PAGES_PER_CHUNK).duplicate();
+        buf.position((page % PAGES_PER_CHUNK) * PAGE_SIZE);
+        return buf;
+    }
+}
@@ -118,6 +118,7 @@ public final class ParsedMessage {
     private boolean indexAttachments;
     private int numParseErrors = 0;
     private String defaultCharset;
+    private boolean defaultCharsetSet = false;
 
     /** if TRUE then there was a _temporary_ failure analyzing the message.  We should attempt
      * to re-index this message at a later time */
@@ -309,7 +310,12 @@ public final class ParsedMessage {
     }
 
     public ParsedMessage setDefaultCharset(String charset) {
+        if (defaultCharsetSet && StringUtil.equal(charset, defaultCharset)) {
+            // nothing changes, and clearing the subject would race with concurrent deliveries reading it
+            return this;
+        }
         defaultCharset = charset;
+        defaultCharsetSet = true;
         if (mimeMessage instanceof ZMimeMessage) {
             ((ZMimeMessage) mimeMessage).setProperty("mail.mime.charset", charset);
         }
@@ -1346,19 +1352,23 @@ public final class ParsedMessage {
         if (normalizedSubject != null) {
             return;
         }
+        String raw = null;
         try {
-            normalizedSubject = subject = StringUtil.stripControlCharacters(Mime.getSubject(getMimeMessage()));
+            raw = StringUtil.stripControlCharacters(Mime.getSubject(getMimeMessage()));
         } catch (MessagingException e) {
         }
 
-        if (subject == null) {
-            normalizedSubject = subject = "";
+        // normalizedSubject is assigned last since it marks the subject fields as computed
+        if (raw == null) {
+            subject = "";
             subjectIsReply = false;
+            normalizedSubject = "";
         } else {
-            Pair<String, Boolean> normalized = trimPrefixes(subject);
-            normalizedSubject = compressWhitespace(normalized.getFirst());
+            Pair<String, Boolean> normalized = trimPrefixes(raw);
+            subject = raw;
             subjectIsReply = normalized.getSecond();
-            normalizedSubject = DbMailItem.normalize(normalizedSubject, DbMailItem.MAX_SUBJECT_LENGTH);
+            normalizedSubject = DbMailItem.normalize(compressWhitespace(normalized.getFirst()),
+                    DbMailItem.MAX_SUBJECT_LENGTH);
         }
     }
 
@@ -1376,12 +1386,35 @@ public final class ParsedMessage {
      * delivery.
      */
     public Threader getThreader(Mailbox mbox) throws ServiceException {
-        Threader threader = threaders.get(mbox);
-        if (threader == null) {
-            threader = new Threader(mbox, this);
-            threaders.put(mbox, threader);
+        synchronized (threaders) {
+            Threader threader = threaders.get(mbox);
+            if (threader == null) {
+                threader = new Threader(mbox, this);
+                threaders.put(mbox, threader);
+            }
+            return threader;
         }
-        return threader;
+    }
+
+    /**
+     * Resolves the lazily computed state read while adding the message to a mailbox, so that the same
+     * {@link ParsedMessage} can be delivered to several mailboxes concurrently.  Only mailboxes whose default
+     * charset is the one already set with {@link #setDefaultCharset} may share it, since any other charset
+     * resets the subject.
+     */
+    public ParsedMessage prepareForSharedDelivery() {
+        parse();
+        try {
+            analyzeBodyParts();
+        } catch (ServiceException e) {
+            LOG.warn("Message analysis failed when preparing shared delivery", e);
+        }
+        isReply();
+        getParsedSender();
+        getParsedRecipients();
+        getDateHeader();
+        getCalendarPartInfo();
+        return this;
     }
 
     public void setDataSourceId(String dsId) {
@@ -96,14 +96,21 @@ public class FileHeader {
     }
 
     void write(RandomAccessFile raf) throws IOException {
+      byte[] buf = toBytes();
+      raf.seek(0);
+      raf.write(buf);
+      raf.getFD().sync();
+    }
+
+    /**
+     * Returns the serialized header, for callers that write it out themselves.
+     */
+    byte[] toBytes() throws IOException {
     	// Update header redolog version to latest code version.
     	if (!mVersion.isLatest()) {
     		mVersion = Version.latest();
       }
-      byte[] buf = serialize();
-      raf.seek(0);
-      raf.write(buf);
-      raf.getFD().sync();
+      return serialize();
     }
 
     void read(RandomAccessFile raf) throws IOException {
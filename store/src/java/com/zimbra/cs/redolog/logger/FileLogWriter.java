@@ -24,7 +24,9 @@
 package com.zimbra.cs.redolog.logger;
 
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -41,10 +43,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author jhahm
@@ -87,6 +96,10 @@ public class FileLogWriter implements LogWriter {
 
     private FsyncThread mFsyncer;   // fsync thread
 
+    // If true, synchronous logging goes through a GroupCommitWriter instead of the fsync thread.
+    private final boolean mGroupCommit;
+    private volatile GroupCommitWriter mGroupWriter;
+
     private int mLogSeq;            // last item logged
     private int mFsyncSeq;          // last item fsynced
 
@@ -108,6 +121,7 @@ public class FileLogWriter implements LogWriter {
 
         mFsyncIntervalMS = fsyncIntervalMS;
         mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+        mGroupCommit = fsyncIntervalMS > 0 && LC.redolog_group_commit.booleanValue();
 
         mFsyncCount = mLogCount = 0;
 
@@ -214,9 +228,12 @@ public class FileLogWriter implements LogWriter {
             mFileSize = len;
 
             mLogSeq = mFsyncSeq = 0;
+
+            if (mGroupCommit)
+                startGroupWriter();
         }
 
-        if (mFsyncIntervalMS > 0)
+        if (mFsyncIntervalMS > 0 && !mGroupCommit)
             startFsyncThread();
     }
 
@@ -225,6 +242,7 @@ public class FileLogWriter implements LogWriter {
      */
     @Override public synchronized void close() throws IOException {
         stopFsyncThread();
+        stopGroupWriter();
 
         synchronized (mLock) {
             if (mRAF != null) {
@@ -268,8 +286,17 @@ public class FileLogWriter implements LogWriter {
      * Fsync is required, but the sleep interval for fsync thread is 0.  We
      * special case this condition to mean fsync should be done by the calling
      * thread.
+     *
+     * When group commit is enabled (redolog_group_commit in localconfig), the
+     * fsync thread is replaced by a {@link GroupCommitWriter}; see there.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        GroupCommitWriter groupWriter = mGroupWriter;
+        if (groupWriter != null) {
+            logGroupCommit(groupWriter, op, data, synchronous);
+            return;
+        }
+
         int seq;
         boolean sameMboxAsLastOp = false;
 
@@ -302,17 +329,11 @@ public class FileLogWriter implements LogWriter {
 
             // We do this with log writer lock held, so the commits and any
             // callbacks made on their behalf are truly in the correct order.
-            if (op instanceof CommitTxn) {
-                CommitTxn cmt = (CommitTxn) op;
-                RedoCommitCallback cb = cmt.getCallback();
-                if (cb != null) {
-                    long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
-                    CommitId cid = new CommitId(redoSeq, (CommitTxn) op);
-                    Notif notif = new Notif(cb, cid);
-                    // We queue it instead making the callback right away.
-                    // Call it only after the commit record has been fsynced.
-                    mCommitNotifyQueue.push(notif);
-                }
+            Notif notif = getCommitNotif(op);
+            if (notif != null) {
+                // We queue it instead making the callback right away.
+                // Call it only after the commit record has been fsynced.
+                mCommitNotifyQueue.push(notif);
             }
 
             mLastLogTime = System.currentTimeMillis();
@@ -356,7 +377,65 @@ public class FileLogWriter implements LogWriter {
 
     private int mLastOpMboxId;
 
+    // Returns the callback to make once the given op is on disk, or null if there isn't one.
+    // Must be called with mLock held.
+    private Notif getCommitNotif(RedoableOp op) {
+        if (op instanceof CommitTxn) {
+            CommitTxn cmt = (CommitTxn) op;
+            RedoCommitCallback cb = cmt.getCallback();
+            if (cb != null) {
+                long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                CommitId cid = new CommitId(redoSeq, cmt);
+                return new Notif(cb, cid);
+            }
+        }
+        return null;
+    }
+
+    private void logGroupCommit(GroupCommitWriter groupWriter, RedoableOp op, InputStream data, boolean synchronous)
+    throws IOException {
+        // Serialize outside the lock; only the copy into the shared buffer is done while holding it.
+        byte[] record = ByteUtil.getContent(data, 1024);
+        int seq;
+
+        synchronized (mLock) {
+            if (mRAF == null)
+                throw new IOException("Redolog file closed");
+
+            // Record first transaction in header.  The writer thread writes it out along with the batch.
+            byte[] header = null;
+            long tstamp = op.getTimestamp();
+            mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
+            if (mFirstOpTstamp == 0) {
+                mFirstOpTstamp = tstamp;
+                mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+                header = mHeader.toBytes();
+            }
+
+            mLogSeq++;
+            mLogCount++;
+            seq = mLogSeq;
+            // Appending with mLock held keeps records and commit callbacks in log order.
+            groupWriter.append(record, seq, header, getCommitNotif(op));
+            mFileSize += record.length;
+            mLastLogTime = System.currentTimeMillis();
+        }
+
+        if (synchronous)
+            groupWriter.awaitDurable(seq);
+    }
+
     @Override public void flush() throws IOException {
+        GroupCommitWriter groupWriter = mGroupWriter;
+        if (groupWriter != null) {
+            int seq;
+            synchronized (mLock) {
+                seq = mLogSeq;
+            }
+            groupWriter.awaitDurable(seq);
+            return;
+        }
         fsync();
     }
 
@@ -435,7 +514,32 @@ public class FileLogWriter implements LogWriter {
         stopFsyncThread();
     }
 
+    // Must be called with mLock held and the file open.
+    private void startGroupWriter() {
+        if (mGroupWriter == null) {
+            GroupCommitWriter writer = new GroupCommitWriter(mRAF.getChannel(),
+                    Math.max(2, LC.redolog_group_commit_buffers.intValue()),
+                    Math.max(4, LC.redolog_group_commit_buffer_kb.intValue()) * 1024);
+            writer.start();
+            mGroupWriter = writer;
+        }
+    }
+
+    private void stopGroupWriter() {
+        GroupCommitWriter writer = mGroupWriter;
+        if (writer != null) {
+            writer.stopThread();
+            mGroupWriter = null;
+            synchronized (mLock) {
+                mFsyncCount += writer.getFsyncCount();
+            }
+        }
+    }
+
     private synchronized void startFsyncThread() {
+        if (mGroupCommit) {
+            return;
+        }
         if (mFsyncer == null && mFsyncIntervalMS > 0) {
             mFsyncer = new FsyncThread(mFsyncIntervalMS);
             mFsyncer.start();
@@ -564,6 +668,235 @@ public class FileLogWriter implements LogWriter {
     }
 
 
+    /**
+     * Group commit writer.  Logging threads copy their serialized records into a ring of direct buffers and, if
+     * the op is synchronous, wait.  A single writer thread takes everything that accumulated while its previous
+     * write was in progress, writes it with one gathering write and one fsync, makes the commit callbacks queued
+     * in that batch in log order, and then wakes every logging thread whose record the batch covered.  When all
+     * buffers are waiting to be written, logging threads block until one is freed.
+     *
+     * Lock ordering is mLock, then mQueueLock.  The writer thread never takes mLock.
+     */
+    private class GroupCommitWriter extends Thread {
+        private final FileChannel mChannel;
+        private final int mBufferSize;
+        private final ReentrantLock mQueueLock = new ReentrantLock();
+        private final Condition mWorkAvailable = mQueueLock.newCondition();
+        private final Condition mBufferFreed = mQueueLock.newCondition();
+        private final Condition mDurable = mQueueLock.newCondition();
+
+        // All of the following are guarded by mQueueLock.
+        private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<ByteBuffer>();
+        private final ArrayDeque<Batch> mSealed = new ArrayDeque<Batch>();
+        private Batch mFilling;
+        private int mDurableSeq;
+        private int mBatchFsyncCount;
+        private boolean mRunning = true;
+
+        GroupCommitWriter(FileChannel channel, int bufferCount, int bufferSize) {
+            super("FileLogWriter.GroupCommitWriter-" + System.currentTimeMillis());
+            mChannel = channel;
+            mBufferSize = bufferSize;
+            for (int i = 0; i < bufferCount; i++) {
+                mFree.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+        }
+
+        void append(byte[] record, int seq, byte[] header, Notif notif) throws IOException {
+            mQueueLock.lock();
+            try {
+                if (!mRunning)
+                    throw new IOException("Redolog writer stopped");
+                if (mFilling != null && mFilling.mBuffer.remaining() < record.length)
+                    seal();
+                if (mFilling == null) {
+                    if (record.length > mBufferSize) {
+                        // Too big for a ring buffer; write it from the heap in a batch of its own.
+                        ByteBuffer buf = ByteBuffer.wrap(record);
+                        buf.position(record.length);
+                        mFilling = new Batch(buf, false);
+                    } else {
+                        while (mFree.isEmpty()) {
+                            mBufferFreed.awaitUninterruptibly();
+                        }
+                        if (!mRunning)
+                            throw new IOException("Redolog writer stopped");
+                        mFilling = new Batch(mFree.poll(), true);
+                        mFilling.mBuffer.put(record);
+                    }
+                } else {
+                    mFilling.mBuffer.put(record);
+                }
+                mFilling.mLastSeq = seq;
+                if (header != null)
+                    mFilling.mHeader = header;
+                if (notif != null)
+                    mFilling.mNotifs.add(notif);
+                mWorkAvailable.signal();
+            } finally {
+                mQueueLock.unlock();
+            }
+        }
+
+        // Must be called with mQueueLock held.
+        private void seal() {
+            if (mFilling != null) {
+                mSealed.add(mFilling);
+                mFilling = null;
+            }
+        }
+
+        void awaitDurable(int seq) {
+            mQueueLock.lock();
+            try {
+                while (mDurableSeq < seq && (mRunning || !mSealed.isEmpty() || mFilling != null)) {
+                    mDurable.awaitUninterruptibly();
+                }
+            } finally {
+                mQueueLock.unlock();
+            }
+        }
+
+        int getFsyncCount() {
+            mQueueLock.lock();
+            try {
+                return mBatchFsyncCount;
+            } finally {
+                mQueueLock.unlock();
+            }
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit writer with %d buffers of %d bytes",
+                    mFree.size(), mBufferSize);
+            List<Batch> batches = new ArrayList<Batch>();
+            while (true) {
+                mQueueLock.lock();
+                try {
+                    while (mRunning && mSealed.isEmpty() && mFilling == null) {
+                        mWorkAvailable.awaitUninterruptibly();
+                    }
+                    // Everything logged so far goes into this write.
+                    seal();
+                    if (mSealed.isEmpty())
+                        break;  // stopped and drained
+                    batches.addAll(mSealed);
+                    mSealed.clear();
+                } finally {
+                    mQueueLock.unlock();
+                }
+
+                try {
+                    write(batches);
+                } catch (IOException e) {
+                    String message = "Error while writing " + mFile.getAbsolutePath() + "; Aborting.";
+                    Zimbra.halt(message, e);
+                }
+                for (Batch batch : batches) {
+                    for (Notif notif : batch.mNotifs) {
+                        makeCallback(notif);
+                    }
+                }
+
+                mQueueLock.lock();
+                try {
+                    mDurableSeq = batches.get(batches.size() - 1).mLastSeq;
+                    if (!mFsyncDisabled)
+                        mBatchFsyncCount++;
+                    for (Batch batch : batches) {
+                        if (batch.mPooled) {
+                            batch.mBuffer.clear();
+                            mFree.add(batch.mBuffer);
+                        }
+                    }
+                    mBufferFreed.signalAll();
+                    mDurable.signalAll();
+                } finally {
+                    mQueueLock.unlock();
+                }
+                batches.clear();
+            }
+            ZimbraLog.redolog.info("group commit writer exiting");
+        }
+
+        private void write(List<Batch> batches) throws IOException {
+            byte[] header = null;
+            ByteBuffer[] bufs = new ByteBuffer[batches.size()];
+            long remaining = 0;
+            for (int i = 0; i < bufs.length; i++) {
+                Batch batch = batches.get(i);
+                if (batch.mHeader != null)
+                    header = batch.mHeader;
+                bufs[i] = batch.mBuffer;
+                bufs[i].flip();
+                remaining += bufs[i].remaining();
+            }
+            if (header != null) {
+                ByteBuffer hdr = ByteBuffer.wrap(header);
+                while (hdr.hasRemaining()) {
+                    mChannel.write(hdr, hdr.position());
+                }
+            }
+            while (remaining > 0) {
+                remaining -= mChannel.write(bufs);
+            }
+            if (!mFsyncDisabled)
+                mChannel.force(false);
+        }
+
+        // Stop the writer after everything appended so far has been written.  Wait until the thread really stops.
+        void stopThread() {
+            mQueueLock.lock();
+            try {
+                mRunning = false;
+                mWorkAvailable.signal();
+            } finally {
+                mQueueLock.unlock();
+            }
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping GroupCommitWriter", e);
+            }
+            mQueueLock.lock();
+            try {
+                mDurable.signalAll();
+            } finally {
+                mQueueLock.unlock();
+            }
+        }
+    }
+
+    // Records accumulated for one group commit write.
+    private static class Batch {
+        final ByteBuffer mBuffer;
+        final boolean mPooled;      // true if mBuffer goes back into the ring after the write
+        final List<Notif> mNotifs = new ArrayList<Notif>();
+        byte[] mHeader;             // updated file header to write along with this batch, if any
+        int mLastSeq;
+
+        Batch(ByteBuffer buffer, boolean pooled) {
+            mBuffer = buffer;
+            mPooled = pooled;
+        }
+    }
+
+    private static void makeCallback(Notif notif) {
+        RedoCommitCallback cb = notif.getCallback();
+        assert(cb != null);
+        try {
+            cb.callback(notif.getCommitId());
+        } catch (OutOfMemoryError e) {
+            Zimbra.halt("out of memory", e);
+        } catch (Throwable t) {
+            ZimbraLog.misc.error("Error while making commit callback", t);
+        }
+    }
+
+
     // Commit callback handling
 
     private static class Notif {
@@ -616,15 +949,7 @@ public class FileLogWriter implements LogWriter {
                 fsync();
             Notif notif;
             while ((notif = pop()) != null) {
-                RedoCommitCallback cb = notif.getCallback();
-                assert(cb != null);
-                try {
-                    cb.callback(notif.getCommitId());
-                } catch (OutOfMemoryError e) {
-                    Zimbra.halt("out of memory", e);
-                } catch (Throwable t) {
-                    ZimbraLog.misc.error("Error while making commit callback", t);
-                }
+                makeCallback(notif);
             }
         }
     }
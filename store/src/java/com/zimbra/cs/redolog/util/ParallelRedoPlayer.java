@@ -17,18 +17,58 @@
 
 package com.zimbra.cs.redolog.util;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxOperation;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Replays committed ops on a work-stealing pool.  Each op becomes a task in a
+ * dependency graph built in log order:
+ * <ul>
+ *   <li>ops for a mailbox run after the previous op for the same mailbox</li>
+ *   <li>a <tt>StoreIncomingBlob</tt> runs after, and before, the neighbouring ops of
+ *       every mailbox it was stored for</li>
+ *   <li>mailbox create/delete/rename, volume ops and any other op without a single
+ *       mailbox are barriers: they run after everything logged before them, and
+ *       everything logged after them waits for them</li>
+ * </ul>
+ * Ops for different mailboxes therefore run concurrently on any idle thread, instead
+ * of being pinned to a thread by mailbox id.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
-    private PlayerThread[] mPlayerThreads;
+    private final ForkJoinPool mPool;
+    // Bounds the number of ops that have been read but not yet replayed.
+    private final Semaphore mPending;
+    private final int mMaxPending;
+
+    // Dependency tracking state.  Only touched by the thread calling playOp().
+    private final Map<Integer, RedoTask> mLastTaskByMailbox = new HashMap<Integer, RedoTask>();
+    private RedoTask mLastBarrier;
+
+    private final ConcurrentMap<MailboxOperation, OpStats> mOpStats =
+        new ConcurrentHashMap<MailboxOperation, OpStats>();
+    private final long mStartTime = System.nanoTime();
 
     public ParallelRedoPlayer(boolean writable, boolean unloggedReplay,
                               boolean ignoreReplayErrors, boolean skipDeleteOps,
@@ -36,14 +76,18 @@ public class ParallelRedoPlayer extends RedoPlayer {
         super(writable, unloggedReplay, ignoreReplayErrors, skipDeleteOps, handleMailboxConflict);
         ZimbraLog.redolog.debug("Starting ParallelRedoPlayer");
         numThreads = Math.max(numThreads, 1);
-        mPlayerThreads = new PlayerThread[numThreads];
-        for (int i = 0; i < numThreads; i++) {
-            String name = "RedoPlayer-" + Integer.toString(i);
-            PlayerThread player = new PlayerThread(queueCapacity);
-            mPlayerThreads[i] = player;
-            player.setName(name);
-            player.start();
-        }
+        mMaxPending = Math.max(queueCapacity, 1) * numThreads;
+        mPending = new Semaphore(mMaxPending);
+        mPool = new ForkJoinPool(numThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("RedoPlayer-" + mCount.getAndIncrement());
+                return thread;
+            }
+        }, null, true);
     }
 
     @Override public void shutdown() {
@@ -51,35 +95,69 @@ public class ParallelRedoPlayer extends RedoPlayer {
         try {
             super.shutdown();
         } finally {
-            for (int i = 0; i < mPlayerThreads.length; i++) {
-                mPlayerThreads[i].shutdown();
-            }
+            // Wait for every enqueued op to finish, whether or not there was an error.
+            mPending.acquireUninterruptibly(mMaxPending);
+            mPending.release(mMaxPending);
+            mPool.shutdown();
+            try {
+                mPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {}
+            mLastTaskByMailbox.clear();
+            mLastBarrier = null;
+            logOpStats();
         }
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
     }
 
     @Override protected void playOp(RedoableOp op) throws Exception {
         checkError();
+        mPending.acquire();
+        RedoTask task = new RedoTask(op);
+        if (ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+
         int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
-            // Multi-mailbox ops are executed by the main thread to prevent later ops
-            // that depend on this op's result aren't run out of order.
-            if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Executing: " + op.toString());
-            op.redo();
+        List<Integer> mboxIds = null;
+        if (op instanceof StoreIncomingBlob) {
+            mboxIds = ((StoreIncomingBlob) op).getMailboxIdList();
+        } else if (mboxId != RedoableOp.MAILBOX_ID_ALL && mboxId != RedoableOp.UNKNOWN_ID && !isBarrier(op)) {
+            mboxIds = Collections.singletonList(mboxId);
+        }
+
+        if (mboxIds == null || mboxIds.isEmpty()) {
+            // Barrier: depends on the tail of every mailbox chain and on the previous
+            // barrier, and becomes the only predecessor of everything that follows.
+            for (RedoTask tail : mLastTaskByMailbox.values()) {
+                task.dependOn(tail);
+            }
+            task.dependOn(mLastBarrier);
+            mLastTaskByMailbox.clear();
+            mLastBarrier = task;
         } else {
-            // Ops for the same mailbox must be played back in order.  To ensure that,
-            // all ops for the same mailbox are sent to the same player thread.  The
-            // ops are added to the thread's internal queue and played back in order.
-            // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
-            if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Enqueuing: " + op.toString());
-            try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+            for (Integer id : mboxIds) {
+                RedoTask prev = mLastTaskByMailbox.put(id, task);
+                task.dependOn(prev != null ? prev : mLastBarrier);
+            }
+        }
+        task.ready();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the op must not run concurrently with any other op,
+     * even though it names a single mailbox.
+     */
+    private static boolean isBarrier(RedoableOp op) {
+        switch (op.getOperation()) {
+        case CreateMailbox:
+        case DeleteMailbox:
+        case RenameMailbox:
+        case CreateVolume:
+        case ModifyVolume:
+        case DeleteVolume:
+        case SetCurrentVolume:
+            return true;
+        default:
+            return false;
         }
     }
 
@@ -106,81 +184,163 @@ public class ParallelRedoPlayer extends RedoPlayer {
         }
     }
 
-    private static class RedoTask {
-        private RedoableOp mOp;
-        public RedoTask(RedoableOp op)  { mOp = op; }
-        public RedoableOp getOp()       { return mOp; }
-        public boolean isShutdownTask() { return false; }
+    private void execute(RedoableOp op) {
+        if (hadError()) {
+            // Don't run anything after an error, but keep completing tasks so that
+            // shutdown() can drain the graph.
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (ZimbraLog.redolog.isDebugEnabled()) {
+                ZimbraLog.redolog.info("Executing: " + op.toString());
+            }
+            if (handleMailboxConflict) {
+                redoOpWithMboxConflict(op);
+            } else {
+                op.redo();
+            }
+        } catch (OutOfMemoryError oome) {
+            Zimbra.halt("Out of memory while executing redo op", oome);
+        } catch (Throwable e) {
+            ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
+            if (!ignoreReplayErrors())
+                raiseError(e);
+        } finally {
+            statsFor(op.getOperation()).record(System.nanoTime() - start);
+        }
+    }
+
+    private OpStats statsFor(MailboxOperation type) {
+        OpStats stats = mOpStats.get(type);
+        if (stats == null) {
+            OpStats newStats = new OpStats();
+            stats = mOpStats.putIfAbsent(type, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
     }
 
     /**
-     * Special task to tell the queue drain thread to go away.
+     * Returns replay statistics for each op type played so far.
      */
-    private static class ShutdownTask extends RedoTask {
-        public ShutdownTask() { super(null); }
-        @Override
-        public boolean isShutdownTask() { return true; }
+    public Map<MailboxOperation, OpStats> getOpStats() {
+        return Collections.unmodifiableMap(new EnumMap<MailboxOperation, OpStats>(mOpStats));
     }
 
-    private class PlayerThread extends Thread {
-        private BlockingQueue<RedoTask> mQueue;
+    private void logOpStats() {
+        if (mOpStats.isEmpty() || !ZimbraLog.redolog.isInfoEnabled()) {
+            return;
+        }
+        long elapsedMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime), 1);
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<MailboxOperation, OpStats> entry : getOpStats().entrySet()) {
+            OpStats stats = entry.getValue();
+            total += stats.getCount();
+            sb.append(String.format("\n  %-28s count=%d, avg=%.3fms, rate=%.1f/s",
+                    entry.getKey(), stats.getCount(), stats.getAverageMillis(),
+                    stats.getCount() * 1000.0 / elapsedMillis));
+        }
+        ZimbraLog.redolog.info("Replayed %d ops in %dms (%.1f/s) on %d threads:%s",
+                total, elapsedMillis, total * 1000.0 / elapsedMillis, mPool.getParallelism(), sb);
+    }
 
-        private PlayerThread(int queueCapacity) {
-            queueCapacity = Math.max(queueCapacity, 1);
-            mQueue = new LinkedBlockingQueue<RedoTask>(queueCapacity);
+    /**
+     * Replay count and cumulative execution time for one op type.
+     */
+    public static final class OpStats {
+        private final LongAdder mCount = new LongAdder();
+        private final LongAdder mNanos = new LongAdder();
+
+        void record(long nanos) {
+            mCount.increment();
+            mNanos.add(nanos);
         }
 
-        public void enqueue(RedoTask task) throws InterruptedException {
-            mQueue.put(task);
+        public long getCount() {
+            return mCount.sum();
         }
 
-        public void shutdown() {
-            if (hadError())
-                mQueue.clear();  // Ensure mQueue.put() below will not block.
-            ShutdownTask t = new ShutdownTask();
-            try {
-                mQueue.put(t);
-            } catch (InterruptedException e) {}
-            try {
-                join();
-            } catch (InterruptedException e) {}
+        public long getTotalNanos() {
+            return mNanos.sum();
         }
 
-        @Override public void run() {
-            while (true) {
-                RedoTask task;
-                try {
-                    task = mQueue.take();
-                } catch (InterruptedException e) {
-                    break;
-                }
-                if (task.isShutdownTask())
-                    break;
-
-                if (hadError()) {
-                    // If there was an error, keep consuming from the queue without executing anything.
-                    // This thread must consume all tasks until shutdown task is received.  If this
-                    // thread stopped consuming, the producer may not be able to enqueue the shutdown
-                    // task.
-                    continue;
+        public double getAverageMillis() {
+            long count = getCount();
+            return count == 0 ? 0.0 : getTotalNanos() / 1000000.0 / count;
+        }
+    }
+
+    /**
+     * Node in the replay dependency graph.  Forked into the pool once every task it
+     * depends on has completed.
+     */
+    private class RedoTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private RedoableOp mOp;
+        // Starts at 1 so the task can't be forked while its dependencies are still being added.
+        private final AtomicInteger mWaitingFor = new AtomicInteger(1);
+        private List<RedoTask> mDependents;
+        private boolean mDone;
+
+        RedoTask(RedoableOp op) {
+            mOp = op;
+        }
+
+        void dependOn(RedoTask prev) {
+            if (prev != null && prev != this && prev.addDependent(this)) {
+                mWaitingFor.incrementAndGet();
+            }
+        }
+
+        /**
+         * Returns <tt>false</tt> if this task has already completed.
+         */
+        private synchronized boolean addDependent(RedoTask next) {
+            if (mDone) {
+                return false;
+            }
+            if (mDependents == null) {
+                mDependents = new ArrayList<RedoTask>(2);
+            }
+            mDependents.add(next);
+            return true;
+        }
+
+        /**
+         * Called when all dependencies have been added, or a dependency completed.
+         */
+        void ready() {
+            if (mWaitingFor.decrementAndGet() == 0) {
+                if (getPool() == mPool) {
+                    fork();
+                } else {
+                    mPool.execute(this);
                 }
+            }
+        }
 
-                RedoableOp op = task.getOp();
-                try {
-                    if (ZimbraLog.redolog.isDebugEnabled()) {
-                        ZimbraLog.redolog.info("Executing: " + op.toString());
-                    }
-                    if (handleMailboxConflict) {
-                        redoOpWithMboxConflict(op);
-                    } else {
-                        op.redo();
+        @Override
+        protected void compute() {
+            try {
+                execute(mOp);
+            } finally {
+                mOp = null;  // don't hold on to op data while dependents are pending
+                List<RedoTask> dependents;
+                synchronized (this) {
+                    mDone = true;
+                    dependents = mDependents;
+                    mDependents = null;
+                }
+                mPending.release();
+                if (dependents != null) {
+                    for (RedoTask next : dependents) {
+                        next.ready();
                     }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Out of memory while executing redo op", oome);
-                } catch (Throwable e) {
-                    ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
-                    if (!ignoreReplayErrors())
-                        raiseError(e);
                 }
             }
         }
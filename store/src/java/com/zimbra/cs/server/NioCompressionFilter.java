@@ -0,0 +1,191 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+/**
+ * MINA filter implementing raw DEFLATE stream compression (RFC 1951) as used by IMAP COMPRESS=DEFLATE (RFC 4978).
+ * <p>
+ * Each write is compressed and sync-flushed so that a complete response reaches the client without waiting for more
+ * output. The filter keeps per-session byte counters so that the protocol handler can report the savings once the
+ * connection is closed.
+ */
+public final class NioCompressionFilter extends IoFilterAdapter {
+    /** When set, compression is disabled for the first write, i.e. the tagged OK response to COMPRESS. */
+    public static final String DISABLE_COMPRESSION_ONCE = NioCompressionFilter.class.getName() + ".DisableCompressionOnce";
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] deflateChunk = new byte[CHUNK_SIZE];
+    private final byte[] inflateChunk = new byte[CHUNK_SIZE];
+    private boolean ended;
+    private long rawBytesIn;
+    private long wireBytesIn;
+    private long rawBytesOut;
+    private long wireBytesOut;
+
+    public NioCompressionFilter(int level) {
+        deflater = new Deflater(level, true);
+        inflater = new Inflater(true);
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        IoBuffer buf = (IoBuffer) message;
+        synchronized (inflater) {
+            if (ended) {
+                return;
+            }
+            int len = buf.remaining();
+            byte[] in = new byte[len];
+            buf.get(in);
+            wireBytesIn += len;
+            inflater.setInput(in);
+            try {
+                while (true) {
+                    int n = inflater.inflate(inflateChunk);
+                    if (n == 0) {
+                        if (inflater.finished()) {
+                            // the client ended the compressed stream; anything after it is garbage
+                            throw new ProtocolDecoderException("unexpected end of compressed stream");
+                        }
+                        break;
+                    }
+                    rawBytesIn += n;
+                    byte[] out = new byte[n];
+                    System.arraycopy(inflateChunk, 0, out, 0, n);
+                    nextFilter.messageReceived(session, IoBuffer.wrap(out));
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolDecoderException(e);
+            }
+        }
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        IoBuffer buf = (IoBuffer) writeRequest.getMessage();
+        // Allows us to send the OK response to COMPRESS uncompressed
+        if (session.containsAttribute(DISABLE_COMPRESSION_ONCE)) {
+            session.removeAttribute(DISABLE_COMPRESSION_ONCE);
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        if (!buf.hasRemaining()) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+
+        IoBuffer out;
+        synchronized (deflater) {
+            if (ended) {
+                nextFilter.filterWrite(session, writeRequest);
+                return;
+            }
+            int len = buf.remaining();
+            byte[] in;
+            int off;
+            if (buf.hasArray()) {
+                in = buf.array();
+                off = buf.arrayOffset() + buf.position();
+            } else {
+                in = new byte[len];
+                buf.mark();
+                buf.get(in);
+                buf.reset();
+                off = 0;
+            }
+            deflater.setInput(in, off, len);
+            // deflated output is usually much smaller than the input; grow on demand for incompressible data
+            out = IoBuffer.allocate(len / 2 + 64).setAutoExpand(true);
+            int n;
+            do {
+                n = deflater.deflate(deflateChunk, 0, deflateChunk.length, Deflater.SYNC_FLUSH);
+                out.put(deflateChunk, 0, n);
+            } while (n == deflateChunk.length);
+            out.flip();
+            rawBytesOut += len;
+            wireBytesOut += out.remaining();
+        }
+        buf.position(buf.limit());
+        nextFilter.filterWrite(session, new DefaultWriteRequest(out, writeRequest.getFuture()));
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        end();
+        nextFilter.sessionClosed(session);
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) {
+        end();
+    }
+
+    private void end() {
+        synchronized (inflater) {
+            synchronized (deflater) {
+                if (!ended) {
+                    ended = true;
+                    deflater.end();
+                    inflater.end();
+                }
+            }
+        }
+    }
+
+    /** Returns the number of uncompressed bytes passed up to the protocol handler. */
+    public long getRawBytesIn() {
+        synchronized (inflater) {
+            return rawBytesIn;
+        }
+    }
+
+    /** Returns the number of compressed bytes received from the client. */
+    public long getWireBytesIn() {
+        synchronized (inflater) {
+            return wireBytesIn;
+        }
+    }
+
+    /** Returns the number of uncompressed bytes written by the protocol handler. */
+    public long getRawBytesOut() {
+        synchronized (deflater) {
+            return rawBytesOut;
+        }
+    }
+
+    /** Returns the number of compressed bytes sent to the client. */
+    public long getWireBytesOut() {
+        synchronized (deflater) {
+            return wireBytesOut;
+        }
+    }
+}
@@ -85,6 +85,17 @@ public final class NioConnection {
         session.setAttribute(SaslFilter.DISABLE_ENCRYPTION_ONCE, true);
     }
 
+    /**
+     * Starts DEFLATE compression of the connection. The next write is still sent uncompressed so that the caller can
+     * acknowledge the request. Compression sits above any TLS or SASL security layer.
+     */
+    public NioCompressionFilter startCompression(int level) {
+        NioCompressionFilter filter = new NioCompressionFilter(level);
+        session.getFilterChain().addBefore("executer", "compress", filter);
+        session.setAttribute(NioCompressionFilter.DISABLE_COMPRESSION_ONCE, true);
+        return filter;
+    }
+
     public void send(Object obj) {
         session.write(obj);
     }
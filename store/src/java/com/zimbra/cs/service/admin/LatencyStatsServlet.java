@@ -0,0 +1,61 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.admin;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.servlet.ZimbraServlet;
+import com.zimbra.cs.stats.JmxLatencyStats;
+import com.zimbra.cs.stats.JmxSqlStats;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Reports per-command SOAP, IMAP, POP3, LDAP and SQL latency percentiles, followed by the
+ * per-template SQL statistics, in the Prometheus text format.  The report is written straight to the response without building it in memory.
+ */
+public class LatencyStatsServlet extends ZimbraServlet {
+
+    private static final long serialVersionUID = 5308734208327812651L;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        AuthToken authToken = getAdminAuthTokenFromCookie(req, resp);
+        if (authToken == null) {
+            return;
+        }
+        JmxLatencyStats stats = ZimbraPerf.getLatencyStats();
+        if (stats == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "stats not initialized");
+            return;
+        }
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        stats.appendReport(out);
+        JmxSqlStats sqlStats = ZimbraPerf.getSqlStats();
+        if (sqlStats != null) {
+            sqlStats.appendReport(out);
+        }
+        out.flush();
+    }
+}
@@ -111,7 +111,7 @@ public class GetMsg extends MailDocumentHandler {
                     }
                 }
                 ToXML.encodeInviteAsMP(response, ifmt, octxt, calItem, recurIdZ, iid,
-                        part, maxSize, wantHTML, neuter, headers, false, needGroupInfo);
+                        part, maxSize, wantHTML, neuter, headers, false, needGroupInfo).encodeInPlace();
             }
         } else {
             Message msg = getMsg(octxt, mbox, iid, read);
@@ -125,11 +125,11 @@ public class GetMsg extends MailDocumentHandler {
             if (raw) {
                 ToXML.encodeMessageAsMIME(response, ifmt, octxt, msg, part,
                         false /* mustInline */, alwaysUseContentUrl /* mustNotInline */, false /* serializeType */,
-                        fields);
+                        fields).encodeInPlace();
             } else {
                 ToXML.encodeMessageAsMP(response, ifmt, octxt, msg, part, maxSize, wantHTML, neuter, headers,
                         false /* serializeType */, needGroupInfo, LC.mime_encode_missing_blob.booleanValue(),
-                        wantContent, fields);
+                        wantContent, fields).encodeInPlace();
             }
         }
         return response;
@@ -197,6 +197,8 @@ final class SearchResponse {
             if (includeMailbox) {
                 el.addAttribute(MailConstants.A_ID, new ItemId(hit.getAcctIdStr(), hit.getItemId()).toString());
             }
+            // the hit is complete, so keep only its serialized form until the response is written
+            el.encodeInPlace();
         }
     }
 
@@ -16,18 +16,24 @@
  */
 package com.zimbra.cs.stats;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.LatencyHistogram;
 import com.zimbra.common.stats.StatsDumperDataSource;
 
 
 /**
  * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" and their "total elapsed time" 
  * for each counter stat period, one on a line.
+ * <p>
+ * Each command also has a {@link LatencyHistogram} of elapsed milliseconds that is not reset by the
+ * CSV dump, so that tail latencies since startup can be read over JMX or with {@link #appendLatencies}.
  */
 public class ActivityTracker
 implements StatsDumperDataSource {
@@ -35,14 +41,22 @@ implements StatsDumperDataSource {
     private String mFilename;
     private ConcurrentHashMap<String, Counter> mCounterMap =
         new ConcurrentHashMap<String, Counter>();
+    private ConcurrentHashMap<String, LatencyHistogram> mHistogramMap =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    // Copy-on-write list of command names, in the same order as mHistograms, so that the
+    // latency exposition can walk them without allocating an iterator.
+    private volatile String[] mCommands = new String[0];
+    private volatile LatencyHistogram[] mHistograms = new LatencyHistogram[0];
     
     public ActivityTracker(String filename) {
         mFilename = filename;
     }
     
     public void addStat(String commandName, long startTime) {
+        long elapsed = System.currentTimeMillis() - startTime;
         Counter counter = getCounter(commandName);
-        counter.increment(System.currentTimeMillis() - startTime);
+        counter.increment(elapsed);
+        getHistogram(commandName).record(elapsed);
     }
     
     private Counter getCounter(String commandName) {
@@ -59,6 +73,58 @@ implements StatsDumperDataSource {
         }
         return counter;
     }
+
+    private LatencyHistogram getHistogram(String commandName) {
+        LatencyHistogram histogram = mHistogramMap.get(commandName);
+        if (histogram == null) {
+            synchronized (this) {
+                histogram = mHistogramMap.get(commandName);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    int size = mCommands.length;
+                    String[] commands = Arrays.copyOf(mCommands, size + 1);
+                    LatencyHistogram[] histograms = Arrays.copyOf(mHistograms, size + 1);
+                    commands[size] = commandName;
+                    histograms[size] = histogram;
+                    mHistogramMap.put(commandName, histogram);
+                    mHistograms = histograms;
+                    mCommands = commands;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the latency histogram for the given command, or <tt>null</tt> if the command
+     * has not been tracked.
+     */
+    public LatencyHistogram getLatencies(String commandName) {
+        return mHistogramMap.get(commandName);
+    }
+
+    public List<String> getCommands() {
+        return Arrays.asList(mCommands);
+    }
+
+    /**
+     * Appends the latency percentiles of every tracked command under the given metric name.
+     * See {@link LatencyHistogram#appendSummary}.
+     */
+    public void appendLatencies(Appendable out, String metric) throws IOException {
+        String[] commands = mCommands;
+        LatencyHistogram[] histograms = mHistograms;
+        // mCommands is published last, so histograms is at least as long as commands.
+        for (int i = 0; i < commands.length; i++) {
+            histograms[i].appendSummary(out, metric, "command", commands[i]);
+        }
+    }
+
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
     
     ////////////// StatsDumperDataSource implementation //////////////
     
@@ -0,0 +1,114 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.stats.LatencyHistogram;
+
+public class JmxLatencyStats implements JmxLatencyStatsMBean {
+
+    private final Map<String, ActivityTracker> trackers = new LinkedHashMap<String, ActivityTracker>();
+    private String[] metrics = new String[0];
+    private ActivityTracker[] metricTrackers = new ActivityTracker[0];
+
+    JmxLatencyStats() {
+    }
+
+    /**
+     * Adds a tracker whose latencies are reported as <tt>zimbra_&lt;name&gt;_latency_ms</tt>.
+     */
+    JmxLatencyStats addTracker(String name, ActivityTracker tracker) {
+        trackers.put(name, tracker);
+        int size = metrics.length;
+        metrics = Arrays.copyOf(metrics, size + 1);
+        metricTrackers = Arrays.copyOf(metricTrackers, size + 1);
+        metrics[size] = "zimbra_" + name + "_latency_ms";
+        metricTrackers[size] = tracker;
+        return this;
+    }
+
+    @Override
+    public String[] getTrackers() {
+        return trackers.keySet().toArray(new String[trackers.size()]);
+    }
+
+    @Override
+    public String[] getCommands(String tracker) {
+        ActivityTracker t = trackers.get(tracker);
+        if (t == null) {
+            return new String[0];
+        }
+        List<String> commands = t.getCommands();
+        return commands.toArray(new String[commands.size()]);
+    }
+
+    private LatencyHistogram getLatencies(String tracker, String command) {
+        ActivityTracker t = trackers.get(tracker);
+        return t == null ? null : t.getLatencies(command);
+    }
+
+    @Override
+    public long getCount(String tracker, String command) {
+        LatencyHistogram histogram = getLatencies(tracker, command);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getMaxMs(String tracker, String command) {
+        LatencyHistogram histogram = getLatencies(tracker, command);
+        return histogram == null ? 0 : histogram.getMax();
+    }
+
+    @Override
+    public long getPercentileMs(String tracker, String command, double percentile) {
+        LatencyHistogram histogram = getLatencies(tracker, command);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder buf = new StringBuilder();
+        try {
+            appendReport(buf);
+        } catch (IOException e) { // StringBuilder doesn't throw IOException
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Appends the percentiles of every tracker in the Prometheus text format without
+     * allocating.
+     */
+    public void appendReport(Appendable out) throws IOException {
+        for (int i = 0; i < metrics.length; i++) {
+            metricTrackers[i].appendLatencies(out, metrics[i]);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (ActivityTracker tracker : trackers.values()) {
+            tracker.resetLatencies();
+        }
+    }
+}
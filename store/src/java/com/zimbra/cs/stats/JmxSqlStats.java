@@ -0,0 +1,96 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.zimbra.cs.stats.SqlTemplateTracker.Template;
+
+public class JmxSqlStats implements JmxSqlStatsMBean {
+
+    private final SqlTemplateTracker tracker;
+
+    JmxSqlStats(SqlTemplateTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Returns the executed templates, most total time first.
+     */
+    @Override
+    public String[] getTemplates() {
+        List<Template> templates = tracker.getTemplates();
+        String[] result = new String[templates.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = templates.get(i).getSql();
+        }
+        return result;
+    }
+
+    @Override
+    public long getCount(String template) {
+        Template t = tracker.get(template);
+        return t == null ? 0 : t.getLatencies().getCount();
+    }
+
+    @Override
+    public long getRows(String template) {
+        Template t = tracker.get(template);
+        return t == null ? 0 : t.getRows();
+    }
+
+    @Override
+    public long getTotalMicros(String template) {
+        Template t = tracker.get(template);
+        return t == null ? 0 : t.getLatencies().getTotal();
+    }
+
+    @Override
+    public long getMaxMicros(String template) {
+        Template t = tracker.get(template);
+        return t == null ? 0 : t.getLatencies().getMax();
+    }
+
+    @Override
+    public long getPercentileMicros(String template, double percentile) {
+        Template t = tracker.get(template);
+        return t == null ? 0 : t.getLatencies().getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder buf = new StringBuilder();
+        try {
+            appendReport(buf);
+        } catch (IOException e) { // StringBuilder doesn't throw IOException
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Appends the per-template percentiles and row counts in the Prometheus text format.
+     */
+    public void appendReport(Appendable out) throws IOException {
+        tracker.appendReport(out);
+    }
+
+    @Override
+    public void reset() {
+        tracker.reset();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+/**
+ * Per-template SQL execution counts, rows and latency percentiles from the
+ * {@link SqlTemplateTracker}, in microseconds since startup or the last {@link #reset}.
+ */
+public interface JmxSqlStatsMBean extends JmxStatsMBeanBase {
+    String[] getTemplates();
+    long getCount(String template);
+    long getRows(String template);
+    long getTotalMicros(String template);
+    long getMaxMicros(String template);
+    long getPercentileMicros(String template, double percentile);
+    String getReport();
+}
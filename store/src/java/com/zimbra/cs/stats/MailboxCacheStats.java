@@ -0,0 +1,87 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+
+/**
+ * Writes one line for each of the loaded mailboxes with the largest estimated heap footprint,
+ * with the number of items in its item cache.
+ */
+public class MailboxCacheStats implements StatsDumperDataSource {
+
+    private static final int MAX_LINES = 20;
+
+    private final String filename;
+
+    public MailboxCacheStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "mailbox_id,estimated_bytes,item_cache_size";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<Mailbox> mailboxes;
+        try {
+            mailboxes = MailboxManager.getInstance().getAllLoadedMailboxes();
+        } catch (ServiceException e) {
+            ZimbraLog.perf.warn("Unable to get loaded mailboxes for cache stats.", e);
+            return null;
+        }
+        // sizes change while we sort, so take a snapshot first
+        long[][] sizes = new long[mailboxes.size()][];
+        for (int i = 0; i < sizes.length; i++) {
+            Mailbox mbox = mailboxes.get(i);
+            sizes[i] = new long[] { mbox.getId(), mbox.getEstimatedSize(), mbox.getItemCacheSize() };
+        }
+        Arrays.sort(sizes, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] s1, long[] s2) {
+                return Long.compare(s2[1], s1[1]);
+            }
+        });
+        List<String> lines = new ArrayList<String>(Math.min(sizes.length, MAX_LINES));
+        for (int i = 0; i < sizes.length && i < MAX_LINES; i++) {
+            lines.add(String.format("%d,%d,%d", sizes[i][0], sizes[i][1], sizes[i][2]));
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.lock.LockTimeHistogram;
+
+/**
+ * Writes one line per loaded mailbox whose lock was acquired during the last stats period,
+ * with the wait and hold time distribution for that period.
+ */
+public class MailboxLockStats implements StatsDumperDataSource {
+
+    private final String filename;
+
+    public MailboxLockStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "mailbox_id,lock_count,wait_us_avg,wait_us_p99,wait_us_max,hold_us_avg,hold_us_p99,hold_us_max";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<Mailbox> mailboxes;
+        try {
+            mailboxes = MailboxManager.getInstance().getAllLoadedMailboxes();
+        } catch (ServiceException e) {
+            ZimbraLog.perf.warn("Unable to get loaded mailboxes for lock stats.", e);
+            return null;
+        }
+        List<String> lines = new ArrayList<String>();
+        for (Mailbox mbox : mailboxes) {
+            LockTimeHistogram wait = mbox.lock.getWaitTimes();
+            LockTimeHistogram hold = mbox.lock.getHoldTimes();
+            if (wait.getCount() > 0) {
+                lines.add(String.format("%d,%d,%d,%d,%d,%d,%d,%d", mbox.getId(), wait.getCount(),
+                        wait.getAverageMicros(), wait.getPercentileMicros(99), wait.getMaxMicros(),
+                        hold.getAverageMicros(), hold.getPercentileMicros(99), hold.getMaxMicros()));
+                wait.reset();
+                hold.reset();
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
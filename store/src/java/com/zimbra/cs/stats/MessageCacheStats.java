@@ -0,0 +1,64 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.cs.mailbox.MessageCache;
+
+/**
+ * Writes one line per {@link MessageCache} segment with the segment's size and the
+ * hits, misses and evictions seen since the previous dump.
+ */
+public class MessageCacheStats implements StatsDumperDataSource {
+
+    private final String filename;
+
+    public MessageCacheStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "segment,entries,bytes,hits,misses,evictions";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<MessageCache.SegmentStats> segments = MessageCache.getSegmentStats();
+        List<String> lines = new ArrayList<String>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            MessageCache.SegmentStats seg = segments.get(i);
+            lines.add(String.format("%d,%d,%d,%d,%d,%d",
+                    i, seg.entries, seg.dataSize, seg.hits, seg.misses, seg.evictions));
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
@@ -34,11 +34,14 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
     public Map<String, Object> getStatData() {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
+        data.put(ZimbraPerf.RTS_MBOX_CACHE_BYTES, ZimbraPerf.getMailboxCacheBytes());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_BYTES, MessageCache.getDataSize());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_MAPPED_BYTES, fdc.getMappedBytes());
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
         
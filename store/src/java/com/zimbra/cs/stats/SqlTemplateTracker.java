@@ -0,0 +1,216 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.zimbra.common.stats.LatencyHistogram;
+
+/**
+ * Tracks execution count, rows and latency percentiles per SQL template, i.e. per statement
+ * with its literals, <tt>IN</tt> lists and mailbox group names folded together, so that the
+ * statements that dominate database time can be identified.  Latencies are in microseconds
+ * and cover the execute call only, not fetching rows from a streaming result set.
+ * <p>
+ * At most <tt>limit</tt> templates are tracked; statements seen after that are counted under
+ * {@link #OTHER}.
+ */
+public class SqlTemplateTracker {
+
+    public static final String OTHER = "other";
+
+    private static final long HIGHEST_TRACKABLE_MICROS = 10L * 60L * 1000L * 1000L;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern MAILBOX_GROUP = Pattern.compile("mboxgroup\\d+");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(?![\\w.])");
+    private static final Pattern VALUE_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern ROW_LIST = Pattern.compile("\\(\\?\\.\\.\\.\\)(?:\\s*,\\s*\\(\\?\\.\\.\\.\\))+");
+
+    public static final class Template {
+        private final String sql;
+        private final LatencyHistogram latencies =
+                new LatencyHistogram(HIGHEST_TRACKABLE_MICROS, LatencyHistogram.DEFAULT_SUB_BUCKET_BITS);
+        private final AtomicLong rows = new AtomicLong();
+
+        Template(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * Records one execution that started at the given {@link System#nanoTime} and
+         * returned or updated the given number of rows.
+         */
+        public void record(long startNanos, long rowCount) {
+            latencies.record((System.nanoTime() - startNanos) / 1000);
+            addRows(rowCount);
+        }
+
+        /**
+         * Adds rows that were read after the execution was recorded.
+         */
+        public void addRows(long rowCount) {
+            if (rowCount > 0) {
+                rows.addAndGet(rowCount);
+            }
+        }
+
+        void reset() {
+            latencies.reset();
+            rows.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return sql + ": rows=" + rows.get() + " " + latencies;
+        }
+    }
+
+    private static final Comparator<Template> BY_TOTAL_TIME = new Comparator<Template>() {
+        @Override
+        public int compare(Template t1, Template t2) {
+            long total1 = t1.getLatencies().getTotal(), total2 = t2.getLatencies().getTotal();
+            return total1 < total2 ? 1 : total1 == total2 ? 0 : -1;
+        }
+    };
+
+    private final int limit;
+    private final Map<String, Template> bySql;
+    private final ConcurrentHashMap<String, Template> byTemplate = new ConcurrentHashMap<String, Template>();
+    private final Template other = new Template(OTHER);
+    // Copy-on-write list of the templates, so that the report can walk them without allocating.
+    private volatile Template[] templates = new Template[] { other };
+
+    public SqlTemplateTracker(int limit) {
+        this.limit = Math.max(limit, 0);
+        this.bySql = new ConcurrentLinkedHashMap.Builder<String, Template>()
+                .maximumWeightedCapacity(Math.max(this.limit * 4, 16)).build();
+    }
+
+    /**
+     * Returns the template that the given statement is tracked under.  The statement text is
+     * only normalized the first time it is seen.
+     */
+    public Template getTemplate(String sql) {
+        Template template = bySql.get(sql);
+        if (template == null) {
+            template = getOrAdd(normalize(sql));
+            bySql.put(sql, template);
+        }
+        return template;
+    }
+
+    private Template getOrAdd(String sql) {
+        Template template = byTemplate.get(sql);
+        if (template == null) {
+            synchronized (this) {
+                template = byTemplate.get(sql);
+                if (template == null) {
+                    if (byTemplate.size() >= limit) {
+                        return other;
+                    }
+                    template = new Template(sql);
+                    byTemplate.put(sql, template);
+                    Template[] copy = Arrays.copyOf(templates, templates.length + 1);
+                    copy[copy.length - 1] = template;
+                    templates = copy;
+                }
+            }
+        }
+        return template;
+    }
+
+    @VisibleForTesting
+    static String normalize(String sql) {
+        String template = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        template = STRING_LITERAL.matcher(template).replaceAll("?");
+        template = MAILBOX_GROUP.matcher(template).replaceAll("mboxgroup*");
+        template = NUMBER.matcher(template).replaceAll("?");
+        template = VALUE_LIST.matcher(template).replaceAll("(?...)");
+        template = ROW_LIST.matcher(template).replaceAll("(?...), ...");
+        // keep the Prometheus label value free of characters that need escaping
+        return template.replace('"', '\'').replace('\\', '/');
+    }
+
+    /**
+     * Returns the template with the given normalized text, or <tt>null</tt> if it has not
+     * been executed.
+     */
+    public Template get(String template) {
+        return OTHER.equals(template) ? other : byTemplate.get(template);
+    }
+
+    /**
+     * Returns the executed templates, most total time first.
+     */
+    public List<Template> getTemplates() {
+        List<Template> result = new ArrayList<Template>(templates.length);
+        for (Template template : templates) {
+            if (template.getLatencies().getCount() > 0) {
+                result.add(template);
+            }
+        }
+        Collections.sort(result, BY_TOTAL_TIME);
+        return result;
+    }
+
+    /**
+     * Appends the latency percentiles of every executed template as
+     * <tt>zimbra_sql_latency_us</tt> and its row count as <tt>zimbra_sql_rows_total</tt>, in
+     * the Prometheus text format.  See {@link LatencyHistogram#appendSummary}.
+     */
+    public void appendReport(Appendable out) throws IOException {
+        for (Template template : templates) {
+            if (template.getLatencies().getCount() == 0) {
+                continue;
+            }
+            template.getLatencies().appendSummary(out, "zimbra_sql_latency_us", "template", template.sql);
+            out.append("zimbra_sql_rows_total{template=\"").append(template.sql).append("\"} ");
+            out.append(Long.toString(template.getRows())).append('\n');
+        }
+    }
+
+    public void reset() {
+        for (Template template : templates) {
+            template.reset();
+        }
+    }
+}
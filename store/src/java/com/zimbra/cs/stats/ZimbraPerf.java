@@ -36,6 +36,7 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import com.google.common.collect.Maps;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
@@ -109,15 +110,24 @@ public class ZimbraPerf {
     @Description("Number of mailboxes cached in memory")
     public static final String RTS_MBOX_CACHE_SIZE = "mbox_cache_size";
 
+    @Description("Estimated number of bytes retained by cached mailboxes and their item caches")
+    public static final String RTS_MBOX_CACHE_BYTES = "mbox_cache_bytes";
+
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Estimated number of bytes retained by the message structure cache")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of bytes of message content mapped into memory by the file descriptor cache")
+    public static final String RTS_FD_CACHE_MAPPED_BYTES = "fd_cache_mapped_bytes";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -178,14 +188,22 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
+    public static final Counter COUNTER_DB_STMT_CACHE = new Counter();
+    public static final Counter COUNTER_DB_REPLICA_READ = new Counter();
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
+    public static final Counter COUNTER_MBOX_LOADS = new Counter();
+    public static final Counter COUNTER_MBOX_EVICTIONS = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_EVICTIONS = new Counter();
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_THREADER_CACHE = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
+    public static final Counter COUNTER_IMAP_COMPRESS_BYTES = new Counter();
+    public static final Counter COUNTER_IMAP_COMPRESS_SAVED_BYTES = new Counter();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
     public static final Counter COUNTER_IDX_WRT = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
@@ -193,6 +211,13 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_MEM_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_LRU_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_MEMCACHED_HIT = new Counter();
+    public static final Counter COUNTER_CALENDAR_CACHE_LRU_BYTES = new Counter();
+    public static final StopWatch STOPWATCH_CALENDAR_CACHE_REBUILD = new StopWatch();
+    public static final Counter COUNTER_FREEBUSY_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_FILTER_SCRIPT_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_FILTER_RULE_TIME = new Counter();  // microseconds per rule
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
@@ -206,11 +231,15 @@ public class ZimbraPerf {
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
+    public static final SqlTemplateTracker SQL_TEMPLATE_TRACKER =
+            new SqlTemplateTracker(LC.zimbra_db_sql_template_limit.intValue());
 
     private static int mailboxCacheSize;
     private static long mailboxCacheSizeTimestamp = 0;
     private static JmxServerStats jmxServerStats;
     private static JmxImapDaemonStats jmxImapDaemonStats;
+    private static JmxLatencyStats jmxLatencyStats;
+    private static JmxSqlStats jmxSqlStats;
     private static Map<String, String> descriptions = Maps.newTreeMap(String.CASE_INSENSITIVE_ORDER);
 
     private static String[] mboxRealtimeStatsNames = new String[] {
@@ -219,8 +248,8 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MBOX_CACHE_BYTES, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_MAPPED_BYTES,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -258,6 +287,12 @@ public class ZimbraPerf {
     @Description("Average latency (ms) of getting a database connection from the pool")
     private static final String DC_DB_CONN_MS_AVG = "db_conn_ms_avg";
 
+    @Description("Percentage of prepared statements reused from the connection's statement cache")
+    private static final String DC_DB_STMT_CACHE = "db_stmt_cache";
+
+    @Description("Percentage of stale-tolerant mailbox reads served by the database read replica")
+    private static final String DC_DB_REPLICA_READ = "db_replica_read";
+
     @Description("Number of times that the server got an LDAP directory context")
     private static final String DC_LDAP_DC_COUNT = "ldap_dc_count";
 
@@ -279,12 +314,24 @@ public class ZimbraPerf {
     @Description("Mailbox cache hit rate")
     private static final String DC_MBOX_CACHE = "mbox_cache";
 
+    @Description("Number of mailboxes loaded from the database")
+    private static final String DC_MBOX_LOADS = "mbox_loads";
+
+    @Description("Number of mailboxes evicted from the mailbox cache")
+    private static final String DC_MBOX_EVICTIONS = "mbox_evictions";
+
+    @Description("Number of item caches purged to keep the mailbox cache within its heap budget")
+    private static final String DC_MBOX_ITEM_CACHE_EVICTIONS = "mbox_item_cache_evictions";
+
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Percentage of threading hash lookups answered without querying the database")
+    private static final String DC_MBOX_THREADER_CACHE = "mbox_threader_cache";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -297,6 +344,12 @@ public class ZimbraPerf {
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("Number of bytes sent and received over compressed IMAP connections")
+    private static final String DC_IMAP_COMPRESS_BYTES = "imap_compress_bytes";
+
+    @Description("Number of bytes saved by compressing IMAP connections")
+    private static final String DC_IMAP_COMPRESS_SAVED_BYTES = "imap_compress_saved_bytes";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
@@ -336,9 +389,36 @@ public class ZimbraPerf {
     @Description("Hit rate of calendar summary cache, counting cache hit from memory only")
     private static final String DC_CALCACHE_MEM_HIT = "calcache_mem_hit";
 
-    @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
+    @Description("Number of calendars (folders) in the calendar summary cache LRU")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Hit rate of calendar summary cache, counting cache hit from the off-heap LRU only")
+    private static final String DC_CALCACHE_LRU_HIT = "calcache_lru_hit";
+
+    @Description("Hit rate of calendar summary cache, counting cache hit from memcached only")
+    private static final String DC_CALCACHE_MEMCACHED_HIT = "calcache_memcached_hit";
+
+    @Description("Bytes of off-heap memory used by the calendar summary cache LRU")
+    private static final String DC_CALCACHE_LRU_BYTES = "calcache_lru_bytes";
+
+    @Description("Number of times that a calendar summary was rebuilt from the mailbox")
+    private static final String DC_CALCACHE_REBUILD_COUNT = "calcache_rebuild_count";
+
+    @Description("Average time (ms) to rebuild a calendar summary from the mailbox")
+    private static final String DC_CALCACHE_REBUILD_MS_AVG = "calcache_rebuild_ms_avg";
+
+    @Description("Hit rate of the free/busy timeline cache, counting cache hit from both memory and file")
+    private static final String DC_FBCACHE_HIT = "fbcache_hit";
+
+    @Description("Hit rate of the shared cache of compiled Sieve scripts")
+    private static final String DC_FILTER_SCRIPT_CACHE_HIT = "filter_script_cache_hit";
+
+    @Description("Number of Sieve filter rules evaluated")
+    private static final String DC_FILTER_RULE_COUNT = "filter_rule_count";
+
+    @Description("Average time (microseconds) to evaluate a Sieve filter rule")
+    private static final String DC_FILTER_RULE_US_AVG = "filter_rule_us_avg";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -419,6 +499,22 @@ public class ZimbraPerf {
         return jmxServerStats;
     }
 
+    /**
+     * Returns the per-command latency percentiles, or <tt>null</tt> if stats have not been
+     * initialized.
+     */
+    public static JmxLatencyStats getLatencyStats() {
+        return jmxLatencyStats;
+    }
+
+    /**
+     * Returns the per-template SQL statistics, or <tt>null</tt> if stats have not been
+     * initialized.
+     */
+    public static JmxSqlStats getSqlStats() {
+        return jmxSqlStats;
+    }
+
     public static int getPrepareCount() {
         return sPrepareCount.get();
     }
@@ -471,6 +567,8 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
                                     .setAverageName(DC_DB_CONN_MS_AVG),
+                            new DeltaCalculator(COUNTER_DB_STMT_CACHE).setAverageName(DC_DB_STMT_CACHE),
+                            new DeltaCalculator(COUNTER_DB_REPLICA_READ).setAverageName(DC_DB_REPLICA_READ),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
                                     .setAverageName(DC_LDAP_DC_MS_AVG),
                             new DeltaCalculator(STOPWATCH_MBOX_ADD_MSG).setCountName(DC_MBOX_ADD_MSG_COUNT)
@@ -478,12 +576,20 @@ public class ZimbraPerf {
                             new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT)
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_LOADS).setTotalName(DC_MBOX_LOADS),
+                            new DeltaCalculator(COUNTER_MBOX_EVICTIONS).setTotalName(DC_MBOX_EVICTIONS),
+                            new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_EVICTIONS)
+                                    .setTotalName(DC_MBOX_ITEM_CACHE_EVICTIONS),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_THREADER_CACHE).setAverageName(DC_MBOX_THREADER_CACHE),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
                                     .setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_BYTES).setTotalName(DC_IMAP_COMPRESS_BYTES),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_SAVED_BYTES)
+                                    .setTotalName(DC_IMAP_COMPRESS_SAVED_BYTES),
                             new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT)
                                     .setAverageName(DC_POP_MS_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
@@ -495,6 +601,20 @@ public class ZimbraPerf {
                                     .setAverageName(DC_CALCACHE_MEM_HIT),
                             new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE)
                                     .setAverageName(DC_CALCACHE_LRU_SIZE),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_HIT)
+                                    .setAverageName(DC_CALCACHE_LRU_HIT),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEMCACHED_HIT)
+                                    .setAverageName(DC_CALCACHE_MEMCACHED_HIT),
+                            new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_BYTES)
+                                    .setAverageName(DC_CALCACHE_LRU_BYTES),
+                            new DeltaCalculator(STOPWATCH_CALENDAR_CACHE_REBUILD)
+                                    .setCountName(DC_CALCACHE_REBUILD_COUNT)
+                                    .setAverageName(DC_CALCACHE_REBUILD_MS_AVG),
+                            new DeltaCalculator(COUNTER_FREEBUSY_CACHE_HIT).setAverageName(DC_FBCACHE_HIT),
+                            new DeltaCalculator(COUNTER_FILTER_SCRIPT_CACHE_HIT)
+                                    .setAverageName(DC_FILTER_SCRIPT_CACHE_HIT),
+                            new DeltaCalculator(COUNTER_FILTER_RULE_TIME).setCountName(DC_FILTER_RULE_COUNT)
+                                    .setAverageName(DC_FILTER_RULE_US_AVG),
                             new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN)
                                     .setTotalName(DC_IDX_BYTES_WRITTEN)
                                     .setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
@@ -513,6 +633,9 @@ public class ZimbraPerf {
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
                                     .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_BYTES).setTotalName(DC_IMAP_COMPRESS_BYTES),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_SAVED_BYTES)
+                                    .setTotalName(DC_IMAP_COMPRESS_SAVED_BYTES),
                             realtimeStats
                     }
                 );
@@ -555,6 +678,21 @@ public class ZimbraPerf {
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
+        jmxLatencyStats = new JmxLatencyStats().addTracker("soap", SOAP_TRACKER).addTracker("imap", IMAP_TRACKER)
+                .addTracker("pop3", POP_TRACKER).addTracker("ldap", LDAP_TRACKER).addTracker("sql", SQL_TRACKER)
+                .addTracker("sync", SYNC_TRACKER);
+        try {
+            jmxServer.registerMBean(jmxLatencyStats,
+                    new ObjectName("ZimbraCollaborationSuite:type=LatencyStats"));
+        } catch (Exception e) {
+            ZimbraLog.perf.warn("Unable to register JMX interface.", e);
+        }
+        jmxSqlStats = new JmxSqlStats(SQL_TEMPLATE_TRACKER);
+        try {
+            jmxServer.registerMBean(jmxSqlStats, new ObjectName("ZimbraCollaborationSuite:type=SqlStats"));
+        } catch (Exception e) {
+            ZimbraLog.perf.warn("Unable to register JMX interface.", e);
+        }
         StatsDumper.schedule(new Stats("mailboxd.csv", sAccumulators, jmxServerStats), CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SOAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAP_TRACKER, CSV_DUMP_FREQUENCY);
@@ -562,6 +700,9 @@ public class ZimbraPerf {
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SQL_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(new MessageCacheStats("msgcache.csv"), CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(new MailboxLockStats("mboxlock.csv"), CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(new MailboxCacheStats("mboxcache.csv"), CSV_DUMP_FREQUENCY);
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
     }
@@ -575,6 +716,12 @@ public class ZimbraPerf {
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
+        jmxLatencyStats = new JmxLatencyStats().addTracker("imap", IMAPD_TRACKER);
+        try {
+            jmxServer.registerMBean(jmxLatencyStats, new ObjectName("ZimbraImapDaemon:type=LatencyStats"));
+        } catch (Exception e) {
+            ZimbraLog.perf.warn("Unable to register JMX interface.", e);
+        }
         StatsDumper.schedule(new Stats("imapd_stats.csv", sAccumulators, jmxImapDaemonStats),
                 CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAPD_TRACKER, CSV_DUMP_FREQUENCY);
@@ -597,6 +744,19 @@ public class ZimbraPerf {
         return mailboxCacheSize;
     }
 
+    /**
+     * Returns the estimated heap retained by the mailbox cache.  The manager keeps this value
+     * up to date as part of its budget checks, so reading it is cheap.
+     */
+    protected static long getMailboxCacheBytes() {
+        try {
+            return MailboxManager.getInstance().getEstimatedCacheBytes();
+        } catch (ServiceException e) {
+            ZimbraLog.perf.warn("Unable to determine mailbox cache size.", e);
+            return 0;
+        }
+    }
+
     /**
      * Scheduled task that writes a row to a CSV file with the latest <tt>Accumulator</tt> data.
      */
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -44,6 +45,12 @@ import com.zimbra.cs.account.Server;
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * If a mapped byte budget is set with {@link #setMaxMappedBytes}, uncompressed blobs
+ * no larger than {@link #setMaxMappedFileSize} are mapped into memory instead of being
+ * read through a file descriptor.  Mapped entries don't count against the descriptor
+ * limit; they are aged out in LRU order once the total number of mapped bytes exceeds
+ * the budget.
  */
 public class FileDescriptorCache
 {
@@ -54,6 +61,11 @@ public class FileDescriptorCache
     // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
     private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
     private int mMaxSize = 1000;
+    private long mMaxMappedBytes = 0;
+    private long mMaxMappedFileSize = 0;
+    // Guarded by this.
+    private long mMappedBytes = 0;
+    private int mNumMapped = 0;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
 
@@ -81,14 +93,45 @@ public class FileDescriptorCache
         return this;
     }
 
+    /**
+     * Sets the maximum number of bytes that may be mapped into memory at once.
+     * <tt>0</tt> disables mapping.
+     */
+    public synchronized FileDescriptorCache setMaxMappedBytes(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes value of " + maxBytes + " is invalid (must be at least 0)");
+
+        mMaxMappedBytes = maxBytes;
+        pruneIfNecessary();
+        return this;
+    }
+
+    /**
+     * Sets the size of the largest blob that will be mapped into memory.  Larger
+     * blobs are read through a file descriptor.
+     */
+    public synchronized FileDescriptorCache setMaxMappedFileSize(long maxFileSize) {
+        if (maxFileSize < 0)
+            throw new IllegalArgumentException("maxFileSize value of " + maxFileSize + " is invalid (must be at least 0)");
+
+        mMaxMappedFileSize = maxFileSize;
+        return this;
+    }
+
     public FileDescriptorCache loadSettings() throws ServiceException {
         Server server = Provisioning.getInstance().getLocalServer();
         int fileDescriptorCacheSize = server.getMailFileDescriptorCacheSize();
+        long maxMappedBytes = LC.zimbra_blob_mmap_cache_max_bytes.longValue();
+        long maxMappedFileSize = LC.zimbra_blob_mmap_max_file_size.longValue();
 
-        sLog.info("Loading settings: %s=%d.",
-            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize);
+        sLog.info("Loading settings: %s=%d, %s=%d, %s=%d.",
+            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize,
+            LC.zimbra_blob_mmap_cache_max_bytes.key(), maxMappedBytes,
+            LC.zimbra_blob_mmap_max_file_size.key(), maxMappedFileSize);
 
         setMaxSize(fileDescriptorCacheSize);
+        setMaxMappedFileSize(maxMappedFileSize);
+        setMaxMappedBytes(maxMappedBytes);
 
         return this;
     }
@@ -104,6 +147,7 @@ public class FileDescriptorCache
             String path = entry.getKey();
             SharedFile file = entry.getValue();
             iEntries.remove();
+            removed(file);
             try {
                 boolean success = close(file, path);
                 if (!success)
@@ -177,6 +221,9 @@ public class FileDescriptorCache
                 }
             }
             sharedFile = new SharedFile(uncompressed.file);
+        } else if (shouldMap(file.length())) {
+            sLog.debug("Mapping %s into memory.", path);
+            sharedFile = new SharedFile(file, true);
         } else {
             sLog.debug("Opening new file descriptor for %s.", path);
             sharedFile = new SharedFile(file);
@@ -190,6 +237,10 @@ public class FileDescriptorCache
             } else {
                 sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
                 mCache.put(path, sharedFile);
+                if (sharedFile.getMappedSize() > 0) {
+                    mMappedBytes += sharedFile.getMappedSize();
+                    mNumMapped++;
+                }
             }
         }
         sharedFile.aboutToRead();
@@ -207,6 +258,9 @@ public class FileDescriptorCache
 
         synchronized (this) {
             file = mCache.remove(path);
+            if (file != null) {
+                removed(file);
+            }
         }
 
         if (file != null) {
@@ -265,26 +319,62 @@ public class FileDescriptorCache
         }
     }
 
+    private synchronized boolean shouldMap(long fileSize) {
+        return mMaxMappedBytes > 0 && fileSize > 0 && fileSize <= mMaxMappedFileSize && fileSize <= mMaxMappedBytes;
+    }
+
+    /**
+     * Updates mapped byte accounting after an entry is removed from {@link #mCache}.
+     */
+    private synchronized void removed(SharedFile file) {
+        long mapped = file.getMappedSize();
+        if (mapped > 0) {
+            mMappedBytes -= mapped;
+            mNumMapped--;
+        }
+    }
+
     public synchronized int getSize() {
         return mCache.size();
     }
 
+    /**
+     * Returns the number of bytes currently mapped by cache entries.
+     */
+    public synchronized long getMappedBytes() {
+        return mMappedBytes;
+    }
+
+    private synchronized boolean isOverDescriptorLimit() {
+        return mCache.size() - mNumMapped > mMaxSize;
+    }
+
+    private synchronized boolean isOverMappedLimit() {
+        return mMappedBytes > mMaxMappedBytes;
+    }
+
     public double getHitRate() {
         return mHitRate.getAverage();
     }
 
     private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
+        if (!isOverDescriptorLimit() && !isOverMappedLimit())
             return;
 
         List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
 
+        // Descriptors are limited by count and mappings by size, so walk the
+        // LRU order and only evict entries of the kind that is over its limit.
         synchronized (this) {
             Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
+            while (iEntries.hasNext() && (isOverDescriptorLimit() || isOverMappedLimit())) {
                 Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
+                boolean mapped = mapEntry.getValue().getMappedSize() > 0;
+                if (mapped ? isOverMappedLimit() : isOverDescriptorLimit()) {
+                    iEntries.remove();
+                    removed(mapEntry.getValue());
+                    removeList.add(mapEntry);
+                }
             }
         }
         for (Map.Entry<String, SharedFile> mapEntry : removeList) {
@@ -22,12 +22,18 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * <tt>BlobInputStream</tt> objects that share a single file descriptor.  A
+ * <tt>SharedFile</tt> may instead map the whole file into memory, in which case
+ * reads copy straight from the mapping without taking the lock or making a
+ * system call, and no file descriptor is held open.
  */
 public class SharedFile {
 
@@ -48,11 +54,34 @@ public class SharedFile {
      */
     private long mLength;
 
+    /**
+     * Read-only mapping of the entire file, or <tt>null</tt> if reads go through
+     * the file descriptor.  Cleared by {@link #close}; the mapping itself is
+     * released when the last reader drops its reference.
+     */
+    private volatile MappedByteBuffer mMap;
+
+    /**
+     * Number of bytes mapped when this object was created.  Does not change when
+     * the file is closed, so that the cache can account for it on removal.
+     */
+    private final long mMappedSize;
+
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
      * file descriptor.
      */
     SharedFile(File file)
+    throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Creates a new <tt>SharedFile</tt>.  If <tt>map</tt> is <tt>true</tt>, maps the
+     * file into memory and closes the file descriptor immediately.  Otherwise opens
+     * the underlying file descriptor.
+     */
+    SharedFile(File file, boolean map)
     throws IOException {
         if (file == null) {
             throw new NullPointerException("file cannot be null");
@@ -62,14 +91,59 @@ public class SharedFile {
         }
         mFile = file;
         mLength = file.length();
-        openIfNecessary();
+        if (map && mLength > 0 && mLength <= Integer.MAX_VALUE) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                mLength = raf.length();
+                mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            } finally {
+                raf.close();
+            }
+            mMappedSize = mLength;
+        } else {
+            mMappedSize = 0;
+            openIfNecessary();
+        }
     }
 
     synchronized long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    /**
+     * Returns the number of bytes this file mapped into memory when it was opened,
+     * or <tt>0</tt> if it is read through a file descriptor.
+     */
+    long getMappedSize() {
+        return mMappedSize;
+    }
+
+    int read(long fileOffset, byte[] b, int off, int len)
+    throws IOException {
+        ByteBuffer map = mMap;
+        if (map != null) {
+            return readMapped(map, fileOffset, b, off, len);
+        }
+        return readFile(fileOffset, b, off, len);
+    }
+
+    private int readMapped(ByteBuffer map, long fileOffset, byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int limit = map.limit();
+        if (fileOffset >= limit) {
+            return -1;
+        }
+        int numRead = (int) Math.min(len, limit - fileOffset);
+        ByteBuffer view = map.duplicate();
+        view.position((int) fileOffset);
+        view.get(b, off, numRead);
+        ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
+        return numRead;
+    }
+
+    private synchronized int readFile(long fileOffset, byte[] b, int off, int len)
     throws IOException {
         int numRead = 0;
         boolean seeked = false;
@@ -119,6 +193,7 @@ public class SharedFile {
     
     synchronized void close()
     throws IOException {
+        mMap = null;
         if (mRAF != null) {
             mRAF.close();
             mPos = 0;
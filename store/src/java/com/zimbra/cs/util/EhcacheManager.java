@@ -35,6 +35,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.imap.ImapFolder;
+import com.zimbra.cs.imap.ImapFolderEhcacheSerializer;
 import com.zimbra.cs.memcached.MemcachedConnector;
 
 /**
@@ -95,6 +96,7 @@ public final class EhcacheManager {
                 ResourcePoolsBuilder.newResourcePoolsBuilder()
                 .heap(1, EntryUnit.ENTRIES)
                 .disk(maxBytesOnLocalDisk, MemoryUnit.B, false))  // disk backed not persistent
+                .withValueSerializer(new ImapFolderEhcacheSerializer())
                 .build();
     }
 
@@ -120,6 +122,7 @@ public final class EhcacheManager {
                 .heap(1, EntryUnit.ENTRIES)
                 .offheap(inactiveSessionCache, MemoryUnit.B)
                 .disk(maxBytesOnLocalDisk, MemoryUnit.B, true)) // disk backed persistent store
+                .withValueSerializer(new ImapFolderEhcacheSerializer())
                 .build();
     }
 
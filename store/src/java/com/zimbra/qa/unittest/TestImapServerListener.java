@@ -802,6 +802,10 @@ public class TestImapServerListener {
             return false;
         }
 
+        @Override
+        protected void startCompression(String tag, int level) throws IOException {
+        }
+
         @Override
         protected InetSocketAddress getLocalAddress() {
             return new InetSocketAddress("localhost", 0);